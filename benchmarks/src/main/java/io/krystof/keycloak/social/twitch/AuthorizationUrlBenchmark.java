@@ -0,0 +1,57 @@
+package io.krystof.keycloak.social.twitch;
+
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.broker.provider.util.IdentityBrokerState;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * createAuthorizationUrl, built into the final redirect URI as Keycloak does when redirecting to Twitch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AuthorizationUrlBenchmark {
+
+    private BenchmarkSupport.BenchmarkProvider provider;
+    private AuthenticationRequest request;
+
+    @Setup
+    public void setup() {
+        provider = BenchmarkSupport.provider(BenchmarkSupport.profile(0));
+
+        IdentityBrokerState state = IdentityBrokerState.decoded("c2a9b4e0-0d4e-4a43-9c4b-6d8f0b5e7a21",
+                "account-console", "account-console", "tab-id", null);
+        request = new AuthenticationRequest(BenchmarkSupport.stub(KeycloakSession.class),
+                BenchmarkSupport.stub(RealmModel.class),
+                BenchmarkSupport.stub(AuthenticationSessionModel.class),
+                BenchmarkSupport.stub(HttpRequest.class),
+                BenchmarkSupport.stub(UriInfo.class),
+                state,
+                "https://keycloak.example.com/realms/benchmark/broker/twitch/endpoint");
+    }
+
+    @Benchmark
+    public URI createAuthorizationUrl() {
+        return provider.authorizationUrl(request).build();
+    }
+}
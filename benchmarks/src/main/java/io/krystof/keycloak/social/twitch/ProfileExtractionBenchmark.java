@@ -0,0 +1,46 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * extractIdentityFromProfile with a realistic Twitch userinfo profile and with an oversized one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ProfileExtractionBenchmark {
+
+    @Param({ "0", "2000" })
+    public int extraFields;
+
+    private BenchmarkSupport.BenchmarkProvider provider;
+    private JsonNode profile;
+
+    @Setup
+    public void setup() {
+        profile = BenchmarkSupport.profile(extraFields);
+        provider = BenchmarkSupport.provider(profile);
+    }
+
+    @Benchmark
+    public BrokeredIdentityContext extractIdentityFromProfile() {
+        return provider.extract(profile);
+    }
+}
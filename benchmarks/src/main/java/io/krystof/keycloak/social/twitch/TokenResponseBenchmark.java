@@ -0,0 +1,52 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token response handling: the full getFederatedIdentity path with a canned userinfo profile,
+ * and the streaming reader on its own, which is where Twitch's scope array is converted to a string.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TokenResponseBenchmark {
+
+    @Param({ "array", "string" })
+    public String scopeFormat;
+
+    private BenchmarkSupport.BenchmarkProvider provider;
+    private String response;
+
+    @Setup
+    public void setup() {
+        provider = BenchmarkSupport.provider(BenchmarkSupport.profile(0));
+        response = BenchmarkSupport.tokenResponse("array".equals(scopeFormat));
+    }
+
+    @Benchmark
+    public BrokeredIdentityContext getFederatedIdentity() {
+        return provider.getFederatedIdentity(response);
+    }
+
+    @Benchmark
+    public TwitchTokenResponse readTokenResponse() throws IOException {
+        return TwitchTokenResponseReader.read(response);
+    }
+}
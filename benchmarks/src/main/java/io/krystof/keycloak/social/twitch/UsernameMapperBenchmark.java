@@ -0,0 +1,68 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TwitchUsernameMapper.formatUsername with a growing number of context data entries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class UsernameMapperBenchmark {
+
+    @Param({ "10", "500" })
+    public int contextEntries;
+
+    @Param({ "${email}", "twitch-${preferred_username|lowercase|truncate:20}-${sub}" })
+    public String template;
+
+    private TwitchUsernameMapper mapper;
+    private IdentityProviderMapperModel mapperModel;
+    private BrokeredIdentityContext context;
+
+    @Setup
+    public void setup() {
+        mapper = new TwitchUsernameMapper();
+
+        mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setId("benchmark-username-mapper");
+        mapperModel.setIdentityProviderAlias(BenchmarkSupport.ALIAS);
+        Map<String, String> config = new HashMap<>();
+        config.put(TwitchUsernameMapper.TEMPLATE, template);
+        mapperModel.setConfig(config);
+
+        context = new BrokeredIdentityContext("713936733", new IdentityProviderModel());
+        context.setEmail("Some.Streamer@example.com");
+        context.setUsername("some_streamer");
+        for (int i = 0; i < contextEntries; i++) {
+            context.getContextData().put("context_entry_" + i, "value " + i);
+        }
+        context.getContextData().put(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE, BenchmarkSupport.profile(0));
+    }
+
+    @Benchmark
+    public String formatUsername() {
+        return mapper.formatUsername(mapperModel, mapperModel.getConfig().get(TwitchUsernameMapper.TEMPLATE), context);
+    }
+}
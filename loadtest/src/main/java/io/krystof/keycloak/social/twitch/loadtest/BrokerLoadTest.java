@@ -0,0 +1,252 @@
+package io.krystof.keycloak.social.twitch.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test of Twitch broker logins against a local Keycloak with the provider installed.
+ * <p>
+ * Starts a {@link StubTwitchServer}, (re)creates a realm whose Twitch IdP points at it, logs every stub user
+ * in once so that steady-state logins hit existing users, warms up, and then runs concurrent logins for a fixed
+ * duration. Throughput, latency percentiles and error rates of each phase are printed and written as JSON.
+ * <p>
+ * Options, all optional:
+ * <pre>
+ * --keycloak-url URL        Keycloak base URL (http://localhost:8080)
+ * --admin-user NAME         master realm admin (admin)
+ * --admin-password PASS     master realm admin password (admin)
+ * --realm NAME              realm to create (twitch-loadtest)
+ * --alias ALIAS             Twitch IdP alias (twitch)
+ * --skip-setup              reuse an existing realm instead of recreating it
+ * --concurrency N           concurrent simulated browsers (32)
+ * --warmup SECONDS          warm-up duration (10)
+ * --duration SECONDS        measured duration (60)
+ * --users N                 distinct Twitch users (1000)
+ * --stub-port PORT          stub port, 0 for any (0)
+ * --stub-public-url URL     stub URL as seen from Keycloak, e.g. http://host.docker.internal:PORT
+ * --latency MS              stub response delay (0)
+ * --jitter MS               extra random stub delay up to this value (0)
+ * --error-rate FRACTION     fraction of stub responses replaced with 503 (0)
+ * --error-endpoints LIST    comma-separated stub endpoints errors apply to (all)
+ * --rate-limit N            stub requests per minute before 429 (unlimited)
+ * --idp-config KEY=VALUE    extra IdP config, repeatable, e.g. twitchIdTokenClaims=true
+ * --report FILE             JSON report path
+ * </pre>
+ */
+public class BrokerLoadTest {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private final Map<String, String> options;
+    private final Map<String, String> idpConfig;
+
+    private BrokerLoadTest(Map<String, String> options, Map<String, String> idpConfig) {
+        this.options = options;
+        this.idpConfig = idpConfig;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        Map<String, String> idpConfig = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + name);
+            }
+            if (name.equals("--skip-setup")) {
+                options.put("skip-setup", "true");
+            } else if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            } else if (name.equals("--idp-config")) {
+                String[] entry = args[++i].split("=", 2);
+                idpConfig.put(entry[0], entry.length > 1 ? entry[1] : "");
+            } else {
+                options.put(name.substring(2), args[++i]);
+            }
+        }
+        new BrokerLoadTest(options, idpConfig).run();
+    }
+
+    private void run() throws Exception {
+        String keycloakUrl = option("keycloak-url", "http://localhost:8080");
+        String realm = option("realm", "twitch-loadtest");
+        String alias = option("alias", "twitch");
+        int concurrency = Integer.parseInt(option("concurrency", "32"));
+        int users = Integer.parseInt(option("users", "1000"));
+
+        Set<String> errorEndpoints = new HashSet<>();
+        if (options.containsKey("error-endpoints")) {
+            errorEndpoints.addAll(Arrays.asList(options.get("error-endpoints").split(",")));
+        }
+
+        try (StubTwitchServer stub = StubTwitchServer.builder()
+                .port(Integer.parseInt(option("stub-port", "0")))
+                .publicUrl(options.get("stub-public-url"))
+                .userCount(users)
+                .latency(Long.parseLong(option("latency", "0")), Long.parseLong(option("jitter", "0")))
+                .errors(Double.parseDouble(option("error-rate", "0")), errorEndpoints)
+                .rateLimitPerMinute(Integer.parseInt(option("rate-limit", "0")))
+                .build()
+                .start()) {
+
+            System.out.printf("Stub Twitch server at %s%n", stub.getBaseUrl());
+            if (!options.containsKey("skip-setup")) {
+                new KeycloakRealmSetup(keycloakUrl, option("admin-user", "admin"), option("admin-password", "admin"))
+                        .recreateRealm(realm, alias, stub, idpConfig);
+                System.out.printf("Created realm %s with Twitch IdP %s%n", realm, alias);
+            }
+
+            ObjectNode report = new ObjectMapper().createObjectNode();
+            ObjectNode settings = report.putObject("settings");
+            options.forEach(settings::put);
+            idpConfig.forEach((key, value) -> settings.put("idp." + key, value));
+
+            PhaseResult prime = runPhase(keycloakUrl, realm, alias, concurrency, users, 0);
+            print("first logins", prime);
+            prime.write(report.putObject("firstLogins"));
+
+            PhaseResult warmup = runPhase(keycloakUrl, realm, alias, concurrency, -1, Long.parseLong(option("warmup", "10")));
+            print("warm-up", warmup);
+
+            PhaseResult steady = runPhase(keycloakUrl, realm, alias, concurrency, -1, Long.parseLong(option("duration", "60")));
+            print("steady state", steady);
+            steady.write(report.putObject("steadyState"));
+
+            ObjectNode stubRequests = report.putObject("stubRequests");
+            new TreeMap<>(stub.getRequestCounts()).forEach(stubRequests::put);
+
+            if (options.containsKey("report")) {
+                File file = new File(options.get("report"));
+                new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, report);
+                System.out.printf("Report written to %s%n", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Runs logins on {@code concurrency} threads, either until {@code logins} logins were attempted or,
+     * if that is negative, for {@code seconds}.
+     */
+    private PhaseResult runPhase(String keycloakUrl, String realm, String alias, int concurrency, int logins, long seconds)
+            throws InterruptedException {
+        PhaseResult result = new PhaseResult();
+        AtomicInteger remaining = new AtomicInteger(logins);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Duration timeout = Duration.ofSeconds(30);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(() -> {
+                BrokerLoginDriver driver = new BrokerLoginDriver(keycloakUrl, realm, alias, timeout);
+                while (logins >= 0 ? remaining.getAndDecrement() > 0 : System.nanoTime() < deadline) {
+                    long loginStart = System.nanoTime();
+                    try {
+                        driver.login();
+                        result.success(System.nanoTime() - loginStart);
+                    } catch (BrokerLoginDriver.LoginFailure e) {
+                        result.failure(e.getMessage());
+                    } catch (IOException e) {
+                        result.failure(e.getClass().getSimpleName());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Math.max(seconds, 1) + 3600, TimeUnit.SECONDS);
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void print(String phase, PhaseResult result) {
+        Histogram latency = result.latency;
+        long total = result.total();
+        System.out.printf("%-13s %7d logins  %8.1f/s  errors %6.2f%%  p50 %7.1fms  p99 %7.1fms  p999 %7.1fms  max %7.1fms%n",
+                phase, total, result.throughput(),
+                total == 0 ? 0.0 : 100.0 * result.errors() / total,
+                millis(latency.getValueAtPercentile(50)),
+                millis(latency.getValueAtPercentile(99)),
+                millis(latency.getValueAtPercentile(99.9)),
+                millis(latency.getMaxValue()));
+        result.errorsByType.forEach((type, count) -> System.out.printf("              %7d x %s%n", count.sum(), type));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private static final class PhaseResult {
+
+        // Latency of successful logins, in microseconds
+        private final Histogram latency = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+        private final LongAdder successes = new LongAdder();
+        private final Map<String, LongAdder> errorsByType = new ConcurrentHashMap<>();
+        private long elapsedNanos;
+
+        private void success(long nanos) {
+            successes.increment();
+            latency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_TRACKABLE_MICROS));
+        }
+
+        private void failure(String type) {
+            errorsByType.computeIfAbsent(type, t -> new LongAdder()).increment();
+        }
+
+        private long errors() {
+            return errorsByType.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        private long total() {
+            return successes.sum() + errors();
+        }
+
+        private double throughput() {
+            return elapsedNanos == 0 ? 0.0 : successes.sum() / (elapsedNanos / 1e9);
+        }
+
+        private void write(ObjectNode node) {
+            long total = total();
+            node.put("logins", total);
+            node.put("successes", successes.sum());
+            node.put("errors", errors());
+            node.put("errorRate", total == 0 ? 0.0 : (double) errors() / total);
+            node.put("elapsedSeconds", elapsedNanos / 1e9);
+            node.put("throughputPerSecond", throughput());
+            ObjectNode latencyNode = node.putObject("latencyMillis");
+            latencyNode.put("p50", millis(latency.getValueAtPercentile(50)));
+            latencyNode.put("p90", millis(latency.getValueAtPercentile(90)));
+            latencyNode.put("p99", millis(latency.getValueAtPercentile(99)));
+            latencyNode.put("p999", millis(latency.getValueAtPercentile(99.9)));
+            latencyNode.put("max", millis(latency.getMaxValue()));
+            latencyNode.put("mean", latency.getMean() / 1000.0);
+            ObjectNode errorsNode = node.putObject("errorsByType");
+            new TreeMap<>(errorsByType).forEach((type, count) -> errorsNode.put(type, count.sum()));
+        }
+    }
+}
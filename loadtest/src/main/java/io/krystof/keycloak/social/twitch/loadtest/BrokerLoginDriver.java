@@ -0,0 +1,91 @@
+package io.krystof.keycloak.social.twitch.loadtest;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * One simulated browser performing complete broker logins.
+ * <p>
+ * A login starts at the realm's authorization endpoint with {@code kc_idp_hint}, follows Keycloak's redirect
+ * to the stub Twitch authorize endpoint and back to the broker endpoint, where Keycloak exchanges the code and
+ * fetches the profile, and ends when Keycloak redirects to the client with an authorization code.
+ * Cookies are cleared before every login so each one starts a new Keycloak session.
+ */
+public class BrokerLoginDriver {
+
+    private static final int MAX_REDIRECTS = 20;
+
+    private final CookieManager cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+    private final HttpClient http;
+    private final String authorizationUrl;
+
+    public BrokerLoginDriver(String keycloakUrl, String realm, String alias, Duration timeout) {
+        this.http = HttpClient.newBuilder()
+                .cookieHandler(cookies)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(timeout)
+                .build();
+        this.authorizationUrl = keycloakUrl + "/realms/" + realm + "/protocol/openid-connect/auth"
+                + "?client_id=" + encode(KeycloakRealmSetup.CLIENT_ID)
+                + "&redirect_uri=" + encode(KeycloakRealmSetup.REDIRECT_URI)
+                + "&response_type=code"
+                + "&scope=openid"
+                + "&kc_idp_hint=" + encode(alias);
+    }
+
+    /**
+     * Performs one login.
+     *
+     * @throws LoginFailure if the login did not end at the client with an authorization code
+     */
+    public void login() throws IOException, InterruptedException {
+        cookies.getCookieStore().removeAll();
+
+        URI next = URI.create(authorizationUrl + "&state=" + UUID.randomUUID());
+        for (int hop = 0; hop < MAX_REDIRECTS; hop++) {
+            HttpResponse<Void> response = http.send(HttpRequest.newBuilder(next).GET().build(),
+                    HttpResponse.BodyHandlers.discarding());
+            int status = response.statusCode();
+
+            if (status == 302 || status == 303) {
+                String location = response.headers().firstValue("Location")
+                        .orElseThrow(() -> new LoginFailure("redirect_without_location"));
+                next = next.resolve(location);
+                if (location.startsWith(KeycloakRealmSetup.REDIRECT_URI)) {
+                    if (next.getRawQuery() == null || !next.getRawQuery().contains("code=")) {
+                        throw new LoginFailure("client_redirect_without_code");
+                    }
+                    return;
+                }
+                continue;
+            }
+
+            String host = next.getHost() + ":" + next.getPort();
+            throw new LoginFailure(status == 200 ? "unexpected_page" : "status_" + status + "_from_" + host);
+        }
+        throw new LoginFailure("too_many_redirects");
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A login that did not complete; the message is a short error type used to group failures in the report.
+     */
+    public static class LoginFailure extends IOException {
+
+        public LoginFailure(String type) {
+            super(type);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.krystof.keycloak.social.twitch.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sends a locally signed EventSub notification to the Twitch webhook of a realm, the way Twitch would.
+ * <p>
+ * Options:
+ * <pre>
+ * --keycloak-url URL        Keycloak base URL (http://localhost:8080)
+ * --realm NAME              realm (twitch-loadtest)
+ * --alias ALIAS             Twitch IdP alias (twitch)
+ * --secret SECRET           EventSub secret configured for the IdP, required
+ * --type TYPE               user.update or user.authorization.revoke (user.update)
+ * --user-id ID              Twitch user id, required
+ * --login LOGIN             new login, for user.update (loadtest_ID)
+ * --email EMAIL             new email, for user.update
+ * --description TEXT        new description, for user.update
+ * --client-id ID            client id, for user.authorization.revoke (stub-client)
+ * --message-id ID           message id, to test de-duplication (random)
+ * </pre>
+ */
+public class EventSubNotifier {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Unexpected argument: " + name);
+            }
+            options.put(name.substring(2), args[++i]);
+        }
+        String secret = required(options, "secret");
+        String userId = required(options, "user-id");
+        String type = options.getOrDefault("type", "user.update");
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode message = mapper.createObjectNode();
+        ObjectNode subscription = message.putObject("subscription");
+        subscription.put("id", UUID.randomUUID().toString());
+        subscription.put("type", type);
+        subscription.put("version", "1");
+        subscription.put("status", "enabled");
+        ObjectNode event = message.putObject("event");
+        event.put("user_id", userId);
+        String login = options.getOrDefault("login", "loadtest_" + userId);
+        event.put("user_login", login);
+        event.put("user_name", login);
+        if (type.equals("user.authorization.revoke")) {
+            subscription.putObject("condition").put("client_id", options.getOrDefault("client-id", KeycloakRealmSetup.STUB_CLIENT_ID));
+            event.put("client_id", options.getOrDefault("client-id", KeycloakRealmSetup.STUB_CLIENT_ID));
+        } else {
+            subscription.putObject("condition").put("user_id", userId);
+            if (options.containsKey("email")) {
+                event.put("email", options.get("email"));
+                event.put("email_verified", true);
+            }
+            event.put("description", options.getOrDefault("description", ""));
+        }
+
+        byte[] body = mapper.writeValueAsBytes(message);
+        String messageId = options.getOrDefault("message-id", UUID.randomUUID().toString());
+        String timestamp = Instant.now().toString();
+        String url = options.getOrDefault("keycloak-url", "http://localhost:8080") + "/realms/"
+                + options.getOrDefault("realm", "twitch-loadtest") + "/twitch/" + options.getOrDefault("alias", "twitch") + "/eventsub";
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .header("Twitch-Eventsub-Message-Id", messageId)
+                .header("Twitch-Eventsub-Message-Timestamp", timestamp)
+                .header("Twitch-Eventsub-Message-Signature", sign(secret, messageId, timestamp, body))
+                .header("Twitch-Eventsub-Message-Type", "notification")
+                .header("Twitch-Eventsub-Subscription-Type", type)
+                .header("Twitch-Eventsub-Subscription-Version", "1")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        HttpResponse<String> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+        System.out.printf("%s message %s: HTTP %d%n", type, messageId, response.statusCode());
+    }
+
+    private static String sign(String secret, String messageId, String timestamp, byte[] body) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        mac.update(messageId.getBytes(StandardCharsets.UTF_8));
+        mac.update(timestamp.getBytes(StandardCharsets.UTF_8));
+        StringBuilder signature = new StringBuilder("sha256=");
+        for (byte b : mac.doFinal(body)) {
+            signature.append(String.format("%02x", b));
+        }
+        return signature.toString();
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,137 @@
+package io.krystof.keycloak.social.twitch.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uploads a file of users and their Twitch accounts to the identity import of a Twitch IdP and follows it.
+ * <p>
+ * The checkpoint the import reports is written to the checkpoint file as it advances. Running the importer
+ * again with the same file resumes after the checkpoint; delete the checkpoint file to start over.
+ * <p>
+ * Options:
+ * <pre>
+ * --keycloak-url URL        Keycloak base URL (http://localhost:8080)
+ * --realm NAME              realm (twitch-loadtest)
+ * --alias ALIAS             Twitch IdP alias (twitch)
+ * --file PATH               CSV or NDJSON file, required
+ * --checkpoint PATH         checkpoint file (the file with .checkpoint appended)
+ * --parallelism N           batches linked at a time (4)
+ * --token TOKEN             bearer token of the realm with the manage-users permission, or:
+ * --client-id ID            client of the realm whose service account has the manage-users permission
+ * --client-secret SECRET    its secret
+ * </pre>
+ */
+public class IdentityImporter {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long POLL_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Unexpected argument: " + name);
+            }
+            options.put(name.substring(2), args[++i]);
+        }
+        Path file = Paths.get(required(options, "file"));
+        Path checkpointFile = Paths.get(options.getOrDefault("checkpoint", file + ".checkpoint"));
+        String keycloakUrl = options.getOrDefault("keycloak-url", "http://localhost:8080");
+        String realm = options.getOrDefault("realm", "twitch-loadtest");
+        String url = keycloakUrl + "/realms/" + realm + "/twitch/" + options.getOrDefault("alias", "twitch") + "/identity-import";
+
+        HttpClient client = HttpClient.newHttpClient();
+        String token = options.containsKey("token") ? options.get("token") : clientToken(client, keycloakUrl, realm,
+                required(options, "client-id"), required(options, "client-secret"));
+        long offset = Files.exists(checkpointFile) ? Long.parseLong(Files.readString(checkpointFile).trim()) : 0;
+
+        HttpResponse<String> started = client.send(HttpRequest.newBuilder(URI.create(url
+                        + "?offset=" + offset + "&parallelism=" + options.getOrDefault("parallelism", "4")))
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofFile(file))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        if (started.statusCode() != 202) {
+            throw new IOException("Could not start the import: " + started.statusCode() + " " + started.body());
+        }
+        System.out.printf("Importing %s from record %d%n", file, offset);
+
+        JsonNode status = MAPPER.readTree(started.body());
+        long checkpoint = offset;
+        while (true) {
+            if (status.path("checkpoint").asLong() != checkpoint) {
+                checkpoint = status.path("checkpoint").asLong();
+                Files.writeString(checkpointFile, Long.toString(checkpoint));
+            }
+            String state = status.path("state").asText();
+            System.out.printf("%s: %d records, %d linked, %d already linked, %d not found, %d conflicts, %d invalid,"
+                            + " %d failed, checkpoint %d%n", state, status.path("records").asLong(),
+                    status.path("linked").asLong(), status.path("alreadyLinked").asLong(),
+                    status.path("userNotFound").asLong() + status.path("twitchNotFound").asLong(),
+                    status.path("conflicts").asLong(), status.path("invalid").asLong(), status.path("failed").asLong(),
+                    checkpoint);
+            if (state.equals("finished") || state.equals("failed")) {
+                break;
+            }
+            Thread.sleep(POLL_MILLIS);
+            HttpResponse<String> polled = client.send(HttpRequest.newBuilder(URI.create(url))
+                    .header("Authorization", "Bearer " + token)
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (polled.statusCode() != 200) {
+                throw new IOException("Could not read the import status: " + polled.statusCode() + " " + polled.body());
+            }
+            status = MAPPER.readTree(polled.body());
+        }
+
+        for (JsonNode error : status.path("errors")) {
+            System.out.println(error.asText());
+        }
+        if (status.has("error")) {
+            System.out.println("Import failed: " + status.path("error").asText());
+        }
+        if (status.has("error") || status.path("failed").asLong() > 0) {
+            System.out.printf("Run again to resume from record %d%n", checkpoint);
+            System.exit(1);
+        }
+    }
+
+    private static String clientToken(HttpClient client, String keycloakUrl, String realm, String clientId, String secret)
+            throws IOException, InterruptedException {
+        String form = "grant_type=client_credentials"
+                + "&client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8)
+                + "&client_secret=" + URLEncoder.encode(secret, StandardCharsets.UTF_8);
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(keycloakUrl + "/realms/" + realm
+                        + "/protocol/openid-connect/token"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Could not get a token for client " + clientId + ": " + response.statusCode() + " " + response.body());
+        }
+        return MAPPER.readTree(response.body()).path("access_token").asText();
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value;
+    }
+}
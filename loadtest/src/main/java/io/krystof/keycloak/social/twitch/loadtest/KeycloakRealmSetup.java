@@ -0,0 +1,150 @@
+package io.krystof.keycloak.social.twitch.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Creates the load test realm through the Keycloak admin REST API.
+ * <p>
+ * The realm has a public client to start logins from and a Twitch identity provider whose endpoints
+ * point at the {@link StubTwitchServer}. First broker login creates or links the user without any form,
+ * and profile verification is disabled, so every login completes with redirects only.
+ */
+public class KeycloakRealmSetup {
+
+    public static final String CLIENT_ID = "twitch-loadtest";
+    public static final String REDIRECT_URI = "http://localhost/twitch-loadtest/callback";
+    public static final String STUB_CLIENT_ID = "stub-client";
+
+    private static final String FIRST_BROKER_LOGIN_FLOW = "twitch-loadtest-first-broker-login";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final String keycloakUrl;
+    private final String adminUser;
+    private final String adminPassword;
+
+    public KeycloakRealmSetup(String keycloakUrl, String adminUser, String adminPassword) {
+        this.keycloakUrl = keycloakUrl;
+        this.adminUser = adminUser;
+        this.adminPassword = adminPassword;
+    }
+
+    /**
+     * Deletes the realm if it exists and creates it again.
+     *
+     * @param idpConfig extra Twitch provider settings, added to the stub endpoints
+     */
+    public void recreateRealm(String realm, String alias, StubTwitchServer stub, Map<String, String> idpConfig)
+            throws IOException, InterruptedException {
+        String token = adminToken();
+
+        HttpResponse<String> deleted = send(HttpRequest.newBuilder(URI.create(keycloakUrl + "/admin/realms/" + realm))
+                .header("Authorization", "Bearer " + token)
+                .DELETE()
+                .build());
+        if (deleted.statusCode() != 204 && deleted.statusCode() != 404) {
+            throw new IOException("Could not delete realm " + realm + ": " + deleted.statusCode() + " " + deleted.body());
+        }
+
+        HttpResponse<String> created = send(HttpRequest.newBuilder(URI.create(keycloakUrl + "/admin/realms"))
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(realm(realm, alias, stub, idpConfig))))
+                .build());
+        if (created.statusCode() != 201) {
+            throw new IOException("Could not create realm " + realm + ": " + created.statusCode() + " " + created.body());
+        }
+    }
+
+    private ObjectNode realm(String realm, String alias, StubTwitchServer stub, Map<String, String> idpConfig) {
+        ObjectNode rep = MAPPER.createObjectNode();
+        rep.put("realm", realm);
+        rep.put("enabled", true);
+
+        ObjectNode client = rep.putArray("clients").addObject();
+        client.put("clientId", CLIENT_ID);
+        client.put("publicClient", true);
+        client.put("standardFlowEnabled", true);
+        client.putArray("redirectUris").add(REDIRECT_URI);
+
+        ObjectNode flow = rep.putArray("authenticationFlows").addObject();
+        flow.put("alias", FIRST_BROKER_LOGIN_FLOW);
+        flow.put("providerId", "basic-flow");
+        flow.put("topLevel", true);
+        flow.put("builtIn", false);
+        ArrayNode executions = flow.putArray("authenticationExecutions");
+        addExecution(executions, "idp-create-user-if-unique", 10);
+        addExecution(executions, "idp-auto-link", 20);
+
+        ObjectNode verifyProfile = rep.putArray("requiredActions").addObject();
+        verifyProfile.put("alias", "VERIFY_PROFILE");
+        verifyProfile.put("name", "Verify Profile");
+        verifyProfile.put("providerId", "VERIFY_PROFILE");
+        verifyProfile.put("enabled", false);
+        verifyProfile.put("defaultAction", false);
+        verifyProfile.put("priority", 90);
+
+        ObjectNode idp = rep.putArray("identityProviders").addObject();
+        idp.put("alias", alias);
+        idp.put("providerId", "twitch");
+        idp.put("enabled", true);
+        idp.put("trustEmail", true);
+        idp.put("firstBrokerLoginFlowAlias", FIRST_BROKER_LOGIN_FLOW);
+        ObjectNode config = idp.putObject("config");
+        config.put("clientId", STUB_CLIENT_ID);
+        config.put("clientSecret", "stub-secret");
+        config.put("clientAuthMethod", "client_secret_post");
+        config.put("authorizationUrl", stub.getAuthorizationUrl());
+        config.put("tokenUrl", stub.getTokenUrl());
+        config.put("userInfoUrl", stub.getUserInfoUrl());
+        config.put("twitchValidateUrl", stub.getValidateUrl());
+        config.put("twitchHelixUrl", stub.getHelixUrl());
+        config.put("jwksUrl", stub.getJwksUrl());
+        config.put("twitchDiscoveryUrl", stub.getDiscoveryUrl());
+        config.put("issuer", stub.getIssuer());
+        config.put("syncMode", "IMPORT");
+        idpConfig.forEach(config::put);
+
+        return rep;
+    }
+
+    private static void addExecution(ArrayNode executions, String authenticator, int priority) {
+        ObjectNode execution = executions.addObject();
+        execution.put("authenticator", authenticator);
+        execution.put("requirement", "ALTERNATIVE");
+        execution.put("priority", priority);
+        execution.put("authenticatorFlow", false);
+        execution.put("userSetupAllowed", false);
+    }
+
+    private String adminToken() throws IOException, InterruptedException {
+        String form = "grant_type=password&client_id=admin-cli"
+                + "&username=" + URLEncoder.encode(adminUser, StandardCharsets.UTF_8)
+                + "&password=" + URLEncoder.encode(adminPassword, StandardCharsets.UTF_8);
+        HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(keycloakUrl + "/realms/master/protocol/openid-connect/token"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build());
+        if (response.statusCode() != 200) {
+            throw new IOException("Could not log in to the Keycloak admin API: " + response.statusCode() + " " + response.body());
+        }
+        JsonNode token = MAPPER.readTree(response.body());
+        return token.path("access_token").asText();
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return http.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
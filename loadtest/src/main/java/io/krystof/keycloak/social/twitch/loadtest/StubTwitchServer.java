@@ -0,0 +1,620 @@
+package io.krystof.keycloak.social.twitch.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for {@code id.twitch.tv} and {@code api.twitch.tv}.
+ * <p>
+ * Serves authorize, token, userinfo, validate, JWKS and discovery endpoints under {@code /oauth2}, and
+ * Helix users under {@code /helix/users}.
+ * Authorization immediately redirects back with a code for the next user of a fixed pool, so a broker
+ * login needs no browser interaction. Every response can be delayed, a fraction of responses can be
+ * replaced by errors, and Twitch's {@code Ratelimit-*} headers are sent with a per-minute budget.
+ */
+public class StubTwitchServer implements AutoCloseable {
+
+    public static final String KEY_ID = "stub-1";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String LOGIN_PREFIX = "loaduser";
+
+    private final int port;
+    private final int userCount;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final Set<String> errorEndpoints;
+    private final int rateLimitPerMinute;
+
+    private final KeyPair keyPair;
+    private final AtomicInteger nextUser = new AtomicInteger();
+    private final AtomicInteger windowRequests = new AtomicInteger();
+    private final AtomicLong windowReset = new AtomicLong();
+    private final Map<String, AtomicLong> requestCounts = new HashMap<>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String baseUrl;
+
+    private StubTwitchServer(Builder builder) {
+        this.port = builder.port;
+        this.userCount = builder.userCount;
+        this.latencyMillis = builder.latencyMillis;
+        this.jitterMillis = builder.jitterMillis;
+        this.errorRate = builder.errorRate;
+        this.errorEndpoints = Collections.unmodifiableSet(new HashSet<>(builder.errorEndpoints));
+        this.rateLimitPerMinute = builder.rateLimitPerMinute;
+        this.baseUrl = builder.publicUrl;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            this.keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public StubTwitchServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-twitch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+
+        handle("/oauth2/authorize", "authorize", this::authorize);
+        handle("/oauth2/token", "token", this::token);
+        handle("/oauth2/userinfo", "userinfo", this::userInfo);
+        handle("/oauth2/validate", "validate", this::validate);
+        handle("/oauth2/keys", "jwks", this::jwks);
+        handle("/oauth2/.well-known/openid-configuration", "discovery", this::discovery);
+        handle("/helix/users", "helix_users", this::helixUsers);
+
+        server.start();
+        if (baseUrl == null) {
+            baseUrl = "http://localhost:" + server.getAddress().getPort();
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getIssuer() {
+        return baseUrl + "/oauth2";
+    }
+
+    public String getAuthorizationUrl() {
+        return baseUrl + "/oauth2/authorize";
+    }
+
+    public String getTokenUrl() {
+        return baseUrl + "/oauth2/token";
+    }
+
+    public String getUserInfoUrl() {
+        return baseUrl + "/oauth2/userinfo";
+    }
+
+    public String getValidateUrl() {
+        return baseUrl + "/oauth2/validate";
+    }
+
+    public String getHelixUrl() {
+        return baseUrl + "/helix";
+    }
+
+    public String getJwksUrl() {
+        return baseUrl + "/oauth2/keys";
+    }
+
+    public String getDiscoveryUrl() {
+        return baseUrl + "/oauth2/.well-known/openid-configuration";
+    }
+
+    /**
+     * @return the number of requests served per endpoint, including injected errors
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        synchronized (requestCounts) {
+            requestCounts.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        }
+        return counts;
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    private void handle(String path, String endpoint, Handler handler) {
+        AtomicLong counter = new AtomicLong();
+        synchronized (requestCounts) {
+            requestCounts.put(endpoint, counter);
+        }
+
+        HttpHandler httpHandler = exchange -> {
+            try {
+                counter.incrementAndGet();
+                delay();
+                if (!allowRequest(exchange)) {
+                    sendJson(exchange, 429, error("Too Many Requests", 429, "rate limit exceeded"));
+                    return;
+                }
+                if (errorRate > 0 && (errorEndpoints.isEmpty() || errorEndpoints.contains(endpoint))
+                        && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    sendJson(exchange, 503, error("Service Unavailable", 503, "injected error"));
+                    return;
+                }
+                handler.handle(exchange, params(exchange));
+            } catch (RuntimeException e) {
+                sendJson(exchange, 500, error("Internal Server Error", 500, e.toString()));
+            } finally {
+                exchange.close();
+            }
+        };
+        server.createContext(path, httpHandler);
+    }
+
+    private void authorize(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String redirectUri = params.get("redirect_uri");
+        if (redirectUri == null) {
+            sendJson(exchange, 400, error("Bad Request", 400, "missing redirect_uri"));
+            return;
+        }
+        int user = Math.floorMod(nextUser.getAndIncrement(), userCount);
+        String code = user + "." + randomToken();
+        String location = redirectUri + (redirectUri.contains("?") ? "&" : "?")
+                + "code=" + encode(code)
+                + "&scope=" + encode(params.getOrDefault("scope", ""))
+                + "&state=" + encode(params.getOrDefault("state", ""));
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private void token(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String grantType = params.getOrDefault("grant_type", "");
+        int user;
+        switch (grantType) {
+            case "authorization_code":
+                user = userOf(params.get("code"));
+                break;
+            case "refresh_token":
+                user = userOf(params.get("refresh_token"));
+                break;
+            case "client_credentials":
+                user = -1;
+                break;
+            default:
+                sendJson(exchange, 400, error("Bad Request", 400, "unsupported grant_type"));
+                return;
+        }
+        if (!grantType.equals("client_credentials") && user < 0) {
+            sendJson(exchange, 400, error("Bad Request", 400, "Invalid authorization code"));
+            return;
+        }
+
+        String clientId = params.getOrDefault("client_id", "stub-client");
+        ObjectNode response = MAPPER.createObjectNode();
+        response.put("access_token", user < 0 ? "app." + randomToken() : user + "." + randomToken());
+        response.put("expires_in", 14400);
+        if (user >= 0) {
+            response.put("refresh_token", user + "." + randomToken());
+            response.put("id_token", idToken(user, clientId));
+            ArrayNode scope = response.putArray("scope");
+            scope.add("openid");
+            scope.add("user:read:email");
+        }
+        response.put("token_type", "bearer");
+        sendJson(exchange, 200, response);
+    }
+
+    private void userInfo(HttpExchange exchange, Map<String, String> params) throws IOException {
+        int user = userOf(bearer(exchange, "Bearer "));
+        if (user < 0) {
+            sendJson(exchange, 401, error("Unauthorized", 401, "invalid access token"));
+            return;
+        }
+        ObjectNode profile = claims(user, "stub-client");
+        profile.put("updated_at", "2025-01-01T00:00:00Z");
+        sendJson(exchange, 200, profile);
+    }
+
+    private void validate(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String token = bearer(exchange, "OAuth ");
+        if (token == null) {
+            token = bearer(exchange, "Bearer ");
+        }
+        int user = userOf(token);
+        if (user < 0 && (token == null || !token.startsWith("app."))) {
+            sendJson(exchange, 401, error("Unauthorized", 401, "invalid access token"));
+            return;
+        }
+        ObjectNode response = MAPPER.createObjectNode();
+        response.put("client_id", "stub-client");
+        if (user >= 0) {
+            response.put("login", login(user));
+            response.put("user_id", subject(user));
+        }
+        ArrayNode scopes = response.putArray("scopes");
+        scopes.add("openid");
+        scopes.add("user:read:email");
+        response.put("expires_in", 14000);
+        sendJson(exchange, 200, response);
+    }
+
+    private void helixUsers(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String token = bearer(exchange, "Bearer ");
+        int tokenUser = userOf(token);
+        if (tokenUser < 0 && (token == null || !token.startsWith("app."))) {
+            sendJson(exchange, 401, error("Unauthorized", 401, "invalid access token"));
+            return;
+        }
+
+        // Helix takes the ids and logins as repeated query parameters
+        List<String> ids = new ArrayList<>();
+        int parameters = 0;
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("id=")) {
+                    parameters++;
+                    ids.add(URLDecoder.decode(pair.substring(3), StandardCharsets.UTF_8));
+                } else if (pair.startsWith("login=")) {
+                    parameters++;
+                    int user = userOfLogin(URLDecoder.decode(pair.substring(6), StandardCharsets.UTF_8));
+                    if (user >= 0) {
+                        ids.add(subject(user));
+                    }
+                }
+            }
+        }
+        if (parameters > 100) {
+            sendJson(exchange, 400, error("Bad Request", 400, "The parameter \"id\" was malformed: the value must be less than or equal to 100"));
+            return;
+        }
+        if (parameters == 0 && tokenUser >= 0) {
+            ids.add(subject(tokenUser));
+        }
+
+        ObjectNode response = MAPPER.createObjectNode();
+        ArrayNode data = response.putArray("data");
+        for (String id : ids) {
+            int user = userOfSubject(id);
+            if (user < 0) {
+                continue;
+            }
+            ObjectNode helixUser = data.addObject();
+            helixUser.put("id", id);
+            helixUser.put("login", login(user));
+            helixUser.put("display_name", "LoadUser" + user);
+            helixUser.put("type", "");
+            helixUser.put("broadcaster_type", user % 10 == 0 ? "partner" : user % 2 == 0 ? "affiliate" : "");
+            helixUser.put("description", "Load test user " + user);
+            helixUser.put("profile_image_url", baseUrl + "/pictures/" + id + ".png");
+            helixUser.put("offline_image_url", "");
+            helixUser.put("view_count", 0);
+            helixUser.put("created_at", "2020-01-01T00:00:00Z");
+        }
+        sendJson(exchange, 200, response);
+    }
+
+    private void jwks(HttpExchange exchange, Map<String, String> params) throws IOException {
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        ObjectNode jwks = MAPPER.createObjectNode();
+        ObjectNode key = jwks.putArray("keys").addObject();
+        key.put("alg", "RS256");
+        key.put("e", base64Url(unsigned(publicKey.getPublicExponent())));
+        key.put("kid", KEY_ID);
+        key.put("kty", "RSA");
+        key.put("n", base64Url(unsigned(publicKey.getModulus())));
+        key.put("use", "sig");
+        sendJson(exchange, 200, jwks);
+    }
+
+    private void discovery(HttpExchange exchange, Map<String, String> params) throws IOException {
+        ObjectNode metadata = MAPPER.createObjectNode();
+        metadata.put("issuer", getIssuer());
+        metadata.put("authorization_endpoint", getAuthorizationUrl());
+        metadata.put("token_endpoint", getTokenUrl());
+        metadata.put("userinfo_endpoint", getUserInfoUrl());
+        metadata.put("jwks_uri", getJwksUrl());
+        metadata.putArray("id_token_signing_alg_values_supported").add("RS256");
+        sendJson(exchange, 200, metadata);
+    }
+
+    private String idToken(int user, String clientId) {
+        try {
+            ObjectNode header = MAPPER.createObjectNode();
+            header.put("alg", "RS256");
+            header.put("kid", KEY_ID);
+            header.put("typ", "JWT");
+            String signingInput = base64Url(MAPPER.writeValueAsBytes(header)) + "." + base64Url(MAPPER.writeValueAsBytes(claims(user, clientId)));
+
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+            return signingInput + "." + base64Url(signature.sign());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ObjectNode claims(int user, String clientId) {
+        long now = System.currentTimeMillis() / 1000;
+        ObjectNode claims = MAPPER.createObjectNode();
+        claims.put("aud", clientId);
+        claims.put("exp", now + 900);
+        claims.put("iat", now);
+        claims.put("iss", getIssuer());
+        claims.put("sub", subject(user));
+        claims.put("azp", clientId);
+        claims.put("email", login(user) + "@example.com");
+        claims.put("email_verified", true);
+        claims.put("picture", baseUrl + "/pictures/" + subject(user) + ".png");
+        claims.put("preferred_username", login(user));
+        return claims;
+    }
+
+    private static String subject(int user) {
+        return String.valueOf(100000000 + user);
+    }
+
+    private int userOfSubject(String subject) {
+        try {
+            int user = Integer.parseInt(subject) - 100000000;
+            return user >= 0 && user < userCount ? user : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private int userOfLogin(String login) {
+        String lowerCase = login.toLowerCase(Locale.ROOT);
+        if (!lowerCase.startsWith(LOGIN_PREFIX)) {
+            return -1;
+        }
+        try {
+            int user = Integer.parseInt(lowerCase.substring(LOGIN_PREFIX.length()));
+            return user >= 0 && user < userCount ? user : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String login(int user) {
+        return LOGIN_PREFIX + user;
+    }
+
+    private void delay() {
+        long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean allowRequest(HttpExchange exchange) {
+        if (rateLimitPerMinute <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        long reset = windowReset.get();
+        if (now >= reset && windowReset.compareAndSet(reset, now + 60)) {
+            windowRequests.set(0);
+            reset = now + 60;
+        }
+        int used = windowRequests.incrementAndGet();
+        int remaining = Math.max(0, rateLimitPerMinute - used);
+        exchange.getResponseHeaders().set("Ratelimit-Limit", String.valueOf(rateLimitPerMinute));
+        exchange.getResponseHeaders().set("Ratelimit-Remaining", String.valueOf(remaining));
+        exchange.getResponseHeaders().set("Ratelimit-Reset", String.valueOf(windowReset.get()));
+        return used <= rateLimitPerMinute;
+    }
+
+    private static int userOf(String token) {
+        if (token == null) {
+            return -1;
+        }
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(token.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String bearer(HttpExchange exchange, String scheme) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, scheme, 0, scheme.length())) {
+            return null;
+        }
+        return authorization.substring(scheme.length()).trim();
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        URI uri = exchange.getRequestURI();
+        parseForm(uri.getRawQuery(), params);
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            try (InputStream body = exchange.getRequestBody()) {
+                parseForm(new String(body.readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static ObjectNode error(String error, int status, String message) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("error", error);
+        node.put("status", status);
+        node.put("message", message);
+        return node;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, ObjectNode body) throws IOException {
+        byte[] bytes = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String randomToken() {
+        byte[] bytes = new byte[18];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return base64Url(bytes);
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return bytes;
+    }
+
+    private static String base64Url(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    public static final class Builder {
+
+        private int port;
+        private String publicUrl;
+        private int userCount = 1000;
+        private long latencyMillis;
+        private long jitterMillis;
+        private double errorRate;
+        private Set<String> errorEndpoints = new HashSet<>();
+        private int rateLimitPerMinute;
+
+        private Builder() {
+        }
+
+        /**
+         * Port to listen on, 0 for any free port.
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Base URL under which Keycloak reaches the stub, if it differs from http://localhost:port.
+         */
+        public Builder publicUrl(String publicUrl) {
+            this.publicUrl = publicUrl;
+            return this;
+        }
+
+        /**
+         * Number of distinct Twitch users handed out round-robin by the authorize endpoint.
+         */
+        public Builder userCount(int userCount) {
+            this.userCount = userCount;
+            return this;
+        }
+
+        public Builder latency(long latencyMillis, long jitterMillis) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Fraction of requests answered with 503, restricted to the given endpoints if any are named.
+         */
+        public Builder errors(double errorRate, Set<String> endpoints) {
+            this.errorRate = errorRate;
+            this.errorEndpoints = endpoints;
+            return this;
+        }
+
+        /**
+         * Requests allowed per minute across all endpoints before answering 429, 0 for no limit.
+         */
+        public Builder rateLimitPerMinute(int rateLimitPerMinute) {
+            this.rateLimitPerMinute = rateLimitPerMinute;
+            return this;
+        }
+
+        public StubTwitchServer build() {
+            return new StubTwitchServer(this);
+        }
+    }
+}
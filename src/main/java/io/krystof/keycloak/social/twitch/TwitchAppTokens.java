@@ -0,0 +1,233 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * App access tokens of the Twitch IdPs, obtained with the client credentials grant and shared by the cluster.
+ * <p>
+ * The token of each IdP is kept in Keycloak's single-use object store, which is replicated to all nodes, and
+ * in memory on each node for a short while. Request paths never wait for Twitch: when there is no usable
+ * token they get null and a refresh is started in the background. New tokens are obtained under a cluster
+ * lock, so one node fetches while the others keep using the cached token.
+ * <p>
+ * As a {@link ScheduledTask} run by Keycloak's cluster-aware timer, it replaces tokens that expire within the
+ * IdP's refresh window before any request notices.
+ */
+public class TwitchAppTokens implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(TwitchAppTokens.class);
+
+    public static final String TASK_NAME = "twitch-app-token-refresh";
+    public static final String INTERVAL = "appTokenRefreshInterval";
+    public static final long DEFAULT_INTERVAL = 60;
+
+    private static final String KEY_PREFIX = "twitch-app-token:";
+    private static final String ACCESS_TOKEN = "access_token";
+    private static final String EXPIRES_AT = "expires_at";
+    private static final int LOCK_TIMEOUT_SECONDS = 30;
+    private static final long LOCAL_TTL_MILLIS = 30_000;
+    // Lifespan of a token for which Twitch did not send expires_in
+    private static final long DEFAULT_LIFESPAN_SECONDS = 3600;
+
+    private final TwitchIdentityProviderFactory providerFactory;
+    private final TwitchTtlCache<Token> local = new TwitchTtlCache<>(1000, LOCAL_TTL_MILLIS, expired -> { });
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+    private KeycloakSessionFactory sessionFactory;
+
+    public TwitchAppTokens(TwitchIdentityProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TASK_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Returns the shared app access token of the IdP without calling Twitch. A token that is missing or
+     * about to expire is refreshed in the background.
+     *
+     * @return the token, or null if there is no unexpired one yet
+     */
+    public String getToken(KeycloakSession session, TwitchIdentityProviderConfig config) {
+        if (!config.isAppToken()) {
+            return null;
+        }
+        String key = keyOf(config);
+        Token token = local.get(key);
+        if (token == null) {
+            token = Token.of(session.singleUseObjects().get(KEY_PREFIX + key));
+            if (token != null) {
+                remember(key, token);
+            }
+        }
+        if (token == null || token.expiresWithin(config.getAppTokenRefreshWindow())) {
+            refreshLater(session, config);
+        }
+        return token != null && !token.expiresWithin(0) ? token.accessToken : null;
+    }
+
+    /**
+     * Drops the token if it is still the shared one, and obtains a new one in the background.
+     */
+    public void invalidate(KeycloakSession session, TwitchIdentityProviderConfig config, String accessToken) {
+        String key = keyOf(config);
+        local.remove(key);
+        Token current = Token.of(session.singleUseObjects().get(KEY_PREFIX + key));
+        if (current != null && current.accessToken.equals(accessToken)) {
+            session.singleUseObjects().remove(KEY_PREFIX + key);
+        }
+        refreshLater(session, config);
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        session.realms().getRealmsStream().forEach(realm -> {
+            session.getContext().setRealm(realm);
+            session.identityProviders().getAllStream()
+                    .filter(TwitchAppTokens::isEnabled)
+                    .forEach(model -> refreshLater(realm.getId(), model.getAlias(), keyOf(model)));
+        });
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void refreshLater(KeycloakSession session, TwitchIdentityProviderConfig config) {
+        RealmModel realm = session.getContext().getRealm();
+        if (realm != null) {
+            refreshLater(realm.getId(), config.getAlias(), keyOf(config));
+        }
+    }
+
+    private void refreshLater(String realmId, String alias, String key) {
+        if (sessionFactory == null || !pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh(realmId, alias, key);
+                } catch (RuntimeException e) {
+                    logger.warnf(e, "Could not obtain a Twitch app access token for IdP %s", alias);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Obtains a new token under the cluster lock, unless another node already did, and keeps it in memory.
+     */
+    void refresh(String realmId, String alias, String key) {
+        Token token = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                session.getProvider(ClusterProvider.class)
+                        // The token is written in a transaction of its own that commits before the lock is released
+                        .executeIfNotExecuted(KEY_PREFIX + key, LOCK_TIMEOUT_SECONDS, () ->
+                                KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, s -> fetchIfNeeded(s, realmId, alias, key)))
+                        .getResult());
+        if (token != null) {
+            remember(key, token);
+        }
+    }
+
+    /**
+     * @return the stored token if it is outside the refresh window, otherwise a new one fetched from Twitch and stored
+     */
+    Token fetchIfNeeded(KeycloakSession session, String realmId, String alias, String key) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return null;
+        }
+        session.getContext().setRealm(realm);
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !isEnabled(model)) {
+            return null;
+        }
+        TwitchIdentityProvider provider = providerFactory.create(session, model);
+        long window = provider.getConfig().getAppTokenRefreshWindow();
+
+        // Another node may have refreshed it while this one waited for the lock
+        Token current = Token.of(session.singleUseObjects().get(KEY_PREFIX + key));
+        if (current != null && !current.expiresWithin(window)) {
+            return current;
+        }
+
+        TwitchTokenResponse response = provider.fetchAppToken();
+        long lifespan = response.getExpiresIn() > 0 ? response.getExpiresIn() : DEFAULT_LIFESPAN_SECONDS;
+        Token token = new Token(response.getAccessToken(), Time.currentTime() + lifespan);
+        session.singleUseObjects().put(KEY_PREFIX + key, lifespan,
+                Map.of(ACCESS_TOKEN, token.accessToken, EXPIRES_AT, String.valueOf(token.expiresAt)));
+        logger.debugf("Obtained Twitch app access token for IdP %s in realm %s, valid for %d seconds",
+                alias, realm.getName(), lifespan);
+        return token;
+    }
+
+    private void remember(String key, Token token) {
+        long ttl = (token.expiresAt - Time.currentTime()) * 1000;
+        if (ttl > 0) {
+            local.put(key, null, token, ttl);
+        }
+    }
+
+    private static boolean isEnabled(IdentityProviderModel model) {
+        return TwitchIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())
+                && model.isEnabled()
+                && Boolean.parseBoolean(model.getConfig().get(TwitchIdentityProviderConfig.APP_TOKEN));
+    }
+
+    // Aliases are only unique within a realm
+    private static String keyOf(IdentityProviderModel model) {
+        return model.getInternalId() != null ? model.getInternalId() : model.getAlias();
+    }
+
+    static final class Token {
+
+        final String accessToken;
+        final long expiresAt;
+
+        private Token(String accessToken, long expiresAt) {
+            this.accessToken = accessToken;
+            this.expiresAt = expiresAt;
+        }
+
+        private static Token of(Map<String, String> notes) {
+            if (notes == null || notes.get(ACCESS_TOKEN) == null) {
+                return null;
+            }
+            try {
+                return new Token(notes.get(ACCESS_TOKEN), Long.parseLong(notes.get(EXPIRES_AT)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private boolean expiresWithin(long seconds) {
+            return expiresAt - Time.currentTime() <= seconds;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A table of profile-to-attribute rules compiled into JSON pointers and transforms.
+ * <p>
+ * Each rule maps an expression of the form {@code /json/pointer|transform|transform:arg} to a user attribute.
+ * Arrays map to multi-valued attributes unless joined. Supported transforms are {@code join:SEPARATOR},
+ * {@code lowercase}, {@code uppercase}, {@code truncate:N}, and the coercions {@code int} and {@code bool},
+ * which drop values that do not convert. Transforms are flags of the rule rather than a pipeline: whatever
+ * order they are listed in, each value is coerced with {@code int} and {@code bool}, then lowercased,
+ * uppercased and truncated, and array values are joined last. Rules are applied in order; a later rule for the
+ * same attribute replaces an earlier one if it has a value.
+ */
+public final class TwitchAttributeRules {
+
+    private static final Logger logger = Logger.getLogger(TwitchAttributeRules.class);
+
+    private final String source;
+    private final Rule[] rules;
+
+    private TwitchAttributeRules(String source, Rule[] rules) {
+        this.source = source;
+        this.rules = rules;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Parses the rules as stored by a key/value list property: {@code [{"key": expression, "value": attribute}]}.
+     * Invalid rules are logged and skipped.
+     */
+    public static TwitchAttributeRules compile(String source) {
+        List<Rule> rules = new ArrayList<>();
+        if (source != null && !source.isEmpty()) {
+            try {
+                for (JsonNode entry : JsonSerialization.mapper.readTree(source)) {
+                    String expression = entry.path("key").asText("").trim();
+                    String attribute = entry.path("value").asText("").trim();
+                    if (expression.isEmpty() || attribute.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        rules.add(Rule.parse(expression, attribute));
+                    } catch (IllegalArgumentException e) {
+                        logger.warnf("Ignoring invalid Twitch attribute rule %s: %s", expression, e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                logger.warnf("Ignoring invalid Twitch attribute rules: %s", e.getMessage());
+            }
+        }
+        return new TwitchAttributeRules(source, rules.toArray(new Rule[0]));
+    }
+
+    /**
+     * Evaluates all rules against the profile.
+     *
+     * @return the values of every mapped attribute in rule order, empty for attributes the profile has no value for
+     */
+    public Map<String, List<String>> apply(JsonNode profile) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        for (Rule rule : rules) {
+            List<String> values = profile == null ? Collections.emptyList() : rule.evaluate(profile);
+            if (!values.isEmpty() || !attributes.containsKey(rule.attribute)) {
+                attributes.put(rule.attribute, values);
+            }
+        }
+        return attributes;
+    }
+
+    private static final class Rule {
+
+        private final JsonPointer pointer;
+        private final String attribute;
+        private final String joinSeparator;
+        private final boolean toInt;
+        private final boolean toBool;
+        private final boolean lowercase;
+        private final boolean uppercase;
+        private final int maxLength;
+
+        private Rule(JsonPointer pointer, String attribute, String joinSeparator, boolean toInt, boolean toBool,
+                     boolean lowercase, boolean uppercase, int maxLength) {
+            this.pointer = pointer;
+            this.attribute = attribute;
+            this.joinSeparator = joinSeparator;
+            this.toInt = toInt;
+            this.toBool = toBool;
+            this.lowercase = lowercase;
+            this.uppercase = uppercase;
+            this.maxLength = maxLength;
+        }
+
+        private static Rule parse(String expression, String attribute) {
+            String[] parts = expression.split("\\|");
+            String path = parts[0].trim();
+            JsonPointer pointer = JsonPointer.compile(path.startsWith("/") ? path : "/" + path);
+            String joinSeparator = null;
+            boolean toInt = false;
+            boolean toBool = false;
+            boolean lowercase = false;
+            boolean uppercase = false;
+            int maxLength = -1;
+
+            for (int i = 1; i < parts.length; i++) {
+                String transform = parts[i];
+                String name = transform.trim();
+                if (name.startsWith("join:")) {
+                    // The separator is taken as is, spaces after the colon included
+                    joinSeparator = transform.substring(transform.indexOf("join:") + "join:".length());
+                } else if (name.equals("int")) {
+                    toInt = true;
+                } else if (name.equals("bool")) {
+                    toBool = true;
+                } else if (name.equals("lowercase")) {
+                    lowercase = true;
+                } else if (name.equals("uppercase")) {
+                    uppercase = true;
+                } else if (name.startsWith("truncate:")) {
+                    try {
+                        maxLength = Integer.parseInt(name.substring("truncate:".length()).trim());
+                    } catch (NumberFormatException e) {
+                        maxLength = -1;
+                    }
+                    if (maxLength < 0) {
+                        throw new IllegalArgumentException("invalid truncate length " + name);
+                    }
+                } else {
+                    throw new IllegalArgumentException("unknown transform " + name);
+                }
+            }
+            return new Rule(pointer, attribute, joinSeparator, toInt, toBool, lowercase, uppercase, maxLength);
+        }
+
+        private List<String> evaluate(JsonNode profile) {
+            JsonNode node = profile.at(pointer);
+            if (node.isMissingNode() || node.isNull()) {
+                return Collections.emptyList();
+            }
+
+            List<String> values = new ArrayList<>();
+            if (node.isArray()) {
+                for (JsonNode element : node) {
+                    String value = convert(element);
+                    if (value != null) {
+                        values.add(value);
+                    }
+                }
+                if (joinSeparator != null) {
+                    return values.isEmpty() ? values : Collections.singletonList(String.join(joinSeparator, values));
+                }
+                return values;
+            }
+            String value = convert(node);
+            return value == null ? Collections.emptyList() : Collections.singletonList(value);
+        }
+
+        private String convert(JsonNode node) {
+            if (node.isNull()) {
+                return null;
+            }
+            String value = node.isValueNode() ? node.asText() : node.toString();
+            if (toInt) {
+                if (node.isIntegralNumber()) {
+                    value = node.asText();
+                } else {
+                    try {
+                        value = String.valueOf(Long.parseLong(value.trim()));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+            }
+            if (toBool) {
+                if (node.isBoolean()) {
+                    value = node.asText();
+                } else if (value.equalsIgnoreCase("true") || value.equals("1")) {
+                    value = "true";
+                } else if (value.equalsIgnoreCase("false") || value.equals("0")) {
+                    value = "false";
+                } else {
+                    return null;
+                }
+            }
+            if (lowercase) {
+                value = value.toLowerCase(Locale.ROOT);
+            }
+            if (uppercase) {
+                value = value.toUpperCase(Locale.ROOT);
+            }
+            if (maxLength >= 0 && value.length() > maxLength) {
+                value = value.substring(0, maxLength);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.krystof.keycloak.social.twitch;
+
+/**
+ * Circuit breaker for one Twitch host of one identity provider.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the breaker opens and calls are rejected without
+ * reaching Twitch. Once {@code openMillis} have passed a single trial call is let through; its success
+ * closes the breaker again, its failure re-opens it. A trial whose outcome is never reported is given up
+ * after another {@code openMillis}.
+ */
+public class TwitchCircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private volatile int failureThreshold;
+    private volatile long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private long trialStartedAt;
+
+    public TwitchCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public void configure(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if the call may proceed; the caller must then report its outcome
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                startTrial();
+                return true;
+            case HALF_OPEN:
+            default:
+                if (isTrialPending()) {
+                    return false;
+                }
+                startTrial();
+                return true;
+        }
+    }
+
+    /**
+     * @return true if calls are currently rejected, without taking a trial permit
+     */
+    public synchronized boolean isRejecting() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt < openMillis
+                || state == State.HALF_OPEN && isTrialPending();
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        trialInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || failureThreshold > 0 && consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gives back a permit whose call was abandoned before it had an outcome, without counting it either way.
+     */
+    public synchronized void onAbandoned() {
+        trialInFlight = false;
+    }
+
+    private void startTrial() {
+        trialInFlight = true;
+        trialStartedAt = System.currentTimeMillis();
+    }
+
+    private boolean isTrialPending() {
+        return trialInFlight && System.currentTimeMillis() - trialStartedAt < openMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,168 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.models.IdentityProviderModel;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Resolved configuration of one Twitch identity provider.
+ * <p>
+ * Built once per IdP by {@link TwitchIdentityProviderFactory} and shared by every provider instance created
+ * for it, so that defaults are applied and constant request parameters are encoded once instead of per
+ * request. The snapshot is replaced when the IdP model no longer {@link #matches(IdentityProviderModel) matches}
+ * the one it was built from. Neither the snapshot nor its config may be modified after construction.
+ */
+public final class TwitchConfigSnapshot {
+
+    // What the snapshot was built from, to detect admin updates
+    private final String alias;
+    private final String displayName;
+    private final boolean enabled;
+    private final boolean trustEmail;
+    private final boolean storeToken;
+    private final boolean addReadTokenRoleOnCreate;
+    private final boolean linkOnly;
+    private final String firstBrokerLoginFlowId;
+    private final String postBrokerLoginFlowId;
+    private final Map<String, String> sourceConfig;
+    private final int sourceConfigHash;
+    private final String realm;
+
+    private final TwitchIdentityProviderConfig config;
+    private final String claimsParameter;
+    private final String scope;
+    private final TwitchDiagnostics.Level diagnosticsLevel;
+    private final double diagnosticsSampleRate;
+    private final TwitchResilience resilience;
+    private final TwitchProfileCache profileCache;
+    private final TwitchTokenValidationCache validationCache;
+    private final Set<String> profileFields;
+
+    /**
+     * @param realm the realm name, used to tag metrics
+     * @param resilience returns the resilience layer for the resolved config
+     */
+    public TwitchConfigSnapshot(IdentityProviderModel model, String realm,
+                                Function<TwitchIdentityProviderConfig, TwitchResilience> resilience) {
+        this.alias = model.getAlias();
+        this.displayName = model.getDisplayName();
+        this.enabled = model.isEnabled();
+        this.trustEmail = model.isTrustEmail();
+        this.storeToken = model.isStoreToken();
+        this.addReadTokenRoleOnCreate = model.isAddReadTokenRoleOnCreate();
+        this.linkOnly = model.isLinkOnly();
+        this.firstBrokerLoginFlowId = model.getFirstBrokerLoginFlowId();
+        this.postBrokerLoginFlowId = model.getPostBrokerLoginFlowId();
+        this.sourceConfig = new HashMap<>(model.getConfig());
+        this.sourceConfigHash = sourceConfig.hashCode();
+        this.realm = realm;
+
+        // Copy, so that applying defaults does not touch the model Keycloak caches
+        this.config = new TwitchIdentityProviderConfig(new IdentityProviderModel(model));
+        applyDefaults(config);
+
+        this.claimsParameter = URLEncoder.encode(TwitchIdentityProvider.CLAIMS, StandardCharsets.UTF_8);
+        this.scope = config.getDefaultScope();
+        this.diagnosticsLevel = config.getDiagnosticsLevel();
+        this.diagnosticsSampleRate = config.getDiagnosticsSampleRate();
+        this.resilience = resilience.apply(config);
+        this.profileCache = TwitchProfileCache.create(realm, config);
+        this.validationCache = new TwitchTokenValidationCache(realm, config);
+        this.profileFields = TwitchProfiles.allowlist(config.getProfileFields());
+    }
+
+    private static void applyDefaults(TwitchIdentityProviderConfig config) {
+        if (config.getAuthorizationUrl() == null || config.getAuthorizationUrl().isEmpty()) {
+            config.setAuthorizationUrl(TwitchIdentityProvider.AUTH_URL);
+        }
+        if (config.getTokenUrl() == null || config.getTokenUrl().isEmpty()) {
+            config.setTokenUrl(TwitchIdentityProvider.TOKEN_URL);
+        }
+        if (config.getUserInfoUrl() == null || config.getUserInfoUrl().isEmpty()) {
+            config.setUserInfoUrl(TwitchIdentityProvider.PROFILE_URL);
+        }
+        if (config.getDefaultScope() == null || config.getDefaultScope().isEmpty()) {
+            config.setDefaultScope(TwitchIdentityProvider.DEFAULT_SCOPE);
+        }
+    }
+
+    /**
+     * @return true if the snapshot was built from an IdP model with the same settings
+     */
+    public boolean matches(IdentityProviderModel model) {
+        Map<String, String> modelConfig = model.getConfig();
+        return enabled == model.isEnabled()
+                && trustEmail == model.isTrustEmail()
+                && storeToken == model.isStoreToken()
+                && addReadTokenRoleOnCreate == model.isAddReadTokenRoleOnCreate()
+                && linkOnly == model.isLinkOnly()
+                && Objects.equals(alias, model.getAlias())
+                && Objects.equals(displayName, model.getDisplayName())
+                && Objects.equals(firstBrokerLoginFlowId, model.getFirstBrokerLoginFlowId())
+                && Objects.equals(postBrokerLoginFlowId, model.getPostBrokerLoginFlowId())
+                && modelConfig != null
+                && modelConfig.hashCode() == sourceConfigHash
+                && modelConfig.equals(sourceConfig);
+    }
+
+    /**
+     * @return the realm name the snapshot's metrics are tagged with
+     */
+    public String getRealm() {
+        return realm;
+    }
+
+    /**
+     * @return the config with defaults applied; shared, so it must not be modified
+     */
+    public TwitchIdentityProviderConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the URL-encoded value of the {@code claims} authorization parameter
+     */
+    public String getClaimsParameter() {
+        return claimsParameter;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public TwitchDiagnostics.Level getDiagnosticsLevel() {
+        return diagnosticsLevel;
+    }
+
+    public double getDiagnosticsSampleRate() {
+        return diagnosticsSampleRate;
+    }
+
+    public TwitchResilience getResilience() {
+        return resilience;
+    }
+
+    /**
+     * @return the userinfo profile cache, or null if it is disabled for the IdP
+     */
+    public TwitchProfileCache getProfileCache() {
+        return profileCache;
+    }
+
+    public TwitchTokenValidationCache getValidationCache() {
+        return validationCache;
+    }
+
+    /**
+     * @return the profile fields kept for mappers, empty to keep the whole profile
+     */
+    public Set<String> getProfileFields() {
+        return profileFields;
+    }
+}
@@ -0,0 +1,122 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.jboss.logging.Logger;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Diagnostic logging settings for one Twitch identity provider.
+ * <p>
+ * The verbosity is configured per IdP alias: {@link Level#OFF} logs nothing but errors, {@link Level#SUMMARY}
+ * logs one line per login step and {@link Level#TRACE} additionally dumps token responses, profiles and
+ * attributes for a sampled fraction of requests. Callers check {@link #isSummaryEnabled()} or
+ * {@link #isTraceEnabled()} before building any message, so nothing is formatted or masked when disabled.
+ */
+public final class TwitchDiagnostics {
+
+    public enum Level {
+        OFF, SUMMARY, TRACE
+    }
+
+    private static final Logger logger = Logger.getLogger("io.krystof.keycloak.social.twitch.diagnostics");
+
+    private static final TwitchDiagnostics DISABLED = new TwitchDiagnostics(null, Level.OFF, false);
+
+    private final String alias;
+    private final Level level;
+    private final boolean traceSampled;
+
+    private TwitchDiagnostics(String alias, Level level, boolean traceSampled) {
+        this.alias = alias;
+        this.level = level;
+        this.traceSampled = traceSampled;
+    }
+
+    /**
+     * Creates the diagnostics for one request. The trace sampling decision is taken here, once per request.
+     */
+    public static TwitchDiagnostics forRequest(String alias, Level level, double sampleRate) {
+        if (level == Level.OFF || !logger.isInfoEnabled()) {
+            return DISABLED;
+        }
+        boolean traceSampled = level == Level.TRACE && sample(sampleRate);
+        return new TwitchDiagnostics(alias, level, traceSampled);
+    }
+
+    public static Level parseLevel(String value) {
+        if (value == null || value.isEmpty()) {
+            return Level.OFF;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_').replace("FULL_", ""));
+        } catch (IllegalArgumentException e) {
+            return Level.OFF;
+        }
+    }
+
+    private static boolean sample(double rate) {
+        return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    public boolean isSummaryEnabled() {
+        return level != Level.OFF;
+    }
+
+    public boolean isTraceEnabled() {
+        return traceSampled;
+    }
+
+    public void summary(String message) {
+        logger.infof("[%s] %s", alias, message);
+    }
+
+    public void summary(String format, Object param) {
+        logger.infof("[%s] " + format, alias, param);
+    }
+
+    public void summary(String format, Object param1, Object param2) {
+        logger.infof("[%s] " + format, alias, param1, param2);
+    }
+
+    public void summary(String format, Object param1, Object param2, Object param3) {
+        logger.infof("[%s] " + format, alias, param1, param2, param3);
+    }
+
+    public void trace(String message) {
+        logger.infof("[%s] %s", alias, message);
+    }
+
+    public void trace(String format, Object param) {
+        logger.infof("[%s] " + format, alias, param);
+    }
+
+    public void trace(String format, Object param1, Object param2) {
+        logger.infof("[%s] " + format, alias, param1, param2);
+    }
+
+    /**
+     * Masks a secret for logging, keeping the first and last four characters of long values.
+     */
+    public static String mask(String secret) {
+        if (secret == null) {
+            return "null";
+        }
+        int length = secret.length();
+        if (length <= 8) {
+            return "****";
+        }
+        return new StringBuilder(11)
+                .append(secret, 0, 4)
+                .append("...")
+                .append(secret, length - 4, length)
+                .toString();
+    }
+
+    /**
+     * @return true if values stored under this key must be masked
+     */
+    public static boolean isSensitive(String key) {
+        return key.contains("token") || key.contains("TOKEN") || key.contains("secret");
+    }
+}
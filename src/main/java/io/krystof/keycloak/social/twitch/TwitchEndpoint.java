@@ -0,0 +1,66 @@
+package io.krystof.keycloak.social.twitch;
+
+/**
+ * Outbound Twitch endpoints, with the settings that govern how they are called.
+ */
+public enum TwitchEndpoint {
+
+    TOKEN("token", Host.ID, false, 5000),
+    USERINFO("userinfo", Host.ID, true, 3000),
+    VALIDATE("validate", Host.ID, true, 3000),
+    JWKS("jwks", Host.ID, true, 3000),
+    HELIX_USERS("helixUsers", Host.API, true, 3000),
+    EVENTSUB_SUBSCRIPTIONS("eventSubSubscriptions", Host.API, false, 3000);
+
+    /**
+     * Twitch hosts. Endpoints on the same host share a circuit breaker and rate limit budget.
+     */
+    public enum Host {
+        ID("id.twitch.tv"),
+        API("api.twitch.tv");
+
+        private final String hostName;
+
+        Host(String hostName) {
+            this.hostName = hostName;
+        }
+
+        public String getHostName() {
+            return hostName;
+        }
+    }
+
+    private final String key;
+    private final Host host;
+    private final boolean idempotent;
+    private final int defaultTimeoutMillis;
+
+    TwitchEndpoint(String key, Host host, boolean idempotent, int defaultTimeoutMillis) {
+        this.key = key;
+        this.host = host;
+        this.idempotent = idempotent;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    /**
+     * @return the name used in config keys and metric tags
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    /**
+     * @return true if a failed call may be retried without side effects
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    public int getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+}
@@ -0,0 +1,393 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.Meter;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background Helix enrichment of users who logged in with asynchronous enrichment enabled.
+ * <p>
+ * A login only records the user as pending in Keycloak's single-use object store, which leaves the user row and
+ * the user cache alone, and queues the user once the login's transaction has committed. The pending records are
+ * what make the queue persistent: entries that do not fit into the bounded in-memory queue, or that are lost with
+ * a node, are queued again by a cluster-aware sweep. Each user has a store entry of its own, added only if absent,
+ * so that logins on different nodes neither lose nor extend each other's records; a record expires a day after it
+ * was added if never processed.
+ * <p>
+ * So that the sweep need not look at every linked user, each IdP also has a pending index in the store: a fixed
+ * number of slots, each holding one pending user. A login claims the first free slot from one derived from the
+ * user id, again by adding a store entry only if absent, and the sweep reads the slots rather than the users. A
+ * user for whom no free slot is found is still queued, but not swept again if dropped.
+ * <p>
+ * Queued users are coalesced, so a user who logs in repeatedly is enriched once, and users being processed are
+ * not queued again. Workers take up to {@link TwitchIdentityProvider#HELIX_USERS_MAX_IDS} users of the same IdP at
+ * a time, look them up with a single Helix request on the shared app access token, apply the Twitch user attribute
+ * mappers and clear the pending records. Workers are virtual threads on Java 21 and later.
+ */
+public class TwitchEnrichmentQueue implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(TwitchEnrichmentQueue.class);
+
+    public static final String TASK_NAME = "twitch-enrichment-sweep";
+
+    private static final String PENDING_KEY_PREFIX = "twitch.enrichment.pending:";
+    private static final String INDEX_KEY_PREFIX = "twitch.enrichment.index:";
+    private static final String CLAIM_SUFFIX = ":claim";
+    private static final String USER_ID = "userId";
+    private static final long PENDING_LIFESPAN_SECONDS = 86400;
+    // Slots of the pending index of an IdP, all read by each sweep
+    static final int INDEX_SLOTS = 8192;
+    // Slots tried by a login, from the one derived from the user id
+    static final int INDEX_PROBES = 32;
+
+    public static final String QUEUE_SIZE = "enrichmentQueueSize";
+    public static final String WORKERS = "enrichmentWorkers";
+    public static final String SWEEP_INTERVAL = "enrichmentSweepInterval";
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_WORKERS = 2;
+    public static final long DEFAULT_SWEEP_INTERVAL = 300;
+
+    private final TwitchIdentityProviderFactory providerFactory;
+    private final int capacity;
+    private final int workerCount;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    // Keys of the entries taken by workers and not done yet
+    private final Set<String> processing = ConcurrentHashMap.newKeySet();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private KeycloakSessionFactory sessionFactory;
+    private List<Meter> meters = List.of();
+    private volatile boolean closed;
+
+    public TwitchEnrichmentQueue(TwitchIdentityProviderFactory providerFactory, int capacity, int workerCount) {
+        this.providerFactory = providerFactory;
+        this.capacity = Math.max(1, capacity);
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        this.meters = TwitchMetrics.registerEnrichmentQueue(this);
+        ThreadFactory threadFactory = TwitchThreads.factory("twitch-enrichment-");
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = threadFactory.newThread(this::work);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Records the user as pending, unless already recorded, and queues it when the current transaction commits.
+     * A record left by a rolled back login is dropped by the worker, which does not find the user or its link.
+     */
+    public void enqueue(KeycloakSession session, RealmModel realm, UserModel user, String alias) {
+        markPending(session, realm.getId(), alias, user.getId());
+        String realmId = realm.getId();
+        String realmName = realm.getName();
+        String userId = user.getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                offer(realmId, realmName, alias, userId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * @return the number of queued users
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return milliseconds the longest queued user has been waiting, 0 if the queue is empty
+     */
+    public long oldestAgeMillis() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? 0 : System.currentTimeMillis() - entries.values().iterator().next().enqueuedAt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the users still pending enrichment, as far as the queue has room.
+     */
+    @Override
+    public void run(KeycloakSession session) {
+        session.realms().getRealmsStream().forEach(realm -> {
+            session.getContext().setRealm(realm);
+            session.identityProviders().getAllStream()
+                    .filter(TwitchEnrichmentQueue::isEnabled)
+                    .forEach(model -> sweep(session, realm, model.getAlias()));
+        });
+    }
+
+    /**
+     * Queues the users of the IdP's pending index, as far as the queue has room.
+     */
+    void sweep(KeycloakSession session, RealmModel realm, String alias) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        for (int slot = 0; slot < INDEX_SLOTS && size() < capacity; slot++) {
+            Map<String, String> indexed = store.get(indexKey(realm.getId(), alias, slot));
+            String userId = indexed == null ? null : indexed.get(USER_ID);
+            if (userId != null) {
+                offer(realm.getId(), realm.getName(), alias, userId);
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        workers.forEach(Thread::interrupt);
+        TwitchMetrics.remove(meters);
+    }
+
+    void offer(String realmId, String realmName, String alias, String userId) {
+        Entry entry = new Entry(realmId, realmName, alias, userId);
+        String key = entry.key();
+        String result;
+        lock.lock();
+        try {
+            if (entries.containsKey(key) || processing.contains(key)) {
+                result = TwitchMetrics.ENRICHMENT_COALESCED;
+            } else if (entries.size() >= capacity) {
+                // The user stays pending, the sweep queues it once there is room
+                result = TwitchMetrics.ENRICHMENT_REJECTED;
+            } else {
+                entries.put(key, entry);
+                notEmpty.signal();
+                result = TwitchMetrics.ENRICHMENT_QUEUED;
+            }
+        } finally {
+            lock.unlock();
+        }
+        TwitchMetrics.recordEnrichment(realmName, alias, result, 1);
+    }
+
+    private void work() {
+        while (!closed) {
+            List<Entry> batch;
+            try {
+                batch = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Entry first = batch.get(0);
+            try {
+                List<Entry> done = process(batch);
+                if (!done.isEmpty()) {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> clearPending(session, done));
+                }
+            } catch (RuntimeException e) {
+                // The users stay pending, the sweep queues them again
+                TwitchMetrics.recordEnrichment(first.realmName, first.alias, TwitchMetrics.ENRICHMENT_FAILED, batch.size());
+                logger.warnf(e, "Helix enrichment of %d users of Twitch IdP %s failed", batch.size(), first.alias);
+            } finally {
+                batch.forEach(entry -> processing.remove(entry.key()));
+            }
+        }
+    }
+
+    /**
+     * Takes the longest queued user and up to {@link TwitchIdentityProvider#HELIX_USERS_MAX_IDS} - 1 more of the same IdP.
+     */
+    List<Entry> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            List<Entry> batch = new ArrayList<>();
+            Iterator<Entry> queued = entries.values().iterator();
+            Entry first = queued.next();
+            queued.remove();
+            batch.add(first);
+            while (queued.hasNext() && batch.size() < TwitchIdentityProvider.HELIX_USERS_MAX_IDS) {
+                Entry entry = queued.next();
+                if (entry.realmId.equals(first.realmId) && entry.alias.equals(first.alias)) {
+                    queued.remove();
+                    batch.add(entry);
+                }
+            }
+            // Still pending in the store until processed; keeps the sweep from queuing them meanwhile
+            batch.forEach(entry -> processing.add(entry.key()));
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the users' links, looks them up in Helix and applies the result, with no transaction open during the
+     * lookup.
+     *
+     * @return the entries that are done with, whose pending records are to be cleared
+     */
+    private List<Entry> process(List<Entry> batch) {
+        Entry first = batch.get(0);
+        Map<String, String> userIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> readLinks(session, batch));
+        if (userIds == null) {
+            // Left to expire; the sweep only reads the records of IdPs with asynchronous enrichment
+            return List.of();
+        }
+        if (userIds.isEmpty()) {
+            // Deleted or unlinked since the login; nothing to enrich
+            return batch;
+        }
+
+        Map<String, JsonNode> helixUsers = TwitchHelixResync.fetchHelixUsers(sessionFactory, providerFactory,
+                first.realmId, first.alias, new ArrayList<>(userIds.keySet()), List.of(), false);
+        if (helixUsers == null) {
+            // No app access token yet; the users stay pending and the sweep queues them again
+            TwitchMetrics.recordEnrichment(first.realmName, first.alias, TwitchMetrics.ENRICHMENT_DEFERRED, batch.size());
+            return List.of();
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> TwitchHelixResync.applyHelixUsers(
+                session, providerFactory, first.realmId, first.alias, userIds, helixUsers));
+        TwitchMetrics.recordEnrichment(first.realmName, first.alias, TwitchMetrics.ENRICHMENT_PROCESSED, userIds.size());
+        for (Entry entry : batch) {
+            TwitchMetrics.recordEnrichmentLag(first.realmName, first.alias, System.currentTimeMillis() - entry.enqueuedAt);
+        }
+        return batch;
+    }
+
+    /**
+     * @return the ids of the users that are still linked, by Twitch user id, or null if the IdP no longer enriches
+     * asynchronously
+     */
+    private static Map<String, String> readLinks(KeycloakSession session, List<Entry> batch) {
+        Entry first = batch.get(0);
+        RealmModel realm = session.realms().getRealm(first.realmId);
+        if (realm == null) {
+            return null;
+        }
+        session.getContext().setRealm(realm);
+        IdentityProviderModel model = session.identityProviders().getByAlias(first.alias);
+        if (model == null || !isEnabled(model)) {
+            return null;
+        }
+        Map<String, String> userIds = new LinkedHashMap<>();
+        for (Entry entry : batch) {
+            UserModel user = session.users().getUserById(realm, entry.userId);
+            FederatedIdentityModel identity = user == null ? null : session.users().getFederatedIdentity(realm, user, first.alias);
+            if (identity != null) {
+                userIds.put(identity.getUserId(), user.getId());
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Records the user as pending and adds it to the IdP's pending index, unless it already is pending.
+     */
+    private static void markPending(KeycloakSession session, String realmId, String alias, String userId) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        if (!store.putIfAbsent(pendingKey(realmId, alias, userId), PENDING_LIFESPAN_SECONDS)) {
+            return;
+        }
+        int home = homeSlot(userId);
+        for (int probe = 0; probe < INDEX_PROBES; probe++) {
+            String key = indexKey(realmId, alias, (home + probe) % INDEX_SLOTS);
+            // Only the login that claimed the slot writes it
+            if (store.putIfAbsent(key + CLAIM_SUFFIX, PENDING_LIFESPAN_SECONDS)) {
+                store.put(key, PENDING_LIFESPAN_SECONDS, Map.of(USER_ID, userId));
+                return;
+            }
+        }
+        logger.warnf("Pending Helix enrichment index of Twitch IdP %s is full, user %s is not swept again if dropped",
+                alias, userId);
+    }
+
+    private static void clearPending(KeycloakSession session, List<Entry> done) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        for (Entry entry : done) {
+            int home = homeSlot(entry.userId);
+            for (int probe = 0; probe < INDEX_PROBES; probe++) {
+                String key = indexKey(entry.realmId, entry.alias, (home + probe) % INDEX_SLOTS);
+                Map<String, String> indexed = store.get(key);
+                if (indexed != null && entry.userId.equals(indexed.get(USER_ID))) {
+                    store.remove(key);
+                    store.remove(key + CLAIM_SUFFIX);
+                    break;
+                }
+            }
+            store.remove(pendingKey(entry.realmId, entry.alias, entry.userId));
+        }
+    }
+
+    private static String pendingKey(String realmId, String alias, String userId) {
+        return PENDING_KEY_PREFIX + realmId + ":" + alias + ":" + userId;
+    }
+
+    private static String indexKey(String realmId, String alias, int slot) {
+        return INDEX_KEY_PREFIX + realmId + ":" + alias + ":" + slot;
+    }
+
+    private static int homeSlot(String userId) {
+        return Math.floorMod(userId.hashCode(), INDEX_SLOTS);
+    }
+
+    private static boolean isEnabled(IdentityProviderModel model) {
+        return TwitchIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())
+                && model.isEnabled()
+                && Boolean.parseBoolean(model.getConfig().get(TwitchIdentityProviderConfig.HELIX_ENRICHMENT))
+                && Boolean.parseBoolean(model.getConfig().get(TwitchIdentityProviderConfig.ASYNC_ENRICHMENT));
+    }
+
+    static final class Entry {
+
+        private final String realmId;
+        private final String realmName;
+        private final String alias;
+        private final String userId;
+        private final long enqueuedAt = System.currentTimeMillis();
+
+        private Entry(String realmId, String realmName, String alias, String userId) {
+            this.realmId = realmId;
+            this.realmName = realmName;
+            this.alias = alias;
+            this.userId = userId;
+        }
+
+        String key() {
+            return realmId + ":" + alias + ":" + userId;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+/**
+ * Receiver of the Twitch EventSub webhook of an IdP.
+ * <p>
+ * Every message must carry the HMAC-SHA256 signature Twitch computes over its id, timestamp and body with the
+ * IdP's EventSub secret, and be at most ten minutes old. Message ids are recorded in the cluster's single-use
+ * object store, so a message Twitch delivers more than once is applied once.
+ * <p>
+ * A {@code user.update} notification re-applies the IdP's Twitch attribute mappers to the linked user from the
+ * event and, with sync mode "force", updates the user's email. A {@code user.authorization.revoke} notification
+ * drops the Twitch tokens stored for the user. Both drop what is cached about the Twitch user.
+ */
+public class TwitchEventSub {
+
+    private static final Logger logger = Logger.getLogger(TwitchEventSub.class);
+
+    public static final String MESSAGE_ID = "Twitch-Eventsub-Message-Id";
+    public static final String MESSAGE_TIMESTAMP = "Twitch-Eventsub-Message-Timestamp";
+    public static final String MESSAGE_SIGNATURE = "Twitch-Eventsub-Message-Signature";
+    public static final String MESSAGE_TYPE = "Twitch-Eventsub-Message-Type";
+
+    public static final String TYPE_VERIFICATION = "webhook_callback_verification";
+    public static final String TYPE_NOTIFICATION = "notification";
+    public static final String TYPE_REVOCATION = "revocation";
+
+    public static final String USER_UPDATE = "user.update";
+    public static final String USER_AUTHORIZATION_REVOKE = "user.authorization.revoke";
+
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    private static final Duration MAX_MESSAGE_AGE = Duration.ofMinutes(10);
+    // Longer than Twitch accepts a message as recent, so that a replay within that window is recognized
+    private static final long DEDUP_SECONDS = MAX_MESSAGE_AGE.getSeconds() * 2;
+    private static final String DEDUP_KEY_PREFIX = "twitch-eventsub:";
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final TwitchIdentityProvider provider;
+    private final String alias;
+
+    public TwitchEventSub(KeycloakSession session, RealmModel realm, TwitchIdentityProvider provider) {
+        this.session = session;
+        this.realm = realm;
+        this.provider = provider;
+        this.alias = provider.getConfig().getAlias();
+    }
+
+    /**
+     * Authenticates and applies one webhook message.
+     */
+    public Response receive(HttpHeaders headers, byte[] body) {
+        String secret = provider.getEventSubSecret();
+        String messageId = headers.getHeaderString(MESSAGE_ID);
+        String timestamp = headers.getHeaderString(MESSAGE_TIMESTAMP);
+        String messageType = String.valueOf(headers.getHeaderString(MESSAGE_TYPE));
+        if (secret == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (messageId == null || timestamp == null
+                || !verify(secret, messageId, timestamp, body, headers.getHeaderString(MESSAGE_SIGNATURE))
+                || !isRecent(timestamp)) {
+            record(messageType, TwitchMetrics.EVENTSUB_REJECTED);
+            logger.debugf("Rejected EventSub message %s for Twitch IdP %s: invalid signature or timestamp", messageId, alias);
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        JsonNode message;
+        try {
+            message = JsonSerialization.mapper.readTree(body);
+        } catch (IOException e) {
+            record(messageType, TwitchMetrics.EVENTSUB_REJECTED);
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        switch (messageType) {
+            case TYPE_VERIFICATION:
+                record(messageType, TwitchMetrics.EVENTSUB_APPLIED);
+                return Response.ok(message.path("challenge").asText(), MediaType.TEXT_PLAIN_TYPE).build();
+            case TYPE_REVOCATION:
+                record(messageType, TwitchMetrics.EVENTSUB_APPLIED);
+                logger.warnf("Twitch revoked the %s EventSub subscription %s of IdP %s: %s",
+                        message.path("subscription").path("type").asText(), message.path("subscription").path("id").asText(),
+                        alias, message.path("subscription").path("status").asText());
+                return Response.noContent().build();
+            case TYPE_NOTIFICATION:
+                return notification(messageId, message);
+            default:
+                record(messageType, TwitchMetrics.EVENTSUB_IGNORED);
+                return Response.noContent().build();
+        }
+    }
+
+    private Response notification(String messageId, JsonNode message) {
+        String type = message.path("subscription").path("type").asText();
+        String dedupKey = DEDUP_KEY_PREFIX + messageId;
+        if (!session.singleUseObjects().putIfAbsent(dedupKey, DEDUP_SECONDS)) {
+            record(type, TwitchMetrics.EVENTSUB_DUPLICATE);
+            return Response.noContent().build();
+        }
+        // The updates commit after this returns; if they do not, let Twitch deliver the message again
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                session.singleUseObjects().remove(dedupKey);
+            }
+        });
+
+        JsonNode event = message.path("event");
+        String result;
+        switch (type) {
+            case USER_UPDATE:
+                result = applyUserUpdate(event);
+                break;
+            case USER_AUTHORIZATION_REVOKE:
+                result = applyAuthorizationRevoke(event);
+                break;
+            default:
+                result = TwitchMetrics.EVENTSUB_IGNORED;
+        }
+        record(type, result);
+        return Response.noContent().build();
+    }
+
+    private String applyUserUpdate(JsonNode event) {
+        String twitchUserId = event.path("user_id").asText(null);
+        if (twitchUserId == null) {
+            return TwitchMetrics.EVENTSUB_IGNORED;
+        }
+        provider.invalidateCachedUser(twitchUserId);
+        UserModel user = linkedUser(twitchUserId);
+        if (user == null) {
+            return TwitchMetrics.EVENTSUB_UNKNOWN_USER;
+        }
+
+        // The event carries a subset of the Helix user, under Helix names except for the login and display name
+        ObjectNode helixUser = JsonSerialization.mapper.createObjectNode();
+        helixUser.put("id", twitchUserId);
+        copy(event, "user_login", helixUser, "login");
+        copy(event, "user_name", helixUser, "display_name");
+        copy(event, "description", helixUser, "description");
+        copy(event, "email", helixUser, "email");
+        copy(event, "email_verified", helixUser, "email_verified");
+        TwitchHelixResync.applyHelixUsers(session, realm, provider, Map.of(twitchUserId, user), Map.of(twitchUserId, helixUser));
+
+        if (provider.getConfig().getSyncMode() == IdentityProviderSyncMode.FORCE) {
+            updateEmail(user, event.path("email").asText(null), event.path("email_verified").asBoolean(false));
+        }
+        return TwitchMetrics.EVENTSUB_APPLIED;
+    }
+
+    private void updateEmail(UserModel user, String email, boolean emailVerified) {
+        if (email == null || email.isEmpty() || email.equalsIgnoreCase(user.getEmail())) {
+            return;
+        }
+        if (!realm.isDuplicateEmailsAllowed()) {
+            UserModel other = session.users().getUserByEmail(realm, email);
+            if (other != null && !other.getId().equals(user.getId())) {
+                logger.warnf("Not updating email of user %s from Twitch IdP %s, another user has it", user.getId(), alias);
+                return;
+            }
+        }
+        user.setEmail(email);
+        user.setEmailVerified(provider.getConfig().isTrustEmail() && emailVerified);
+    }
+
+    private String applyAuthorizationRevoke(JsonNode event) {
+        String twitchUserId = event.path("user_id").asText(null);
+        if (twitchUserId == null || !provider.getConfig().getClientId().equals(event.path("client_id").asText())) {
+            return TwitchMetrics.EVENTSUB_IGNORED;
+        }
+        provider.invalidateCachedUser(twitchUserId);
+        UserModel user = linkedUser(twitchUserId);
+        if (user == null) {
+            return TwitchMetrics.EVENTSUB_UNKNOWN_USER;
+        }
+        FederatedIdentityModel identity = session.users().getFederatedIdentity(realm, user, alias);
+        if (identity != null && identity.getToken() != null) {
+            // The tokens are no longer valid; the user authorizes the client again at the next login
+            identity.setToken(null);
+            session.users().updateFederatedIdentity(realm, user, identity);
+        }
+        return TwitchMetrics.EVENTSUB_APPLIED;
+    }
+
+    private UserModel linkedUser(String twitchUserId) {
+        return session.users().getUserByFederatedIdentity(realm, new FederatedIdentityModel(alias, twitchUserId, null));
+    }
+
+    private void record(String type, String result) {
+        TwitchMetrics.recordEventSub(TwitchMetrics.realmName(realm), alias, type, result);
+    }
+
+    private static void copy(JsonNode event, String field, ObjectNode target, String name) {
+        JsonNode value = event.get(field);
+        if (value != null && !value.isNull()) {
+            target.set(name, value);
+        }
+    }
+
+    private static boolean isRecent(String timestamp) {
+        try {
+            Instant sent = Instant.parse(timestamp);
+            return Duration.between(sent, Instant.now()).abs().compareTo(MAX_MESSAGE_AGE) <= 0;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the signature header is the one Twitch computes for the message
+     */
+    public static boolean verify(String secret, String messageId, String timestamp, byte[] body, String signature) {
+        if (signature == null) {
+            return false;
+        }
+        byte[] expected = sign(secret, messageId, timestamp, body).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Signs a message the way Twitch does, e.g. to send locally crafted test notifications to the webhook.
+     *
+     * @return the value of the {@link #MESSAGE_SIGNATURE} header
+     */
+    public static String sign(String secret, String messageId, String timestamp, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(messageId.getBytes(StandardCharsets.UTF_8));
+            mac.update(timestamp.getBytes(StandardCharsets.UTF_8));
+            byte[] digest = mac.doFinal(body);
+            StringBuilder sb = new StringBuilder(SIGNATURE_PREFIX.length() + digest.length * 2).append(SIGNATURE_PREFIX);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Manages the EventSub subscriptions of the webhook of a Twitch IdP: one {@code user.authorization.revoke}
+ * subscription for the client, and one {@code user.update} subscription per linked user, which is the only
+ * condition Twitch offers for that type.
+ * <p>
+ * Subscribing only creates the subscriptions that are missing, so it can be repeated to cover users linked
+ * since the last run. Subscriptions of the webhook that Twitch disabled are deleted and created again.
+ * Unsubscribing deletes all subscriptions of the webhook. Like Helix resyncs, jobs run one at a time on a
+ * background thread of this node and their progress is kept in memory.
+ */
+public class TwitchEventSubSubscriptions {
+
+    private static final Logger logger = Logger.getLogger(TwitchEventSubSubscriptions.class);
+
+    // How long a job waits for the shared app access token to become available
+    private static final int APP_TOKEN_ATTEMPTS = 10;
+    private static final long APP_TOKEN_WAIT_MILLIS = 1000;
+
+    private static final String STATUS_ENABLED = "enabled";
+    private static final String STATUS_VERIFICATION_PENDING = "webhook_callback_verification_pending";
+
+    private final TwitchIdentityProviderFactory providerFactory;
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private KeycloakSessionFactory sessionFactory;
+
+    public TwitchEventSubSubscriptions(TwitchIdentityProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "twitch-eventsub-subscriptions");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Starts subscribing the webhook, or unsubscribing it, unless a job for the IdP is already queued or running.
+     *
+     * @param callback the URL of the webhook, as Twitch calls it
+     * @return the status of the new job, or null if one is already in progress
+     */
+    public Status start(String realmId, String alias, String callback, boolean subscribe) {
+        Status status = new Status(subscribe);
+        Status current = statuses.compute(key(realmId, alias),
+                (key, previous) -> previous != null && !previous.isFinished() ? previous : status);
+        if (current != status) {
+            return null;
+        }
+        executor.execute(() -> run(realmId, alias, callback, status));
+        return status;
+    }
+
+    /**
+     * @return the status of the last job of the IdP on this node, or null if there was none
+     */
+    public Status getStatus(String realmId, String alias) {
+        return statuses.get(key(realmId, alias));
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void run(String realmId, String alias, String callback, Status status) {
+        status.startedAt = System.currentTimeMillis();
+        try {
+            Set<String> existing = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> reconcile(session, realmId, alias, callback, status));
+            if (status.subscribe) {
+                int first = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    int offset = first;
+                    Integer users = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                            session -> subscribePage(session, realmId, alias, callback, offset, existing, status));
+                    if (users < TwitchIdentityProvider.HELIX_USERS_MAX_IDS) {
+                        break;
+                    }
+                    first += users;
+                }
+            }
+            logger.infof("EventSub %s of Twitch IdP %s finished: %d created, %d existing, %d deleted",
+                    status.subscribe ? "subscription" : "unsubscription", alias,
+                    status.created.get(), status.existing.get(), status.deleted.get());
+        } catch (RuntimeException e) {
+            status.error = e.getMessage();
+            logger.warnf(e, "EventSub %s of Twitch IdP %s failed", status.subscribe ? "subscription" : "unsubscription", alias);
+        } finally {
+            status.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Deletes the webhook's subscriptions that are no longer active, or all of them when unsubscribing,
+     * and subscribes to revoked authorizations.
+     *
+     * @return the active subscriptions, as type and condition
+     */
+    private Set<String> reconcile(KeycloakSession session, String realmId, String alias, String callback, Status status) {
+        TwitchIdentityProvider provider = provider(session, realmId, alias);
+        awaitAppToken(provider);
+
+        Set<String> active = new HashSet<>();
+        List<String> stale = new ArrayList<>();
+        String cursor = null;
+        do {
+            JsonNode page = provider.listEventSubSubscriptions(cursor);
+            for (JsonNode subscription : page.path("data")) {
+                if (!callback.equals(subscription.path("transport").path("callback").asText())) {
+                    continue;
+                }
+                String state = subscription.path("status").asText();
+                if (status.subscribe && (STATUS_ENABLED.equals(state) || STATUS_VERIFICATION_PENDING.equals(state))) {
+                    active.add(subscriptionKey(subscription.path("type").asText(), subscription.path("condition")));
+                    status.existing.incrementAndGet();
+                } else {
+                    stale.add(subscription.path("id").asText());
+                }
+            }
+            cursor = page.path("pagination").path("cursor").asText(null);
+        } while (cursor != null && !cursor.isEmpty());
+
+        // Deleted once listed, so that the deletions do not shift the pages
+        for (String id : stale) {
+            provider.deleteEventSubSubscription(id);
+            status.deleted.incrementAndGet();
+        }
+
+        if (status.subscribe) {
+            String clientId = provider.getConfig().getClientId();
+            subscribe(provider, TwitchEventSub.USER_AUTHORIZATION_REVOKE, "client_id", clientId, callback, active, status);
+        }
+        return active;
+    }
+
+    private int subscribePage(KeycloakSession session, String realmId, String alias, String callback, int first,
+                              Set<String> active, Status status) {
+        TwitchIdentityProvider provider = provider(session, realmId, alias);
+        RealmModel realm = session.getContext().getRealm();
+        List<UserModel> users = session.users()
+                .searchForUserStream(realm, Map.of(UserModel.IDP_ALIAS, alias), first, TwitchIdentityProvider.HELIX_USERS_MAX_IDS)
+                .collect(Collectors.toList());
+        for (UserModel user : users) {
+            FederatedIdentityModel identity = session.users().getFederatedIdentity(realm, user, alias);
+            if (identity != null) {
+                subscribe(provider, TwitchEventSub.USER_UPDATE, "user_id", identity.getUserId(), callback, active, status);
+            }
+        }
+        status.users.addAndGet(users.size());
+        return users.size();
+    }
+
+    private static void subscribe(TwitchIdentityProvider provider, String type, String conditionName, String conditionValue,
+                                  String callback, Set<String> active, Status status) {
+        if (active.contains(type + ":" + conditionName + "=" + conditionValue)) {
+            return;
+        }
+        String secret = provider.getEventSubSecret();
+        if (secret == null) {
+            throw new IllegalStateException("No EventSub secret configured for Twitch IdP " + provider.getConfig().getAlias());
+        }
+        if (provider.createEventSubSubscription(type, Map.of(conditionName, conditionValue), callback, secret)) {
+            status.created.incrementAndGet();
+        } else {
+            status.existing.incrementAndGet();
+        }
+    }
+
+    private TwitchIdentityProvider provider(KeycloakSession session, String realmId, String alias) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm != null) {
+            session.getContext().setRealm(realm);
+        }
+        IdentityProviderModel model = realm == null ? null : session.identityProviders().getByAlias(alias);
+        if (model == null || !TwitchIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+            throw new IllegalStateException("Twitch identity provider " + alias + " not found");
+        }
+        return providerFactory.create(session, model);
+    }
+
+    private static void awaitAppToken(TwitchIdentityProvider provider) {
+        for (int attempt = 1; provider.getAppToken() == null; attempt++) {
+            if (attempt >= APP_TOKEN_ATTEMPTS) {
+                throw new IllegalStateException("No Twitch app access token available, is 'App access token' enabled?");
+            }
+            try {
+                Thread.sleep(APP_TOKEN_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a Twitch app access token", e);
+            }
+        }
+    }
+
+    // Matches the keys built by subscribe(); Twitch lists unused condition fields with empty values
+    private static String subscriptionKey(String type, JsonNode condition) {
+        StringBuilder key = new StringBuilder(type);
+        condition.fields().forEachRemaining(field -> {
+            if (!field.getValue().asText().isEmpty()) {
+                key.append(':').append(field.getKey()).append('=').append(field.getValue().asText());
+            }
+        });
+        return key.toString();
+    }
+
+    private static String key(String realmId, String alias) {
+        return realmId + ":" + alias;
+    }
+
+    /**
+     * Progress of one job.
+     */
+    public static final class Status {
+
+        private final boolean subscribe;
+        private final AtomicInteger users = new AtomicInteger();
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger existing = new AtomicInteger();
+        private final AtomicInteger deleted = new AtomicInteger();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile String error;
+
+        private Status(boolean subscribe) {
+            this.subscribe = subscribe;
+        }
+
+        public boolean isFinished() {
+            return finishedAt != 0;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("action", subscribe ? "subscribe" : "unsubscribe");
+            map.put("state", finishedAt != 0 ? (error != null ? "failed" : "finished") : startedAt != 0 ? "running" : "queued");
+            map.put("users", users.get());
+            map.put("created", created.get());
+            map.put("existing", existing.get());
+            map.put("deleted", deleted.get());
+            map.put("startedAt", startedAt);
+            map.put("finishedAt", finishedAt);
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+}
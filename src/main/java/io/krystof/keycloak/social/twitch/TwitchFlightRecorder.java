@@ -0,0 +1,167 @@
+package io.krystof.keycloak.social.twitch;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.RealmModel;
+
+/**
+ * JDK Flight Recorder events of Twitch broker logins, for tracing single slow logins where the
+ * {@link TwitchMetrics} timers only show distributions.
+ * <p>
+ * Events are only collected while a recording runs, such as a continuous {@code -XX:StartFlightRecording}, and cost
+ * close to nothing otherwise. They span the phase they describe on the thread that ran it and carry the realm,
+ * the IdP alias and non-sensitive details only: never tokens, codes, URLs with query strings or profile values.
+ */
+public final class TwitchFlightRecorder {
+
+    private static final String CATEGORY_KEYCLOAK = "Keycloak";
+    private static final String CATEGORY_TWITCH = "Twitch";
+
+    private TwitchFlightRecorder() {
+    }
+
+    @Name("io.krystof.keycloak.twitch.Phase")
+    @Label("Twitch Login Phase")
+    @Description("A phase of a Twitch broker login, named as in the keycloak.twitch.login.phase timer")
+    @Category({CATEGORY_KEYCLOAK, CATEGORY_TWITCH})
+    @StackTrace(false)
+    public static final class PhaseEvent extends Event {
+
+        @Label("Realm")
+        String realm;
+
+        @Label("IdP Alias")
+        String alias;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("io.krystof.keycloak.twitch.Http")
+    @Label("Twitch HTTP Call")
+    @Description("One attempt of a call to a Twitch endpoint, including reading the response")
+    @Category({CATEGORY_KEYCLOAK, CATEGORY_TWITCH})
+    @StackTrace(false)
+    public static final class HttpEvent extends Event {
+
+        @Label("Realm")
+        String realm;
+
+        @Label("IdP Alias")
+        String alias;
+
+        @Label("Endpoint")
+        String endpoint;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Status")
+        @Description("HTTP status, 0 if no response was received")
+        int status;
+
+        @Label("Response Size")
+        @Description("Length of the response body, -1 if unknown")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("io.krystof.keycloak.twitch.Mapper")
+    @Label("Twitch Mapper")
+    @Description("An invocation of a Twitch identity provider mapper")
+    @Category({CATEGORY_KEYCLOAK, CATEGORY_TWITCH})
+    @StackTrace(false)
+    public static final class MapperEvent extends Event {
+
+        @Label("Realm")
+        String realm;
+
+        @Label("IdP Alias")
+        String alias;
+
+        @Label("Mapper")
+        String mapper;
+
+        @Label("Mapper Type")
+        String mapperType;
+
+        @Label("Method")
+        String method;
+    }
+
+    /**
+     * Starts timing a phase.
+     */
+    public static PhaseEvent beginPhase(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    public static void endPhase(PhaseEvent event, String realm, String alias, boolean success) {
+        if (event.shouldCommit()) {
+            event.realm = realm;
+            event.alias = alias;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing one attempt of an HTTP call.
+     */
+    public static HttpEvent beginHttp(TwitchEndpoint endpoint, int attempt) {
+        HttpEvent event = new HttpEvent();
+        event.endpoint = endpoint.getKey();
+        event.attempt = attempt;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return whether the event will be recorded, so that details need to be collected for it
+     */
+    public static boolean isRecorded(HttpEvent event) {
+        return event.shouldCommit();
+    }
+
+    public static void endHttp(HttpEvent event, String realm, String alias, int status, long bytes) {
+        if (event.shouldCommit()) {
+            event.realm = realm;
+            event.alias = alias;
+            event.status = status;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing a mapper invocation.
+     */
+    public static MapperEvent beginMapper(String method) {
+        MapperEvent event = new MapperEvent();
+        event.method = method;
+        event.begin();
+        return event;
+    }
+
+    public static void endMapper(MapperEvent event, RealmModel realm, IdentityProviderMapperModel mapperModel) {
+        if (event.shouldCommit()) {
+            event.realm = TwitchMetrics.realmName(realm);
+            event.alias = mapperModel.getIdentityProviderAlias();
+            event.mapper = mapperModel.getName();
+            event.mapperType = mapperModel.getIdentityProviderMapper();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Re-applies the Twitch attribute mappers of an IdP to all users linked to it, from their Helix
+ * {@code /users} entries.
+ * <p>
+ * Users are read in pages of {@link TwitchIdentityProvider#HELIX_USERS_MAX_IDS}, each looked up with a single
+ * Helix request and updated in a transaction of its own, so a realm of N linked users costs N/100 calls. The
+ * lookup runs between the transactions that read and update a page, so none of them waits on Twitch.
+ * Resyncs run one at a time on a background thread of this node; their progress is kept in memory.
+ */
+public class TwitchHelixResync {
+
+    private static final Logger logger = Logger.getLogger(TwitchHelixResync.class);
+
+    // How long a lookup waits for the shared app access token to become available
+    private static final int APP_TOKEN_ATTEMPTS = 10;
+    private static final long APP_TOKEN_WAIT_MILLIS = 1000;
+
+    private final TwitchIdentityProviderFactory providerFactory;
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private KeycloakSessionFactory sessionFactory;
+
+    public TwitchHelixResync(TwitchIdentityProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "twitch-helix-resync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Starts a resync of the IdP's users unless one is already queued or running.
+     *
+     * @return the status of the new resync, or null if one is already in progress
+     */
+    public Status start(String realmId, String alias) {
+        Status status = new Status();
+        Status current = statuses.compute(key(realmId, alias),
+                (key, previous) -> previous != null && !previous.isFinished() ? previous : status);
+        if (current != status) {
+            return null;
+        }
+        executor.execute(() -> run(realmId, alias, status));
+        return status;
+    }
+
+    /**
+     * @return the status of the last resync of the IdP on this node, or null if there was none
+     */
+    public Status getStatus(String realmId, String alias) {
+        return statuses.get(key(realmId, alias));
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void run(String realmId, String alias, Status status) {
+        status.startedAt = System.currentTimeMillis();
+        try {
+            int first = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                int offset = first;
+                Page page = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> readPage(session, realmId, alias, offset));
+                status.users.addAndGet(page.users);
+                if (!page.userIds.isEmpty()) {
+                    Map<String, JsonNode> helixUsers = fetchHelixUsers(sessionFactory, providerFactory, realmId, alias,
+                            new ArrayList<>(page.userIds.keySet()), List.of(), true);
+                    status.requests.incrementAndGet();
+                    status.updated.addAndGet(KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                            session -> applyHelixUsers(session, providerFactory, realmId, alias, page.userIds, helixUsers)));
+                }
+                if (page.users < TwitchIdentityProvider.HELIX_USERS_MAX_IDS) {
+                    break;
+                }
+                first += page.users;
+            }
+            logger.infof("Helix resync of Twitch IdP %s finished: %d users, %d updated, %d Helix requests",
+                    alias, status.users.get(), status.updated.get(), status.requests.get());
+        } catch (RuntimeException e) {
+            status.error = e.getMessage();
+            logger.warnf(e, "Helix resync of Twitch IdP %s failed", alias);
+        } finally {
+            status.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private Page readPage(KeycloakSession session, String realmId, String alias, int first) {
+        RealmModel realm = realm(session, realmId, alias);
+        List<UserModel> users = session.users()
+                .searchForUserStream(realm, Map.of(UserModel.IDP_ALIAS, alias), first, TwitchIdentityProvider.HELIX_USERS_MAX_IDS)
+                .collect(Collectors.toList());
+        Map<String, String> userIds = new LinkedHashMap<>();
+        for (UserModel user : users) {
+            FederatedIdentityModel identity = session.users().getFederatedIdentity(realm, user, alias);
+            if (identity != null) {
+                userIds.put(identity.getUserId(), user.getId());
+            }
+        }
+        return new Page(users.size(), userIds);
+    }
+
+    /**
+     * Looks up users in Helix with the shared app access token. Each attempt runs in a short session of its own that
+     * does not touch users, and no session is open while waiting for the app access token, so that callers can keep the
+     * lookup between the transactions that read and update their users.
+     *
+     * @param wait whether to wait for the app access token if it is not available yet
+     * @return the users found, by Twitch user id, or null if no app access token is available and {@code wait} is false
+     */
+    static Map<String, JsonNode> fetchHelixUsers(KeycloakSessionFactory sessionFactory, TwitchIdentityProviderFactory providerFactory,
+                                                 String realmId, String alias, List<String> ids, List<String> logins, boolean wait) {
+        if (ids.isEmpty() && logins.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        for (int attempt = 1; ; attempt++) {
+            Map<String, JsonNode> users = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> provider(session, providerFactory, realmId, alias).fetchHelixUsers(ids, logins));
+            if (users != null || !wait) {
+                return users;
+            }
+            if (attempt >= APP_TOKEN_ATTEMPTS) {
+                throw new IllegalStateException("No Twitch app access token available, is 'App access token' enabled?");
+            }
+            try {
+                Thread.sleep(APP_TOKEN_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a Twitch app access token", e);
+            }
+        }
+    }
+
+    /**
+     * Applies Helix entries to the users that are still linked to the Twitch accounts they were looked up for.
+     *
+     * @param userIds the user ids, by Twitch user id, as read before the lookup
+     * @return the number of users that had a mapped field
+     */
+    static int applyHelixUsers(KeycloakSession session, TwitchIdentityProviderFactory providerFactory, String realmId,
+                               String alias, Map<String, String> userIds, Map<String, JsonNode> helixUsers) {
+        RealmModel realm = realm(session, realmId, alias);
+        TwitchIdentityProvider provider = providerFactory.create(session, session.identityProviders().getByAlias(alias));
+        Map<String, UserModel> users = new LinkedHashMap<>();
+        userIds.forEach((twitchId, userId) -> {
+            UserModel user = session.users().getUserById(realm, userId);
+            FederatedIdentityModel identity = user == null ? null : session.users().getFederatedIdentity(realm, user, alias);
+            if (identity != null && twitchId.equals(identity.getUserId())) {
+                users.put(twitchId, user);
+            }
+        });
+        return applyHelixUsers(session, realm, provider, users, helixUsers);
+    }
+
+    private static TwitchIdentityProvider provider(KeycloakSession session, TwitchIdentityProviderFactory providerFactory,
+                                                   String realmId, String alias) {
+        realm(session, realmId, alias);
+        return providerFactory.create(session, session.identityProviders().getByAlias(alias));
+    }
+
+    /**
+     * Looks up the realm of a Twitch IdP and makes it the session's realm.
+     *
+     * @throws IllegalStateException if the realm or its Twitch IdP no longer exists
+     */
+    static RealmModel realm(KeycloakSession session, String realmId, String alias) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm != null) {
+            session.getContext().setRealm(realm);
+        }
+        IdentityProviderModel model = realm == null ? null : session.identityProviders().getByAlias(alias);
+        if (model == null || !TwitchIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+            throw new IllegalStateException("Twitch identity provider " + alias + " not found");
+        }
+        return realm;
+    }
+
+    /**
+     * Applies the IdP's Twitch attribute mappers, single and multi-field, to users from their Helix entries. Attributes whose
+     * field is missing from an entry are left as they are. Mappers that only import, by their own sync mode or the IdP's
+     * they inherit, are skipped, as at login.
+     *
+     * @param users the users, by Twitch user id
+     * @return the number of users that had a mapped field
+     */
+    static int applyHelixUsers(KeycloakSession session, RealmModel realm, TwitchIdentityProvider provider,
+                               Map<String, UserModel> users, Map<String, ? extends JsonNode> helixUsers) {
+        String alias = provider.getConfig().getAlias();
+        List<IdentityProviderMapperModel> mappers = session.identityProviders().getMappersByAliasStream(alias)
+                .filter(mapper -> TwitchUserAttributeMapper.PROVIDER_ID.equals(mapper.getIdentityProviderMapper())
+                        || TwitchMultiAttributeMapper.PROVIDER_ID.equals(mapper.getIdentityProviderMapper()))
+                .filter(mapper -> !isImportOnly(mapper, provider.getConfig()))
+                .collect(Collectors.toList());
+        TwitchUserAttributeMapper attributeMapper = (TwitchUserAttributeMapper) session.getKeycloakSessionFactory()
+                .getProviderFactory(IdentityProviderMapper.class, TwitchUserAttributeMapper.PROVIDER_ID);
+        TwitchMultiAttributeMapper multiAttributeMapper = (TwitchMultiAttributeMapper) session.getKeycloakSessionFactory()
+                .getProviderFactory(IdentityProviderMapper.class, TwitchMultiAttributeMapper.PROVIDER_ID);
+
+        int updated = 0;
+        for (Map.Entry<String, UserModel> entry : users.entrySet()) {
+            JsonNode helixUser = helixUsers.get(entry.getKey());
+            if (helixUser == null) {
+                continue;
+            }
+            ObjectNode profile = JsonSerialization.mapper.createObjectNode();
+            profile.put("sub", entry.getKey());
+            profile.put("preferred_username", helixUser.path("login").asText(null));
+            BrokeredIdentityContext context = new BrokeredIdentityContext(entry.getKey(), provider.getConfig());
+            AbstractJsonUserAttributeMapper.storeUserProfileForMapper(context,
+                    TwitchIdentityProvider.mergeHelixUser(profile, helixUser), alias);
+
+            boolean mapped = false;
+            for (IdentityProviderMapperModel mapper : mappers) {
+                mapped |= TwitchMultiAttributeMapper.PROVIDER_ID.equals(mapper.getIdentityProviderMapper())
+                        ? multiAttributeMapper.updateFromProfile(session, realm, entry.getValue(), mapper, context)
+                        : attributeMapper.updateFromProfile(session, realm, entry.getValue(), mapper, context);
+            }
+            if (mapped) {
+                updated++;
+            }
+        }
+        return updated;
+    }
+
+    // As IdentityProviderMapperSyncModeDelegate resolves it
+    private static boolean isImportOnly(IdentityProviderMapperModel mapper, IdentityProviderModel idp) {
+        IdentityProviderMapperSyncMode syncMode = mapper.getSyncMode();
+        if (syncMode == IdentityProviderMapperSyncMode.INHERIT) {
+            return idp.getSyncMode() == IdentityProviderSyncMode.IMPORT;
+        }
+        return syncMode == IdentityProviderMapperSyncMode.IMPORT;
+    }
+
+    private static String key(String realmId, String alias) {
+        return realmId + ":" + alias;
+    }
+
+    private static final class Page {
+
+        private final int users;
+        private final Map<String, String> userIds;
+
+        private Page(int users, Map<String, String> userIds) {
+            this.users = users;
+            this.userIds = userIds;
+        }
+    }
+
+    /**
+     * Progress of one resync.
+     */
+    public static final class Status {
+
+        private final AtomicInteger users = new AtomicInteger();
+        private final AtomicInteger updated = new AtomicInteger();
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile String error;
+
+        public boolean isFinished() {
+            return finishedAt != 0;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("state", finishedAt != 0 ? (error != null ? "failed" : "finished") : startedAt != 0 ? "running" : "queued");
+            map.put("users", users.get());
+            map.put("updated", updated.get());
+            map.put("helixRequests", requests.get());
+            map.put("startedAt", startedAt);
+            map.put("finishedAt", finishedAt);
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.krystof.keycloak.social.twitch;
+
+import io.micrometer.core.instrument.Meter;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustAllStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.common.util.KeystoreUtil;
+import org.keycloak.connections.httpclient.ProxyMappings;
+import org.keycloak.connections.httpclient.ProxyMappingsAwareRoutePlanner;
+import org.keycloak.truststore.TruststoreProvider;
+
+import javax.net.ssl.HostnameVerifier;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client for calls to Twitch, shared by all Twitch identity providers.
+ * <p>
+ * Connections are pooled and kept alive, so that logins reuse warm TLS connections to {@code id.twitch.tv}
+ * instead of opening a new one per request. Idle and expired connections are evicted in the background.
+ * The pool is configured through the provider's SPI options:
+ * <pre>
+ * --spi-identity-provider-twitch-pool-size=64
+ * --spi-identity-provider-twitch-pool-idle-timeout=30
+ * --spi-identity-provider-twitch-keep-alive=60
+ * </pre>
+ * Everything else comes from Keycloak's {@code connections-http-client} settings, like for Keycloak's own outgoing
+ * calls: the truststore and its hostname verification policy, the client keystore, proxy mappings and the default
+ * timeouts. Timeouts are set per request from the IdP config, see {@link TwitchResilience}.
+ */
+public class TwitchHttpClient {
+
+    private static final Logger logger = Logger.getLogger(TwitchHttpClient.class);
+
+    public static final String POOL_SIZE = "poolSize";
+    public static final String POOL_IDLE_TIMEOUT = "poolIdleTimeout";
+    public static final String KEEP_ALIVE = "keepAlive";
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final long DEFAULT_POOL_IDLE_TIMEOUT = 30;
+    public static final long DEFAULT_KEEP_ALIVE = 60;
+
+    // Options and defaults of Keycloak's DefaultHttpClientFactory
+    private static final String HTTP_CLIENT_SPI = "connections-http-client";
+    private static final String SOCKET_TIMEOUT = "socket-timeout-millis";
+    private static final String CONNECT_TIMEOUT = "establish-connection-timeout-millis";
+    private static final String PROXY_MAPPINGS = "proxy-mappings";
+    private static final String DISABLE_TRUST_MANAGER = "disable-trust-manager";
+    private static final String CLIENT_KEYSTORE = "client-keystore";
+    private static final String CLIENT_KEYSTORE_PASSWORD = "client-keystore-password";
+    private static final String CLIENT_KEY_PASSWORD = "client-key-password";
+    private static final long DEFAULT_SOCKET_TIMEOUT = 5000;
+    private static final long DEFAULT_CONNECT_TIMEOUT = -1;
+
+    // How long a request waits for a pooled connection, unless it sets its own timeouts
+    private static final int POOL_TIMEOUT = 10_000;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private List<Meter> meters = List.of();
+
+    private TwitchHttpClient(int poolSize, long idleTimeoutSeconds, long keepAliveSeconds, Config.Scope keycloakConfig,
+                             TruststoreProvider truststoreProvider) {
+        this.connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory(keycloakConfig, truststoreProvider))
+                .build());
+        // All connections go to a handful of Twitch hosts, so one route may use the whole pool
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSize);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        // Only applies to requests that do not set their own timeouts
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(POOL_TIMEOUT)
+                .setConnectTimeout((int) keycloakConfig.getLong(CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT).longValue())
+                .setSocketTimeout((int) keycloakConfig.getLong(SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT).longValue())
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+                .disableCookieManagement();
+        String[] proxyMappings = keycloakConfig.getArray(PROXY_MAPPINGS);
+        if (proxyMappings != null && proxyMappings.length > 0) {
+            builder.setRoutePlanner(new ProxyMappingsAwareRoutePlanner(ProxyMappings.valueOf(proxyMappings)));
+        }
+        this.httpClient = builder.build();
+    }
+
+    /**
+     * @param truststoreProvider Keycloak's truststore, or null to use the JDK's
+     */
+    public static TwitchHttpClient create(Config.Scope config, TruststoreProvider truststoreProvider) {
+        int poolSize = Math.max(1, config.getInt(POOL_SIZE, DEFAULT_POOL_SIZE));
+        long idleTimeout = Math.max(1, config.getLong(POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT));
+        long keepAlive = Math.max(1, config.getLong(KEEP_ALIVE, DEFAULT_KEEP_ALIVE));
+        logger.debugf("Creating Twitch HTTP client with a pool of %d connections", poolSize);
+
+        TwitchHttpClient client = new TwitchHttpClient(poolSize, idleTimeout, keepAlive,
+                Config.scope(HTTP_CLIENT_SPI, "default"), truststoreProvider);
+        client.meters = TwitchMetrics.registerConnectionPool(client.connectionManager);
+        return client;
+    }
+
+    private static SSLConnectionSocketFactory sslSocketFactory(Config.Scope keycloakConfig, TruststoreProvider truststoreProvider) {
+        try {
+            SSLContextBuilder sslContext = SSLContexts.custom();
+            HostnameVerifier hostnameVerifier = new DefaultHostnameVerifier();
+            if (keycloakConfig.getBoolean(DISABLE_TRUST_MANAGER, false)) {
+                sslContext.loadTrustMaterial(TrustAllStrategy.INSTANCE);
+                hostnameVerifier = NoopHostnameVerifier.INSTANCE;
+            } else if (truststoreProvider != null && truststoreProvider.getTruststore() != null) {
+                sslContext.loadTrustMaterial(truststoreProvider.getTruststore(), null);
+                if (truststoreProvider.getPolicy() == HostnameVerificationPolicy.ANY) {
+                    hostnameVerifier = NoopHostnameVerifier.INSTANCE;
+                }
+            }
+            String keystore = keycloakConfig.get(CLIENT_KEYSTORE);
+            if (keystore != null) {
+                KeyStore clientKeystore = KeystoreUtil.loadKeyStore(keystore, keycloakConfig.get(CLIENT_KEYSTORE_PASSWORD));
+                String keyPassword = keycloakConfig.get(CLIENT_KEY_PASSWORD);
+                sslContext.loadKeyMaterial(clientKeystore, keyPassword != null ? keyPassword.toCharArray() : null);
+            }
+            return new SSLConnectionSocketFactory(sslContext.build(), hostnameVerifier);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not set up TLS for the Twitch HTTP client", e);
+        }
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public void close() {
+        TwitchMetrics.remove(meters);
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close Twitch HTTP client", e);
+        }
+    }
+}
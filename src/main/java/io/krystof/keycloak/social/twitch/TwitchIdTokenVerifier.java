@@ -0,0 +1,108 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * Verifies Twitch id_tokens locally against the cached Twitch JWKS.
+ */
+public class TwitchIdTokenVerifier {
+
+    private static final String ALGORITHM = "RS256";
+    private static final int ALLOWED_CLOCK_SKEW = 30;
+
+    private final TwitchJwksCache jwksCache;
+
+    public TwitchIdTokenVerifier(TwitchJwksCache jwksCache) {
+        this.jwksCache = jwksCache;
+    }
+
+    /**
+     * Checks the signature, issuer, audience and lifetime of the id_token.
+     *
+     * @return the verified claims
+     * @throws IdentityBrokerException if the token is not a valid Twitch id_token for this client
+     */
+    public JsonNode verify(String idToken, TwitchIdentityProviderConfig config) {
+        JWSInput jws;
+        try {
+            jws = new JWSInput(idToken);
+        } catch (JWSInputException e) {
+            throw new IdentityBrokerException("Invalid id_token from Twitch", e);
+        }
+
+        String algorithm = jws.getHeader().getRawAlgorithm();
+        if (!ALGORITHM.equals(algorithm)) {
+            throw new IdentityBrokerException("Unsupported id_token signature algorithm from Twitch: " + algorithm);
+        }
+
+        PublicKey key;
+        try {
+            key = jwksCache.getKey(jws.getHeader().getKeyId(), config);
+        } catch (IOException e) {
+            throw new IdentityBrokerException("Could not fetch Twitch signing keys", e);
+        }
+        if (key == null) {
+            throw new IdentityBrokerException("No Twitch signing key found for id_token key id " + jws.getHeader().getKeyId());
+        }
+        if (!verifySignature(jws, key)) {
+            throw new IdentityBrokerException("Invalid id_token signature from Twitch");
+        }
+
+        JsonNode claims;
+        try {
+            claims = JsonSerialization.mapper.readTree(jws.getContent());
+        } catch (IOException e) {
+            throw new IdentityBrokerException("Invalid id_token claims from Twitch", e);
+        }
+
+        if (!config.getIssuer().equals(claims.path("iss").asText())) {
+            throw new IdentityBrokerException("Unexpected id_token issuer from Twitch: " + claims.path("iss").asText());
+        }
+        if (!hasAudience(claims.path("aud"), config.getClientId())) {
+            throw new IdentityBrokerException("id_token from Twitch was not issued for this client");
+        }
+        long now = Time.currentTime();
+        if (claims.path("exp").asLong(0) + ALLOWED_CLOCK_SKEW < now) {
+            throw new IdentityBrokerException("Expired id_token from Twitch");
+        }
+        if (claims.path("iat").asLong(0) - ALLOWED_CLOCK_SKEW > now) {
+            throw new IdentityBrokerException("id_token from Twitch was issued in the future");
+        }
+
+        return claims;
+    }
+
+    private static boolean verifySignature(JWSInput jws, PublicKey key) {
+        try {
+            Signature verifier = Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(key);
+            verifier.update(jws.getEncodedSignatureInput().getBytes(StandardCharsets.US_ASCII));
+            return verifier.verify(jws.getSignature());
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasAudience(JsonNode audience, String clientId) {
+        if (audience.isArray()) {
+            for (JsonNode value : audience) {
+                if (value.asText().equals(clientId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return audience.asText().equals(clientId);
+    }
+}
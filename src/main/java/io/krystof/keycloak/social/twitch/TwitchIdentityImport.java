@@ -0,0 +1,492 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links existing users to their Twitch accounts ahead of their first Twitch login, from a file of records.
+ * <p>
+ * Each line is either CSV, {@code user,twitch} with columns quoted as in RFC 4180 where they contain commas, or an
+ * NDJSON object with {@code user} and {@code twitchId} or {@code twitchLogin}. The user is a username, email or user id. A CSV Twitch value of digits only is an id,
+ * anything else a login. Blank lines, lines starting with {@code #} and a {@code user,twitch} header are skipped.
+ * <p>
+ * The file is read as a stream and cut into batches of {@link TwitchIdentityProvider#HELIX_USERS_MAX_IDS} records.
+ * Each batch is resolved with one Helix request on the shared app access token and linked in a transaction of its
+ * own, several batches at a time. Users that are already linked are skipped, so an import can be repeated.
+ * A Twitch account is linked to one user only, also when its records end up in batches linked at the same time.
+ * The checkpoint is the number of records up to which all batches committed; an interrupted import is resumed by
+ * starting it again with that offset. Imports run one at a time per IdP on this node; progress is kept in memory.
+ */
+public class TwitchIdentityImport {
+
+    private static final Logger logger = Logger.getLogger(TwitchIdentityImport.class);
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int MAX_PARALLELISM = 16;
+
+    private static final int MAX_ERRORS = 100;
+
+    private final TwitchIdentityProviderFactory providerFactory;
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private KeycloakSessionFactory sessionFactory;
+
+    public TwitchIdentityImport(TwitchIdentityProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "twitch-identity-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Starts importing the file, which is deleted once the import ends, unless an import of the IdP is in progress.
+     *
+     * @param offset the number of records to skip, e.g. the checkpoint of an interrupted import
+     * @param parallelism the number of batches linked at a time
+     * @return the status of the new import, or null if one is already in progress
+     */
+    public Status start(String realmId, String alias, Path file, long offset, int parallelism) {
+        Status status = new Status(Math.max(0, offset));
+        Status current = statuses.compute(key(realmId, alias),
+                (key, previous) -> previous != null && !previous.isFinished() ? previous : status);
+        if (current != status) {
+            return null;
+        }
+        int threads = Math.min(Math.max(1, parallelism), MAX_PARALLELISM);
+        executor.execute(() -> run(realmId, alias, file, threads, status));
+        return status;
+    }
+
+    /**
+     * @return the status of the last import of the IdP on this node, or null if there was none
+     */
+    public Status getStatus(String realmId, String alias) {
+        return statuses.get(key(realmId, alias));
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void run(String realmId, String alias, Path file, int parallelism, Status status) {
+        status.startedAt = System.currentTimeMillis();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, TwitchThreads.factory("twitch-identity-import-"));
+        // Bounds the records read ahead of the batches being linked
+        Semaphore pending = new Semaphore(parallelism * 2);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<Record> batch = new ArrayList<>(TwitchIdentityProvider.HELIX_USERS_MAX_IDS);
+            long records = 0;
+            int batches = 0;
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+                lineNumber++;
+                Record record = Record.parse(line, lineNumber);
+                if (record == null || ++records <= status.offset) {
+                    continue;
+                }
+                batch.add(record);
+                if (batch.size() == TwitchIdentityProvider.HELIX_USERS_MAX_IDS) {
+                    submit(workers, pending, realmId, alias, batches++, batch, status);
+                    batch = new ArrayList<>(TwitchIdentityProvider.HELIX_USERS_MAX_IDS);
+                }
+            }
+            if (!batch.isEmpty()) {
+                submit(workers, pending, realmId, alias, batches, batch, status);
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Interrupted");
+            }
+            logger.infof("Twitch identity import of IdP %s finished: %d records, %d linked, checkpoint %d",
+                    alias, status.records.get(), status.linked.get(), status.checkpoint);
+        } catch (IOException | RuntimeException e) {
+            status.error = e.getMessage();
+            logger.warnf(e, "Twitch identity import of IdP %s failed", alias);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status.error = "Interrupted";
+        } finally {
+            workers.shutdownNow();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.warnf("Could not delete Twitch identity import file %s", file);
+            }
+            status.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void submit(ExecutorService workers, Semaphore pending, String realmId, String alias, int index,
+                        List<Record> batch, Status status) throws InterruptedException {
+        pending.acquire();
+        workers.execute(() -> {
+            Map<String, String> claims = new HashMap<>();
+            try {
+                Map<String, JsonNode> byId = fetch(realmId, alias, batch);
+                Map<Result, List<Record>> results = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> link(session, realmId, alias, batch, byId, status, claims));
+                status.completed(index, batch.size(), results);
+            } catch (RuntimeException e) {
+                // The checkpoint stops before this batch; a resumed import links it
+                claims.forEach(status.claims::remove);
+                status.failed(index, batch, e);
+                logger.warnf(e, "Linking Twitch identities of lines %d to %d failed",
+                        batch.get(0).line, batch.get(batch.size() - 1).line);
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    /**
+     * Looks up the batch's Twitch accounts in Helix, outside of the transaction that links them.
+     *
+     * @return the Helix users found, by id
+     */
+    private Map<String, JsonNode> fetch(String realmId, String alias, List<Record> batch) {
+        Set<String> ids = new LinkedHashSet<>();
+        Set<String> logins = new LinkedHashSet<>();
+        for (Record record : batch) {
+            if (record.twitchId != null) {
+                ids.add(record.twitchId);
+            } else if (record.twitchLogin != null) {
+                logins.add(record.twitchLogin);
+            }
+        }
+        return TwitchHelixResync.fetchHelixUsers(sessionFactory, providerFactory, realmId, alias,
+                new ArrayList<>(ids), new ArrayList<>(logins), true);
+    }
+
+    /**
+     * @param byId the batch's Helix users, by id
+     * @param claims collects the Twitch ids this batch claimed, with their user ids
+     */
+    private static Map<Result, List<Record>> link(KeycloakSession session, String realmId, String alias, List<Record> batch,
+                                                  Map<String, JsonNode> byId, Status status, Map<String, String> claims) {
+        RealmModel realm = TwitchHelixResync.realm(session, realmId, alias);
+        Map<String, JsonNode> byLogin = new HashMap<>();
+        byId.values().forEach(helixUser -> byLogin.put(helixUser.path("login").asText().toLowerCase(Locale.ROOT), helixUser));
+
+        Map<Result, List<Record>> results = new LinkedHashMap<>();
+        for (Record record : batch) {
+            results.computeIfAbsent(link(session, realm, alias, record, byId, byLogin, status.claims, claims),
+                    result -> new ArrayList<>()).add(record);
+        }
+        return results;
+    }
+
+    /**
+     * Links one record. Before linking, the Twitch id is claimed for the user in {@code importClaims}, which all
+     * batches of the import share: the database does not prevent linking one Twitch account to two users, and a
+     * concurrent batch's link is not visible before it commits.
+     */
+    static Result link(KeycloakSession session, RealmModel realm, String alias, Record record,
+                               Map<String, JsonNode> byId, Map<String, JsonNode> byLogin,
+                               Map<String, String> importClaims, Map<String, String> batchClaims) {
+        if (record.error != null) {
+            return Result.INVALID;
+        }
+        UserModel user = findUser(session, realm, record.user);
+        if (user == null) {
+            return Result.USER_NOT_FOUND;
+        }
+        JsonNode helixUser = record.twitchId != null ? byId.get(record.twitchId) : byLogin.get(record.twitchLogin);
+        if (helixUser == null) {
+            return Result.TWITCH_NOT_FOUND;
+        }
+        String twitchId = helixUser.path("id").asText();
+
+        FederatedIdentityModel existing = session.users().getFederatedIdentity(realm, user, alias);
+        if (existing != null) {
+            return twitchId.equals(existing.getUserId()) ? Result.ALREADY_LINKED : Result.CONFLICT;
+        }
+        String owner = importClaims.putIfAbsent(twitchId, user.getId());
+        if (owner != null) {
+            return owner.equals(user.getId()) ? Result.ALREADY_LINKED : Result.CONFLICT;
+        }
+        if (session.users().getUserByFederatedIdentity(realm, new FederatedIdentityModel(alias, twitchId, null)) != null) {
+            importClaims.remove(twitchId, user.getId());
+            return Result.CONFLICT;
+        }
+        batchClaims.put(twitchId, user.getId());
+        session.users().addFederatedIdentity(realm, user,
+                new FederatedIdentityModel(alias, twitchId, helixUser.path("login").asText(null)));
+        return Result.LINKED;
+    }
+
+    private static UserModel findUser(KeycloakSession session, RealmModel realm, String value) {
+        UserModel user = session.users().getUserByUsername(realm, value);
+        if (user == null && value.contains("@")) {
+            user = session.users().getUserByEmail(realm, value);
+        }
+        if (user == null) {
+            user = session.users().getUserById(realm, value);
+        }
+        return user;
+    }
+
+    private static String key(String realmId, String alias) {
+        return realmId + ":" + alias;
+    }
+
+    enum Result {
+        LINKED, ALREADY_LINKED, USER_NOT_FOUND, TWITCH_NOT_FOUND, CONFLICT, INVALID
+    }
+
+    /**
+     * One line of the file.
+     */
+    static final class Record {
+
+        final int line;
+        final String user;
+        final String twitchId;
+        final String twitchLogin;
+        final String error;
+
+        private Record(int line, String user, String twitchId, String twitchLogin, String error) {
+            this.line = line;
+            this.user = user;
+            this.twitchId = twitchId;
+            this.twitchLogin = twitchLogin != null ? twitchLogin.toLowerCase(Locale.ROOT) : null;
+            this.error = error;
+        }
+
+        /**
+         * @return the record, which may be invalid, or null for lines without one
+         */
+        static Record parse(String line, int number) {
+            String text = line.trim();
+            if (text.isEmpty() || text.startsWith("#")) {
+                return null;
+            }
+            if (text.startsWith("{")) {
+                try {
+                    JsonNode node = JsonSerialization.mapper.readTree(text);
+                    return of(number, node.path("user").asText(null), node.path("twitchId").asText(null),
+                            node.path("twitchLogin").asText(null));
+                } catch (IOException e) {
+                    return new Record(number, null, null, null, "invalid JSON");
+                }
+            }
+
+            List<String> columns = columns(text);
+            if (columns == null) {
+                return new Record(number, null, null, null, "unterminated quote");
+            }
+            if (columns.size() != 2) {
+                return new Record(number, null, null, null, "expected 2 columns, found " + columns.size());
+            }
+            String user = columns.get(0);
+            String twitch = columns.get(1);
+            if (user.equalsIgnoreCase("user") && twitch.equalsIgnoreCase("twitch")) {
+                return null;
+            }
+            boolean id = !twitch.isEmpty() && twitch.chars().allMatch(Character::isDigit);
+            return of(number, user, id ? twitch : null, id ? null : twitch);
+        }
+
+        private static Record of(int number, String user, String twitchId, String twitchLogin) {
+            if (user == null || user.isEmpty()) {
+                return new Record(number, null, null, null, "no user");
+            }
+            if ((twitchId == null || twitchId.isEmpty()) && (twitchLogin == null || twitchLogin.isEmpty())) {
+                return new Record(number, user, null, null, "no Twitch id or login");
+            }
+            if (twitchLogin != null && !twitchLogin.isEmpty() && !twitchLogin.matches("\\w{1,25}")) {
+                return new Record(number, user, null, null, "invalid Twitch login");
+            }
+            return new Record(number, user, emptyToNull(twitchId), emptyToNull(twitchLogin), null);
+        }
+
+        /**
+         * Splits a CSV line into trimmed columns. A column may be quoted, with {@code ""} for a quote, to contain
+         * commas; a column cannot span lines.
+         *
+         * @return the columns, or null if a quote is not closed
+         */
+        static List<String> columns(String line) {
+            List<String> columns = new ArrayList<>(2);
+            StringBuilder column = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"') {
+                        column.append(c);
+                    } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        column.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"' && column.toString().trim().isEmpty()) {
+                    column.setLength(0);
+                    quoted = true;
+                } else if (c == ',') {
+                    columns.add(column.toString().trim());
+                    column.setLength(0);
+                } else {
+                    column.append(c);
+                }
+            }
+            if (quoted) {
+                return null;
+            }
+            columns.add(column.toString().trim());
+            return columns;
+        }
+
+        private static String emptyToNull(String value) {
+            return value == null || value.isEmpty() ? null : value;
+        }
+    }
+
+    /**
+     * Progress of one import.
+     */
+    public static final class Status {
+
+        private final long offset;
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong linked = new AtomicLong();
+        private final AtomicLong alreadyLinked = new AtomicLong();
+        private final AtomicLong userNotFound = new AtomicLong();
+        private final AtomicLong twitchNotFound = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong invalid = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final List<String> errors = new ArrayList<>();
+        // Twitch ids linked or being linked by the import, with their user ids
+        private final Map<String, String> claims = new ConcurrentHashMap<>();
+        // Committed batches not yet covered by the checkpoint, by index
+        private final TreeMap<Integer, Integer> committed = new TreeMap<>();
+        private int nextBatch;
+        private volatile long checkpoint;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile String error;
+
+        Status(long offset) {
+            this.offset = offset;
+            this.checkpoint = offset;
+        }
+
+        public boolean isFinished() {
+            return finishedAt != 0;
+        }
+
+        synchronized void completed(int index, int size, Map<Result, List<Record>> results) {
+            records.addAndGet(size);
+            results.forEach((result, resultRecords) -> {
+                counter(result).addAndGet(resultRecords.size());
+                if (result != Result.LINKED && result != Result.ALREADY_LINKED) {
+                    resultRecords.forEach(record -> addError(record.line, record.error != null ? record.error : describe(result)));
+                }
+            });
+            committed.put(index, size);
+            while (committed.containsKey(nextBatch)) {
+                checkpoint += committed.remove(nextBatch++);
+            }
+        }
+
+        synchronized void failed(int index, List<Record> batch, RuntimeException e) {
+            records.addAndGet(batch.size());
+            failed.addAndGet(batch.size());
+            addError(batch.get(0).line, "batch failed: " + e.getMessage());
+        }
+
+        private AtomicLong counter(Result result) {
+            switch (result) {
+                case LINKED:
+                    return linked;
+                case ALREADY_LINKED:
+                    return alreadyLinked;
+                case USER_NOT_FOUND:
+                    return userNotFound;
+                case TWITCH_NOT_FOUND:
+                    return twitchNotFound;
+                case CONFLICT:
+                    return conflicts;
+                default:
+                    return invalid;
+            }
+        }
+
+        private static String describe(Result result) {
+            switch (result) {
+                case USER_NOT_FOUND:
+                    return "user not found";
+                case TWITCH_NOT_FOUND:
+                    return "Twitch user not found";
+                case CONFLICT:
+                    return "user or Twitch account already linked to another account";
+                default:
+                    return result.name();
+            }
+        }
+
+        private void addError(int line, String message) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("line " + line + ": " + message);
+            }
+        }
+
+        public synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("state", finishedAt != 0 ? (error != null ? "failed" : "finished") : startedAt != 0 ? "running" : "queued");
+            map.put("offset", offset);
+            map.put("checkpoint", checkpoint);
+            map.put("records", records.get());
+            map.put("linked", linked.get());
+            map.put("alreadyLinked", alreadyLinked.get());
+            map.put("userNotFound", userNotFound.get());
+            map.put("twitchNotFound", twitchNotFound.get());
+            map.put("conflicts", conflicts.get());
+            map.put("invalid", invalid.get());
+            map.put("failed", failed.get());
+            map.put("startedAt", startedAt);
+            map.put("finishedAt", finishedAt);
+            if (error != null) {
+                map.put("error", error);
+            }
+            map.put("errors", new ArrayList<>(errors));
+            return map;
+        }
+    }
+}
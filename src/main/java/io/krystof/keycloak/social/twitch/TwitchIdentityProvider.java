@@ -1,37 +1,60 @@
 package io.krystof.keycloak.social.twitch;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.jboss.logging.Logger;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.OAuthErrorException;
 import org.keycloak.broker.oidc.AbstractOAuth2IdentityProvider;
-import org.keycloak.broker.oidc.OAuth2IdentityProviderConfig;
-import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.oidc.OIDCIdentityProvider;
 import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.broker.provider.IdentityProvider.AuthenticationCallback;
 import org.keycloak.broker.provider.util.SimpleHttp;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriBuilder;
+import org.apache.http.client.HttpClient;
 import org.keycloak.broker.social.SocialIdentityProvider;
+import org.keycloak.events.Details;
+import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.ErrorResponseException;
+import org.keycloak.services.Urls;
+import org.keycloak.util.JsonSerialization;
+import org.keycloak.vault.VaultStringSecret;
 
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * Twitch Identity Provider implementation for Keycloak
  * This implementation handles Twitch's specific requirements for OpenID Connect,
  * particularly the need to specifically request email claims and convert scope arrays to strings.
  */
-public class TwitchIdentityProvider extends AbstractOAuth2IdentityProvider<OAuth2IdentityProviderConfig>
-        implements SocialIdentityProvider<OAuth2IdentityProviderConfig> {
+public class TwitchIdentityProvider extends AbstractOAuth2IdentityProvider<TwitchIdentityProviderConfig>
+        implements SocialIdentityProvider<TwitchIdentityProviderConfig> {
 
     private static final Logger logger = Logger.getLogger(TwitchIdentityProvider.class);
     
@@ -40,81 +63,129 @@ public class TwitchIdentityProvider extends AbstractOAuth2IdentityProvider<OAuth
     public static final String PROFILE_URL = "https://id.twitch.tv/oauth2/userinfo";
     public static final String DEFAULT_SCOPE = "openid user:read:email";
 
-    public TwitchIdentityProvider(KeycloakSession session, OAuth2IdentityProviderConfig config) {
-        super(session, config);
-        
-        // Set default endpoints if they're not configured
-        if (config.getAuthorizationUrl() == null || config.getAuthorizationUrl().isEmpty()) {
-            config.setAuthorizationUrl(AUTH_URL);
-        }
-        if (config.getTokenUrl() == null || config.getTokenUrl().isEmpty()) {
-            config.setTokenUrl(TOKEN_URL);
-        }
-        if (config.getUserInfoUrl() == null || config.getUserInfoUrl().isEmpty()) {
-            config.setUserInfoUrl(PROFILE_URL);
-        }
-        
-        // Ensure we have the required scopes
-        if (config.getDefaultScope() == null || config.getDefaultScope().isEmpty()) {
-            config.setDefaultScope(DEFAULT_SCOPE);
-        }
+    // Helix accepts at most this many ids per /users request
+    public static final int HELIX_USERS_MAX_IDS = 100;
+
+    // Twitch only returns email and picture claims when they are requested explicitly
+    static final String CLAIMS = "{\"id_token\":{\"email\":null,\"email_verified\":null,\"picture\":null,\"preferred_username\":null},"
+            + "\"userinfo\":{\"email\":null,\"email_verified\":null,\"picture\":null,\"preferred_username\":null}}";
+
+    // Claims the identity needs; if the id_token lacks any of them the userinfo endpoint is called
+    private static final String[] REQUIRED_ID_TOKEN_CLAIMS = { "sub", "preferred_username", "email" };
+
+    // Fallback paths, as reported to metrics
+    private static final String USERNAME_FROM_PREFERRED_USERNAME = "preferred_username";
+    private static final String USERNAME_FROM_EMAIL_PREFIX = "email_prefix";
+    private static final String USERNAME_FROM_SUB = "sub";
+    private static final String IDENTITY_FROM_ID_TOKEN = "id_token";
+    private static final String IDENTITY_FROM_USERINFO = "userinfo";
+    private static final String IDENTITY_FROM_USERINFO_FALLBACK = "userinfo_fallback";
+
+    private final TwitchConfigSnapshot snapshot;
+    private final TwitchIdTokenVerifier idTokenVerifier;
+    private final TwitchResilience resilience;
+    private final HttpClient httpClient;
+    private final TwitchTokenRefresher tokenRefresher;
+    private final TwitchAppTokens appTokens;
+    private final TwitchEnrichmentQueue enrichmentQueue;
+    private final TwitchLoginExecutor loginExecutor;
+    private final TwitchDiagnostics diagnostics;
+
+    // Set when Keycloak's callback endpoint sends a PKCE token request with its own client, to time the code exchange
+    private long tokenRequestStartNanos;
+    private TwitchFlightRecorder.PhaseEvent tokenRequestEvent;
+
+    /**
+     * Creates the per-request view of a Twitch identity provider; default endpoints and scope are applied
+     * by the {@link TwitchConfigSnapshot}.
+     */
+    public TwitchIdentityProvider(KeycloakSession session, TwitchConfigSnapshot snapshot,
+                                  TwitchIdTokenVerifier idTokenVerifier, HttpClient httpClient,
+                                  TwitchTokenRefresher tokenRefresher, TwitchAppTokens appTokens,
+                                  TwitchEnrichmentQueue enrichmentQueue, TwitchLoginExecutor loginExecutor) {
+        super(session, snapshot.getConfig());
+        this.snapshot = snapshot;
+        this.idTokenVerifier = idTokenVerifier;
+        this.resilience = snapshot.getResilience();
+        this.httpClient = httpClient;
+        this.tokenRefresher = tokenRefresher;
+        this.appTokens = appTokens;
+        this.enrichmentQueue = enrichmentQueue;
+        this.loginExecutor = loginExecutor;
+        this.diagnostics = TwitchDiagnostics.forRequest(snapshot.getConfig().getAlias(),
+                snapshot.getDiagnosticsLevel(), snapshot.getDiagnosticsSampleRate());
     }
 
     @Override
     protected String getDefaultScopes() {
-        return DEFAULT_SCOPE;
+        return snapshot.getScope();
     }
     
     @Override
     protected UriBuilder createAuthorizationUrl(AuthenticationRequest request) {
-        logger.infof("Creating authorization URL for Twitch provider. State: %s, Redirect URI: %s", 
-                     request.getState().getEncoded(), request.getRedirectUri());
-        
-        UriBuilder uriBuilder = super.createAuthorizationUrl(request);
-        logger.debugf("Base authorization URL from parent: %s", uriBuilder.build().toString());
-        
-        // Add Twitch-specific claims parameter for requesting email
-        try {
-            String claimsJson = "{\"id_token\":{\"email\":null,\"email_verified\":null},\"userinfo\":{\"email\":null,\"email_verified\":null,\"picture\":null,\"preferred_username\":null}}";
-            String encodedClaims = URLEncoder.encode(claimsJson, StandardCharsets.UTF_8.toString());
-            
-            logger.infof("Adding claims parameter to Twitch authorization URL with value: %s", encodedClaims);
-            UriBuilder finalBuilder = uriBuilder.queryParam("claims", encodedClaims);
-            logger.debugf("Final Twitch authorization URL: %s", finalBuilder.build().toString());
-            
-            return finalBuilder;
-        } catch (Exception e) {
-            logger.errorf(e, "Error creating authorization URL for Twitch provider");
-            throw new IdentityBrokerException("Could not create authorization URL for Twitch provider", e);
-        }
+        return timed(TwitchMetrics.realmName(session), getConfig().getAlias(), TwitchMetrics.PHASE_AUTHORIZATION_URL, () -> {
+            if (diagnostics.isSummaryEnabled()) {
+                diagnostics.summary("Creating authorization URL, redirect URI: %s", request.getRedirectUri());
+            }
+
+            UriBuilder uriBuilder = super.createAuthorizationUrl(request);
+
+            // Add Twitch-specific claims parameter for requesting email
+            try {
+                UriBuilder finalBuilder = uriBuilder.queryParam("claims", snapshot.getClaimsParameter());
+                if (diagnostics.isTraceEnabled()) {
+                    diagnostics.trace("Authorization URL: %s", finalBuilder.build());
+                }
+                return finalBuilder;
+            } catch (Exception e) {
+                logger.errorf(e, "Error creating authorization URL for Twitch provider");
+                throw new IdentityBrokerException("Could not create authorization URL for Twitch provider", e);
+            }
+        });
+    }
+
+    @Override
+    public Object callback(RealmModel realm, AuthenticationCallback callback, EventBuilder event) {
+        return new TwitchCallbackEndpoint(callback, realm, event);
     }
 
     @Override
     public SimpleHttp authenticateTokenRequest(SimpleHttp tokenRequest) {
-        logger.infof("Authenticating token request to: %s", tokenRequest.getUrl());
-        return super.authenticateTokenRequest(tokenRequest);
+        if (diagnostics.isSummaryEnabled()) {
+            diagnostics.summary("Authenticating token request to: %s", tokenRequest.getUrl());
+        }
+        SimpleHttp guarded = resilience.beforeTokenRequest(tokenRequest);
+        try {
+            return super.authenticateTokenRequest(guarded);
+        } catch (RuntimeException e) {
+            // Never sent, so the breaker permit goes back
+            resilience.onTokenRequestAbandoned();
+            throw e;
+        }
     }
 
     @Override
     protected BrokeredIdentityContext extractIdentityFromProfile(EventBuilder event, JsonNode profile) {
-        logger.infof("Extracting identity from Twitch profile");
-        
-        // Debug each field in the profile JSON
-        logger.info("Twitch profile data:");
-        Iterator<Map.Entry<String, JsonNode>> fields = profile.fields();
-        while (fields.hasNext()) {
-            Map.Entry<String, JsonNode> field = fields.next();
-            logger.infof("  %s: %s", field.getKey(), field.getValue().toString());
+        return timed(TwitchMetrics.realmName(session), getConfig().getAlias(), TwitchMetrics.PHASE_PROFILE_EXTRACTION,
+                () -> extractIdentity(profile));
+    }
+
+    private BrokeredIdentityContext extractIdentity(JsonNode profile) {
+        if (diagnostics.isTraceEnabled()) {
+            diagnostics.trace("Twitch profile data:");
+            Iterator<Map.Entry<String, JsonNode>> fields = profile.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                diagnostics.trace("  %s: %s", field.getKey(), field.getValue());
+            }
         }
         
         String subjectId = getJsonProperty(profile, "sub");
-        logger.infof("Subject ID from profile: %s", subjectId);
-        
         BrokeredIdentityContext user = new BrokeredIdentityContext(subjectId, getConfig());
 
         // Set mandatory fields
         String username = getJsonProperty(profile, "preferred_username");
-        logger.infof("Username from profile: %s", username);
+        String usernameSource = USERNAME_FROM_PREFERRED_USERNAME;
         
         // If preferred_username is not available, use email or sub
         if (username == null || username.isEmpty()) {
@@ -122,11 +193,11 @@ public class TwitchIdentityProvider extends AbstractOAuth2IdentityProvider<OAuth
             if (email != null && !email.isEmpty()) {
                 // Use the part before @ as username
                 username = email.split("@")[0];
-                logger.infof("Using email prefix as username: %s", username);
+                usernameSource = USERNAME_FROM_EMAIL_PREFIX;
             } else {
                 // Use sub as last resort
                 username = subjectId;
-                logger.infof("Using subject ID as username: %s", username);
+                usernameSource = USERNAME_FROM_SUB;
             }
         }
         
@@ -134,197 +205,819 @@ public class TwitchIdentityProvider extends AbstractOAuth2IdentityProvider<OAuth
         user.setIdp(this);
 
         // Set optional fields if available
+        Set<String> profileFields = snapshot.getProfileFields();
         String email = getJsonProperty(profile, "email");
         if (email != null) {
-            logger.infof("Email from profile: %s", email);
             user.setEmail(email);
             
             // Set email verification status if available
             Boolean emailVerified = getBooleanProperty(profile, "email_verified");
-            if (emailVerified != null) {
-                logger.infof("Email verified status: %s", emailVerified);
+            if (emailVerified != null && TwitchProfiles.isRetained(profileFields, "email_verified")) {
                 user.setUserAttribute("email_verified", emailVerified.toString());
             }
-        } else {
-            logger.infof("No email found in profile");
         }
 
         // Add profile picture if available
         String picture = getJsonProperty(profile, "picture");
-        if (picture != null) {
-            logger.infof("Profile picture URL found: %s", picture);
+        if (picture != null && TwitchProfiles.isRetained(profileFields, "picture")) {
             user.setUserAttribute("picture", picture);
         }
 
-        // Add all available profile data as attributes
-        AbstractJsonUserAttributeMapper.storeUserProfileForMapper(user, profile, getConfig().getAlias());
-        
-        // Log all user attributes that were set
-        logger.info("User attributes set from Twitch profile:");
-        for (Map.Entry<String, List<String>> attr : user.getAttributes().entrySet()) {
-            logger.infof("  %s: %s", attr.getKey(), attr.getValue());
+        // Keep the allowed profile data for mappers
+        TwitchProfiles.store(user, profile, profileFields, getConfig().isCompactProfile(), getConfig().getAlias());
+
+        if (diagnostics.isSummaryEnabled()) {
+            diagnostics.summary("Extracted identity for subject %s, username %s (from %s)", subjectId, username, usernameSource);
         }
-        
-        logger.infof("Completed extracting identity from Twitch profile");
+        if (diagnostics.isTraceEnabled()) {
+            diagnostics.trace("User attributes set from Twitch profile:");
+            for (Map.Entry<String, List<String>> attr : user.getAttributes().entrySet()) {
+                diagnostics.trace("  %s: %s", attr.getKey(), attr.getValue());
+            }
+        }
+
+        TwitchMetrics.recordUsernameSource(TwitchMetrics.realmName(session), getConfig().getAlias(), usernameSource);
 
         return user;
     }
 
     @Override
     protected BrokeredIdentityContext doGetFederatedIdentity(String accessToken) {
-        // Mask most of the token for logging
-        String maskedToken = "...";
-        if (accessToken != null && accessToken.length() > 8) {
-            maskedToken = accessToken.substring(0, 4) + "..." + accessToken.substring(accessToken.length() - 4);
+        if (diagnostics.isSummaryEnabled()) {
+            diagnostics.summary("Calling Twitch userinfo endpoint %s with access token %s",
+                    getConfig().getUserInfoUrl(), TwitchDiagnostics.mask(accessToken));
         }
-        logger.infof("Getting federated identity from Twitch with access token: %s", maskedToken);
         
+        TwitchProfileCache profileCache = snapshot.getProfileCache();
+        JsonNode profile = profileCache != null ? profileCache.get(session, accessToken) : null;
+        if (profile == null) {
+            profile = fetchProfile(accessToken);
+            if (profileCache != null) {
+                profileCache.put(session, accessToken, profile);
+            }
+        } else if (diagnostics.isSummaryEnabled()) {
+            diagnostics.summary("Using cached Twitch profile");
+        }
+        return extractIdentityFromProfile(null, profile);
+    }
+
+    /**
+     * Fetches the userinfo profile, enriched from Helix if enabled. The user's Helix entry is looked up at the
+     * same time as userinfo, both on the login executor and within the login fetch deadline. If userinfo fails
+     * or misses the deadline, the Helix lookup is cancelled and the login fails; a failed or late Helix lookup
+     * only leaves the profile unenriched. When the login executor has no room for both calls, they are made one
+     * after the other on the request thread.
+     * <p>
+     * The token is not validated at the same time: broker login never calls Twitch's validate endpoint, as the
+     * token has just been issued by the code exchange, so there is no validate round trip to overlap.
+     */
+    protected JsonNode fetchProfile(String accessToken) {
+        String realm = TwitchMetrics.realmName(session);
+        String alias = getConfig().getAlias();
+        if (loginExecutor == null || !getConfig().isHelixEnrichment() || isAsyncEnrichment()) {
+            return enrichProfile(fetchUserInfo(accessToken, realm, alias), accessToken);
+        }
+        if (!loginExecutor.tryReserve(2)) {
+            if (diagnostics.isSummaryEnabled()) {
+                diagnostics.summary("Login executor saturated, fetching userinfo and Helix user one after the other");
+            }
+            return enrichProfile(fetchUserInfo(accessToken, realm, alias), accessToken);
+        }
+        long deadlineMillis = getConfig().getLoginFetchDeadline();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        // The tasks must not use the request's session, which is not thread-safe, hence the realm and alias.
+        // Without ids, Helix returns the user of the access token, so the lookup need not wait for the subject.
+        Future<JsonNode> helixLookup = loginExecutor.start(() -> fetchHelixUser(null, accessToken, realm, alias));
+        Future<JsonNode> userInfo = loginExecutor.start(() -> fetchUserInfo(accessToken, realm, alias));
+
+        JsonNode profile;
         try {
-            logger.debugf("Calling Twitch userinfo endpoint: %s", getConfig().getUserInfoUrl());
-            JsonNode profile = SimpleHttp.doGet(getConfig().getUserInfoUrl(), session)
-                .header("Authorization", "Bearer " + accessToken)
-                .asJson();
-            
-            logger.infof("Successfully retrieved profile from Twitch");
-            return extractIdentityFromProfile(null, profile);
-        } catch (IOException e) {
+            profile = userInfo.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            helixLookup.cancel(true);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IdentityBrokerException("Could not obtain user profile from Twitch", e.getCause());
+        } catch (TimeoutException e) {
+            userInfo.cancel(true);
+            helixLookup.cancel(true);
+            throw new IdentityBrokerException("No user profile from Twitch within " + deadlineMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            userInfo.cancel(true);
+            helixLookup.cancel(true);
+            throw new IdentityBrokerException("Interrupted while obtaining user profile from Twitch", e);
+        }
+
+        String subject = profile.path("sub").asText(null);
+        try {
+            JsonNode helixUser = helixLookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (helixUser == null || subject == null || !subject.equals(helixUser.path("id").asText()) || !profile.isObject()) {
+                return profile;
+            }
+            if (diagnostics.isSummaryEnabled()) {
+                diagnostics.summary("Enriched Twitch profile from Helix users");
+            }
+            return mergeHelixUser(profile, helixUser);
+        } catch (ExecutionException e) {
+            logger.warnf("Could not enrich Twitch profile of %s from Helix: %s", subject, e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            helixLookup.cancel(true);
+            logger.warnf("Could not enrich Twitch profile of %s from Helix: no answer within %d ms", subject, deadlineMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            helixLookup.cancel(true);
+        }
+        return profile;
+    }
+
+    /**
+     * Calls the Twitch userinfo endpoint through the resilience layer, recording its latency. Does not use the
+     * session, so that it can run on the login executor.
+     *
+     * @param realm the realm name, for metrics
+     */
+    protected JsonNode fetchUserInfo(String accessToken, String realm, String alias) {
+        try {
+            return timed(realm, alias, TwitchMetrics.PHASE_USERINFO, () -> resilience.execute(TwitchEndpoint.USERINFO,
+                    () -> TwitchSimpleHttp.doGet(getConfig().getUserInfoUrl(), httpClient)
+                            .header("Authorization", "Bearer " + accessToken),
+                    response -> {
+                        int status = response.getStatus();
+                        if (status < 200 || status >= 300) {
+                            throw new IdentityBrokerException("Could not obtain user profile from Twitch, status " + status);
+                        }
+                        return response.asJson();
+                    }));
+        } catch (IOException | IdentityBrokerException e) {
             logger.errorf(e, "Failed to obtain user profile from Twitch");
+            if (e instanceof IdentityBrokerException) {
+                throw (IdentityBrokerException) e;
+            }
             throw new IdentityBrokerException("Could not obtain user profile from Twitch", e);
         }
     }
     
+    /**
+     * Adds the user's Helix {@code /users} entry to the profile, if Helix enrichment is enabled. Fields the
+     * profile already has are kept. Enrichment is best effort: when Helix fails, the profile is used as it is.
+     *
+     * @return a merged copy of the profile, or the profile itself
+     */
+    protected JsonNode enrichProfile(JsonNode profile, String accessToken) {
+        String subject = profile.path("sub").asText(null);
+        if (!getConfig().isHelixEnrichment() || isAsyncEnrichment() || subject == null || !profile.isObject()) {
+            return profile;
+        }
+        try {
+            JsonNode helixUser = fetchHelixUser(subject, accessToken, TwitchMetrics.realmName(session), getConfig().getAlias());
+            if (helixUser == null) {
+                return profile;
+            }
+            if (diagnostics.isSummaryEnabled()) {
+                diagnostics.summary("Enriched Twitch profile from Helix users");
+            }
+            return mergeHelixUser(profile, helixUser);
+        } catch (IdentityBrokerException e) {
+            logger.warnf("Could not enrich Twitch profile of %s from Helix: %s", subject, e.getMessage());
+            return profile;
+        }
+    }
+
+    @Override
+    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, BrokeredIdentityContext context) {
+        super.importNewUser(session, realm, user, context);
+        if (isAsyncEnrichment()) {
+            enrichmentQueue.enqueue(session, realm, user, getConfig().getAlias());
+        }
+    }
+
+    @Override
+    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, BrokeredIdentityContext context) {
+        super.updateBrokeredUser(session, realm, user, context);
+        if (isAsyncEnrichment()) {
+            enrichmentQueue.enqueue(session, realm, user, getConfig().getAlias());
+        }
+    }
+
+    /**
+     * Looks up a Helix user with the user's access token. Does not use the session, so that it can run on the
+     * login executor.
+     *
+     * @param subject the Twitch user id, or null for the user of the access token
+     * @param realm the realm name, for metrics
+     * @return the user, or null if Helix does not know it
+     */
+    protected JsonNode fetchHelixUser(String subject, String accessToken, String realm, String alias) {
+        Map<String, JsonNode> users = fetchHelixUsers(subject != null ? List.of(subject) : List.of(), List.of(),
+                accessToken, false, realm, alias);
+        return subject != null ? users.get(subject) : users.values().stream().findFirst().orElse(null);
+    }
+
+    private boolean isAsyncEnrichment() {
+        return enrichmentQueue != null && getConfig().isHelixEnrichment() && getConfig().isAsyncEnrichment();
+    }
+
+    /**
+     * Looks up Helix users by id and by login with the shared app access token.
+     *
+     * @param ids Twitch user ids
+     * @param logins Twitch logins; at most {@link #HELIX_USERS_MAX_IDS} ids and logins together
+     * @return the users found, by id, or null if no app access token is usable yet
+     * @throws IdentityBrokerException if Helix could not be reached or rejected the request
+     */
+    public Map<String, JsonNode> fetchHelixUsers(List<String> ids, List<String> logins) {
+        String appToken = getAppToken();
+        if (appToken == null) {
+            return null;
+        }
+        return fetchHelixUsers(ids, logins, appToken, true, TwitchMetrics.realmName(session), getConfig().getAlias());
+    }
+
+    /**
+     * Only uses the session when an app access token is rejected, so that user token lookups can run on the
+     * login executor.
+     *
+     * @param realm the realm name, for metrics
+     */
+    private Map<String, JsonNode> fetchHelixUsers(List<String> ids, List<String> logins, String token, boolean appToken,
+                                                  String realm, String alias) {
+        if (ids.size() + logins.size() > HELIX_USERS_MAX_IDS) {
+            throw new IllegalArgumentException("At most " + HELIX_USERS_MAX_IDS + " ids and logins per Helix users request");
+        }
+        StringBuilder url = new StringBuilder(getConfig().getHelixUrl()).append("/users");
+        // Repeated parameters, which SimpleHttp.param() cannot express
+        for (String id : ids) {
+            url.append(url.indexOf("?") < 0 ? '?' : '&').append("id=").append(URLEncoder.encode(id, StandardCharsets.UTF_8));
+        }
+        for (String login : logins) {
+            url.append(url.indexOf("?") < 0 ? '?' : '&').append("login=").append(URLEncoder.encode(login, StandardCharsets.UTF_8));
+        }
+
+        try {
+            return timed(realm, alias, TwitchMetrics.PHASE_HELIX_USERS, () -> resilience.execute(TwitchEndpoint.HELIX_USERS,
+                    () -> TwitchSimpleHttp.doGet(url.toString(), httpClient)
+                            .header("Authorization", "Bearer " + token)
+                            .header("Client-Id", getConfig().getClientId()),
+                    response -> {
+                        int status = response.getStatus();
+                        if (status == 401 && appToken) {
+                            onAppTokenRejected(token);
+                        }
+                        if (status < 200 || status >= 300) {
+                            throw new IdentityBrokerException("Could not obtain users from Twitch Helix, status " + status);
+                        }
+                        Map<String, JsonNode> byId = new HashMap<>();
+                        for (JsonNode user : response.asJson().path("data")) {
+                            byId.put(user.path("id").asText(), user);
+                        }
+                        return byId;
+                    }));
+        } catch (IOException | IdentityBrokerException e) {
+            if (e instanceof IdentityBrokerException) {
+                throw (IdentityBrokerException) e;
+            }
+            throw new IdentityBrokerException("Could not obtain users from Twitch Helix", e);
+        }
+    }
+
+    /**
+     * Copies the profile and adds the fields of the Helix user that it lacks. Cached profiles are shared,
+     * so they are never modified in place.
+     */
+    public static ObjectNode mergeHelixUser(JsonNode profile, JsonNode helixUser) {
+        ObjectNode merged = profile.deepCopy();
+        Iterator<Map.Entry<String, JsonNode>> fields = helixUser.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!merged.has(field.getKey())) {
+                merged.set(field.getKey(), field.getValue());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return the secret EventSub notifications are signed with, resolved from the vault, or null if EventSub is not configured
+     */
+    public String getEventSubSecret() {
+        String secret = getConfig().getEventSubSecret();
+        if (secret == null) {
+            return null;
+        }
+        try (VaultStringSecret vaultSecret = session.vault().getStringSecret(secret)) {
+            return vaultSecret.get().orElse(secret);
+        }
+    }
+
+    /**
+     * Drops the cached profiles and token validations of the Twitch user, e.g. after Twitch reported a change.
+     */
+    public void invalidateCachedUser(String twitchUserId) {
+        TwitchProfileCache profileCache = snapshot.getProfileCache();
+        if (profileCache != null) {
+            profileCache.invalidateSubject(session, twitchUserId);
+        }
+        snapshot.getValidationCache().invalidateUser(twitchUserId);
+    }
+
+    /**
+     * Lists one page of the client's EventSub subscriptions, with the shared app access token.
+     *
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @return the Helix response: subscriptions in {@code data}, the next cursor in {@code pagination.cursor}
+     * @throws IdentityBrokerException if there is no app access token yet or Helix could not be reached
+     */
+    public JsonNode listEventSubSubscriptions(String cursor) {
+        String url = getConfig().getHelixUrl() + "/eventsub/subscriptions"
+                + (cursor != null ? "?after=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8) : "");
+        return callEventSub(() -> TwitchSimpleHttp.doGet(url, httpClient), response -> {
+            if (response.getStatus() < 200 || response.getStatus() >= 300) {
+                throw new IdentityBrokerException("Could not list Twitch EventSub subscriptions, status " + response.getStatus());
+            }
+            return response.asJson();
+        });
+    }
+
+    /**
+     * Subscribes a webhook to version 1 of an EventSub subscription type.
+     *
+     * @return false if the subscription already exists
+     * @throws IdentityBrokerException if there is no app access token yet or Twitch rejected the subscription
+     */
+    public boolean createEventSubSubscription(String type, Map<String, String> condition, String callback, String secret) {
+        ObjectNode body = JsonSerialization.mapper.createObjectNode();
+        body.put("type", type);
+        body.put("version", "1");
+        condition.forEach(body.putObject("condition")::put);
+        ObjectNode transport = body.putObject("transport");
+        transport.put("method", "webhook");
+        transport.put("callback", callback);
+        transport.put("secret", secret);
+
+        String url = getConfig().getHelixUrl() + "/eventsub/subscriptions";
+        return callEventSub(() -> TwitchSimpleHttp.doPost(url, httpClient).json(body), response -> {
+            int status = response.getStatus();
+            if (status == 409) {
+                return false;
+            }
+            if (status < 200 || status >= 300) {
+                throw new IdentityBrokerException("Twitch rejected the " + type + " EventSub subscription, status " + status);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Deletes an EventSub subscription; one that no longer exists is ignored.
+     */
+    public void deleteEventSubSubscription(String id) {
+        String url = getConfig().getHelixUrl() + "/eventsub/subscriptions?id=" + URLEncoder.encode(id, StandardCharsets.UTF_8);
+        callEventSub(() -> TwitchSimpleHttp.doDelete(url, httpClient), response -> {
+            int status = response.getStatus();
+            if (status != 404 && (status < 200 || status >= 300)) {
+                throw new IdentityBrokerException("Could not delete Twitch EventSub subscription " + id + ", status " + status);
+            }
+            return null;
+        });
+    }
+
+    private <T> T callEventSub(Supplier<SimpleHttp> request, TwitchResilience.ResponseHandler<T> handler) {
+        String appToken = getAppToken();
+        if (appToken == null) {
+            throw new IdentityBrokerException("No Twitch app access token available yet, is 'App access token' enabled?");
+        }
+        String realm = TwitchMetrics.realmName(session);
+        String alias = getConfig().getAlias();
+        try {
+            return timed(realm, alias, TwitchMetrics.PHASE_EVENTSUB_SUBSCRIPTIONS, () -> resilience.execute(TwitchEndpoint.EVENTSUB_SUBSCRIPTIONS,
+                    () -> request.get()
+                            .header("Authorization", "Bearer " + appToken)
+                            .header("Client-Id", getConfig().getClientId()),
+                    response -> {
+                        if (response.getStatus() == 401) {
+                            onAppTokenRejected(appToken);
+                        }
+                        return handler.handle(response);
+                    }));
+        } catch (IOException | IdentityBrokerException e) {
+            if (e instanceof IdentityBrokerException) {
+                throw (IdentityBrokerException) e;
+            }
+            throw new IdentityBrokerException("Could not reach Twitch Helix for EventSub subscriptions", e);
+        }
+    }
+
     @Override
     public BrokeredIdentityContext getFederatedIdentity(String response) {
-        logger.infof("Processing OAuth token response from Twitch");
-        logger.debugf("Raw token response: %s", response);
-        
-        String accessToken = extractTokenFromResponse(response, getAccessTokenResponseParameter());
-        
-        // Mask most of the token for logging
-        String maskedToken = "...";
-        if (accessToken != null && accessToken.length() > 8) {
-            maskedToken = accessToken.substring(0, 4) + "..." + accessToken.substring(accessToken.length() - 4);
+        String realm = TwitchMetrics.realmName(session);
+        String alias = getConfig().getAlias();
+        if (tokenRequestStartNanos != 0) {
+            resilience.onTokenResponse();
+            TwitchMetrics.recordPhase(realm, alias, TwitchMetrics.PHASE_TOKEN_EXCHANGE, tokenRequestStartNanos, true);
+            TwitchFlightRecorder.endPhase(tokenRequestEvent, realm, alias, true);
+            tokenRequestStartNanos = 0;
+            tokenRequestEvent = null;
         }
+
+        return timed(realm, alias, TwitchMetrics.PHASE_TOKEN_RESPONSE, () -> processTokenResponse(response));
+    }
+
+    /**
+     * Builds the identity from the token response, from the id_token or from userinfo.
+     */
+    private BrokeredIdentityContext processTokenResponse(String response) {
+        TwitchTokenResponse tokenResponse = readTokenResponse(response);
+        String accessToken = tokenResponse.getAccessToken();
         
         if (accessToken == null) {
-            logger.errorf("No access token found in response");
+            logger.errorf("No access token found in Twitch token response");
             throw new IdentityBrokerException("No access token available in OAuth server response: " + response);
-        } else {
-            logger.infof("Access token extracted: %s", maskedToken);
         }
 
-        // Handle Twitch's response with scope as an array instead of a space-separated string
-        try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode node = objectMapper.readTree(response);
-            
-            // Debug each field in the token response JSON
-            logger.info("Token response fields:");
-            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
-            while (fields.hasNext()) {
-                Map.Entry<String, JsonNode> field = fields.next();
-                String fieldName = field.getKey();
-                JsonNode fieldValue = field.getValue();
-                
-                // For sensitive fields like tokens, mask the value
-                if (fieldName.contains("token")) {
-                    String maskedValue = "****";
-                    if (fieldValue.isTextual() && fieldValue.asText().length() > 8) {
-                        String text = fieldValue.asText();
-                        maskedValue = text.substring(0, 4) + "..." + text.substring(text.length() - 4);
-                    }
-                    logger.infof("  %s: %s", fieldName, maskedValue);
-                } else {
-                    logger.infof("  %s: %s", fieldName, fieldValue.toString());
-                }
-            }
-            
-            // Check if scope is an array and convert it to a space-separated string
-            if (node.has("scope")) {
-                logger.infof("Scope found in token response");
-                if (node.get("scope").isArray()) {
-                    logger.info("Scope array contents:");
-                    ArrayNode scopeArray = (ArrayNode) node.get("scope");
-                    for (int i = 0; i < scopeArray.size(); i++) {
-                        logger.infof("  [%d]: %s", i, scopeArray.get(i).asText());
-                    }
-                    
-                    String scopeString = convertScopeArrayToString(node.get("scope"));
-                    ((ObjectNode) node).put("scope", scopeString);
-                    
-                    logger.infof("Converted scope array to string: %s", scopeString);
-                    
-                    // Convert the modified node back to a string for further processing
-                    response = objectMapper.writeValueAsString(node);
-                    
-                    // Re-extract the access token in case it was modified
-                    accessToken = extractTokenFromResponse(response, getAccessTokenResponseParameter());
-                    logger.infof("Re-extracted access token after scope conversion: %s", maskedToken);
-                } else {
-                    logger.infof("Scope is already a string: %s", node.get("scope").asText());
-                }
-            } else {
-                logger.infof("No scope found in token response");
-            }
-        } catch (IOException e) {
-            logger.errorf(e, "Error parsing token response");
-            // Continue with the original response if there's an error
+        if (diagnostics.isSummaryEnabled()) {
+            diagnostics.summary("Processing token response, access token %s, scope: %s",
+                    TwitchDiagnostics.mask(accessToken), tokenResponse.getScope());
+        }
+        if (diagnostics.isTraceEnabled()) {
+            diagnostics.trace("Token response fields:");
+            diagnostics.trace("  token_type: %s", tokenResponse.getTokenType());
+            diagnostics.trace("  expires_in: %s", tokenResponse.getExpiresIn());
+            diagnostics.trace("  refresh_token: %s", TwitchDiagnostics.mask(tokenResponse.getRefreshToken()));
+            diagnostics.trace("  id_token: %s", TwitchDiagnostics.mask(tokenResponse.getIdToken()));
         }
 
-        logger.infof("Getting federated identity with access token");
-        BrokeredIdentityContext context = doGetFederatedIdentity(accessToken);
+        BrokeredIdentityContext context;
+        if (getConfig().isIdTokenClaims() && tokenResponse.getIdToken() != null) {
+            context = getFederatedIdentityFromIdToken(tokenResponse);
+        } else {
+            TwitchMetrics.recordIdentitySource(TwitchMetrics.realmName(session), getConfig().getAlias(), IDENTITY_FROM_USERINFO);
+            context = doGetFederatedIdentity(accessToken);
+        }
         context.getContextData().put(FEDERATED_ACCESS_TOKEN, accessToken);
+        if (getConfig().isStoreToken()) {
+            // Stored with its expiry, so that it can be refreshed before it expires
+            context.setToken(TwitchStoredToken.write(tokenResponse, null));
+        }
         
-        // Log context data
-        logger.info("Context data after identity federation:");
-        for (Map.Entry<String, Object> entry : context.getContextData().entrySet()) {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            
-            // Mask sensitive values
-            if (key.contains("token") && value instanceof String) {
-                String strValue = (String) value;
-                if (strValue.length() > 8) {
-                    logger.infof("  %s: %s", key, strValue.substring(0, 4) + "..." + strValue.substring(strValue.length() - 4));
+        if (diagnostics.isTraceEnabled()) {
+            diagnostics.trace("Context data after identity federation:");
+            for (Map.Entry<String, Object> entry : context.getContextData().entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (TwitchDiagnostics.isSensitive(key) && value instanceof String) {
+                    diagnostics.trace("  %s: %s", key, TwitchDiagnostics.mask((String) value));
                 } else {
-                    logger.infof("  %s: ****", key);
+                    diagnostics.trace("  %s: %s", key, value);
                 }
-            } else {
-                logger.infof("  %s: %s", key, value);
             }
         }
         
-        logger.infof("Successfully created brokered identity context");
-        
         return context;
     }
-    
+
+    /**
+     * Builds the identity from the locally verified id_token, calling userinfo only if a required claim is missing.
+     */
+    protected BrokeredIdentityContext getFederatedIdentityFromIdToken(TwitchTokenResponse tokenResponse) {
+        String realm = TwitchMetrics.realmName(session);
+        String alias = getConfig().getAlias();
+
+        JsonNode claims = timed(realm, alias, TwitchMetrics.PHASE_ID_TOKEN,
+                () -> idTokenVerifier.verify(tokenResponse.getIdToken(), getConfig()));
+
+        for (String claim : REQUIRED_ID_TOKEN_CLAIMS) {
+            if (claims.path(claim).asText("").isEmpty()) {
+                if (diagnostics.isSummaryEnabled()) {
+                    diagnostics.summary("Claim %s missing from Twitch id_token, falling back to userinfo", claim);
+                }
+                TwitchMetrics.recordIdentitySource(realm, alias, IDENTITY_FROM_USERINFO_FALLBACK);
+                return doGetFederatedIdentity(tokenResponse.getAccessToken());
+            }
+        }
+
+        if (diagnostics.isSummaryEnabled()) {
+            diagnostics.summary("Using claims from verified Twitch id_token");
+        }
+        TwitchMetrics.recordIdentitySource(realm, alias, IDENTITY_FROM_ID_TOKEN);
+        return extractIdentityFromProfile(null, enrichProfile(claims, tokenResponse.getAccessToken()));
+    }
+
+    @Override
+    protected boolean supportsExternalExchange() {
+        return true;
+    }
+
     /**
-     * Converts a JSON array of scopes to a space-separated string
+     * Exchanges a Twitch access token for a Keycloak token. The token is checked with Twitch's validate endpoint,
+     * whose answers are cached, and the identity is built from the validation instead of a userinfo call.
      */
-    private String convertScopeArrayToString(JsonNode scopeArray) {
-        if (!scopeArray.isArray()) {
-            return scopeArray.asText();
+    @Override
+    protected BrokeredIdentityContext exchangeExternalImpl(EventBuilder event, MultivaluedMap<String, String> params) {
+        String subjectToken = params.getFirst(OAuth2Constants.SUBJECT_TOKEN);
+        if (subjectToken == null) {
+            event.detail(Details.REASON, OAuth2Constants.SUBJECT_TOKEN + " param unset");
+            event.error(Errors.INVALID_TOKEN);
+            throw new ErrorResponseException(OAuthErrorException.INVALID_TOKEN, "token not set", Response.Status.BAD_REQUEST);
         }
-        
-        List<String> scopes = new ArrayList<>();
-        for (Iterator<JsonNode> it = scopeArray.elements(); it.hasNext();) {
-            scopes.add(it.next().asText());
+        String subjectTokenType = params.getFirst(OAuth2Constants.SUBJECT_TOKEN_TYPE);
+        if (subjectTokenType != null && !OAuth2Constants.ACCESS_TOKEN_TYPE.equals(subjectTokenType)) {
+            event.detail(Details.REASON, OAuth2Constants.SUBJECT_TOKEN_TYPE + " invalid");
+            event.error(Errors.INVALID_TOKEN_TYPE);
+            throw new ErrorResponseException(OAuthErrorException.INVALID_TOKEN, "invalid token type", Response.Status.BAD_REQUEST);
         }
-        
-        if (scopes.isEmpty()) {
-            return "";
+
+        TwitchTokenValidation validation;
+        try {
+            validation = validateToken(subjectToken);
+        } catch (IdentityBrokerException e) {
+            event.detail(Details.REASON, "could not validate token with Twitch");
+            event.error(Errors.IDENTITY_PROVIDER_ERROR);
+            throw new ErrorResponseException(OAuthErrorException.SERVER_ERROR, "could not validate token", Response.Status.SERVICE_UNAVAILABLE);
         }
-        
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < scopes.size() - 1; i++) {
-            sb.append(scopes.get(i)).append(" ");
+        if (validation == null) {
+            event.detail(Details.REASON, "Twitch token invalid, expired or not issued for this client");
+            event.error(Errors.INVALID_TOKEN);
+            throw new ErrorResponseException(OAuthErrorException.INVALID_TOKEN, "invalid token", Response.Status.BAD_REQUEST);
+        }
+
+        BrokeredIdentityContext context = new BrokeredIdentityContext(validation.getUserId(), getConfig());
+        context.setUsername(validation.getLogin());
+
+        ObjectNode profile = JsonSerialization.mapper.createObjectNode();
+        profile.put("sub", validation.getUserId());
+        profile.put("preferred_username", validation.getLogin());
+        profile.put("client_id", validation.getClientId());
+        validation.getScopes().forEach(profile.putArray("scopes")::add);
+        TwitchProfiles.store(context, profile, snapshot.getProfileFields(), getConfig().isCompactProfile(), getConfig().getAlias());
+
+        context.getContextData().put(FEDERATED_ACCESS_TOKEN, subjectToken);
+        context.getContextData().put(OIDCIdentityProvider.EXCHANGE_PROVIDER, getConfig().getAlias());
+        return context;
+    }
+
+    /**
+     * Checks a user access token with Twitch, answering from the validation caches when possible.
+     *
+     * @return the validation, or null if the token is invalid, expired, an app token or issued for another client
+     * @throws IdentityBrokerException if Twitch could not be asked
+     */
+    protected TwitchTokenValidation validateToken(String accessToken) {
+        TwitchTokenValidationCache cache = snapshot.getValidationCache();
+        String tokenHash = TwitchProfileCache.hash(accessToken);
+
+        TwitchTokenValidation validation = cache.get(tokenHash);
+        if (validation != null) {
+            return validation;
+        }
+        if (cache.isInvalid(session, tokenHash)) {
+            return null;
+        }
+
+        validation = fetchValidation(accessToken);
+        if (validation == null || validation.getUserId() == null
+                || !getConfig().getClientId().equals(validation.getClientId())) {
+            cache.putInvalid(session, tokenHash);
+            return null;
+        }
+        cache.put(tokenHash, validation);
+        return validation;
+    }
+
+    /**
+     * Calls the Twitch validate endpoint.
+     *
+     * @return the validation, or null if Twitch answered 401
+     */
+    protected TwitchTokenValidation fetchValidation(String accessToken) {
+        String realm = TwitchMetrics.realmName(session);
+        String alias = getConfig().getAlias();
+        try {
+            return timed(realm, alias, TwitchMetrics.PHASE_TOKEN_VALIDATION, () -> resilience.execute(TwitchEndpoint.VALIDATE,
+                    () -> TwitchSimpleHttp.doGet(getConfig().getValidateUrl(), httpClient)
+                            .header("Authorization", "OAuth " + accessToken),
+                    response -> {
+                        int status = response.getStatus();
+                        if (status == 401) {
+                            return null;
+                        }
+                        if (status < 200 || status >= 300) {
+                            throw new IdentityBrokerException("Could not validate token with Twitch, status " + status);
+                        }
+                        return TwitchTokenValidation.parse(response.asJson());
+                    }));
+        } catch (IOException | IdentityBrokerException e) {
+            logger.errorf(e, "Failed to validate token with Twitch");
+            if (e instanceof IdentityBrokerException) {
+                throw (IdentityBrokerException) e;
+            }
+            throw new IdentityBrokerException("Could not validate token with Twitch", e);
+        }
+    }
+
+    /**
+     * Returns the stored token, refreshing it first if it is about to expire. Concurrent reads of the same
+     * identity share one refresh. If the refresh fails, the stored token is returned as it is.
+     */
+    @Override
+    public Response retrieveToken(KeycloakSession session, FederatedIdentityModel identity) {
+        String token = identity.getToken();
+        TwitchStoredToken stored = TwitchStoredToken.parse(token);
+        if (tokenRefresher != null && getConfig().isTokenRefresh() && stored != null
+                && stored.needsRefresh(getConfig().getTokenRefreshMargin())) {
+            RealmModel realm = session.getContext().getRealm();
+            UserModel user = session.users().getUserByFederatedIdentity(realm, identity);
+            if (user != null) {
+                try {
+                    token = refreshStoredToken(realm, user, identity);
+                } catch (RuntimeException e) {
+                    logger.warnf(e, "Could not refresh stored Twitch token of user %s, returning the stored token", user.getId());
+                }
+            }
+        }
+        return Response.ok(token).type(MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Refreshes the stored token of the federated identity and stores the new one.
+     *
+     * @return the new stored token, or the current one if it has no refresh token
+     * @throws IdentityBrokerException if Twitch did not refresh the token
+     */
+    public String refreshStoredToken(RealmModel realm, UserModel user, FederatedIdentityModel identity) {
+        String key = snapshot.getConfig().getInternalId() + ":" + identity.getUserId();
+        return tokenRefresher.singleFlight(session, key, () -> {
+            TwitchStoredToken stored = TwitchStoredToken.parse(identity.getToken());
+            if (stored == null || stored.getRefreshToken() == null) {
+                return identity.getToken();
+            }
+            String token = TwitchStoredToken.write(refreshToken(stored.getRefreshToken()), stored.getRefreshToken());
+            identity.setToken(token);
+            session.users().updateFederatedIdentity(realm, user, identity);
+            return token;
+        });
+    }
+
+    /**
+     * Sends a refresh_token grant to the Twitch token endpoint. Like the code exchange it is not retried,
+     * since Twitch may rotate the refresh token.
+     */
+    protected TwitchTokenResponse refreshToken(String refreshToken) {
+        return requestToken(TwitchMetrics.PHASE_TOKEN_REFRESH, OAuth2Constants.REFRESH_TOKEN,
+                request -> request.param(OAuth2Constants.REFRESH_TOKEN, refreshToken));
+    }
+
+    /**
+     * Obtains a new app access token with the client credentials grant.
+     * Request paths use the shared token from {@link #getAppToken()} instead.
+     */
+    public TwitchTokenResponse fetchAppToken() {
+        return requestToken(TwitchMetrics.PHASE_APP_TOKEN, OAuth2Constants.CLIENT_CREDENTIALS, request -> request);
+    }
+
+    /**
+     * @return the app access token shared by the cluster, or null while none has been obtained yet
+     */
+    public String getAppToken() {
+        return appTokens != null ? appTokens.getToken(session, getConfig()) : null;
+    }
+
+    /**
+     * Drops an app access token that Helix answered with 401, so that a new one is obtained.
+     */
+    public void onAppTokenRejected(String appToken) {
+        if (appTokens != null) {
+            appTokens.invalidate(session, getConfig(), appToken);
+        }
+    }
+
+    private TwitchTokenResponse requestToken(String phase, String grantType, UnaryOperator<SimpleHttp> grant) {
+        String realm = TwitchMetrics.realmName(session);
+        String alias = getConfig().getAlias();
+        try {
+            return timed(realm, alias, phase, () -> requestToken(grantType, grant));
+        } catch (IOException e) {
+            throw new IdentityBrokerException("Could not reach Twitch for the " + grantType + " grant", e);
+        }
+    }
+
+    private TwitchTokenResponse requestToken(String grantType, UnaryOperator<SimpleHttp> grant) throws IOException {
+        try (VaultStringSecret clientSecret = session.vault().getStringSecret(getConfig().getClientSecret())) {
+            String secret = clientSecret.get().orElse(getConfig().getClientSecret());
+            TwitchTokenResponse response = resilience.execute(TwitchEndpoint.TOKEN,
+                    () -> grant.apply(TwitchSimpleHttp.doPost(getConfig().getTokenUrl(), httpClient)
+                            .param(OAUTH2_PARAMETER_GRANT_TYPE, grantType)
+                            .param(OAUTH2_PARAMETER_CLIENT_ID, getConfig().getClientId())
+                            .param(OAUTH2_PARAMETER_CLIENT_SECRET, secret)),
+                    httpResponse -> {
+                        int status = httpResponse.getStatus();
+                        if (status < 200 || status >= 300) {
+                            throw new IdentityBrokerException("Twitch rejected the " + grantType + " grant, status " + status);
+                        }
+                        return TwitchTokenResponseReader.read(httpResponse.asString());
+                    });
+            if (response.getAccessToken() == null) {
+                throw new IdentityBrokerException("No access token in Twitch " + grantType + " response");
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Runs a phase of a login, recording its duration in the phase metric and the JFR phase event, and the error
+     * it failed with, if any.
+     */
+    private <T, E extends Exception> T timed(String realm, String alias, String phase, PhaseCall<T, E> call) throws E {
+        long start = System.nanoTime();
+        TwitchFlightRecorder.PhaseEvent phaseEvent = TwitchFlightRecorder.beginPhase(phase);
+        try {
+            T result = call.call();
+            TwitchMetrics.recordPhase(realm, alias, phase, start, true);
+            TwitchFlightRecorder.endPhase(phaseEvent, realm, alias, true);
+            return result;
+        } catch (Exception e) {
+            TwitchMetrics.recordPhase(realm, alias, phase, start, false);
+            TwitchFlightRecorder.endPhase(phaseEvent, realm, alias, false);
+            TwitchMetrics.recordError(realm, alias, phase, e);
+            throw e;
+        }
+    }
+
+    /**
+     * A phase timed by {@link #timed}, throwing {@code E}.
+     */
+    @FunctionalInterface
+    private interface PhaseCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Parses the token response in one streaming pass, normalizing Twitch's scope array.
+     * Responses that are not JSON fall back to Keycloak's generic extraction of the access token.
+     */
+    protected TwitchTokenResponse readTokenResponse(String response) {
+        try {
+            return TwitchTokenResponseReader.read(response);
+        } catch (IOException e) {
+            logger.errorf(e, "Error parsing token response");
+            String accessToken = extractTokenFromResponse(response, getAccessTokenResponseParameter());
+            return new TwitchTokenResponse(accessToken, null, null, null, null, -1);
         }
-        sb.append(scopes.get(scopes.size() - 1));
-        
-        return sb.toString();
     }
     
+    /**
+     * Callback endpoint that sends the token request through the Twitch HTTP client.
+     */
+    protected class TwitchCallbackEndpoint extends Endpoint {
+
+        public TwitchCallbackEndpoint(AuthenticationCallback callback, RealmModel realm, EventBuilder event) {
+            super(callback, realm, event, TwitchIdentityProvider.this);
+        }
+
+        @GET
+        @Override
+        public Response authResponse(@QueryParam(OAUTH2_PARAMETER_STATE) String state,
+                                     @QueryParam(OAUTH2_PARAMETER_CODE) String authorizationCode,
+                                     @QueryParam(OAuth2Constants.ERROR) String error,
+                                     @QueryParam(OAuth2Constants.ERROR_DESCRIPTION) String errorDescription) {
+            try {
+                return super.authResponse(state, authorizationCode, error, errorDescription);
+            } finally {
+                if (tokenRequestStartNanos != 0) {
+                    // A PKCE exchange Keycloak sent but that never reached getFederatedIdentity. Its status is not
+                    // known here, so the breaker permit goes back without counting it either way
+                    String realmName = TwitchMetrics.realmName(session);
+                    String alias = getConfig().getAlias();
+                    resilience.onTokenRequestAbandoned();
+                    TwitchMetrics.recordPhase(realmName, alias, TwitchMetrics.PHASE_TOKEN_EXCHANGE, tokenRequestStartNanos, false);
+                    TwitchFlightRecorder.endPhase(tokenRequestEvent, realmName, alias, false);
+                    tokenRequestStartNanos = 0;
+                    tokenRequestEvent = null;
+                }
+            }
+        }
+
+        @Override
+        public SimpleHttp generateTokenRequest(String authorizationCode) {
+            if (getConfig().isPkceEnabled()) {
+                // The code verifier is kept in the authentication session, which only Keycloak's endpoint reads.
+                // Keycloak then sends the request with its own client, so the exchange is timed up to the response.
+                SimpleHttp tokenRequest = super.generateTokenRequest(authorizationCode);
+                tokenRequestStartNanos = System.nanoTime();
+                tokenRequestEvent = TwitchFlightRecorder.beginPhase(TwitchMetrics.PHASE_TOKEN_EXCHANGE);
+                return tokenRequest;
+            }
+            KeycloakContext context = session.getContext();
+            SimpleHttp tokenRequest = TwitchSimpleHttp.doPost(getConfig().getTokenUrl(), resilience.guardTokenRequests(httpClient))
+                    .param(OAUTH2_PARAMETER_CODE, authorizationCode)
+                    .param(OAUTH2_PARAMETER_REDIRECT_URI, Urls.identityProviderAuthnResponse(context.getUri().getBaseUri(),
+                            getConfig().getAlias(), context.getRealm().getName()).toString())
+                    .param(OAUTH2_PARAMETER_GRANT_TYPE, OAUTH2_GRANT_TYPE_AUTHORIZATION_CODE);
+            return authenticateTokenRequest(tokenRequest);
+        }
+    }
+
     // Helper method to extract boolean properties from JSON
     private Boolean getBooleanProperty(JsonNode jsonNode, String name) {
         if (jsonNode.has(name) && !jsonNode.get(name).isNull()) {
@@ -0,0 +1,532 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.broker.oidc.OAuth2IdentityProviderConfig;
+import org.keycloak.models.IdentityProviderModel;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Configuration for the Twitch Identity Provider.
+ * Adds the Twitch-specific settings on top of the generic OAuth2 configuration.
+ */
+public class TwitchIdentityProviderConfig extends OAuth2IdentityProviderConfig {
+
+    public static final String ID_TOKEN_CLAIMS = "twitchIdTokenClaims";
+    public static final String JWKS_URL = "jwksUrl";
+    public static final String DISCOVERY_URL = "twitchDiscoveryUrl";
+    public static final String ISSUER = "issuer";
+    public static final String JWKS_REFRESH_INTERVAL = "twitchJwksRefreshInterval";
+    public static final String DIAGNOSTICS = "twitchDiagnostics";
+    public static final String DIAGNOSTICS_SAMPLE_RATE = "twitchDiagnosticsSampleRate";
+    public static final String CONNECT_TIMEOUT = "twitchConnectTimeout";
+    public static final String BREAKER_FAILURE_THRESHOLD = "twitchBreakerFailureThreshold";
+    public static final String BREAKER_OPEN_SECONDS = "twitchBreakerOpenSeconds";
+    public static final String MAX_RETRIES = "twitchMaxRetries";
+    public static final String RETRY_BACKOFF = "twitchRetryBackoff";
+    public static final String MAX_CONCURRENT_REQUESTS = "twitchMaxConcurrentRequests";
+    public static final String RATE_LIMIT_MAX_WAIT = "twitchRateLimitMaxWait";
+    public static final String PROFILE_CACHE = "twitchProfileCache";
+    public static final String PROFILE_CACHE_TTL = "twitchProfileCacheTtl";
+    public static final String PROFILE_CACHE_SIZE = "twitchProfileCacheSize";
+    public static final String VALIDATE_URL = "twitchValidateUrl";
+    public static final String VALIDATION_CACHE_SIZE = "twitchValidationCacheSize";
+    public static final String VALIDATION_CACHE_MAX_TTL = "twitchValidationCacheMaxTtl";
+    public static final String VALIDATION_EXPIRY_MARGIN = "twitchValidationExpiryMargin";
+    public static final String INVALID_TOKEN_CACHE_TTL = "twitchInvalidTokenCacheTtl";
+    public static final String TOKEN_REFRESH = "twitchTokenRefresh";
+    public static final String TOKEN_REFRESH_WINDOW = "twitchTokenRefreshWindow";
+    public static final String TOKEN_REFRESH_MARGIN = "twitchTokenRefreshMargin";
+    public static final String TOKEN_REFRESH_BATCH_SIZE = "twitchTokenRefreshBatchSize";
+    public static final String TOKEN_REFRESH_BATCH_PAUSE = "twitchTokenRefreshBatchPause";
+    public static final String APP_TOKEN = "twitchAppToken";
+    public static final String APP_TOKEN_REFRESH_WINDOW = "twitchAppTokenRefreshWindow";
+    public static final String HELIX_ENRICHMENT = "twitchHelixEnrichment";
+    public static final String HELIX_URL = "twitchHelixUrl";
+    public static final String ASYNC_ENRICHMENT = "twitchAsyncEnrichment";
+    public static final String PROFILE_FIELDS = "twitchProfileFields";
+    public static final String COMPACT_PROFILE = "twitchCompactProfile";
+    public static final String EVENTSUB_SECRET = "twitchEventSubSecret";
+    public static final String LOGIN_FETCH_DEADLINE = "twitchLoginFetchDeadline";
+
+    public static final String DEFAULT_DISCOVERY_URL = "https://id.twitch.tv/oauth2/.well-known/openid-configuration";
+    public static final String DEFAULT_ISSUER = "https://id.twitch.tv/oauth2";
+    public static final long DEFAULT_JWKS_REFRESH_INTERVAL = 3600;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_BREAKER_OPEN_SECONDS = 30;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_RETRY_BACKOFF = 100;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 64;
+    public static final long DEFAULT_RATE_LIMIT_MAX_WAIT = 1000;
+    public static final long DEFAULT_PROFILE_CACHE_TTL = 30;
+    public static final int DEFAULT_PROFILE_CACHE_SIZE = 10000;
+    public static final String DEFAULT_VALIDATE_URL = "https://id.twitch.tv/oauth2/validate";
+    public static final int DEFAULT_VALIDATION_CACHE_SIZE = 10000;
+    // Twitch requires apps to validate the tokens they use at least once an hour
+    public static final long DEFAULT_VALIDATION_CACHE_MAX_TTL = 3600;
+    public static final long DEFAULT_VALIDATION_EXPIRY_MARGIN = 60;
+    public static final long DEFAULT_INVALID_TOKEN_CACHE_TTL = 600;
+    public static final long DEFAULT_TOKEN_REFRESH_WINDOW = 3600;
+    public static final long DEFAULT_TOKEN_REFRESH_MARGIN = 60;
+    public static final int DEFAULT_TOKEN_REFRESH_BATCH_SIZE = 50;
+    public static final long DEFAULT_TOKEN_REFRESH_BATCH_PAUSE = 1000;
+    public static final long DEFAULT_APP_TOKEN_REFRESH_WINDOW = 3600;
+    public static final String DEFAULT_HELIX_URL = "https://api.twitch.tv/helix";
+    public static final long DEFAULT_LOGIN_FETCH_DEADLINE = 10000;
+
+    public TwitchIdentityProviderConfig() {
+    }
+
+    public TwitchIdentityProviderConfig(IdentityProviderModel model) {
+        super(model);
+    }
+
+    /**
+     * When enabled, the identity is built from the verified id_token and the userinfo endpoint
+     * is only called if a required claim is missing.
+     */
+    public boolean isIdTokenClaims() {
+        return Boolean.parseBoolean(getConfig().get(ID_TOKEN_CLAIMS));
+    }
+
+    public void setIdTokenClaims(boolean idTokenClaims) {
+        getConfig().put(ID_TOKEN_CLAIMS, String.valueOf(idTokenClaims));
+    }
+
+    /**
+     * @return the configured JWKS URL, or null to resolve it through the discovery document
+     */
+    public String getJwksUrl() {
+        return emptyToNull(getConfig().get(JWKS_URL));
+    }
+
+    public void setJwksUrl(String jwksUrl) {
+        getConfig().put(JWKS_URL, jwksUrl);
+    }
+
+    public String getDiscoveryUrl() {
+        String url = emptyToNull(getConfig().get(DISCOVERY_URL));
+        return url == null ? DEFAULT_DISCOVERY_URL : url;
+    }
+
+    public void setDiscoveryUrl(String discoveryUrl) {
+        getConfig().put(DISCOVERY_URL, discoveryUrl);
+    }
+
+    public String getIssuer() {
+        String issuer = emptyToNull(getConfig().get(ISSUER));
+        return issuer == null ? DEFAULT_ISSUER : issuer;
+    }
+
+    public void setIssuer(String issuer) {
+        getConfig().put(ISSUER, issuer);
+    }
+
+    /**
+     * @return how long, in seconds, fetched signing keys are used before they are refreshed in the background
+     */
+    public long getJwksRefreshInterval() {
+        return getLong(JWKS_REFRESH_INTERVAL, DEFAULT_JWKS_REFRESH_INTERVAL);
+    }
+
+    public void setJwksRefreshInterval(long seconds) {
+        getConfig().put(JWKS_REFRESH_INTERVAL, String.valueOf(seconds));
+    }
+
+    public TwitchDiagnostics.Level getDiagnosticsLevel() {
+        return TwitchDiagnostics.parseLevel(getConfig().get(DIAGNOSTICS));
+    }
+
+    public void setDiagnosticsLevel(TwitchDiagnostics.Level level) {
+        getConfig().put(DIAGNOSTICS, level.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the fraction of requests, between 0 and 1, that are traced when diagnostics are at trace level
+     */
+    public double getDiagnosticsSampleRate() {
+        String value = emptyToNull(getConfig().get(DIAGNOSTICS_SAMPLE_RATE));
+        if (value == null) {
+            return 1.0;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 1.0;
+        }
+    }
+
+    public void setDiagnosticsSampleRate(double rate) {
+        getConfig().put(DIAGNOSTICS_SAMPLE_RATE, String.valueOf(rate));
+    }
+
+    /**
+     * @return the connect timeout, in milliseconds, of calls to Twitch
+     */
+    public int getConnectTimeout() {
+        return (int) getLong(CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public void setConnectTimeout(int millis) {
+        getConfig().put(CONNECT_TIMEOUT, String.valueOf(millis));
+    }
+
+    /**
+     * @return the config key of the read timeout of the endpoint, e.g. {@code twitchUserinfoTimeout}
+     */
+    public static String timeoutKey(TwitchEndpoint endpoint) {
+        String key = endpoint.getKey();
+        return "twitch" + Character.toUpperCase(key.charAt(0)) + key.substring(1) + "Timeout";
+    }
+
+    /**
+     * @return the read timeout, in milliseconds, of calls to the endpoint
+     */
+    public int getTimeout(TwitchEndpoint endpoint) {
+        return (int) getLong(timeoutKey(endpoint), endpoint.getDefaultTimeoutMillis());
+    }
+
+    public void setTimeout(TwitchEndpoint endpoint, int millis) {
+        getConfig().put(timeoutKey(endpoint), String.valueOf(millis));
+    }
+
+    /**
+     * @return the number of consecutive failures after which calls to a Twitch host fail fast, 0 to never open
+     */
+    public int getBreakerFailureThreshold() {
+        return (int) getLong(BREAKER_FAILURE_THRESHOLD, DEFAULT_BREAKER_FAILURE_THRESHOLD);
+    }
+
+    public void setBreakerFailureThreshold(int failures) {
+        getConfig().put(BREAKER_FAILURE_THRESHOLD, String.valueOf(failures));
+    }
+
+    /**
+     * @return how long, in seconds, an open circuit breaker rejects calls before letting a trial call through
+     */
+    public long getBreakerOpenSeconds() {
+        return getLong(BREAKER_OPEN_SECONDS, DEFAULT_BREAKER_OPEN_SECONDS);
+    }
+
+    public void setBreakerOpenSeconds(long seconds) {
+        getConfig().put(BREAKER_OPEN_SECONDS, String.valueOf(seconds));
+    }
+
+    /**
+     * @return how often a failed call to an idempotent endpoint is retried
+     */
+    public int getMaxRetries() {
+        return (int) getLong(MAX_RETRIES, DEFAULT_MAX_RETRIES);
+    }
+
+    public void setMaxRetries(int retries) {
+        getConfig().put(MAX_RETRIES, String.valueOf(retries));
+    }
+
+    /**
+     * @return the backoff, in milliseconds, before the first retry; it doubles with every further retry
+     */
+    public long getRetryBackoff() {
+        return getLong(RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF);
+    }
+
+    public void setRetryBackoff(long millis) {
+        getConfig().put(RETRY_BACKOFF, String.valueOf(millis));
+    }
+
+    /**
+     * @return the maximum number of concurrent calls to a Twitch host
+     */
+    public int getMaxConcurrentRequests() {
+        return (int) getLong(MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    public void setMaxConcurrentRequests(int requests) {
+        getConfig().put(MAX_CONCURRENT_REQUESTS, String.valueOf(requests));
+    }
+
+    /**
+     * @return how long, in milliseconds, a call waits for Twitch's rate limit budget before it fails
+     */
+    public long getRateLimitMaxWait() {
+        return getLong(RATE_LIMIT_MAX_WAIT, DEFAULT_RATE_LIMIT_MAX_WAIT);
+    }
+
+    public void setRateLimitMaxWait(long millis) {
+        getConfig().put(RATE_LIMIT_MAX_WAIT, String.valueOf(millis));
+    }
+
+    public TwitchProfileCache.Mode getProfileCacheMode() {
+        return TwitchProfileCache.parseMode(getConfig().get(PROFILE_CACHE));
+    }
+
+    public void setProfileCacheMode(TwitchProfileCache.Mode mode) {
+        getConfig().put(PROFILE_CACHE, mode.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return how long, in seconds, a fetched userinfo profile is reused for the same access token
+     */
+    public long getProfileCacheTtl() {
+        return getLong(PROFILE_CACHE_TTL, DEFAULT_PROFILE_CACHE_TTL);
+    }
+
+    public void setProfileCacheTtl(long seconds) {
+        getConfig().put(PROFILE_CACHE_TTL, String.valueOf(seconds));
+    }
+
+    /**
+     * @return the maximum number of profiles kept in memory by the local profile cache
+     */
+    public int getProfileCacheSize() {
+        return (int) getLong(PROFILE_CACHE_SIZE, DEFAULT_PROFILE_CACHE_SIZE);
+    }
+
+    public void setProfileCacheSize(int entries) {
+        getConfig().put(PROFILE_CACHE_SIZE, String.valueOf(entries));
+    }
+
+    public String getValidateUrl() {
+        String url = emptyToNull(getConfig().get(VALIDATE_URL));
+        return url == null ? DEFAULT_VALIDATE_URL : url;
+    }
+
+    public void setValidateUrl(String validateUrl) {
+        getConfig().put(VALIDATE_URL, validateUrl);
+    }
+
+    /**
+     * @return the maximum number of valid tokens remembered in memory for token exchange
+     */
+    public int getValidationCacheSize() {
+        return (int) getLong(VALIDATION_CACHE_SIZE, DEFAULT_VALIDATION_CACHE_SIZE);
+    }
+
+    public void setValidationCacheSize(int entries) {
+        getConfig().put(VALIDATION_CACHE_SIZE, String.valueOf(entries));
+    }
+
+    /**
+     * @return the longest time, in seconds, a valid token is trusted without validating it again
+     */
+    public long getValidationCacheMaxTtl() {
+        return getLong(VALIDATION_CACHE_MAX_TTL, DEFAULT_VALIDATION_CACHE_MAX_TTL);
+    }
+
+    public void setValidationCacheMaxTtl(long seconds) {
+        getConfig().put(VALIDATION_CACHE_MAX_TTL, String.valueOf(seconds));
+    }
+
+    /**
+     * @return how long, in seconds, before its expiry a cached valid token is validated again
+     */
+    public long getValidationExpiryMargin() {
+        return getLong(VALIDATION_EXPIRY_MARGIN, DEFAULT_VALIDATION_EXPIRY_MARGIN);
+    }
+
+    public void setValidationExpiryMargin(long seconds) {
+        getConfig().put(VALIDATION_EXPIRY_MARGIN, String.valueOf(seconds));
+    }
+
+    /**
+     * @return how long, in seconds, a token Twitch rejected is rejected without asking Twitch again
+     */
+    public long getInvalidTokenCacheTtl() {
+        return getLong(INVALID_TOKEN_CACHE_TTL, DEFAULT_INVALID_TOKEN_CACHE_TTL);
+    }
+
+    public void setInvalidTokenCacheTtl(long seconds) {
+        getConfig().put(INVALID_TOKEN_CACHE_TTL, String.valueOf(seconds));
+    }
+
+    /**
+     * When enabled together with "Store tokens", stored tokens are refreshed with their refresh token
+     * in the background before they expire, and on read if they are about to expire.
+     */
+    public boolean isTokenRefresh() {
+        return Boolean.parseBoolean(getConfig().get(TOKEN_REFRESH));
+    }
+
+    public void setTokenRefresh(boolean tokenRefresh) {
+        getConfig().put(TOKEN_REFRESH, String.valueOf(tokenRefresh));
+    }
+
+    /**
+     * @return how long, in seconds, before expiry stored tokens are refreshed in the background
+     */
+    public long getTokenRefreshWindow() {
+        return getLong(TOKEN_REFRESH_WINDOW, DEFAULT_TOKEN_REFRESH_WINDOW);
+    }
+
+    public void setTokenRefreshWindow(long seconds) {
+        getConfig().put(TOKEN_REFRESH_WINDOW, String.valueOf(seconds));
+    }
+
+    /**
+     * @return how long, in seconds, before expiry a stored token is refreshed when it is read
+     */
+    public long getTokenRefreshMargin() {
+        return getLong(TOKEN_REFRESH_MARGIN, DEFAULT_TOKEN_REFRESH_MARGIN);
+    }
+
+    public void setTokenRefreshMargin(long seconds) {
+        getConfig().put(TOKEN_REFRESH_MARGIN, String.valueOf(seconds));
+    }
+
+    /**
+     * @return the number of users checked per background refresh transaction
+     */
+    public int getTokenRefreshBatchSize() {
+        return (int) getLong(TOKEN_REFRESH_BATCH_SIZE, DEFAULT_TOKEN_REFRESH_BATCH_SIZE);
+    }
+
+    public void setTokenRefreshBatchSize(int users) {
+        getConfig().put(TOKEN_REFRESH_BATCH_SIZE, String.valueOf(users));
+    }
+
+    /**
+     * @return the pause, in milliseconds, after a background refresh batch that refreshed tokens
+     */
+    public long getTokenRefreshBatchPause() {
+        return getLong(TOKEN_REFRESH_BATCH_PAUSE, DEFAULT_TOKEN_REFRESH_BATCH_PAUSE);
+    }
+
+    public void setTokenRefreshBatchPause(long millis) {
+        getConfig().put(TOKEN_REFRESH_BATCH_PAUSE, String.valueOf(millis));
+    }
+
+    /**
+     * When enabled, an app access token is obtained with the client credentials grant and shared by all
+     * nodes, for calls to the Twitch Helix API.
+     */
+    public boolean isAppToken() {
+        return Boolean.parseBoolean(getConfig().get(APP_TOKEN));
+    }
+
+    public void setAppToken(boolean appToken) {
+        getConfig().put(APP_TOKEN, String.valueOf(appToken));
+    }
+
+    /**
+     * @return how long, in seconds, before expiry the shared app access token is replaced
+     */
+    public long getAppTokenRefreshWindow() {
+        return getLong(APP_TOKEN_REFRESH_WINDOW, DEFAULT_APP_TOKEN_REFRESH_WINDOW);
+    }
+
+    public void setAppTokenRefreshWindow(long seconds) {
+        getConfig().put(APP_TOKEN_REFRESH_WINDOW, String.valueOf(seconds));
+    }
+
+    /**
+     * When enabled, the profile is completed with the user's Helix {@code /users} entry (broadcaster_type,
+     * created_at, description, view_count, ...) before mappers read it.
+     */
+    public boolean isHelixEnrichment() {
+        return Boolean.parseBoolean(getConfig().get(HELIX_ENRICHMENT));
+    }
+
+    public void setHelixEnrichment(boolean helixEnrichment) {
+        getConfig().put(HELIX_ENRICHMENT, String.valueOf(helixEnrichment));
+    }
+
+    /**
+     * @return the base URL of the Twitch Helix API, without a trailing slash
+     */
+    public String getHelixUrl() {
+        String url = emptyToNull(getConfig().get(HELIX_URL));
+        if (url == null) {
+            return DEFAULT_HELIX_URL;
+        }
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public void setHelixUrl(String helixUrl) {
+        getConfig().put(HELIX_URL, helixUrl);
+    }
+
+    /**
+     * When enabled together with Helix enrichment, logins complete without calling Helix; users are enriched
+     * in the background instead.
+     */
+    public boolean isAsyncEnrichment() {
+        return Boolean.parseBoolean(getConfig().get(ASYNC_ENRICHMENT));
+    }
+
+    public void setAsyncEnrichment(boolean asyncEnrichment) {
+        getConfig().put(ASYNC_ENRICHMENT, String.valueOf(asyncEnrichment));
+    }
+
+    /**
+     * @return the top-level profile fields kept for mappers, empty to keep the whole profile
+     */
+    public Set<String> getProfileFields() {
+        String value = emptyToNull(getConfig().get(PROFILE_FIELDS));
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        Set<String> fields = new LinkedHashSet<>();
+        for (String field : value.split(",")) {
+            if (!field.trim().isEmpty()) {
+                fields.add(field.trim());
+            }
+        }
+        return fields;
+    }
+
+    public void setProfileFields(String profileFields) {
+        getConfig().put(PROFILE_FIELDS, profileFields);
+    }
+
+    /**
+     * When enabled, the profile kept for mappers is stored compressed and only parsed when a Twitch mapper reads it.
+     */
+    public boolean isCompactProfile() {
+        return Boolean.parseBoolean(getConfig().get(COMPACT_PROFILE));
+    }
+
+    public void setCompactProfile(boolean compactProfile) {
+        getConfig().put(COMPACT_PROFILE, String.valueOf(compactProfile));
+    }
+
+    /**
+     * @return the secret Twitch signs EventSub notifications with, or a vault expression for it; null if EventSub is not used
+     */
+    public String getEventSubSecret() {
+        return emptyToNull(getConfig().get(EVENTSUB_SECRET));
+    }
+
+    public void setEventSubSecret(String eventSubSecret) {
+        getConfig().put(EVENTSUB_SECRET, eventSubSecret);
+    }
+
+    /**
+     * @return milliseconds the concurrent userinfo and Helix calls of a login may take together
+     */
+    public long getLoginFetchDeadline() {
+        return getLong(LOGIN_FETCH_DEADLINE, DEFAULT_LOGIN_FETCH_DEADLINE);
+    }
+
+    public void setLoginFetchDeadline(long millis) {
+        getConfig().put(LOGIN_FETCH_DEADLINE, String.valueOf(millis));
+    }
+
+    protected long getLong(String key, long defaultValue) {
+        String value = emptyToNull(getConfig().get(key));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -1,10 +1,28 @@
 package io.krystof.keycloak.social.twitch;
 
-import org.keycloak.broker.oidc.OAuth2IdentityProviderConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.Config;
 import org.keycloak.broker.provider.AbstractIdentityProviderFactory;
+import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.broker.social.SocialIdentityProviderFactory;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.ScheduledTask;
+import org.keycloak.timer.TimerProvider;
+import org.keycloak.truststore.TruststoreProvider;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Factory for creating instances of the Twitch Identity Provider
@@ -14,23 +32,504 @@ public class TwitchIdentityProviderFactory extends AbstractIdentityProviderFacto
 
     public static final String PROVIDER_ID = "twitch";
 
+    // Concurrent outbound calls of logins on this node
+    public static final String LOGIN_THREADS = "loginThreads";
+    public static final int DEFAULT_LOGIN_THREADS = 64;
+
+    private final TwitchJwksCache jwksCache = new TwitchJwksCache(this::fetchJwks);
+    private final TwitchIdTokenVerifier idTokenVerifier = new TwitchIdTokenVerifier(jwksCache);
+    private final TwitchResilienceRegistry resilience = new TwitchResilienceRegistry();
+    private final Map<String, TwitchConfigSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final TwitchTokenRefresher tokenRefresher = new TwitchTokenRefresher(this);
+    private final TwitchAppTokens appTokens = new TwitchAppTokens(this);
+    private final TwitchHelixResync helixResync = new TwitchHelixResync(this);
+    private final TwitchEventSubSubscriptions eventSubSubscriptions = new TwitchEventSubSubscriptions(this);
+    private final TwitchIdentityImport identityImport = new TwitchIdentityImport(this);
+    private TwitchEnrichmentQueue enrichmentQueue;
+    private TwitchLoginExecutor loginExecutor;
+    private Config.Scope config;
+    private TwitchHttpClient httpClient;
+    private long tokenRefreshIntervalMillis;
+    private long appTokenRefreshIntervalMillis;
+    private long enrichmentSweepIntervalMillis;
+
     @Override
     public String getName() {
         return "Twitch";
     }
 
+    @Override
+    public void init(Config.Scope config) {
+        this.config = config;
+        tokenRefreshIntervalMillis = Math.max(0, config.getLong(TwitchTokenRefresher.INTERVAL, TwitchTokenRefresher.DEFAULT_INTERVAL)) * 1000;
+        appTokenRefreshIntervalMillis = Math.max(0, config.getLong(TwitchAppTokens.INTERVAL, TwitchAppTokens.DEFAULT_INTERVAL)) * 1000;
+        enrichmentQueue = new TwitchEnrichmentQueue(this,
+                config.getInt(TwitchEnrichmentQueue.QUEUE_SIZE, TwitchEnrichmentQueue.DEFAULT_QUEUE_SIZE),
+                config.getInt(TwitchEnrichmentQueue.WORKERS, TwitchEnrichmentQueue.DEFAULT_WORKERS));
+        loginExecutor = new TwitchLoginExecutor(config.getInt(LOGIN_THREADS, DEFAULT_LOGIN_THREADS));
+        enrichmentSweepIntervalMillis = Math.max(0, config.getLong(TwitchEnrichmentQueue.SWEEP_INTERVAL, TwitchEnrichmentQueue.DEFAULT_SWEEP_INTERVAL)) * 1000;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Keycloak's truststore is a provider, so the client is built once providers are available
+        KeycloakModelUtils.runJobInTransaction(factory, session ->
+                httpClient = TwitchHttpClient.create(config, session.getProvider(TruststoreProvider.class)));
+        tokenRefresher.setSessionFactory(factory);
+        appTokens.setSessionFactory(factory);
+        helixResync.setSessionFactory(factory);
+        eventSubSubscriptions.setSessionFactory(factory);
+        identityImport.setSessionFactory(factory);
+        enrichmentQueue.start(factory);
+        factory.register(this::onProviderEvent);
+        schedule(factory, tokenRefresher, tokenRefreshIntervalMillis, TwitchTokenRefresher.TASK_NAME);
+        schedule(factory, appTokens, appTokenRefreshIntervalMillis, TwitchAppTokens.TASK_NAME);
+        schedule(factory, enrichmentQueue, enrichmentSweepIntervalMillis, TwitchEnrichmentQueue.TASK_NAME);
+    }
+
+    private static void schedule(KeycloakSessionFactory factory, ScheduledTask task, long intervalMillis, String name) {
+        if (intervalMillis > 0) {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class).schedule(
+                    new ClusterAwareScheduledTaskRunner(factory, task, intervalMillis), intervalMillis, name));
+        }
+    }
+
+    /**
+     * Fetches JWKS and discovery documents for the JWKS cache. A location is shared by IdPs, so this goes through the
+     * shared HTTP client with the endpoint's default timeout rather than through one IdP's breaker and rate limit.
+     */
+    private JsonNode fetchJwks(String url) throws IOException {
+        int timeout = TwitchEndpoint.JWKS.getDefaultTimeoutMillis();
+        try (SimpleHttp.Response response = TwitchSimpleHttp.doGet(url, httpClient.getHttpClient())
+                .connectTimeoutMillis(timeout)
+                .connectionRequestTimeoutMillis(timeout)
+                .socketTimeOutMillis(timeout)
+                .asResponse()) {
+            if (response.getStatus() < 200 || response.getStatus() >= 300) {
+                throw new IOException("Twitch JWKS endpoint answered with status " + response.getStatus());
+            }
+            return response.asJson();
+        }
+    }
+
     @Override
     public TwitchIdentityProvider create(KeycloakSession session, IdentityProviderModel model) {
-        return new TwitchIdentityProvider(session, new OAuth2IdentityProviderConfig(model));
+        return new TwitchIdentityProvider(session, snapshot(session, model), idTokenVerifier, httpClient.getHttpClient(),
+                tokenRefresher, appTokens, enrichmentQueue, loginExecutor);
+    }
+
+    public TwitchHelixResync getHelixResync() {
+        return helixResync;
+    }
+
+    public TwitchEventSubSubscriptions getEventSubSubscriptions() {
+        return eventSubSubscriptions;
+    }
+
+    public TwitchIdentityImport getIdentityImport() {
+        return identityImport;
+    }
+
+    /**
+     * Returns the resolved configuration of the IdP, rebuilding it if an admin changed the IdP or renamed its realm
+     * since it was cached.
+     */
+    private TwitchConfigSnapshot snapshot(KeycloakSession session, IdentityProviderModel model) {
+        String key = key(session.getContext().getRealm(), model);
+        String realm = TwitchMetrics.realmName(session);
+        TwitchConfigSnapshot snapshot = snapshots.get(key);
+        if (snapshot == null || !snapshot.matches(model) || !snapshot.getRealm().equals(realm)) {
+            snapshot = new TwitchConfigSnapshot(model, realm, config -> resilience.get(session, key, config));
+            snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the cached state of IdPs that are removed, by themselves or with their realm. Removals on other nodes
+     * are not seen here; their entries stay until this node shuts down.
+     */
+    private void onProviderEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+            RealmModel.IdentityProviderRemovedEvent removed = (RealmModel.IdentityProviderRemovedEvent) event;
+            evict(key(removed.getRealm(), removed.getRemovedIdentityProvider()));
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            String prefix = ((RealmModel.RealmRemovedEvent) event).getRealm().getId() + ":";
+            snapshots.keySet().stream().filter(key -> key.startsWith(prefix)).collect(Collectors.toList()).forEach(this::evict);
+        }
+    }
+
+    private void evict(String key) {
+        snapshots.remove(key);
+        resilience.remove(key);
+    }
+
+    private static String key(RealmModel realm, IdentityProviderModel model) {
+        // Aliases are only unique within a realm, and an IdP re-created under the same alias gets a new internal id
+        String idp = model.getInternalId() != null ? model.getInternalId() : model.getAlias();
+        return (realm != null ? realm.getId() : "") + ":" + idp;
     }
 
     @Override
-    public OAuth2IdentityProviderConfig createConfig() {
-        return new OAuth2IdentityProviderConfig();
+    public TwitchIdentityProviderConfig createConfig() {
+        return new TwitchIdentityProviderConfig();
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        ProviderConfigurationBuilder builder = ProviderConfigurationBuilder.create()
+                .property()
+                .name(TwitchIdentityProviderConfig.ID_TOKEN_CLAIMS)
+                .label("Use id_token claims")
+                .helpText("Build the identity from the locally verified id_token and only call the userinfo endpoint if a required claim is missing.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.JWKS_URL)
+                .label("JWKS URL")
+                .helpText("URL of the Twitch signing keys. When empty, it is read from the discovery document.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.DISCOVERY_URL)
+                .label("Discovery URL")
+                .helpText("URL of the Twitch OpenID Connect discovery document.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(TwitchIdentityProviderConfig.DEFAULT_DISCOVERY_URL)
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.ISSUER)
+                .label("Issuer")
+                .helpText("Expected issuer of Twitch id_tokens.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(TwitchIdentityProviderConfig.DEFAULT_ISSUER)
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.JWKS_REFRESH_INTERVAL)
+                .label("JWKS refresh interval")
+                .helpText("Seconds between background refreshes of the Twitch signing keys.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_JWKS_REFRESH_INTERVAL))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.DIAGNOSTICS)
+                .label("Diagnostics")
+                .helpText("Diagnostic logging for this provider: off, summary (one line per login step) or trace (token responses, profiles and attributes, with secrets masked).")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("off", "summary", "trace")
+                .defaultValue("off")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.DIAGNOSTICS_SAMPLE_RATE)
+                .label("Diagnostics trace sample rate")
+                .helpText("Fraction of requests, between 0 and 1, that are traced when diagnostics are set to trace.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("1.0")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.CONNECT_TIMEOUT)
+                .label("Connect timeout")
+                .helpText("Milliseconds to wait for a connection to Twitch.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_CONNECT_TIMEOUT))
+                .add();
+        for (TwitchEndpoint endpoint : TwitchEndpoint.values()) {
+            if (endpoint == TwitchEndpoint.JWKS) {
+                // Shared by IdPs, see fetchJwks
+                continue;
+            }
+            builder.property()
+                    .name(TwitchIdentityProviderConfig.timeoutKey(endpoint))
+                    .label("Timeout: " + endpoint.getKey())
+                    .helpText("Milliseconds to wait for a response from the Twitch " + endpoint.getKey() + " endpoint.")
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .defaultValue(String.valueOf(endpoint.getDefaultTimeoutMillis()))
+                    .add();
+        }
+        return builder
+                .property()
+                .name(TwitchIdentityProviderConfig.BREAKER_FAILURE_THRESHOLD)
+                .label("Circuit breaker failure threshold")
+                .helpText("Consecutive failed calls to a Twitch host after which logins fail fast without calling it. 0 disables the breaker.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_BREAKER_FAILURE_THRESHOLD))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.BREAKER_OPEN_SECONDS)
+                .label("Circuit breaker open duration")
+                .helpText("Seconds an open circuit breaker rejects calls before a single trial call is let through.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_BREAKER_OPEN_SECONDS))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.MAX_RETRIES)
+                .label("Max retries")
+                .helpText("Retries of failed userinfo, validate and Helix calls. The token request is never retried.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_MAX_RETRIES))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.RETRY_BACKOFF)
+                .label("Retry backoff")
+                .helpText("Milliseconds before the first retry, doubled for each further retry and randomized.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_RETRY_BACKOFF))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.MAX_CONCURRENT_REQUESTS)
+                .label("Max concurrent requests")
+                .helpText("Maximum concurrent calls to a Twitch host, lowered further when Twitch reports a low Ratelimit-Remaining.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_MAX_CONCURRENT_REQUESTS))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.RATE_LIMIT_MAX_WAIT)
+                .label("Rate limit max wait")
+                .helpText("Milliseconds a call waits for Twitch's rate limit to reset before it fails.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_RATE_LIMIT_MAX_WAIT))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.PROFILE_CACHE)
+                .label("Profile cache")
+                .helpText("Reuse the userinfo profile fetched with the same access token: off, local (in memory on each node) or cluster (shared through Keycloak's cluster cache).")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("off", "local", "cluster")
+                .defaultValue("off")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.PROFILE_CACHE_TTL)
+                .label("Profile cache TTL")
+                .helpText("Seconds a cached profile is reused.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_PROFILE_CACHE_TTL))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.PROFILE_CACHE_SIZE)
+                .label("Profile cache size")
+                .helpText("Maximum number of profiles kept in memory by the local profile cache.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_PROFILE_CACHE_SIZE))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.VALIDATE_URL)
+                .label("Validate URL")
+                .helpText("URL of the Twitch token validation endpoint, used to check tokens in token exchange.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(TwitchIdentityProviderConfig.DEFAULT_VALIDATE_URL)
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.VALIDATION_CACHE_SIZE)
+                .label("Validation cache size")
+                .helpText("Maximum number of validated Twitch tokens remembered in memory for token exchange.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_VALIDATION_CACHE_SIZE))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.VALIDATION_CACHE_MAX_TTL)
+                .label("Validation cache max TTL")
+                .helpText("Longest time in seconds a validated token is trusted before it is validated again. Twitch requires validation at least hourly.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_VALIDATION_CACHE_MAX_TTL))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.VALIDATION_EXPIRY_MARGIN)
+                .label("Validation expiry margin")
+                .helpText("Seconds before a token expires after which its cached validation is no longer used.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_VALIDATION_EXPIRY_MARGIN))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.INVALID_TOKEN_CACHE_TTL)
+                .label("Invalid token cache TTL")
+                .helpText("Seconds a token rejected by Twitch is rejected across the cluster without asking Twitch again.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_INVALID_TOKEN_CACHE_TTL))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.TOKEN_REFRESH)
+                .label("Refresh stored tokens")
+                .helpText("Refresh stored Twitch tokens in the background before they expire, and when they are read shortly before expiry. Requires 'Store tokens'.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.TOKEN_REFRESH_WINDOW)
+                .label("Token refresh window")
+                .helpText("Seconds before expiry at which stored tokens are refreshed in the background. Must be longer than the background refresh interval of the server, so that no token expires between two runs.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_TOKEN_REFRESH_WINDOW))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.TOKEN_REFRESH_MARGIN)
+                .label("Token refresh margin")
+                .helpText("Seconds before expiry at which a stored token is refreshed when it is read.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_TOKEN_REFRESH_MARGIN))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.TOKEN_REFRESH_BATCH_SIZE)
+                .label("Token refresh batch size")
+                .helpText("Users checked per transaction by the background token refresh.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_TOKEN_REFRESH_BATCH_SIZE))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.TOKEN_REFRESH_BATCH_PAUSE)
+                .label("Token refresh batch pause")
+                .helpText("Milliseconds the background token refresh pauses after a batch that refreshed tokens, to spread the load on Twitch.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_TOKEN_REFRESH_BATCH_PAUSE))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.APP_TOKEN)
+                .label("App access token")
+                .helpText("Obtain an app access token with the client credentials grant and share it across the cluster, for calls to the Twitch Helix API.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.APP_TOKEN_REFRESH_WINDOW)
+                .label("App token refresh window")
+                .helpText("Seconds before expiry at which the shared app access token is replaced.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_APP_TOKEN_REFRESH_WINDOW))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.HELIX_ENRICHMENT)
+                .label("Helix enrichment")
+                .helpText("Add the user's Helix users entry (broadcaster_type, created_at, description, view_count, ...) to the profile read by mappers. Failures are logged and do not fail the login. Bulk resyncs also require 'App access token'.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.LOGIN_FETCH_DEADLINE)
+                .label("Login fetch deadline")
+                .helpText("Milliseconds the userinfo and Helix calls of a login, which run concurrently, may take together. The login fails if userinfo does not answer in time; a late Helix answer is skipped.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(TwitchIdentityProviderConfig.DEFAULT_LOGIN_FETCH_DEADLINE))
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.HELIX_URL)
+                .label("Helix URL")
+                .helpText("Base URL of the Twitch Helix API.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(TwitchIdentityProviderConfig.DEFAULT_HELIX_URL)
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.ASYNC_ENRICHMENT)
+                .label("Asynchronous enrichment")
+                .helpText("Complete logins without calling Helix and enrich users in the background instead, in batches of up to 100 users per Helix request. Requires 'Helix enrichment' and 'App access token'.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.PROFILE_FIELDS)
+                .label("Profile fields")
+                .helpText("Comma-separated top-level profile fields kept for mappers during the login, e.g. sub,preferred_username,email,broadcaster_type. Other fields are dropped before the profile is stored in the authentication session. Empty keeps the whole profile.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.COMPACT_PROFILE)
+                .label("Compact profile")
+                .helpText("Store the profile kept for mappers compressed, and parse it only when a Twitch mapper reads it. Other mappers, such as the generic attribute importer, then do not see the profile.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(TwitchIdentityProviderConfig.EVENTSUB_SECRET)
+                .label("EventSub secret")
+                .helpText("Secret of 10 to 100 characters that Twitch signs EventSub notifications with, or a vault expression. Enables the EventSub webhook at /realms/{realm}/twitch/{alias}/eventsub; subscriptions are managed by the eventsub/subscriptions admin endpoint and require 'App access token'.")
+                .type(ProviderConfigProperty.PASSWORD)
+                .secret(true)
+                .add()
+                .build();
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+                .property()
+                .name(TwitchHttpClient.POOL_SIZE)
+                .helpText("Maximum connections to Twitch, shared by all Twitch identity providers.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchHttpClient.DEFAULT_POOL_SIZE)
+                .add()
+                .property()
+                .name(TwitchHttpClient.POOL_IDLE_TIMEOUT)
+                .helpText("Seconds after which idle connections to Twitch are closed.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchHttpClient.DEFAULT_POOL_IDLE_TIMEOUT)
+                .add()
+                .property()
+                .name(TwitchHttpClient.KEEP_ALIVE)
+                .helpText("Seconds a connection is kept alive when Twitch does not send a Keep-Alive header.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchHttpClient.DEFAULT_KEEP_ALIVE)
+                .add()
+                .property()
+                .name(TwitchTokenRefresher.INTERVAL)
+                .helpText("Seconds between background refreshes of stored Twitch tokens. Each run reads every user linked to a Twitch IdP with token refresh enabled, so keep it long, but shorter than the IdPs' token refresh window. 0 disables the background refresh.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchTokenRefresher.DEFAULT_INTERVAL)
+                .add()
+                .property()
+                .name(TwitchAppTokens.INTERVAL)
+                .helpText("Seconds between checks of the shared Twitch app access tokens. 0 disables the background refresh; tokens are then only obtained when first needed.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchAppTokens.DEFAULT_INTERVAL)
+                .add()
+                .property()
+                .name(TwitchEnrichmentQueue.QUEUE_SIZE)
+                .helpText("Maximum users waiting for background Helix enrichment on a node. Users beyond it are picked up by the next sweep.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchEnrichmentQueue.DEFAULT_QUEUE_SIZE)
+                .add()
+                .property()
+                .name(TwitchEnrichmentQueue.WORKERS)
+                .helpText("Threads processing the background Helix enrichment queue of a node.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchEnrichmentQueue.DEFAULT_WORKERS)
+                .add()
+                .property()
+                .name(TwitchEnrichmentQueue.SWEEP_INTERVAL)
+                .helpText("Seconds between sweeps that queue users still waiting for background Helix enrichment. 0 disables the sweep.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(TwitchEnrichmentQueue.DEFAULT_SWEEP_INTERVAL)
+                .add()
+                .property()
+                .name(LOGIN_THREADS)
+                .helpText("Maximum concurrent userinfo and Helix calls of logins on a node. Beyond it, logins make their calls one after the other.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue(DEFAULT_LOGIN_THREADS)
+                .add()
+                .build();
     }
 
     @Override
     public String getId() {
         return PROVIDER_ID;
     }
+
+    @Override
+    public void close() {
+        jwksCache.close();
+        tokenRefresher.close();
+        appTokens.close();
+        helixResync.close();
+        eventSubSubscriptions.close();
+        identityImport.close();
+        if (enrichmentQueue != null) {
+            enrichmentQueue.close();
+        }
+        if (loginExecutor != null) {
+            loginExecutor.close();
+        }
+        snapshots.clear();
+        resilience.close();
+        if (httpClient != null) {
+            httpClient.close();
+        }
+    }
 }
\ No newline at end of file
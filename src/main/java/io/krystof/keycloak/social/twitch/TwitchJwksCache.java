@@ -0,0 +1,181 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of Twitch id_token signing keys.
+ * Keys are fetched once per JWKS location and refreshed in the background when they get old, at the shortest
+ * refresh interval of the IdPs that use the location. An unknown key id triggers an immediate refresh, rate limited
+ * so that forged tokens cannot be used to hammer the JWKS endpoint. Since a location is shared by IdPs, keys are
+ * fetched with a fetcher of the cache rather than of one IdP.
+ */
+public class TwitchJwksCache {
+
+    private static final Logger logger = Logger.getLogger(TwitchJwksCache.class);
+
+    private static final long MIN_FORCED_REFRESH_MILLIS = 10_000;
+
+    /**
+     * Fetches a JSON document; it must be safe to use from the background refresh thread.
+     */
+    @FunctionalInterface
+    public interface Fetcher {
+        JsonNode get(String url) throws IOException;
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Fetcher fetcher;
+    private final ScheduledExecutorService refresher;
+
+    public TwitchJwksCache(Fetcher fetcher) {
+        this.fetcher = fetcher;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "twitch-jwks-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the RSA signing key with the given key id.
+     *
+     * @return the key, or null if the JWKS does not contain it even after a refresh
+     */
+    public PublicKey getKey(String kid, TwitchIdentityProviderConfig config) throws IOException {
+        Entry entry = entries.computeIfAbsent(locationOf(config), location -> new Entry(config));
+        long refreshInterval = config.getJwksRefreshInterval();
+        if (refreshInterval > 0 && refreshInterval < entry.refreshIntervalSeconds) {
+            scheduleRefresh(entry, refreshInterval);
+        }
+
+        Map<String, PublicKey> keys = entry.keys;
+        if (keys == null) {
+            synchronized (entry) {
+                if (entry.keys == null) {
+                    load(entry);
+                }
+                keys = entry.keys;
+            }
+        }
+
+        PublicKey key = keys.get(kid);
+        if (key != null) {
+            return key;
+        }
+
+        // Twitch rotated its keys, or the token is not signed by Twitch
+        synchronized (entry) {
+            key = entry.keys.get(kid);
+            if (key == null && Time.currentTimeMillis() - entry.fetchedAt >= MIN_FORCED_REFRESH_MILLIS) {
+                logger.debugf("Key id %s not found in cached Twitch JWKS, refreshing", kid);
+                load(entry);
+                key = entry.keys.get(kid);
+            }
+        }
+        return key;
+    }
+
+    public void close() {
+        refresher.shutdownNow();
+        entries.clear();
+    }
+
+    /**
+     * Schedules the background refresh of the entry, or reschedules it if the interval is shorter than its current one.
+     */
+    private void scheduleRefresh(Entry entry, long intervalSeconds) {
+        synchronized (entry) {
+            if (intervalSeconds >= entry.refreshIntervalSeconds) {
+                return;
+            }
+            if (entry.refresh != null) {
+                entry.refresh.cancel(false);
+            }
+            entry.refreshIntervalSeconds = intervalSeconds;
+            entry.refresh = refresher.scheduleWithFixedDelay(() -> {
+                try {
+                    synchronized (entry) {
+                        load(entry);
+                    }
+                } catch (Exception e) {
+                    // Keep serving the previous keys, an unknown kid will retry on the request path
+                    logger.warnf(e, "Background refresh of Twitch JWKS from %s failed", entry.location);
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void load(Entry entry) throws IOException {
+        String jwksUrl = entry.location;
+        if (entry.discovery) {
+            JsonNode metadata = fetcher.get(entry.location);
+            jwksUrl = metadata.path("jwks_uri").asText(null);
+            if (jwksUrl == null) {
+                throw new IOException("No jwks_uri in Twitch discovery document " + entry.location);
+            }
+        }
+
+        JsonNode jwks = fetcher.get(jwksUrl);
+        entry.keys = parseKeys(jwks);
+        entry.fetchedAt = Time.currentTimeMillis();
+        logger.debugf("Loaded %d Twitch signing keys from %s", entry.keys.size(), jwksUrl);
+    }
+
+    private static String locationOf(TwitchIdentityProviderConfig config) {
+        String jwksUrl = config.getJwksUrl();
+        return jwksUrl != null ? jwksUrl : config.getDiscoveryUrl();
+    }
+
+    private static final class Entry {
+
+        private final String location;
+        private final boolean discovery;
+        private volatile long refreshIntervalSeconds = Long.MAX_VALUE;
+        private ScheduledFuture<?> refresh;
+        private volatile Map<String, PublicKey> keys;
+        private volatile long fetchedAt;
+
+        private Entry(TwitchIdentityProviderConfig config) {
+            this.location = locationOf(config);
+            this.discovery = config.getJwksUrl() == null;
+        }
+    }
+
+    static Map<String, PublicKey> parseKeys(JsonNode jwks) throws IOException {
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (JsonNode jwk : jwks.path("keys")) {
+            String use = jwk.path("use").asText("sig");
+            if (!"RSA".equals(jwk.path("kty").asText()) || !"sig".equals(use)) {
+                continue;
+            }
+            try {
+                Base64.Decoder decoder = Base64.getUrlDecoder();
+                BigInteger modulus = new BigInteger(1, decoder.decode(jwk.path("n").asText()));
+                BigInteger exponent = new BigInteger(1, decoder.decode(jwk.path("e").asText()));
+                PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+                keys.put(jwk.path("kid").asText(""), key);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                throw new IOException("Invalid RSA key in Twitch JWKS", e);
+            }
+        }
+        return Collections.unmodifiableMap(keys);
+    }
+}
@@ -0,0 +1,64 @@
+package io.krystof.keycloak.social.twitch;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the concurrent Twitch calls of logins, each on a thread of its own.
+ * <p>
+ * Threads are not pooled: they are virtual threads on Java 21 and later, which are cheap to start and must not be
+ * reused. A semaphore bounds the calls in flight on the node. A login reserves permits for all its calls up front,
+ * so that it either runs them all concurrently or, when the node is saturated, makes them itself one after the
+ * other, rather than running some of them inline while others wait.
+ */
+public class TwitchLoginExecutor {
+
+    private final Semaphore permits;
+    private final ThreadFactory threadFactory;
+    private volatile boolean closed;
+
+    public TwitchLoginExecutor(int maxConcurrentCalls) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrentCalls));
+        this.threadFactory = TwitchThreads.factory("twitch-login-");
+    }
+
+    /**
+     * Reserves permits for {@code calls} calls, each to be used by one {@link #start(Callable)}.
+     *
+     * @return false if fewer permits are free, in which case none are taken
+     */
+    public boolean tryReserve(int calls) {
+        return !closed && permits.tryAcquire(calls);
+    }
+
+    /**
+     * Starts a call on a new thread with a permit reserved by {@link #tryReserve(int)}, which is released when the
+     * call returns.
+     */
+    public <T> Future<T> start(Callable<T> call) {
+        FutureTask<T> task = new FutureTask<>(call) {
+            @Override
+            public void run() {
+                try {
+                    super.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+        try {
+            threadFactory.newThread(task).start();
+        } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+        return task;
+    }
+
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,286 @@
+package io.krystof.keycloak.social.twitch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer metrics for Twitch broker logins.
+ * Meters are registered in the global registry, which Keycloak exposes on its metrics endpoint,
+ * and are tagged with the realm name and IdP alias. Counters and timers are registered once per tag set and
+ * looked up from a map afterwards, so that recording does not build and register a meter on every call.
+ */
+public final class TwitchMetrics {
+
+    public static final String PHASE_AUTHORIZATION_URL = "authorization_url";
+    public static final String PHASE_TOKEN_EXCHANGE = "token_exchange";
+    public static final String PHASE_TOKEN_RESPONSE = "token_response";
+    public static final String PHASE_ID_TOKEN = "id_token";
+    public static final String PHASE_USERINFO = "userinfo";
+    public static final String PHASE_TOKEN_VALIDATION = "token_validation";
+    public static final String PHASE_TOKEN_REFRESH = "token_refresh";
+    public static final String PHASE_APP_TOKEN = "app_token";
+    public static final String PHASE_HELIX_USERS = "helix_users";
+    public static final String PHASE_EVENTSUB_SUBSCRIPTIONS = "eventsub_subscriptions";
+    public static final String PHASE_PROFILE_EXTRACTION = "profile_extraction";
+    public static final String PHASE_USERNAME_MAPPER = "username_mapper";
+    public static final String PHASE_ATTRIBUTE_MAPPER = "attribute_mapper";
+
+    public static final String REJECTED_CIRCUIT_OPEN = "circuit_open";
+    public static final String REJECTED_RATE_LIMITED = "rate_limited";
+
+    public static final String CACHE_HIT = "hit";
+    public static final String CACHE_MISS = "miss";
+    public static final String CACHE_EXPIRED = "expired";
+    public static final String CACHE_EVICTED = "evicted";
+
+    public static final String ATTRIBUTE_WRITTEN = "written";
+    public static final String ATTRIBUTE_UNCHANGED = "unchanged";
+
+    public static final String ENRICHMENT_QUEUED = "queued";
+    public static final String ENRICHMENT_COALESCED = "coalesced";
+    public static final String ENRICHMENT_REJECTED = "rejected";
+    public static final String ENRICHMENT_PROCESSED = "processed";
+    public static final String ENRICHMENT_DEFERRED = "deferred";
+    public static final String ENRICHMENT_FAILED = "failed";
+
+    public static final String EVENTSUB_APPLIED = "applied";
+    public static final String EVENTSUB_UNKNOWN_USER = "unknown_user";
+    public static final String EVENTSUB_DUPLICATE = "duplicate";
+    public static final String EVENTSUB_REJECTED = "rejected";
+    public static final String EVENTSUB_IGNORED = "ignored";
+
+    private static final String PHASE_TIMER = "keycloak.twitch.login.phase";
+    private static final String HTTP_RESPONSES = "keycloak.twitch.http.responses";
+    private static final String ERRORS = "keycloak.twitch.errors";
+    private static final String USERNAME_SOURCE = "keycloak.twitch.username.source";
+    private static final String IDENTITY_SOURCE = "keycloak.twitch.identity.source";
+    private static final String CIRCUIT_STATE = "keycloak.twitch.circuit.state";
+    private static final String RATE_LIMIT_REMAINING = "keycloak.twitch.ratelimit.remaining";
+    private static final String HTTP_REJECTED = "keycloak.twitch.http.rejected";
+    private static final String HTTP_RETRIES = "keycloak.twitch.http.retries";
+    private static final String CACHE = "keycloak.twitch.cache";
+    private static final String POOL_CONNECTIONS = "keycloak.twitch.http.pool.connections";
+    private static final String POOL_PENDING = "keycloak.twitch.http.pool.pending";
+    private static final String POOL_MAX = "keycloak.twitch.http.pool.max";
+    private static final String ATTRIBUTE_WRITES = "keycloak.twitch.attribute.writes";
+    private static final String ENRICHMENT = "keycloak.twitch.enrichment";
+    private static final String ENRICHMENT_LAG = "keycloak.twitch.enrichment.lag";
+    private static final String ENRICHMENT_QUEUE_SIZE = "keycloak.twitch.enrichment.queue.size";
+    private static final String ENRICHMENT_QUEUE_OLDEST = "keycloak.twitch.enrichment.queue.oldest";
+    private static final String EVENTSUB_MESSAGES = "keycloak.twitch.eventsub.messages";
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+    // Counters and timers by name and tags
+    private static final Map<String, Meter> registered = new ConcurrentHashMap<>();
+
+    private TwitchMetrics() {
+    }
+
+    public static void recordPhase(String realm, String alias, String phase, long startNanos, boolean success) {
+        timer(PHASE_TIMER, "Duration of a phase of a Twitch broker login",
+                "realm", realm, "idp", alias, "phase", phase, "outcome", success ? "success" : "error")
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordHttpStatus(String realm, String alias, String endpoint, int status) {
+        counter(HTTP_RESPONSES, "HTTP responses received from Twitch",
+                "realm", realm, "idp", alias, "endpoint", endpoint, "status", String.valueOf(status))
+                .increment();
+    }
+
+    public static void recordError(String realm, String alias, String phase, Throwable error) {
+        counter(ERRORS, "Errors during Twitch broker logins",
+                "realm", realm, "idp", alias, "phase", phase, "error", error.getClass().getSimpleName())
+                .increment();
+    }
+
+    /**
+     * Counts which profile field the username was taken from: preferred_username, email_prefix or sub.
+     */
+    public static void recordUsernameSource(String realm, String alias, String source) {
+        counter(USERNAME_SOURCE, "Source of the username of Twitch brokered identities",
+                "realm", realm, "idp", alias, "source", source)
+                .increment();
+    }
+
+    /**
+     * Counts where the identity claims came from: id_token, userinfo, or userinfo after an incomplete id_token.
+     */
+    public static void recordIdentitySource(String realm, String alias, String source) {
+        counter(IDENTITY_SOURCE, "Source of the claims of Twitch brokered identities",
+                "realm", realm, "idp", alias, "source", source)
+                .increment();
+    }
+
+    /**
+     * Counts calls that were not sent to Twitch because the circuit breaker was open or the rate limit exhausted.
+     */
+    public static void recordRejected(String realm, String alias, String endpoint, String reason) {
+        counter(HTTP_REJECTED, "Calls to Twitch rejected without being sent",
+                "realm", realm, "idp", alias, "endpoint", endpoint, "reason", reason)
+                .increment();
+    }
+
+    public static void recordRetry(String realm, String alias, String endpoint) {
+        counter(HTTP_RETRIES, "Retried calls to Twitch",
+                "realm", realm, "idp", alias, "endpoint", endpoint)
+                .increment();
+    }
+
+    /**
+     * Counts lookups (hit, miss) and drops (expired, evicted) of a provider cache.
+     */
+    public static void recordCache(String realm, String alias, String cache, String result) {
+        counter(CACHE, "Lookups and evictions of Twitch provider caches",
+                "realm", realm, "idp", alias, "cache", cache, "result", result)
+                .increment();
+    }
+
+    /**
+     * Publishes the breaker state as 0 (closed), 1 (half open) or 2 (open).
+     *
+     * @return the gauge, to be removed with {@link #remove(List)} when the breaker is dropped
+     */
+    public static Meter registerCircuitBreaker(String realm, String alias, String host, TwitchCircuitBreaker breaker) {
+        return Gauge.builder(CIRCUIT_STATE, breaker, b -> b.getState().ordinal())
+                .description("State of the circuit breaker for a Twitch host: 0 closed, 1 half open, 2 open")
+                .tag("realm", realm)
+                .tag("idp", alias)
+                .tag("host", host)
+                .register(registry);
+    }
+
+    /**
+     * @return the gauge, to be removed with {@link #remove(List)} when the limiter is dropped
+     */
+    public static Meter registerRateLimiter(String realm, String alias, String host, TwitchRateLimiter limiter) {
+        return Gauge.builder(RATE_LIMIT_REMAINING, limiter, TwitchRateLimiter::getRemaining)
+                .description("Requests left in the current Twitch rate limit window, -1 if unknown")
+                .tag("realm", realm)
+                .tag("idp", alias)
+                .tag("host", host)
+                .register(registry);
+    }
+
+    /**
+     * Publishes the leased and idle connections, waiting requests and size of the Twitch connection pool.
+     *
+     * @return the gauges, to be removed with {@link #remove(List)} when the pool is closed
+     */
+    public static List<Meter> registerConnectionPool(PoolingHttpClientConnectionManager pool) {
+        return List.of(
+                Gauge.builder(POOL_CONNECTIONS, pool, p -> p.getTotalStats().getLeased())
+                        .description("Connections of the Twitch HTTP client pool")
+                        .tag("state", "leased")
+                        .register(registry),
+                Gauge.builder(POOL_CONNECTIONS, pool, p -> p.getTotalStats().getAvailable())
+                        .description("Connections of the Twitch HTTP client pool")
+                        .tag("state", "idle")
+                        .register(registry),
+                Gauge.builder(POOL_PENDING, pool, p -> p.getTotalStats().getPending())
+                        .description("Requests waiting for a connection from the Twitch HTTP client pool")
+                        .register(registry),
+                Gauge.builder(POOL_MAX, pool, p -> p.getTotalStats().getMax())
+                        .description("Maximum connections of the Twitch HTTP client pool")
+                        .register(registry));
+    }
+
+    /**
+     * Counts mapped user attributes that were written because they changed, or skipped because they did not.
+     */
+    public static void recordAttributeWrite(String realm, String alias, String result) {
+        counter(ATTRIBUTE_WRITES, "User attribute updates by the Twitch attribute mapper",
+                "realm", realm, "idp", alias, "result", result)
+                .increment();
+    }
+
+    /**
+     * Counts users passing through the background enrichment queue, by what happened to them.
+     */
+    public static void recordEnrichment(String realm, String alias, String result, int users) {
+        counter(ENRICHMENT, "Users queued for and processed by background Helix enrichment",
+                "realm", realm, "idp", alias, "result", result)
+                .increment(users);
+    }
+
+    /**
+     * Records the time from a login to the user's background enrichment.
+     */
+    public static void recordEnrichmentLag(String realm, String alias, long millis) {
+        timer(ENRICHMENT_LAG, "Time users wait in the background enrichment queue",
+                "realm", realm, "idp", alias)
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the gauges, to be removed with {@link #remove(List)} when the queue is closed
+     */
+    public static List<Meter> registerEnrichmentQueue(TwitchEnrichmentQueue queue) {
+        return List.of(
+                Gauge.builder(ENRICHMENT_QUEUE_SIZE, queue, TwitchEnrichmentQueue::size)
+                        .description("Users waiting in the background enrichment queue of this node")
+                        .register(registry),
+                Gauge.builder(ENRICHMENT_QUEUE_OLDEST, queue, TwitchEnrichmentQueue::oldestAgeMillis)
+                        .description("Milliseconds the longest waiting user has been in the background enrichment queue")
+                        .baseUnit("milliseconds")
+                        .register(registry));
+    }
+
+    /**
+     * Counts EventSub messages received by the webhook, by message or subscription type and outcome.
+     */
+    public static void recordEventSub(String realm, String alias, String type, String result) {
+        counter(EVENTSUB_MESSAGES, "EventSub messages received from Twitch",
+                "realm", realm, "idp", alias, "type", type, "result", result)
+                .increment();
+    }
+
+    public static void remove(List<Meter> meters) {
+        meters.forEach(registry::remove);
+    }
+
+    /**
+     * @param tags alternating tag keys and values
+     */
+    private static Counter counter(String name, String description, String... tags) {
+        return (Counter) registered.computeIfAbsent(meterKey(name, tags),
+                key -> Counter.builder(name).description(description).tags(tags).register(registry));
+    }
+
+    /**
+     * @param tags alternating tag keys and values
+     */
+    private static Timer timer(String name, String description, String... tags) {
+        return (Timer) registered.computeIfAbsent(meterKey(name, tags),
+                key -> Timer.builder(name).description(description).tags(tags).publishPercentileHistogram().register(registry));
+    }
+
+    private static String meterKey(String name, String[] tags) {
+        StringBuilder key = new StringBuilder(name);
+        for (String tag : tags) {
+            key.append('\0').append(tag);
+        }
+        return key.toString();
+    }
+
+    public static String realmName(KeycloakSession session) {
+        RealmModel realm = session.getContext().getRealm();
+        return realm == null ? "unknown" : realm.getName();
+    }
+
+    public static String realmName(RealmModel realm) {
+        return realm == null ? "unknown" : realm.getName();
+    }
+}
@@ -0,0 +1,165 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderConfigProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps many Twitch profile fields to user attributes with one mapper.
+ * The rules are compiled once per mapper configuration and evaluated in a single pass over the stored profile,
+ * so adding mappings does not add per-mapper lookups to the login.
+ */
+public class TwitchMultiAttributeMapper extends AbstractIdentityProviderMapper {
+
+    public static final String PROVIDER_ID = "twitch-multi-attribute-mapper";
+    protected static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+
+    private static final String[] COMPATIBLE_PROVIDERS = {TwitchIdentityProviderFactory.PROVIDER_ID};
+
+    public static final String RULES = "rules";
+
+    // Compiled rules by mapper id, recompiled when the configured rules change. Bounded, and entries expire so that
+    // the rules of deleted mappers do not stay
+    private static final TwitchTtlCache<TwitchAttributeRules> COMPILED = new TwitchTtlCache<>(1000, 3_600_000, expired -> { });
+
+    static {
+        ProviderConfigProperty property;
+        property = new ProviderConfigProperty();
+        property.setName(RULES);
+        property.setLabel("Rules");
+        property.setHelpText("Profile fields to map, as JSON pointers (e.g. /broadcaster_type or /scopes) with optional transforms, "
+                + "to user attribute names. Transforms follow the pointer: /scopes|join:, or /view_count|int. "
+                + "Supported transforms: join:SEPARATOR, int, bool, lowercase, uppercase, truncate:N. They are always applied in this order, "
+                + "whatever order they are listed in: int, bool, lowercase, uppercase and truncate to each value, then join. "
+                + "Arrays map to multi-valued attributes unless joined.");
+        property.setType(ProviderConfigProperty.MAP_TYPE);
+        configProperties.add(property);
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String[] getCompatibleProviders() {
+        return COMPATIBLE_PROVIDERS;
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return "Twitch Mapper";
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "Twitch Multi-Field Attribute Mapper";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Maps several Twitch profile fields to user attributes, using JSON pointers with optional transforms.";
+    }
+
+    @Override
+    public boolean supportsSyncMode(IdentityProviderSyncMode syncMode) {
+        return true;
+    }
+
+    @Override
+    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        long start = System.nanoTime();
+        TwitchFlightRecorder.MapperEvent mapperEvent = TwitchFlightRecorder.beginMapper("importNewUser");
+        boolean success = false;
+        try {
+            compiledRules(mapperModel).apply(TwitchProfiles.read(context)).forEach((attribute, values) -> {
+                if (!values.isEmpty()) {
+                    user.setAttribute(attribute, values);
+                }
+            });
+            success = true;
+        } finally {
+            TwitchMetrics.recordPhase(TwitchMetrics.realmName(realm), mapperModel.getIdentityProviderAlias(),
+                    TwitchMetrics.PHASE_ATTRIBUTE_MAPPER, start, success);
+            TwitchFlightRecorder.endMapper(mapperEvent, realm, mapperModel);
+        }
+    }
+
+    @Override
+    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        long start = System.nanoTime();
+        TwitchFlightRecorder.MapperEvent mapperEvent = TwitchFlightRecorder.beginMapper("updateBrokeredUser");
+        boolean success = false;
+        try {
+            // Helix fields are not in the login profile with asynchronous enrichment; the background enrichment updates them
+            boolean keepMissing = context.getIdpConfig() instanceof TwitchIdentityProviderConfig
+                    && ((TwitchIdentityProviderConfig) context.getIdpConfig()).isHelixEnrichment()
+                    && ((TwitchIdentityProviderConfig) context.getIdpConfig()).isAsyncEnrichment();
+            update(session, realm, user, mapperModel, context, keepMissing);
+            success = true;
+        } finally {
+            TwitchMetrics.recordPhase(TwitchMetrics.realmName(realm), mapperModel.getIdentityProviderAlias(),
+                    TwitchMetrics.PHASE_ATTRIBUTE_MAPPER, start, success);
+            TwitchFlightRecorder.endMapper(mapperEvent, realm, mapperModel);
+        }
+    }
+
+    @Override
+    public void updateBrokeredUserLegacy(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        updateBrokeredUser(session, realm, user, mapperModel, context);
+    }
+
+    /**
+     * Applies the rules to an existing user from a profile obtained outside of a login, e.g. by a Helix resync.
+     * Attributes the profile has no value for are left as they are.
+     *
+     * @return true if the profile had a value for any rule
+     */
+    public boolean updateFromProfile(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        return update(session, realm, user, mapperModel, context, true);
+    }
+
+    private static boolean update(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel,
+                                  BrokeredIdentityContext context, boolean keepMissing) {
+        boolean mapped = false;
+        for (Map.Entry<String, List<String>> attribute : compiledRules(mapperModel).apply(TwitchProfiles.read(context)).entrySet()) {
+            if (attribute.getValue().isEmpty() && keepMissing) {
+                continue;
+            }
+            mapped |= !attribute.getValue().isEmpty();
+            TwitchUserAttributeMapper.writeIfChanged(session, realm, user, mapperModel.getIdentityProviderAlias(),
+                    attribute.getKey(), attribute.getValue());
+        }
+        return mapped;
+    }
+
+    private static TwitchAttributeRules compiledRules(IdentityProviderMapperModel mapperModel) {
+        String source = mapperModel.getConfig().get(RULES);
+        String mapperId = mapperModel.getId();
+        if (mapperId == null) {
+            return TwitchAttributeRules.compile(source);
+        }
+
+        TwitchAttributeRules compiled = COMPILED.get(mapperId);
+        if (compiled == null || !String.valueOf(compiled.getSource()).equals(String.valueOf(source))) {
+            // New mapper or the rules were edited in the admin console
+            compiled = TwitchAttributeRules.compile(source);
+            COMPILED.put(mapperId, null, compiled);
+        }
+        return compiled;
+    }
+}
@@ -0,0 +1,163 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Short-lived cache of Twitch userinfo profiles of one identity provider.
+ * <p>
+ * Profiles are keyed by a SHA-256 hash of the access token they were fetched with, never by the token itself,
+ * and indexed by subject so that all profiles of a user can be dropped when the user changes on Twitch.
+ * In {@link Mode#LOCAL} mode profiles are kept in memory on each node; in {@link Mode#CLUSTER} mode they are
+ * stored in Keycloak's single-use object store, which is replicated across the cluster.
+ * <p>
+ * Cached profiles are shared between requests and must not be modified.
+ */
+public class TwitchProfileCache {
+
+    private static final Logger logger = Logger.getLogger(TwitchProfileCache.class);
+
+    public enum Mode {
+        OFF, LOCAL, CLUSTER
+    }
+
+    private static final String CACHE_NAME = "profile";
+    private static final String KEY_PREFIX = "twitch-profile:";
+    private static final String SUBJECT_KEY_PREFIX = "twitch-profile-sub:";
+    private static final String NOTE_PROFILE = "profile";
+    private static final String NOTE_SUBJECT = "sub";
+    private static final String NOTE_CACHED_AT = "cachedAt";
+    private static final String NOTE_INVALIDATED_AT = "invalidatedAt";
+
+    private final String realm;
+    private final String alias;
+    private final String idpKey;
+    private final Mode mode;
+    private final long ttlSeconds;
+    private final TwitchTtlCache<JsonNode> local;
+
+    private TwitchProfileCache(String realm, TwitchIdentityProviderConfig config, Mode mode) {
+        this.realm = realm;
+        this.alias = config.getAlias();
+        this.idpKey = config.getInternalId() != null ? config.getInternalId() : config.getAlias();
+        this.mode = mode;
+        this.ttlSeconds = Math.max(1, config.getProfileCacheTtl());
+        this.local = mode == Mode.LOCAL
+                ? new TwitchTtlCache<>(Math.max(1, config.getProfileCacheSize()), ttlSeconds * 1000, expired ->
+                        TwitchMetrics.recordCache(realm, alias, CACHE_NAME, expired ? TwitchMetrics.CACHE_EXPIRED : TwitchMetrics.CACHE_EVICTED))
+                : null;
+    }
+
+    /**
+     * @return the cache configured for the IdP, or null if profile caching is off
+     */
+    public static TwitchProfileCache create(String realm, TwitchIdentityProviderConfig config) {
+        Mode mode = config.getProfileCacheMode();
+        return mode == Mode.OFF ? null : new TwitchProfileCache(realm, config, mode);
+    }
+
+    public static Mode parseMode(String value) {
+        if (value == null || value.isEmpty()) {
+            return Mode.OFF;
+        }
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Mode.OFF;
+        }
+    }
+
+    /**
+     * @return the profile fetched earlier with the access token, or null
+     */
+    public JsonNode get(KeycloakSession session, String accessToken) {
+        String key = KEY_PREFIX + idpKey + ":" + hash(accessToken);
+        JsonNode profile = mode == Mode.LOCAL ? local.get(key) : getShared(session, key);
+        TwitchMetrics.recordCache(realm, alias, CACHE_NAME, profile != null ? TwitchMetrics.CACHE_HIT : TwitchMetrics.CACHE_MISS);
+        return profile;
+    }
+
+    public void put(KeycloakSession session, String accessToken, JsonNode profile) {
+        String key = KEY_PREFIX + idpKey + ":" + hash(accessToken);
+        String subject = profile.path("sub").asText(null);
+        if (mode == Mode.LOCAL) {
+            local.put(key, subject, profile);
+            return;
+        }
+        Map<String, String> notes = new HashMap<>();
+        notes.put(NOTE_PROFILE, profile.toString());
+        notes.put(NOTE_CACHED_AT, String.valueOf(System.currentTimeMillis()));
+        if (subject != null) {
+            notes.put(NOTE_SUBJECT, subject);
+        }
+        session.singleUseObjects().put(key, ttlSeconds, notes);
+    }
+
+    /**
+     * Drops all cached profiles of the Twitch user.
+     */
+    public void invalidateSubject(KeycloakSession session, String subject) {
+        if (mode == Mode.LOCAL) {
+            local.removeByIndex(subject);
+            return;
+        }
+        // Entries cannot be looked up by subject in the shared store, so they are rejected when read instead
+        session.singleUseObjects().put(SUBJECT_KEY_PREFIX + idpKey + ":" + subject, ttlSeconds,
+                Map.of(NOTE_INVALIDATED_AT, String.valueOf(System.currentTimeMillis())));
+    }
+
+    private JsonNode getShared(KeycloakSession session, String key) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        Map<String, String> notes = store.get(key);
+        if (notes == null || notes.get(NOTE_PROFILE) == null) {
+            return null;
+        }
+
+        String subject = notes.get(NOTE_SUBJECT);
+        if (subject != null) {
+            Map<String, String> invalidation = store.get(SUBJECT_KEY_PREFIX + idpKey + ":" + subject);
+            if (invalidation != null
+                    && parseLong(invalidation.get(NOTE_INVALIDATED_AT)) >= parseLong(notes.get(NOTE_CACHED_AT))) {
+                store.remove(key);
+                return null;
+            }
+        }
+
+        try {
+            return JsonSerialization.mapper.readTree(notes.get(NOTE_PROFILE));
+        } catch (IOException e) {
+            logger.debugf(e, "Dropping unreadable cached Twitch profile");
+            store.remove(key);
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String hash(String accessToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
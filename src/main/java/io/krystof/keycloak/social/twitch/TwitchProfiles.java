@@ -0,0 +1,176 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage of the Twitch profile that mappers read from the {@link BrokeredIdentityContext}.
+ * <p>
+ * The context is serialized into the authentication session, which is replicated between nodes during broker
+ * logins. The profile can therefore be trimmed to the fields of the IdP's allowlist, and stored in compact form:
+ * as a deflated, Base64 encoded string under {@link #COMPACT_PROFILE} instead of a {@link JsonNode} under
+ * {@link AbstractJsonUserAttributeMapper#CONTEXT_JSON_NODE}. A compact profile is only parsed when a Twitch mapper
+ * {@link #read(BrokeredIdentityContext) reads} it; mappers of other providers do not see it.
+ */
+public final class TwitchProfiles {
+
+    private static final Logger logger = Logger.getLogger(TwitchProfiles.class);
+
+    public static final String COMPACT_PROFILE = "twitch.profile.compact";
+
+    // Small profiles do not shrink when deflated and are kept as JSON
+    private static final String DEFLATED = "z:";
+    private static final String PLAIN = "j:";
+
+    private TwitchProfiles() {
+    }
+
+    /**
+     * @return the fields as an unmodifiable allowlist that always keeps {@code sub}, or an empty set to keep everything
+     */
+    public static Set<String> allowlist(Set<String> fields) {
+        if (fields.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> allowlist = new LinkedHashSet<>(fields);
+        allowlist.add("sub");
+        return Collections.unmodifiableSet(allowlist);
+    }
+
+    /**
+     * @return whether the allowlist keeps the field
+     */
+    public static boolean isRetained(Set<String> fields, String field) {
+        return fields.isEmpty() || fields.contains(field);
+    }
+
+    /**
+     * @return a copy of the profile with only the top-level fields of the allowlist, or the profile itself if it keeps everything
+     */
+    public static JsonNode retain(JsonNode profile, Set<String> fields) {
+        if (fields.isEmpty() || !profile.isObject()) {
+            return profile;
+        }
+        ObjectNode retained = JsonSerialization.mapper.createObjectNode();
+        Iterator<String> names = profile.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (fields.contains(name)) {
+                retained.set(name, profile.get(name));
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Stores the allowed fields of the profile for the mappers of the IdP.
+     */
+    public static void store(BrokeredIdentityContext context, JsonNode profile, Set<String> fields, boolean compact, String alias) {
+        JsonNode retained = retain(profile, fields);
+        if (compact) {
+            context.getContextData().put(COMPACT_PROFILE, encode(retained));
+        } else {
+            AbstractJsonUserAttributeMapper.storeUserProfileForMapper(context, retained, alias);
+        }
+    }
+
+    /**
+     * @return the profile stored for mappers, or null if there is none
+     */
+    public static JsonNode read(BrokeredIdentityContext context) {
+        Object stored = context.getContextData().get(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE);
+        if (stored instanceof JsonNode) {
+            return (JsonNode) stored;
+        }
+        Object compact = context.getContextData().get(COMPACT_PROFILE);
+        return compact instanceof String ? decode((String) compact) : null;
+    }
+
+    /**
+     * Runs code that reads the profile from {@link AbstractJsonUserAttributeMapper#CONTEXT_JSON_NODE}, such as the
+     * generic JSON mapper logic, with a compact profile temporarily expanded there.
+     */
+    public static void withExpanded(BrokeredIdentityContext context, Runnable action) {
+        if (context.getContextData().containsKey(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE)
+                || !context.getContextData().containsKey(COMPACT_PROFILE)) {
+            action.run();
+            return;
+        }
+        JsonNode profile = read(context);
+        if (profile != null) {
+            context.getContextData().put(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE, profile);
+        }
+        try {
+            action.run();
+        } finally {
+            context.getContextData().remove(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE);
+        }
+    }
+
+    static String encode(JsonNode profile) {
+        byte[] json = profile.toString().getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(json);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            String deflated = Base64.getEncoder().withoutPadding().encodeToString(out.toByteArray());
+            if (deflated.length() < json.length) {
+                return DEFLATED + deflated;
+            }
+        } finally {
+            deflater.end();
+        }
+        return PLAIN + new String(json, StandardCharsets.UTF_8);
+    }
+
+    static JsonNode decode(String compact) {
+        try {
+            if (compact.startsWith(PLAIN)) {
+                return JsonSerialization.mapper.readTree(compact.substring(PLAIN.length()));
+            }
+            if (compact.startsWith(DEFLATED)) {
+                byte[] deflated = Base64.getDecoder().decode(compact.substring(DEFLATED.length()));
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(deflated);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+                    byte[] buffer = new byte[1024];
+                    while (!inflater.finished()) {
+                        int length = inflater.inflate(buffer);
+                        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        out.write(buffer, 0, length);
+                    }
+                    return JsonSerialization.mapper.readTree(out.toByteArray());
+                } finally {
+                    inflater.end();
+                }
+            }
+        } catch (IOException | DataFormatException | IllegalArgumentException e) {
+            logger.warnf("Ignoring unreadable compact Twitch profile: %s", e.getMessage());
+        }
+        return null;
+    }
+}
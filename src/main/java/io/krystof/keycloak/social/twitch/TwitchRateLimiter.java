@@ -0,0 +1,127 @@
+package io.krystof.keycloak.social.twitch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits concurrent calls to one Twitch host.
+ * <p>
+ * The limit is the configured maximum, lowered to the number of requests Twitch still allows in the current
+ * window as reported by the {@code Ratelimit-Remaining} and {@code Ratelimit-Reset} headers. When the budget
+ * is used up, callers wait for the reset for at most the configured time and are then rejected.
+ */
+public class TwitchRateLimiter {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private volatile int maxConcurrent;
+    private int inFlight;
+    private int remaining = -1;
+    private long resetMillis;
+
+    public TwitchRateLimiter(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public void configure(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Waits for a permit.
+     *
+     * @return false if no permit became available within {@code maxWaitMillis}
+     */
+    public boolean acquire(long maxWaitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (inFlight < limit(now)) {
+                    inFlight++;
+                    return true;
+                }
+                long wait = deadline - now;
+                if (wait <= 0) {
+                    return false;
+                }
+                if (remaining >= 0 && resetMillis > now) {
+                    // Wake up when the window resets even if nobody releases
+                    wait = Math.min(wait, resetMillis - now);
+                }
+                released.await(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records Twitch's rate limit headers; missing or malformed headers are ignored.
+     *
+     * @param reset the {@code Ratelimit-Reset} header, in epoch seconds
+     */
+    public void update(String remainingHeader, String reset) {
+        if (remainingHeader == null || reset == null) {
+            return;
+        }
+        try {
+            int newRemaining = Integer.parseInt(remainingHeader.trim());
+            long newReset = Long.parseLong(reset.trim()) * 1000;
+            lock.lock();
+            try {
+                remaining = newRemaining;
+                resetMillis = newReset;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } catch (NumberFormatException e) {
+            // Not a Twitch rate limit header
+        }
+    }
+
+    /**
+     * @return milliseconds until the current rate limit window resets, or 0 if unknown or already reset
+     */
+    public long millisUntilReset() {
+        lock.lock();
+        try {
+            return Math.max(0, resetMillis - System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the last reported number of requests left in the window, or -1 if unknown or reset
+     */
+    public int getRemaining() {
+        lock.lock();
+        try {
+            return resetMillis > System.currentTimeMillis() ? remaining : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int limit(long now) {
+        if (remaining >= 0 && resetMillis > now) {
+            return Math.min(maxConcurrent, remaining);
+        }
+        return maxConcurrent;
+    }
+}
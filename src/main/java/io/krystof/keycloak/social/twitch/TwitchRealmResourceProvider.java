@@ -0,0 +1,241 @@
+package io.krystof.keycloak.social.twitch;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.broker.social.SocialIdentityProvider;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Twitch endpoints of a realm, under {@code /realms/{realm}/twitch/{alias}}.
+ * <p>
+ * Administrative endpoints take a bearer token of the realm and require the manage-users permission.
+ * The EventSub webhook is called by Twitch and authenticated by the signature of each message.
+ */
+public class TwitchRealmResourceProvider implements RealmResourceProvider {
+
+    private final KeycloakSession session;
+
+    public TwitchRealmResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Starts re-applying the Twitch user attribute mappers of the IdP to all its users, from Helix.
+     */
+    @POST
+    @Path("{alias}/helix-resync")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startHelixResync(@PathParam("alias") String alias) {
+        RealmModel realm = requireManageUsers();
+        requireTwitchIdentityProvider(alias);
+        TwitchHelixResync.Status status = getProviderFactory().getHelixResync().start(realm.getId(), alias);
+        if (status == null) {
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(Map.of("error", "A Helix resync of " + alias + " is already in progress"))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        return Response.accepted(status.toMap()).type(MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Reports the progress of the last Helix resync of the IdP started on this node.
+     */
+    @GET
+    @Path("{alias}/helix-resync")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getHelixResync(@PathParam("alias") String alias) {
+        RealmModel realm = requireManageUsers();
+        requireTwitchIdentityProvider(alias);
+        TwitchHelixResync.Status status = getProviderFactory().getHelixResync().getStatus(realm.getId(), alias);
+        if (status == null) {
+            throw new NotFoundException("No Helix resync of " + alias + " on this node");
+        }
+        return status.toMap();
+    }
+
+    /**
+     * Receives EventSub messages from Twitch.
+     */
+    @POST
+    @Path("{alias}/eventsub")
+    @Consumes(MediaType.WILDCARD)
+    public Response receiveEventSub(@PathParam("alias") String alias, byte[] body) {
+        RealmModel realm = session.getContext().getRealm();
+        IdentityProviderModel model = requireTwitchIdentityProvider(alias);
+        TwitchIdentityProvider provider = getProviderFactory().create(session, model);
+        return new TwitchEventSub(session, realm, provider).receive(session.getContext().getRequestHeaders(), body);
+    }
+
+    /**
+     * Starts subscribing the IdP's EventSub webhook to user updates of all linked users and to revoked authorizations.
+     *
+     * @param callback the webhook URL as Twitch reaches it, if it differs from the URL of this server
+     */
+    @POST
+    @Path("{alias}/eventsub/subscriptions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response subscribeEventSub(@PathParam("alias") String alias, @QueryParam("callback") String callback) {
+        return startEventSubSubscriptions(alias, callback, true);
+    }
+
+    /**
+     * Starts deleting all EventSub subscriptions of the IdP's webhook.
+     */
+    @DELETE
+    @Path("{alias}/eventsub/subscriptions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response unsubscribeEventSub(@PathParam("alias") String alias, @QueryParam("callback") String callback) {
+        return startEventSubSubscriptions(alias, callback, false);
+    }
+
+    /**
+     * Reports the progress of the last EventSub subscription change of the IdP started on this node.
+     */
+    @GET
+    @Path("{alias}/eventsub/subscriptions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getEventSubSubscriptions(@PathParam("alias") String alias) {
+        RealmModel realm = requireManageUsers();
+        requireTwitchIdentityProvider(alias);
+        TwitchEventSubSubscriptions.Status status = getProviderFactory().getEventSubSubscriptions().getStatus(realm.getId(), alias);
+        if (status == null) {
+            throw new NotFoundException("No EventSub subscription change of " + alias + " on this node");
+        }
+        return status.toMap();
+    }
+
+    /**
+     * Starts linking users to Twitch accounts from the uploaded CSV or NDJSON file.
+     *
+     * @param offset the number of records to skip, e.g. the checkpoint of an interrupted import
+     * @param parallelism the number of batches linked at a time
+     */
+    @POST
+    @Path("{alias}/identity-import")
+    @Consumes(MediaType.WILDCARD)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startIdentityImport(@PathParam("alias") String alias, @QueryParam("offset") long offset,
+                                        @QueryParam("parallelism") @DefaultValue("4") int parallelism,
+                                        InputStream body) throws IOException {
+        RealmModel realm = requireManageUsers();
+        requireTwitchIdentityProvider(alias);
+        // Spooled to disk, so that the import outlives the request and the file need not fit in memory
+        java.nio.file.Path file = Files.createTempFile("twitch-identity-import-", ".txt");
+        TwitchIdentityImport.Status status;
+        try {
+            Files.copy(body, file, StandardCopyOption.REPLACE_EXISTING);
+            status = getProviderFactory().getIdentityImport().start(realm.getId(), alias, file, offset, parallelism);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        if (status == null) {
+            Files.deleteIfExists(file);
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(Map.of("error", "An identity import of " + alias + " is already in progress"))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        return Response.accepted(status.toMap()).type(MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Reports the progress of the last identity import of the IdP started on this node.
+     */
+    @GET
+    @Path("{alias}/identity-import")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getIdentityImport(@PathParam("alias") String alias) {
+        RealmModel realm = requireManageUsers();
+        requireTwitchIdentityProvider(alias);
+        TwitchIdentityImport.Status status = getProviderFactory().getIdentityImport().getStatus(realm.getId(), alias);
+        if (status == null) {
+            throw new NotFoundException("No identity import of " + alias + " on this node");
+        }
+        return status.toMap();
+    }
+
+    private Response startEventSubSubscriptions(String alias, String callback, boolean subscribe) {
+        RealmModel realm = requireManageUsers();
+        IdentityProviderModel model = requireTwitchIdentityProvider(alias);
+        if (subscribe && (model.getConfig().get(TwitchIdentityProviderConfig.EVENTSUB_SECRET) == null
+                || model.getConfig().get(TwitchIdentityProviderConfig.EVENTSUB_SECRET).isEmpty())) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "No EventSub secret configured for " + alias))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        String webhook = callback != null && !callback.isEmpty() ? callback : session.getContext().getUri().getBaseUriBuilder()
+                .path("realms").path(realm.getName()).path(TwitchRealmResourceProviderFactory.ID).path(alias).path("eventsub")
+                .build().toString();
+        TwitchEventSubSubscriptions.Status status = getProviderFactory().getEventSubSubscriptions()
+                .start(realm.getId(), alias, webhook, subscribe);
+        if (status == null) {
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(Map.of("error", "An EventSub subscription change of " + alias + " is already in progress"))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        return Response.accepted(status.toMap()).type(MediaType.APPLICATION_JSON).build();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private RealmModel requireManageUsers() {
+        RealmModel realm = session.getContext().getRealm();
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        AdminPermissions.evaluator(session, realm, adminAuth).users().requireManage();
+        return realm;
+    }
+
+    private IdentityProviderModel requireTwitchIdentityProvider(String alias) {
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !TwitchIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+            throw new NotFoundException("Twitch identity provider " + alias + " not found");
+        }
+        return model;
+    }
+
+    private TwitchIdentityProviderFactory getProviderFactory() {
+        ProviderFactory<?> factory = session.getKeycloakSessionFactory()
+                .getProviderFactory(SocialIdentityProvider.class, TwitchIdentityProviderFactory.PROVIDER_ID);
+        return (TwitchIdentityProviderFactory) factory;
+    }
+}
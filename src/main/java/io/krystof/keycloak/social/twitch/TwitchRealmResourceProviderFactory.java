@@ -0,0 +1,37 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Registers the Twitch endpoints under {@code /realms/{realm}/twitch}.
+ */
+public class TwitchRealmResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String ID = "twitch";
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new TwitchRealmResourceProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,430 @@
+package io.krystof.keycloak.social.twitch;
+
+import io.micrometer.core.instrument.Meter;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.broker.provider.util.SimpleHttp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Guards the outbound Twitch calls of one identity provider.
+ * <p>
+ * Every call gets its endpoint's timeouts, waits for a permit from its host's {@link TwitchRateLimiter} and is
+ * rejected while its host's {@link TwitchCircuitBreaker} is open. Calls to idempotent endpoints are retried
+ * with jittered exponential backoff after I/O errors, 5xx responses and 429 responses whose rate limit window
+ * resets soon enough.
+ * <p>
+ * The token request is sent by Keycloak itself, so it only gets timeouts and a breaker permit, see
+ * {@link #beforeTokenRequest(SimpleHttp)}, and reports its outcome through {@link #guardTokenRequests(HttpClient)}.
+ * Every call reports one outcome to the breaker, that of its last attempt.
+ */
+public class TwitchResilience {
+
+    private static final Logger logger = Logger.getLogger(TwitchResilience.class);
+
+    private static final String RATELIMIT_REMAINING = "Ratelimit-Remaining";
+    private static final String RATELIMIT_RESET = "Ratelimit-Reset";
+
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+
+    /**
+     * Reads a response; called once, with the last response if all retries failed.
+     */
+    @FunctionalInterface
+    public interface ResponseHandler<T> {
+        T handle(SimpleHttp.Response response) throws IOException;
+    }
+
+    private final String realm;
+    private final String alias;
+    private final Map<TwitchEndpoint.Host, TwitchCircuitBreaker> breakers = new EnumMap<>(TwitchEndpoint.Host.class);
+    private final Map<TwitchEndpoint.Host, TwitchRateLimiter> limiters = new EnumMap<>(TwitchEndpoint.Host.class);
+    private final List<Meter> meters = new ArrayList<>();
+    private volatile Settings settings;
+
+    public TwitchResilience(String realm, String alias, Settings settings) {
+        this.realm = realm;
+        this.alias = alias;
+        this.settings = settings;
+        for (TwitchEndpoint.Host host : TwitchEndpoint.Host.values()) {
+            TwitchCircuitBreaker breaker = new TwitchCircuitBreaker(settings.breakerFailureThreshold, settings.breakerOpenMillis);
+            TwitchRateLimiter limiter = new TwitchRateLimiter(settings.maxConcurrentRequests);
+            breakers.put(host, breaker);
+            limiters.put(host, limiter);
+            meters.add(TwitchMetrics.registerCircuitBreaker(realm, alias, host.getHostName(), breaker));
+            meters.add(TwitchMetrics.registerRateLimiter(realm, alias, host.getHostName(), limiter));
+        }
+    }
+
+    /**
+     * @return the realm name the metrics are tagged with
+     */
+    public String getRealm() {
+        return realm;
+    }
+
+    /**
+     * Removes the breaker and rate limit gauges, once the IdP is gone or its realm renamed.
+     */
+    public void close() {
+        TwitchMetrics.remove(meters);
+    }
+
+    /**
+     * Applies changed IdP settings; breaker state and rate limit budgets are kept.
+     */
+    public void configure(Settings settings) {
+        if (settings.equals(this.settings)) {
+            return;
+        }
+        this.settings = settings;
+        breakers.values().forEach(breaker -> breaker.configure(settings.breakerFailureThreshold, settings.breakerOpenMillis));
+        limiters.values().forEach(limiter -> limiter.configure(settings.maxConcurrentRequests));
+    }
+
+    /**
+     * Sends a request built by {@code request}, retrying idempotent endpoints.
+     *
+     * @param request builds a fresh request for every attempt
+     * @throws IdentityBrokerException if the circuit breaker is open or no rate limit permit became available in time
+     * @throws IOException if the last attempt failed with an I/O error
+     */
+    public <T> T execute(TwitchEndpoint endpoint, Supplier<SimpleHttp> request, ResponseHandler<T> handler) throws IOException {
+        TwitchCircuitBreaker breaker = breakers.get(endpoint.getHost());
+        TwitchRateLimiter limiter = limiters.get(endpoint.getHost());
+
+        // The breaker hears one outcome per call, that of its last attempt, so that retries are not counted as failures
+        boolean sent = false;
+        boolean reported = false;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                Settings settings = this.settings;
+                int attempts = endpoint.isIdempotent() ? settings.maxRetries + 1 : 1;
+                acquire(endpoint, breaker, limiter, settings, attempt == 1);
+                sent = true;
+
+                TwitchFlightRecorder.HttpEvent event = TwitchFlightRecorder.beginHttp(endpoint, attempt);
+                SimpleHttp.Response response;
+                int status;
+                try {
+                    response = applyTimeouts(request.get(), endpoint, settings).asResponse();
+                    status = response.getStatus();
+                } catch (IOException e) {
+                    limiter.release();
+                    TwitchFlightRecorder.endHttp(event, realm, alias, 0, -1);
+                    if (attempt >= attempts) {
+                        throw e;
+                    }
+                    logger.debugf("Call to Twitch %s failed with %s, retrying", endpoint.getKey(), e.toString());
+                    retry(endpoint, attempt, 0, settings);
+                    continue;
+                } catch (RuntimeException e) {
+                    // A request that could not be built or sent here, which says nothing about the health of Twitch.
+                    // Not retried, but the permit must not be lost, or the host's concurrency shrinks for good
+                    limiter.release();
+                    breaker.onAbandoned();
+                    reported = true;
+                    TwitchFlightRecorder.endHttp(event, realm, alias, 0, -1);
+                    throw e;
+                }
+
+                long retryAfterMillis = -1;
+                try {
+                    limiter.release();
+                    limiter.update(response.getFirstHeader(RATELIMIT_REMAINING), response.getFirstHeader(RATELIMIT_RESET));
+                    TwitchMetrics.recordHttpStatus(realm, alias, endpoint.getKey(), status);
+
+                    if (status >= 500) {
+                        retryAfterMillis = 0;
+                    } else if (status == 429 && limiter.millisUntilReset() <= settings.rateLimitMaxWaitMillis) {
+                        retryAfterMillis = limiter.millisUntilReset();
+                    }
+
+                    if (retryAfterMillis < 0 || attempt >= attempts) {
+                        // A 429 is Twitch enforcing its budget, not Twitch being unhealthy
+                        if (status >= 500) {
+                            breaker.onFailure();
+                        } else {
+                            breaker.onSuccess();
+                        }
+                        reported = true;
+                        return handler.handle(response);
+                    }
+                } finally {
+                    TwitchFlightRecorder.endHttp(event, realm, alias, status,
+                            TwitchFlightRecorder.isRecorded(event) ? bodyLength(response) : -1);
+                    response.close();
+                }
+                logger.debugf("Twitch %s answered %d, retrying", endpoint.getKey(), status);
+                retry(endpoint, attempt, retryAfterMillis, settings);
+            }
+        } finally {
+            // Failed with an I/O error, or gave up between attempts. A call abandoned by its caller, which interrupts
+            // it, says nothing about the health of Twitch
+            if (sent && !reported) {
+                if (Thread.currentThread().isInterrupted()) {
+                    breaker.onAbandoned();
+                } else {
+                    breaker.onFailure();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the length of the response body from its Content-Length, or as read by the handler; -1 if unknown
+     */
+    private static long bodyLength(SimpleHttp.Response response) {
+        try {
+            String contentLength = response.getFirstHeader("Content-Length");
+            if (contentLength != null) {
+                return Long.parseLong(contentLength.trim());
+            }
+            // Buffered by asString() and asJson(), so this does not read the body again
+            return response.asString().getBytes(StandardCharsets.UTF_8).length;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Takes a permit from the token endpoint's breaker for the token request Keycloak is about to send, and applies
+     * the endpoint's timeouts to it. While the breaker is half-open only one exchange gets the trial permit. The
+     * outcome of the request must then be reported, by the client from {@link #guardTokenRequests(HttpClient)},
+     * {@link #onTokenResponse()} or {@link #onTokenRequestAbandoned()}.
+     *
+     * @throws IdentityBrokerException if the circuit breaker of the token endpoint's host is open
+     */
+    public SimpleHttp beforeTokenRequest(SimpleHttp tokenRequest) {
+        TwitchEndpoint endpoint = TwitchEndpoint.TOKEN;
+        if (!breakers.get(endpoint.getHost()).tryAcquire()) {
+            TwitchMetrics.recordRejected(realm, alias, endpoint.getKey(), TwitchMetrics.REJECTED_CIRCUIT_OPEN);
+            throw circuitOpen(endpoint);
+        }
+        return applyTimeouts(tokenRequest, endpoint, settings);
+    }
+
+    /**
+     * Records a successful token request.
+     */
+    public void onTokenResponse() {
+        breakers.get(TwitchEndpoint.TOKEN.getHost()).onSuccess();
+    }
+
+    /**
+     * Gives back the breaker permit of a token request that was never sent, or whose outcome is unknown, without
+     * counting it either way.
+     */
+    public void onTokenRequestAbandoned() {
+        breakers.get(TwitchEndpoint.TOKEN.getHost()).onAbandoned();
+    }
+
+    /**
+     * Wraps the client Keycloak's callback endpoint sends the token request with, so that the token endpoint's
+     * breaker hears the outcome of every code exchange, failures included, and the exchange is timed around the
+     * request itself.
+     *
+     * @return the guarded client, or {@code client} itself if it cannot be wrapped
+     */
+    public HttpClient guardTokenRequests(HttpClient client) {
+        return client instanceof CloseableHttpClient ? new TokenRequestClient((CloseableHttpClient) client) : client;
+    }
+
+    /**
+     * Waits for a rate limit permit and, for the first attempt of a call, takes a permit from the breaker.
+     */
+    private void acquire(TwitchEndpoint endpoint, TwitchCircuitBreaker breaker, TwitchRateLimiter limiter, Settings settings,
+                         boolean firstAttempt) throws InterruptedIOException {
+        if (firstAttempt && breaker.isRejecting()) {
+            TwitchMetrics.recordRejected(realm, alias, endpoint.getKey(), TwitchMetrics.REJECTED_CIRCUIT_OPEN);
+            throw circuitOpen(endpoint);
+        }
+        try {
+            if (!limiter.acquire(settings.rateLimitMaxWaitMillis)) {
+                TwitchMetrics.recordRejected(realm, alias, endpoint.getKey(), TwitchMetrics.REJECTED_RATE_LIMITED);
+                throw new IdentityBrokerException("Twitch rate limit for " + endpoint.getHost().getHostName()
+                        + " exhausted, not calling " + endpoint.getKey());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the Twitch rate limit");
+        }
+        if (firstAttempt && !breaker.tryAcquire()) {
+            limiter.release();
+            TwitchMetrics.recordRejected(realm, alias, endpoint.getKey(), TwitchMetrics.REJECTED_CIRCUIT_OPEN);
+            throw circuitOpen(endpoint);
+        }
+    }
+
+    private void retry(TwitchEndpoint endpoint, int attempt, long retryAfterMillis, Settings settings) throws InterruptedIOException {
+        TwitchMetrics.recordRetry(realm, alias, endpoint.getKey());
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, settings.retryBackoffMillis << Math.min(attempt - 1, 16));
+        long backoff = ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+        try {
+            Thread.sleep(Math.max(backoff, retryAfterMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off from Twitch " + endpoint.getKey());
+        }
+    }
+
+    private static SimpleHttp applyTimeouts(SimpleHttp request, TwitchEndpoint endpoint, Settings settings) {
+        int timeout = settings.timeoutMillis(endpoint);
+        return request.connectTimeoutMillis(settings.connectTimeoutMillis)
+                .connectionRequestTimeoutMillis(timeout)
+                .socketTimeOutMillis(timeout);
+    }
+
+    private static IdentityBrokerException circuitOpen(TwitchEndpoint endpoint) {
+        return new IdentityBrokerException("Twitch " + endpoint.getHost().getHostName()
+                + " is unavailable, not calling " + endpoint.getKey() + " while the circuit breaker is open");
+    }
+
+    /**
+     * Client of one token request, reporting its outcome like {@link #execute} does and recording the
+     * {@link TwitchMetrics#PHASE_TOKEN_EXCHANGE} phase. It shares the pool of the
+     * client it wraps, so closing it leaves that client open.
+     */
+    private final class TokenRequestClient extends CloseableHttpClient {
+
+        private final CloseableHttpClient delegate;
+
+        private TokenRequestClient(CloseableHttpClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+            TwitchEndpoint endpoint = TwitchEndpoint.TOKEN;
+            TwitchCircuitBreaker breaker = breakers.get(endpoint.getHost());
+            long start = System.nanoTime();
+            TwitchFlightRecorder.PhaseEvent phaseEvent = TwitchFlightRecorder.beginPhase(TwitchMetrics.PHASE_TOKEN_EXCHANGE);
+            TwitchFlightRecorder.HttpEvent httpEvent = TwitchFlightRecorder.beginHttp(endpoint, 1);
+            try {
+                CloseableHttpResponse response = delegate.execute(target, request, context);
+                int status = response.getStatusLine().getStatusCode();
+                TwitchMetrics.recordHttpStatus(realm, alias, endpoint.getKey(), status);
+                if (status >= 500) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess();
+                }
+                boolean success = status >= 200 && status < 300;
+                TwitchMetrics.recordPhase(realm, alias, TwitchMetrics.PHASE_TOKEN_EXCHANGE, start, success);
+                TwitchFlightRecorder.endPhase(phaseEvent, realm, alias, success);
+                TwitchFlightRecorder.endHttp(httpEvent, realm, alias, status,
+                        response.getEntity() != null ? response.getEntity().getContentLength() : -1);
+                return response;
+            } catch (IOException | RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    breaker.onAbandoned();
+                } else {
+                    breaker.onFailure();
+                }
+                TwitchMetrics.recordPhase(realm, alias, TwitchMetrics.PHASE_TOKEN_EXCHANGE, start, false);
+                TwitchMetrics.recordError(realm, alias, TwitchMetrics.PHASE_TOKEN_EXCHANGE, e);
+                TwitchFlightRecorder.endPhase(phaseEvent, realm, alias, false);
+                TwitchFlightRecorder.endHttp(httpEvent, realm, alias, 0, -1);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            return delegate.getParams();
+        }
+
+        @Override
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            return delegate.getConnectionManager();
+        }
+    }
+
+    /**
+     * Resilience settings read from the IdP config.
+     */
+    public static final class Settings {
+
+        private final int connectTimeoutMillis;
+        private final int[] timeoutMillis;
+        private final int breakerFailureThreshold;
+        private final long breakerOpenMillis;
+        private final int maxRetries;
+        private final long retryBackoffMillis;
+        private final int maxConcurrentRequests;
+        private final long rateLimitMaxWaitMillis;
+
+        private Settings(TwitchIdentityProviderConfig config) {
+            this.connectTimeoutMillis = config.getConnectTimeout();
+            this.timeoutMillis = new int[TwitchEndpoint.values().length];
+            for (TwitchEndpoint endpoint : TwitchEndpoint.values()) {
+                timeoutMillis[endpoint.ordinal()] = config.getTimeout(endpoint);
+            }
+            this.breakerFailureThreshold = config.getBreakerFailureThreshold();
+            this.breakerOpenMillis = config.getBreakerOpenSeconds() * 1000;
+            this.maxRetries = Math.max(0, config.getMaxRetries());
+            this.retryBackoffMillis = Math.max(0, config.getRetryBackoff());
+            this.maxConcurrentRequests = Math.max(1, config.getMaxConcurrentRequests());
+            this.rateLimitMaxWaitMillis = Math.max(0, config.getRateLimitMaxWait());
+        }
+
+        public static Settings from(TwitchIdentityProviderConfig config) {
+            return new Settings(config);
+        }
+
+        public int timeoutMillis(TwitchEndpoint endpoint) {
+            return timeoutMillis[endpoint.ordinal()];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return connectTimeoutMillis == other.connectTimeoutMillis
+                    && Arrays.equals(timeoutMillis, other.timeoutMillis)
+                    && breakerFailureThreshold == other.breakerFailureThreshold
+                    && breakerOpenMillis == other.breakerOpenMillis
+                    && maxRetries == other.maxRetries
+                    && retryBackoffMillis == other.retryBackoffMillis
+                    && maxConcurrentRequests == other.maxConcurrentRequests
+                    && rateLimitMaxWaitMillis == other.rateLimitMaxWaitMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(connectTimeoutMillis, Arrays.hashCode(timeoutMillis),
+                    breakerFailureThreshold, breakerOpenMillis, maxRetries, retryBackoffMillis,
+                    maxConcurrentRequests, rateLimitMaxWaitMillis);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link TwitchResilience} per identity provider, so that breaker state and rate limit budgets
+ * outlive the per-request provider instances.
+ */
+public class TwitchResilienceRegistry {
+
+    private final Map<String, TwitchResilience> resilience = new ConcurrentHashMap<>();
+
+    /**
+     * @param key the IdP's key in the factory, see {@link TwitchIdentityProviderFactory}
+     * @return the resilience layer of the identity provider, updated to its current settings
+     */
+    public TwitchResilience get(KeycloakSession session, String key, TwitchIdentityProviderConfig config) {
+        TwitchResilience.Settings settings = TwitchResilience.Settings.from(config);
+        String realm = TwitchMetrics.realmName(session);
+        TwitchResilience existing = resilience.compute(key, (k, previous) -> {
+            if (previous != null && previous.getRealm().equals(realm)) {
+                return previous;
+            }
+            // New, or its realm was renamed: gauges are tagged with the realm name
+            if (previous != null) {
+                previous.close();
+            }
+            return new TwitchResilience(realm, config.getAlias(), settings);
+        });
+        existing.configure(settings);
+        return existing;
+    }
+
+    /**
+     * Drops the resilience layer of a removed identity provider.
+     */
+    public void remove(String key) {
+        TwitchResilience removed = resilience.remove(key);
+        if (removed != null) {
+            removed.close();
+        }
+    }
+
+    public void close() {
+        resilience.values().forEach(TwitchResilience::close);
+        resilience.clear();
+    }
+}
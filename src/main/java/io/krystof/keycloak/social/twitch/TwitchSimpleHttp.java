@@ -0,0 +1,31 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.apache.http.client.HttpClient;
+import org.keycloak.broker.provider.util.SimpleHttp;
+
+/**
+ * Builds {@link SimpleHttp} requests sent through a given HTTP client instead of the session's.
+ * <p>
+ * SimpleHttp only accepts a client from subclasses; everything else about the request is plain SimpleHttp.
+ */
+final class TwitchSimpleHttp extends SimpleHttp {
+
+    // Same as the default max-consumed-response-size of Keycloak's DefaultHttpClientFactory
+    private static final long MAX_CONSUMED_RESPONSE_SIZE = 10_000_000L;
+
+    private TwitchSimpleHttp() {
+        super(null, null, null, MAX_CONSUMED_RESPONSE_SIZE);
+    }
+
+    static SimpleHttp doGet(String url, HttpClient client) {
+        return doGet(url, client, MAX_CONSUMED_RESPONSE_SIZE);
+    }
+
+    static SimpleHttp doPost(String url, HttpClient client) {
+        return doPost(url, client, MAX_CONSUMED_RESPONSE_SIZE);
+    }
+
+    static SimpleHttp doDelete(String url, HttpClient client) {
+        return doDelete(url, client, MAX_CONSUMED_RESPONSE_SIZE);
+    }
+}
@@ -0,0 +1,95 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.keycloak.common.util.Time;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+
+/**
+ * Token of a federated identity as stored when "Store tokens" is enabled.
+ * <p>
+ * The stored JSON has the fields of a Twitch token response plus {@code expires_at}, the expiry in epoch
+ * seconds, so that tokens can be refreshed before they expire without knowing when they were stored.
+ */
+public final class TwitchStoredToken {
+
+    public static final String EXPIRES_AT = "expires_at";
+
+    private final String accessToken;
+    private final String refreshToken;
+    private final long expiresAt;
+
+    private TwitchStoredToken(String accessToken, String refreshToken, long expiresAt) {
+        this.accessToken = accessToken;
+        this.refreshToken = refreshToken;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return the stored token, or null if there is none or it is not JSON
+     */
+    public static TwitchStoredToken parse(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonNode node = JsonSerialization.mapper.readTree(token);
+            return new TwitchStoredToken(node.path("access_token").asText(null), node.path("refresh_token").asText(null),
+                    node.path(EXPIRES_AT).asLong(0));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Serializes a token response for storage.
+     *
+     * @param previousRefreshToken kept if the response has no refresh token of its own
+     */
+    public static String write(TwitchTokenResponse response, String previousRefreshToken) {
+        ObjectNode node = JsonSerialization.mapper.createObjectNode();
+        node.put("access_token", response.getAccessToken());
+        String refreshToken = response.getRefreshToken() != null ? response.getRefreshToken() : previousRefreshToken;
+        if (refreshToken != null) {
+            node.put("refresh_token", refreshToken);
+        }
+        if (response.getIdToken() != null) {
+            node.put("id_token", response.getIdToken());
+        }
+        if (response.getTokenType() != null) {
+            node.put("token_type", response.getTokenType());
+        }
+        if (response.getScope() != null) {
+            node.put("scope", response.getScope());
+        }
+        if (response.getExpiresIn() >= 0) {
+            node.put("expires_in", response.getExpiresIn());
+            node.put(EXPIRES_AT, Time.currentTime() + response.getExpiresIn());
+        }
+        return node.toString();
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /**
+     * @return the expiry in epoch seconds, or 0 if unknown
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return true if the token can be refreshed and expires within the given number of seconds
+     */
+    public boolean needsRefresh(long withinSeconds) {
+        return refreshToken != null && expiresAt > 0 && expiresAt - Time.currentTime() <= withinSeconds;
+    }
+}
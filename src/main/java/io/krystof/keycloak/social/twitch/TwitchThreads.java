@@ -0,0 +1,33 @@
+package io.krystof.keycloak.social.twitch;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads of the provider's background work and concurrent Twitch calls.
+ */
+public final class TwitchThreads {
+
+    private TwitchThreads() {
+    }
+
+    /**
+     * @return a factory of virtual threads on Java 21 and later, of daemon platform threads before
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        try {
+            // Thread.ofVirtual() is only available from Java 21
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Refreshes stored Twitch tokens before they expire.
+ * <p>
+ * As a {@link ScheduledTask} run by Keycloak's cluster-aware timer on one node at a time, it walks the users
+ * linked to every Twitch IdP with token refresh enabled and refreshes the tokens that expire within the IdP's
+ * refresh window, in batches with a pause in between. The walk runs within the task, so that the cluster lock
+ * covers it. Each batch is read in one transaction; every token is then refreshed with Twitch outside of it and
+ * stored in a transaction of its own, unless it changed in the meantime.
+ * <p>
+ * Refreshes of the same identity are de-duplicated on each node: concurrent callers wait for the refresh in
+ * flight, and callers that come shortly after it get its result. A refresh is only shared once its transaction has
+ * committed, so that a rolled back refresh never hands out a token that was not stored.
+ */
+public class TwitchTokenRefresher implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(TwitchTokenRefresher.class);
+
+    public static final String TASK_NAME = "twitch-token-refresh";
+    /**
+     * Seconds between runs. Each run pages through all users linked to every IdP with token refresh enabled and
+     * reads the federated identity of each user, one query per user, as stored tokens cannot be searched by expiry.
+     * The interval should therefore be long, but shorter than the IdPs' token refresh window, so that every token is
+     * seen by a run before it expires.
+     */
+    public static final String INTERVAL = "tokenRefreshInterval";
+    public static final long DEFAULT_INTERVAL = 1800;
+
+    private static final long SINGLE_FLIGHT_TIMEOUT_SECONDS = 30;
+    private static final long RECENT_TTL_MILLIS = 60_000;
+    private static final String SESSION_REFRESHED = "twitch.token.refreshed:";
+
+    private final TwitchIdentityProviderFactory providerFactory;
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final TwitchTtlCache<String> recent = new TwitchTtlCache<>(10_000, RECENT_TTL_MILLIS, expired -> { });
+    private volatile boolean closed;
+    private KeycloakSessionFactory sessionFactory;
+
+    public TwitchTokenRefresher(TwitchIdentityProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Runs {@code refresh} in the session's transaction unless a refresh of the same identity is in flight or just
+     * finished, in which case its result is returned instead. Other callers wait until the transaction completes.
+     *
+     * @return the new stored token
+     */
+    public String singleFlight(KeycloakSession session, String key, Supplier<String> refresh) {
+        String token = session.getAttribute(SESSION_REFRESHED + key, String.class);
+        if (token != null) {
+            return token;
+        }
+        return singleFlight(session, key, refresh, false);
+    }
+
+    /**
+     * Like {@link #singleFlight(KeycloakSession, String, Supplier)}, for a {@code refresh} that stores the token in a
+     * transaction of its own, so that its result is shared as soon as it returns.
+     */
+    public String singleFlight(String key, Supplier<String> refresh) {
+        return singleFlight(null, key, refresh, true);
+    }
+
+    private String singleFlight(KeycloakSession session, String key, Supplier<String> refresh, boolean committed) {
+        String token = recent.get(key);
+        if (token != null) {
+            return token;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            token = refresh.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        if (committed || !session.getTransactionManager().isActive()) {
+            share(key, mine, token);
+            return token;
+        }
+        // Later refreshes in this transaction must not wait for it to complete
+        session.setAttribute(SESSION_REFRESHED + key, token);
+        String refreshed = token;
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                share(key, mine, refreshed);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                inFlight.remove(key, mine);
+                mine.completeExceptionally(new IllegalStateException("Twitch token refresh was rolled back"));
+            }
+        });
+        return token;
+    }
+
+    private void share(String key, CompletableFuture<String> refresh, String token) {
+        recent.put(key, null, token);
+        inFlight.remove(key, refresh);
+        refresh.complete(token);
+    }
+
+    private static String await(CompletableFuture<String> refresh) {
+        try {
+            return refresh.get(SINGLE_FLIGHT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a Twitch token refresh", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Twitch token refresh failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Timed out waiting for a Twitch token refresh", e);
+        }
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        List<String[]> targets = session.realms().getRealmsStream()
+                .flatMap(realm -> {
+                    session.getContext().setRealm(realm);
+                    return session.identityProviders().getAllStream()
+                            .filter(TwitchTokenRefresher::isRefreshEnabled)
+                            .map(model -> new String[] { realm.getId(), model.getAlias() })
+                            .collect(Collectors.toList())
+                            .stream();
+                })
+                .collect(Collectors.toList());
+        for (String[] target : targets) {
+            try {
+                refreshIdentityProvider(target[0], target[1]);
+            } catch (RuntimeException e) {
+                logger.warnf(e, "Twitch token refresh of IdP %s failed", target[1]);
+            }
+        }
+    }
+
+    private static boolean isRefreshEnabled(IdentityProviderModel model) {
+        return TwitchIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())
+                && model.isEnabled()
+                && model.isStoreToken()
+                && Boolean.parseBoolean(model.getConfig().get(TwitchIdentityProviderConfig.TOKEN_REFRESH));
+    }
+
+    private void refreshIdentityProvider(String realmId, String alias) {
+        int first = 0;
+        while (!closed) {
+            int offset = first;
+            Batch batch = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> readBatch(session, realmId, alias, offset));
+            if (batch == null) {
+                return;
+            }
+            int refreshed = 0;
+            for (Target target : batch.targets) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    refresh(realmId, alias, target);
+                    refreshed++;
+                } catch (RuntimeException e) {
+                    logger.warnf(e, "Could not refresh Twitch token of user %s of IdP %s", target.userId, alias);
+                }
+            }
+            if (refreshed > 0) {
+                logger.debugf("Refreshed %d Twitch tokens of IdP %s", refreshed, alias);
+            }
+            if (batch.users < batch.size) {
+                return;
+            }
+            first += batch.size;
+            if (refreshed > 0 && batch.pauseMillis > 0) {
+                try {
+                    Thread.sleep(batch.pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Batch readBatch(KeycloakSession session, String realmId, String alias, int first) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return null;
+        }
+        session.getContext().setRealm(realm);
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !isRefreshEnabled(model)) {
+            return null;
+        }
+        TwitchIdentityProviderConfig config = new TwitchIdentityProviderConfig(model);
+        int size = Math.max(1, config.getTokenRefreshBatchSize());
+
+        List<UserModel> users = session.users()
+                .searchForUserStream(realm, Map.of(UserModel.IDP_ALIAS, alias), first, size)
+                .collect(Collectors.toList());
+        List<Target> targets = new ArrayList<>();
+        for (UserModel user : users) {
+            FederatedIdentityModel identity = session.users().getFederatedIdentity(realm, user, alias);
+            TwitchStoredToken stored = identity == null ? null : TwitchStoredToken.parse(identity.getToken());
+            if (stored != null && stored.getRefreshToken() != null && stored.needsRefresh(config.getTokenRefreshWindow())) {
+                targets.add(new Target(model.getInternalId() + ":" + identity.getUserId(), user.getId(), stored.getRefreshToken()));
+            }
+        }
+        return new Batch(users.size(), size, config.getTokenRefreshBatchPause(), targets);
+    }
+
+    /**
+     * Refreshes one token with Twitch in a session that does not touch users, then stores it in a transaction of its own.
+     */
+    private void refresh(String realmId, String alias, Target target) {
+        singleFlight(target.key, () -> {
+            TwitchTokenResponse response = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> provider(session, realmId, alias).refreshToken(target.refreshToken));
+            String token = TwitchStoredToken.write(response, target.refreshToken);
+            KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                    session -> store(session, realmId, alias, target.userId, target.refreshToken, token));
+            return token;
+        });
+    }
+
+    private TwitchIdentityProvider provider(KeycloakSession session, String realmId, String alias) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            throw new IllegalStateException("Realm " + realmId + " no longer exists");
+        }
+        session.getContext().setRealm(realm);
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null) {
+            throw new IllegalStateException("Twitch identity provider " + alias + " no longer exists");
+        }
+        return providerFactory.create(session, model);
+    }
+
+    /**
+     * Stores a refreshed token, unless the stored one no longer has the refresh token it was refreshed with.
+     */
+    static void store(KeycloakSession session, String realmId, String alias, String userId, String refreshToken, String token) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        UserModel user = realm == null ? null : session.users().getUserById(realm, userId);
+        FederatedIdentityModel identity = user == null ? null : session.users().getFederatedIdentity(realm, user, alias);
+        TwitchStoredToken stored = identity == null ? null : TwitchStoredToken.parse(identity.getToken());
+        // Refreshed by a login or another node while Twitch was being asked
+        if (stored == null || !refreshToken.equals(stored.getRefreshToken())) {
+            logger.debugf("Twitch token of user %s changed during its refresh, not storing it", userId);
+            return;
+        }
+        identity.setToken(token);
+        session.users().updateFederatedIdentity(realm, user, identity);
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    private static final class Batch {
+
+        private final int users;
+        private final int size;
+        private final long pauseMillis;
+        private final List<Target> targets;
+
+        private Batch(int users, int size, long pauseMillis, List<Target> targets) {
+            this.users = users;
+            this.size = size;
+            this.pauseMillis = pauseMillis;
+            this.targets = targets;
+        }
+    }
+
+    private static final class Target {
+
+        private final String key;
+        private final String userId;
+        private final String refreshToken;
+
+        private Target(String key, String userId, String refreshToken) {
+            this.key = key;
+            this.userId = userId;
+            this.refreshToken = refreshToken;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.krystof.keycloak.social.twitch;
+
+/**
+ * Immutable view of a Twitch OAuth token response.
+ * Twitch returns the granted scopes as a JSON array; they are held here as the
+ * space-separated string the rest of Keycloak expects.
+ */
+public final class TwitchTokenResponse {
+
+    private final String accessToken;
+    private final String refreshToken;
+    private final String idToken;
+    private final String tokenType;
+    private final String scope;
+    private final long expiresIn;
+
+    TwitchTokenResponse(String accessToken, String refreshToken, String idToken, String tokenType, String scope, long expiresIn) {
+        this.accessToken = accessToken;
+        this.refreshToken = refreshToken;
+        this.idToken = idToken;
+        this.tokenType = tokenType;
+        this.scope = scope;
+        this.expiresIn = expiresIn;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    public String getIdToken() {
+        return idToken;
+    }
+
+    public String getTokenType() {
+        return tokenType;
+    }
+
+    /**
+     * @return the granted scopes as a space-separated string, or null if the response had none
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    /**
+     * @return the access token lifetime in seconds, or -1 if the response did not include one
+     */
+    public long getExpiresIn() {
+        return expiresIn;
+    }
+}
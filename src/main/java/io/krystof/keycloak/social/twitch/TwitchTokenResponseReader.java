@@ -0,0 +1,131 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+
+import java.io.IOException;
+
+/**
+ * Reads Twitch token responses in a single streaming pass.
+ * The factory is shared and thread-safe; only the fields the provider uses are materialized,
+ * everything else is skipped without building a tree.
+ */
+public final class TwitchTokenResponseReader {
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .streamReadConstraints(StreamReadConstraints.builder()
+                    .maxNestingDepth(16)
+                    .maxStringLength(64 * 1024)
+                    .build())
+            .build();
+
+    private TwitchTokenResponseReader() {
+    }
+
+    /**
+     * Parses a JSON token response.
+     *
+     * @throws IOException if the response is not a JSON object
+     */
+    public static TwitchTokenResponse read(String response) throws IOException {
+        String accessToken = null;
+        String refreshToken = null;
+        String idToken = null;
+        String tokenType = null;
+        String scope = null;
+        long expiresIn = -1;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object in the Twitch token response");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (name) {
+                    case "access_token":
+                        accessToken = readText(parser, value);
+                        break;
+                    case "refresh_token":
+                        refreshToken = readText(parser, value);
+                        break;
+                    case "id_token":
+                        idToken = readText(parser, value);
+                        break;
+                    case "token_type":
+                        tokenType = readText(parser, value);
+                        break;
+                    case "expires_in":
+                        expiresIn = readLong(parser, value);
+                        break;
+                    case "scope":
+                        scope = readScope(parser, value);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+
+        return new TwitchTokenResponse(accessToken, refreshToken, idToken, tokenType, scope, expiresIn);
+    }
+
+    private static String readText(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value.isStructStart()) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getText();
+    }
+
+    private static long readLong(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            try {
+                return Long.parseLong(parser.getText().trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        parser.skipChildren();
+        return -1;
+    }
+
+    /**
+     * Twitch sends scope as an array; other OAuth servers send a space-separated string.
+     * Both are returned as a space-separated string.
+     */
+    private static String readScope(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            return readText(parser, value);
+        }
+
+        StringBuilder sb = null;
+        JsonToken element;
+        while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (element.isStructStart()) {
+                parser.skipChildren();
+                continue;
+            }
+            if (element == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder();
+            } else {
+                sb.append(' ');
+            }
+            sb.append(parser.getText());
+        }
+        return sb == null ? "" : sb.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Response of the Twitch {@code /oauth2/validate} endpoint for a valid access token.
+ */
+public final class TwitchTokenValidation {
+
+    private final String clientId;
+    private final String login;
+    private final String userId;
+    private final List<String> scopes;
+    private final long expiresIn;
+    private final long validatedAt;
+
+    TwitchTokenValidation(String clientId, String login, String userId, List<String> scopes, long expiresIn, long validatedAt) {
+        this.clientId = clientId;
+        this.login = login;
+        this.userId = userId;
+        this.scopes = scopes;
+        this.expiresIn = expiresIn;
+        this.validatedAt = validatedAt;
+    }
+
+    public static TwitchTokenValidation parse(JsonNode response) {
+        List<String> scopes = new ArrayList<>();
+        for (JsonNode scope : response.path("scopes")) {
+            scopes.add(scope.asText());
+        }
+        return new TwitchTokenValidation(
+                response.path("client_id").asText(null),
+                response.path("login").asText(null),
+                response.path("user_id").asText(null),
+                Collections.unmodifiableList(scopes),
+                response.path("expires_in").asLong(0),
+                System.currentTimeMillis());
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return the Twitch login name, or null for app access tokens
+     */
+    public String getLogin() {
+        return login;
+    }
+
+    /**
+     * @return the Twitch user id, or null for app access tokens
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    public List<String> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * @return seconds the token was valid for when it was validated, 0 if Twitch did not say
+     */
+    public long getExpiresIn() {
+        return expiresIn;
+    }
+
+    /**
+     * @return epoch milliseconds at which the token expires, or 0 if unknown
+     */
+    public long getExpiresAt() {
+        return expiresIn > 0 ? validatedAt + expiresIn * 1000 : 0;
+    }
+}
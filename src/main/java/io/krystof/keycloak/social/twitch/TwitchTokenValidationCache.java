@@ -0,0 +1,74 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Map;
+
+/**
+ * Cache of Twitch token validations of one identity provider, used by token exchange.
+ * <p>
+ * Valid tokens are remembered in memory on each node until shortly before they expire. Tokens that Twitch
+ * rejected are remembered in Keycloak's single-use object store, so a revoked or forged token is only sent to
+ * Twitch once per cluster. Both caches are keyed by a hash of the token.
+ */
+public class TwitchTokenValidationCache {
+
+    private static final String CACHE_NAME = "token_validation";
+    private static final String INVALID_KEY_PREFIX = "twitch-invalid-token:";
+
+    private final String realm;
+    private final String alias;
+    private final String idpKey;
+    private final long expiryMarginMillis;
+    private final long invalidTtlSeconds;
+    private final TwitchTtlCache<TwitchTokenValidation> valid;
+
+    public TwitchTokenValidationCache(String realm, TwitchIdentityProviderConfig config) {
+        this.realm = realm;
+        this.alias = config.getAlias();
+        this.idpKey = config.getInternalId() != null ? config.getInternalId() : config.getAlias();
+        this.expiryMarginMillis = Math.max(0, config.getValidationExpiryMargin()) * 1000;
+        this.invalidTtlSeconds = Math.max(1, config.getInvalidTokenCacheTtl());
+        this.valid = new TwitchTtlCache<>(Math.max(1, config.getValidationCacheSize()),
+                Math.max(1, config.getValidationCacheMaxTtl()) * 1000, expired ->
+                TwitchMetrics.recordCache(realm, alias, CACHE_NAME, expired ? TwitchMetrics.CACHE_EXPIRED : TwitchMetrics.CACHE_EVICTED));
+    }
+
+    /**
+     * @return the cached validation of a token known to be valid, or null
+     */
+    public TwitchTokenValidation get(String tokenHash) {
+        TwitchTokenValidation validation = valid.get(tokenHash);
+        TwitchMetrics.recordCache(realm, alias, CACHE_NAME, validation != null ? TwitchMetrics.CACHE_HIT : TwitchMetrics.CACHE_MISS);
+        return validation;
+    }
+
+    /**
+     * Caches a validation until {@code expiryMargin} before the token expires; tokens expiring sooner are not cached.
+     */
+    public void put(String tokenHash, TwitchTokenValidation validation) {
+        long ttl = validation.getExpiresAt() - expiryMarginMillis - System.currentTimeMillis();
+        if (ttl > 0) {
+            valid.put(tokenHash, validation.getUserId(), validation, ttl);
+        }
+    }
+
+    /**
+     * @return true if Twitch rejected the token before, on any node
+     */
+    public boolean isInvalid(KeycloakSession session, String tokenHash) {
+        return session.singleUseObjects().contains(INVALID_KEY_PREFIX + idpKey + ":" + tokenHash);
+    }
+
+    public void putInvalid(KeycloakSession session, String tokenHash) {
+        valid.remove(tokenHash);
+        session.singleUseObjects().put(INVALID_KEY_PREFIX + idpKey + ":" + tokenHash, invalidTtlSeconds, Map.of());
+    }
+
+    /**
+     * Drops the cached validations of all tokens of the Twitch user, e.g. after the user revoked the app.
+     */
+    public void invalidateUser(String userId) {
+        valid.removeByIndex(userId);
+    }
+}
@@ -0,0 +1,140 @@
+package io.krystof.keycloak.social.twitch;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Small in-memory cache whose entries expire after a time to live.
+ * <p>
+ * Entries are kept in insertion order, which with the default time to live is also expiry order, so expired
+ * entries are purged from the head on every write and the oldest entries are evicted when the cache is full.
+ * Entries with a shorter time to live of their own are dropped when read after expiring, or when they reach
+ * the head.
+ * Each entry may be filed under a secondary key, so that all entries of e.g. one user can be removed at once.
+ */
+public class TwitchTtlCache<V> {
+
+    /**
+     * Notified of entries dropped by the cache itself, not of explicit removals.
+     */
+    @FunctionalInterface
+    public interface EvictionListener {
+        void evicted(boolean expired);
+    }
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final EvictionListener listener;
+
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>();
+    private final Map<String, Set<String>> index = new HashMap<>();
+
+    public TwitchTtlCache(int maxSize, long ttlMillis, EvictionListener listener) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the value, or null if there is none or it expired
+     */
+    public synchronized V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            remove(key, entry);
+            listener.evicted(true);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @param indexKey the secondary key, may be null
+     */
+    public void put(String key, String indexKey, V value) {
+        put(key, indexKey, value, ttlMillis);
+    }
+
+    /**
+     * @param ttlMillis the time to live of this entry, at most the cache's default
+     */
+    public synchronized void put(String key, String indexKey, V value, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        Entry<V> previous = entries.remove(key);
+        if (previous != null) {
+            unindex(key, previous);
+        }
+        entries.put(key, new Entry<>(value, indexKey, now + Math.min(ttlMillis, this.ttlMillis)));
+        if (indexKey != null) {
+            index.computeIfAbsent(indexKey, k -> new HashSet<>()).add(key);
+        }
+
+        Iterator<Map.Entry<String, Entry<V>>> oldest = entries.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<String, Entry<V>> head = oldest.next();
+            boolean expired = head.getValue().expiresAt <= now;
+            if (!expired && entries.size() <= maxSize) {
+                break;
+            }
+            oldest.remove();
+            unindex(head.getKey(), head.getValue());
+            listener.evicted(expired);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    /**
+     * Removes all entries filed under the secondary key.
+     */
+    public synchronized void removeByIndex(String indexKey) {
+        Set<String> keys = index.remove(indexKey);
+        if (keys != null) {
+            keys.forEach(entries::remove);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key, Entry<V> entry) {
+        entries.remove(key);
+        unindex(key, entry);
+    }
+
+    private void unindex(String key, Entry<V> entry) {
+        if (entry.indexKey == null) {
+            return;
+        }
+        Set<String> keys = index.get(entry.indexKey);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            index.remove(entry.indexKey);
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private final String indexKey;
+        private final long expiresAt;
+
+        private Entry(V value, String indexKey, long expiresAt) {
+            this.value = value;
+            this.indexKey = indexKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package io.krystof.keycloak.social.twitch;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.IdentityProviderMapperModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -10,12 +12,20 @@ import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * User attribute mapper for Twitch identity provider.
  * This mapper allows Keycloak administrators to map attributes from the Twitch profile
  * to Keycloak user attributes through the admin console.
+ * <p>
+ * As in {@link AbstractJsonUserAttributeMapper}, unchanged attributes are not written and email, first and last
+ * name are only set, never cleared. The writes of all Twitch mappers for a user are batched: they are collected
+ * during the transaction and applied together just before it commits.
  */
 public class TwitchUserAttributeMapper extends AbstractJsonUserAttributeMapper {
 
@@ -23,7 +33,12 @@ public class TwitchUserAttributeMapper extends AbstractJsonUserAttributeMapper {
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
     public static final String TWITCH_USER_ATTRIBUTE = "twitch.user.attribute";
-    private static final String TWITCH_ATTRIBUTE_HELP_TEXT = "Available Twitch profile attributes: sub, email, email_verified, picture, aud, exp, iat, iss";
+    private static final String TWITCH_ATTRIBUTE_HELP_TEXT = "Available Twitch profile attributes: sub, email, email_verified, picture, aud, exp, iat, iss. "
+            + "With Helix enrichment also: id, login, display_name, type, broadcaster_type, description, profile_image_url, offline_image_url, view_count, created_at";
+
+    public static final String PROVIDER_ID = "twitch-user-attribute-mapper";
+
+    private static final String PENDING_WRITES = "twitch.attribute.writes:";
 
     // Constants from AbstractJsonUserAttributeMapper
     public static final String ATTRIBUTE_NAME = "jsonField";
@@ -53,7 +68,7 @@ public class TwitchUserAttributeMapper extends AbstractJsonUserAttributeMapper {
 
     @Override
     public String getId() {
-        return "twitch-user-attribute-mapper";
+        return PROVIDER_ID;
     }
 
     @Override
@@ -76,13 +91,193 @@ public class TwitchUserAttributeMapper extends AbstractJsonUserAttributeMapper {
         return "Maps attributes from the Twitch profile to user attributes. " + TWITCH_ATTRIBUTE_HELP_TEXT;
     }
 
+    /**
+     * Applies the mapping to an existing user from a profile obtained outside of a login, e.g. by a Helix resync.
+     * Unlike at login, a field missing from the profile leaves the attribute as it is.
+     *
+     * @return true if the profile has the mapped field
+     */
+    public boolean updateFromProfile(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        Object value = jsonValue(mapperModel, context);
+        if (value == null) {
+            return false;
+        }
+        writeIfChanged(session, realm, user, mapperModel.getIdentityProviderAlias(),
+                mapperModel.getConfig().get(USER_ATTRIBUTE), toValues(value));
+        return true;
+    }
+
+    private static boolean isAsyncEnrichment(BrokeredIdentityContext context) {
+        return context.getIdpConfig() instanceof TwitchIdentityProviderConfig
+                && ((TwitchIdentityProviderConfig) context.getIdpConfig()).isHelixEnrichment()
+                && ((TwitchIdentityProviderConfig) context.getIdpConfig()).isAsyncEnrichment();
+    }
+
     @Override
     public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        super.importNewUser(session, realm, user, mapperModel, context);
+        long start = System.nanoTime();
+        TwitchFlightRecorder.MapperEvent mapperEvent = TwitchFlightRecorder.beginMapper("importNewUser");
+        TwitchProfiles.withExpanded(context, () -> super.importNewUser(session, realm, user, mapperModel, context));
+        TwitchMetrics.recordPhase(TwitchMetrics.realmName(realm), mapperModel.getIdentityProviderAlias(),
+                TwitchMetrics.PHASE_ATTRIBUTE_MAPPER, start, true);
+        TwitchFlightRecorder.endMapper(mapperEvent, realm, mapperModel);
+    }
+
+    @Override
+    public void preprocessFederatedIdentity(KeycloakSession session, RealmModel realm, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        TwitchFlightRecorder.MapperEvent mapperEvent = TwitchFlightRecorder.beginMapper("preprocessFederatedIdentity");
+        TwitchProfiles.withExpanded(context, () -> super.preprocessFederatedIdentity(session, realm, mapperModel, context));
+        TwitchFlightRecorder.endMapper(mapperEvent, realm, mapperModel);
     }
 
     @Override
     public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        super.updateBrokeredUser(session, realm, user, mapperModel, context);
+        long start = System.nanoTime();
+        TwitchFlightRecorder.MapperEvent mapperEvent = TwitchFlightRecorder.beginMapper("updateBrokeredUser");
+        boolean success = false;
+        try {
+            Object value = jsonValue(mapperModel, context);
+            if (isAsyncEnrichment(context) && value == null) {
+                // Helix fields are not in the login profile; the background enrichment updates them
+                success = true;
+                return;
+            }
+            writeIfChanged(session, realm, user, mapperModel.getIdentityProviderAlias(),
+                    mapperModel.getConfig().get(USER_ATTRIBUTE), toValues(value));
+            success = true;
+        } finally {
+            TwitchMetrics.recordPhase(TwitchMetrics.realmName(realm), mapperModel.getIdentityProviderAlias(),
+                    TwitchMetrics.PHASE_ATTRIBUTE_MAPPER, start, success);
+            TwitchFlightRecorder.endMapper(mapperEvent, realm, mapperModel);
+        }
+    }
+
+    /**
+     * Queues the mapped values for writing unless the user already has them, as in
+     * {@link AbstractJsonUserAttributeMapper}: no values remove the attribute, but leave email, first and last name.
+     */
+    static void writeIfChanged(KeycloakSession session, RealmModel realm, UserModel user, String alias, String attribute, List<String> values) {
+        if (attribute == null || attribute.isEmpty()) {
+            return;
+        }
+        boolean builtIn = isBuiltIn(attribute);
+        if (builtIn && values.isEmpty()) {
+            return;
+        }
+        PendingWrites pending = PendingWrites.of(session, user);
+        List<String> current;
+        if (pending.values.containsKey(attribute)) {
+            current = pending.values.get(attribute);
+        } else if (builtIn) {
+            String value = builtInValue(user, attribute);
+            current = value == null ? Collections.emptyList() : Collections.singletonList(value);
+        } else {
+            current = user.getAttributeStream(attribute).collect(Collectors.toList());
+        }
+        if (builtIn) {
+            // Single valued, like AbstractJsonUserAttributeMapper sets them
+            values = values.subList(0, 1);
+        }
+
+        boolean changed;
+        if (UserModel.EMAIL.equalsIgnoreCase(attribute)) {
+            // Keycloak stores emails lowercased, so a difference in case alone is not a change, as in TwitchEventSub
+            changed = current.isEmpty() || !values.get(0).equalsIgnoreCase(current.get(0));
+        } else {
+            changed = !sorted(values).equals(sorted(current));
+        }
+        if (changed) {
+            pending.values.put(attribute, values);
+        }
+        TwitchMetrics.recordAttributeWrite(TwitchMetrics.realmName(realm), alias,
+                changed ? TwitchMetrics.ATTRIBUTE_WRITTEN : TwitchMetrics.ATTRIBUTE_UNCHANGED);
+    }
+
+    private static boolean isBuiltIn(String attribute) {
+        return UserModel.EMAIL.equalsIgnoreCase(attribute) || UserModel.FIRST_NAME.equalsIgnoreCase(attribute)
+                || UserModel.LAST_NAME.equalsIgnoreCase(attribute);
+    }
+
+    private static String builtInValue(UserModel user, String attribute) {
+        if (UserModel.EMAIL.equalsIgnoreCase(attribute)) {
+            return user.getEmail();
+        }
+        return UserModel.FIRST_NAME.equalsIgnoreCase(attribute) ? user.getFirstName() : user.getLastName();
+    }
+
+    // Reads compact profiles too, see TwitchProfiles
+    private static Object jsonValue(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        String jsonField = mapperModel.getConfig().get(CONF_JSON_FIELD);
+        JsonNode profile = TwitchProfiles.read(context);
+        if (profile == null || jsonField == null || jsonField.trim().isEmpty()) {
+            return null;
+        }
+        return getJsonValue(profile, jsonField.trim());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> toValues(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof List) {
+            List<String> values = new ArrayList<>();
+            for (Object item : (List<Object>) value) {
+                values.add(String.valueOf(item));
+            }
+            return values;
+        }
+        return Collections.singletonList(value.toString());
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Attribute changes of one user, applied when the transaction is about to commit.
+     */
+    private static final class PendingWrites extends AbstractKeycloakTransaction {
+
+        private final UserModel user;
+        private final Map<String, List<String>> values = new LinkedHashMap<>();
+
+        private PendingWrites(UserModel user) {
+            this.user = user;
+        }
+
+        private static PendingWrites of(KeycloakSession session, UserModel user) {
+            String key = PENDING_WRITES + user.getId();
+            PendingWrites pending = session.getAttribute(key, PendingWrites.class);
+            if (pending == null) {
+                pending = new PendingWrites(user);
+                session.setAttribute(key, pending);
+                session.getTransactionManager().enlistPrepare(pending);
+            }
+            return pending;
+        }
+
+        @Override
+        protected void commitImpl() {
+            values.forEach((attribute, attributeValues) -> {
+                if (UserModel.EMAIL.equalsIgnoreCase(attribute)) {
+                    user.setEmail(attributeValues.get(0));
+                } else if (UserModel.FIRST_NAME.equalsIgnoreCase(attribute)) {
+                    user.setFirstName(attributeValues.get(0));
+                } else if (UserModel.LAST_NAME.equalsIgnoreCase(attribute)) {
+                    user.setLastName(attributeValues.get(0));
+                } else if (attributeValues.isEmpty()) {
+                    user.removeAttribute(attribute);
+                } else {
+                    user.setAttribute(attribute, attributeValues);
+                }
+            });
+        }
+
+        @Override
+        protected void rollbackImpl() {
+        }
     }
 }
@@ -10,7 +10,6 @@ import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Username mapper for Twitch identity provider.
@@ -26,12 +25,17 @@ public class TwitchUsernameMapper extends AbstractIdentityProviderMapper {
 
     public static final String TEMPLATE = "template";
 
+    // Compiled templates by mapper id, recompiled when the configured template changes. Bounded, and entries expire so
+    // that the templates of deleted mappers do not stay
+    private static final TwitchTtlCache<TwitchUsernameTemplate> TEMPLATES = new TwitchTtlCache<>(1000, 3_600_000, expired -> { });
+
     static {
         ProviderConfigProperty property;
         property = new ProviderConfigProperty();
         property.setName(TEMPLATE);
         property.setLabel("Template");
-        property.setHelpText("Template to create the username. You can use ${email}, ${sub}, or any other Twitch profile attribute like ${email_verified}, ${picture}, ${aud}, ${exp}, ${iat}, ${iss}. Default is ${email}.");
+        property.setHelpText("Template to create the username. You can use ${email}, ${sub}, ${username}, or any other Twitch profile attribute like ${email_verified}, ${picture}, ${aud}, ${exp}, ${iat}, ${iss}. "
+                + "Transforms can be chained after a placeholder: ${email|email-local-part|lowercase|truncate:20}. Default is ${email}.");
         property.setType(ProviderConfigProperty.STRING_TYPE);
         property.setDefaultValue("${email}");
         configProperties.add(property);
@@ -69,15 +73,20 @@ public class TwitchUsernameMapper extends AbstractIdentityProviderMapper {
 
     @Override
     public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        long start = System.nanoTime();
+        TwitchFlightRecorder.MapperEvent mapperEvent = TwitchFlightRecorder.beginMapper("importNewUser");
         String template = mapperModel.getConfig().get(TEMPLATE);
         if (template == null) {
             template = "${email}";
         }
 
-        String username = formatUsername(template, context);
+        String username = formatUsername(mapperModel, template, context);
         if (username != null && !username.isEmpty()) {
             user.setUsername(username);
         }
+        TwitchMetrics.recordPhase(TwitchMetrics.realmName(realm), mapperModel.getIdentityProviderAlias(),
+                TwitchMetrics.PHASE_USERNAME_MAPPER, start, true);
+        TwitchFlightRecorder.endMapper(mapperEvent, realm, mapperModel);
     }
 
     @Override
@@ -95,31 +104,22 @@ public class TwitchUsernameMapper extends AbstractIdentityProviderMapper {
         // No legacy update needed
     }
 
-    private String formatUsername(String template, BrokeredIdentityContext context) {
-        Map<String, Object> attributes = context.getContextData();
-        String result = template;
+    String formatUsername(IdentityProviderMapperModel mapperModel, String template, BrokeredIdentityContext context) {
+        return compiledTemplate(mapperModel, template).render(context);
+    }
 
-        // Replace known attributes
-        if (context.getEmail() != null) {
-            result = result.replace("${email}", context.getEmail());
-        }
-        if (context.getId() != null) {
-            result = result.replace("${sub}", context.getId());
-        }
-        if (context.getUsername() != null) {
-            result = result.replace("${username}", context.getUsername());
+    private static TwitchUsernameTemplate compiledTemplate(IdentityProviderMapperModel mapperModel, String template) {
+        String mapperId = mapperModel.getId();
+        if (mapperId == null) {
+            return TwitchUsernameTemplate.compile(template);
         }
 
-        // Replace other attributes from the context data
-        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
-            if (entry.getValue() instanceof String) {
-                result = result.replace("${" + entry.getKey() + "}", (String) entry.getValue());
-            }
+        TwitchUsernameTemplate compiled = TEMPLATES.get(mapperId);
+        if (compiled == null || !compiled.getSource().equals(template)) {
+            // New mapper or the template was edited in the admin console
+            compiled = TwitchUsernameTemplate.compile(template);
+            TEMPLATES.put(mapperId, null, compiled);
         }
-
-        // Replace any remaining placeholders with empty strings
-        result = result.replaceAll("\\$\\{[^}]+\\}", "");
-
-        return result;
+        return compiled;
     }
 }
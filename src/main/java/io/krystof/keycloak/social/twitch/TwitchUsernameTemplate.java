@@ -0,0 +1,203 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A username template compiled into literal and placeholder segments.
+ * <p>
+ * Placeholders have the form {@code ${name}} or {@code ${name|transform|transform:arg}}. Names are resolved
+ * from the brokered identity ({@code email}, {@code sub}, {@code username}), then from string context data,
+ * then from the stored Twitch profile JSON (dotted paths allowed, optionally prefixed with {@code profile.}).
+ * Supported transforms are {@code lowercase}, {@code truncate:N} and {@code email-local-part}; they are
+ * applied while the value is appended, so rendering is a single pass.
+ * Unresolved placeholders render as an empty string.
+ */
+public final class TwitchUsernameTemplate {
+
+    private static final Logger logger = Logger.getLogger(TwitchUsernameTemplate.class);
+
+    private static final String PROFILE_PREFIX = "profile.";
+
+    private final String source;
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final int literalLength;
+
+    private TwitchUsernameTemplate(String source, String[] literals, Placeholder[] placeholders) {
+        this.source = source;
+        this.literals = literals;
+        this.placeholders = placeholders;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Parses a template. Literals and placeholders alternate, starting and ending with a (possibly empty) literal.
+     */
+    public static TwitchUsernameTemplate compile(String template) {
+        List<String> literals = new ArrayList<>();
+        List<Placeholder> placeholders = new ArrayList<>();
+
+        int position = 0;
+        while (true) {
+            int start = template.indexOf("${", position);
+            int end = start < 0 ? -1 : template.indexOf('}', start + 2);
+            if (end < 0) {
+                literals.add(template.substring(position));
+                break;
+            }
+            literals.add(template.substring(position, start));
+            placeholders.add(Placeholder.parse(template.substring(start + 2, end)));
+            position = end + 1;
+        }
+
+        return new TwitchUsernameTemplate(template, literals.toArray(new String[0]), placeholders.toArray(new Placeholder[0]));
+    }
+
+    public String render(BrokeredIdentityContext context) {
+        StringBuilder sb = new StringBuilder(literalLength + placeholders.length * 16);
+        JsonNode profile = null;
+        boolean profileLoaded = false;
+
+        for (int i = 0; i < placeholders.length; i++) {
+            sb.append(literals[i]);
+
+            Placeholder placeholder = placeholders[i];
+            String value = placeholder.resolveFromContext(context);
+            if (value == null) {
+                if (!profileLoaded) {
+                    profile = TwitchProfiles.read(context);
+                    profileLoaded = true;
+                }
+                value = placeholder.resolveFromProfile(profile);
+            }
+            if (value != null) {
+                placeholder.append(sb, value);
+            }
+        }
+        sb.append(literals[placeholders.length]);
+
+        return sb.toString();
+    }
+
+    private static final class Placeholder {
+
+        private final String name;
+        private final String profilePath;
+        private final boolean lowercase;
+        private final boolean emailLocalPart;
+        private final int maxLength;
+
+        private Placeholder(String name, boolean lowercase, boolean emailLocalPart, int maxLength) {
+            this.name = name;
+            this.profilePath = name.startsWith(PROFILE_PREFIX) ? name.substring(PROFILE_PREFIX.length()) : name;
+            this.lowercase = lowercase;
+            this.emailLocalPart = emailLocalPart;
+            this.maxLength = maxLength;
+        }
+
+        private static Placeholder parse(String expression) {
+            String[] parts = expression.split("\\|");
+            boolean lowercase = false;
+            boolean emailLocalPart = false;
+            int maxLength = -1;
+
+            for (int i = 1; i < parts.length; i++) {
+                String transform = parts[i].trim();
+                if (transform.equals("lowercase")) {
+                    lowercase = true;
+                } else if (transform.equals("email-local-part")) {
+                    emailLocalPart = true;
+                } else if (transform.startsWith("truncate:")) {
+                    int length = parseLength(transform.substring("truncate:".length()).trim());
+                    if (length < 0) {
+                        logger.warnf("Ignoring invalid truncate length in username template: %s", transform);
+                    } else {
+                        maxLength = maxLength < 0 ? length : Math.min(maxLength, length);
+                    }
+                } else {
+                    logger.warnf("Ignoring unknown transform in username template: %s", transform);
+                }
+            }
+
+            return new Placeholder(parts[0].trim(), lowercase, emailLocalPart, maxLength);
+        }
+
+        /**
+         * @return the length, or -1 if it is negative or not a number
+         */
+        private static int parseLength(String length) {
+            try {
+                return Math.max(-1, Integer.parseInt(length));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private String resolveFromContext(BrokeredIdentityContext context) {
+            switch (name) {
+                case "email":
+                    if (context.getEmail() != null) {
+                        return context.getEmail();
+                    }
+                    break;
+                case "sub":
+                    if (context.getId() != null) {
+                        return context.getId();
+                    }
+                    break;
+                case "username":
+                    if (context.getUsername() != null) {
+                        return context.getUsername();
+                    }
+                    break;
+                default:
+            }
+            Object value = context.getContextData().get(name);
+            return value instanceof String ? (String) value : null;
+        }
+
+        private String resolveFromProfile(JsonNode profile) {
+            if (profile == null) {
+                return null;
+            }
+            Object value = AbstractJsonUserAttributeMapper.getJsonValue(profile, profilePath);
+            return value == null ? null : value.toString();
+        }
+
+        private void append(StringBuilder sb, String value) {
+            // Cutting at the '@' and truncating commute, so both only move the end index
+            int end = value.length();
+            if (emailLocalPart) {
+                int at = value.indexOf('@');
+                if (at >= 0) {
+                    end = at;
+                }
+            }
+            if (maxLength >= 0) {
+                end = Math.min(end, maxLength);
+            }
+
+            if (!lowercase) {
+                sb.append(value, 0, end);
+                return;
+            }
+            for (int i = 0; i < end; i++) {
+                sb.append(Character.toLowerCase(value.charAt(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitchAppTokensTest {
+
+    private static final String KEY = "twitch-app-token:twitch";
+
+    private final Map<String, Map<String, String>> store = new HashMap<>();
+    private final Map<String, Long> lifespans = new HashMap<>();
+    private final List<String> refreshes = new CopyOnWriteArrayList<>();
+    private final CountDownLatch refreshing = new CountDownLatch(1);
+    private final CountDownLatch finishRefresh = new CountDownLatch(1);
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final RealmModel realm = stub(RealmModel.class, (name, args) -> name.equals("getId") ? "realm-id" : "test");
+    private final TwitchAppTokens appTokens = new BlockingAppTokens();
+
+    @AfterEach
+    void tearDown() {
+        appTokens.close();
+    }
+
+    @Test
+    void returnsNullWithoutWaitingWhileNoTokenExists() throws InterruptedException {
+        KeycloakSession session = session();
+
+        assertNull(appTokens.getToken(session, config()));
+        // The refresh is still running, blocked until released
+        assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+        assertNull(appTokens.getToken(session, config()));
+        assertNull(appTokens.getToken(session, config()));
+
+        assertEquals(List.of("realm-id:twitch:twitch"), refreshes);
+        finishRefresh.countDown();
+    }
+
+    @Test
+    void refreshesTokenInsideRefreshWindowOnce() throws InterruptedException {
+        KeycloakSession session = session();
+        storeToken("expiring", 600);
+
+        assertEquals("expiring", appTokens.getToken(session, config()));
+        assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+        assertEquals("expiring", appTokens.getToken(session, config()));
+
+        assertEquals(1, refreshes.size());
+        finishRefresh.countDown();
+    }
+
+    @Test
+    void doesNotRefreshTokenOutsideRefreshWindow() {
+        storeToken("fresh", 7200);
+
+        assertEquals("fresh", appTokens.getToken(session(), config()));
+        assertEquals(List.of(), refreshes);
+    }
+
+    @Test
+    void invalidateOnlyRemovesTheRejectedToken() throws InterruptedException {
+        KeycloakSession session = session();
+        storeToken("current", 7200);
+        assertEquals("current", appTokens.getToken(session, config()));
+
+        // Another node already replaced the rejected token
+        appTokens.invalidate(session, config(), "rejected");
+        assertTrue(store.containsKey(KEY));
+        assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+
+        appTokens.invalidate(session, config(), "current");
+        assertFalse(store.containsKey(KEY));
+        assertNull(appTokens.getToken(session, config()));
+        assertEquals(1, refreshes.size());
+        finishRefresh.countDown();
+    }
+
+    @Test
+    void reusesTokenAnotherNodeStored() {
+        KeycloakSession session = session();
+        storeToken("other-node", 7200);
+
+        TwitchAppTokens.Token token = appTokens.fetchIfNeeded(session, "realm-id", "twitch", "twitch");
+
+        assertEquals("other-node", token.accessToken);
+        assertEquals(0, fetches.get());
+    }
+
+    @Test
+    void fetchesAndStoresTokenInsideRefreshWindow() {
+        KeycloakSession session = session();
+        storeToken("expiring", 600);
+
+        TwitchAppTokens.Token token = appTokens.fetchIfNeeded(session, "realm-id", "twitch", "twitch");
+
+        assertEquals("fetched", token.accessToken);
+        assertEquals(1, fetches.get());
+        assertEquals("fetched", store.get(KEY).get("access_token"));
+        assertEquals(5000L, lifespans.get(KEY));
+    }
+
+    private void storeToken(String accessToken, long expiresIn) {
+        store.put(KEY, Map.of("access_token", accessToken, "expires_at", String.valueOf(Time.currentTime() + expiresIn)));
+    }
+
+    private static TwitchIdentityProviderConfig config() {
+        return new TwitchIdentityProviderConfig(model());
+    }
+
+    private static IdentityProviderModel model() {
+        IdentityProviderModel model = new IdentityProviderModel();
+        model.setAlias("twitch");
+        model.setProviderId(TwitchIdentityProviderFactory.PROVIDER_ID);
+        model.setEnabled(true);
+        model.getConfig().put(TwitchIdentityProviderConfig.APP_TOKEN, "true");
+        model.getConfig().put(TwitchIdentityProviderConfig.APP_TOKEN_REFRESH_WINDOW, "3600");
+        return model;
+    }
+
+    private KeycloakSession session() {
+        SingleUseObjectProvider singleUseObjects = stub(SingleUseObjectProvider.class, (name, args) -> {
+            switch (name) {
+                case "get":
+                    return store.get((String) args[0]);
+                case "put":
+                    lifespans.put((String) args[0], (Long) args[1]);
+                    store.put((String) args[0], (Map<String, String>) args[2]);
+                    return null;
+                case "remove":
+                    return store.remove((String) args[0]);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        KeycloakContext context = stub(KeycloakContext.class, (name, args) -> {
+            switch (name) {
+                case "getRealm":
+                    return realm;
+                case "setRealm":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        RealmProvider realms = stub(RealmProvider.class, (name, args) -> {
+            if (name.equals("getRealm")) {
+                return realm;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        IdentityProviderStorageProvider identityProviders = stub(IdentityProviderStorageProvider.class, (name, args) -> {
+            if (name.equals("getByAlias")) {
+                return model();
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            switch (name) {
+                case "singleUseObjects":
+                    return singleUseObjects;
+                case "getContext":
+                    return context;
+                case "realms":
+                    return realms;
+                case "identityProviders":
+                    return identityProviders;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /**
+     * App tokens whose background refresh is recorded and blocks until released, and whose provider fetches a
+     * token without calling Twitch.
+     */
+    private final class BlockingAppTokens extends TwitchAppTokens {
+
+        private BlockingAppTokens() {
+            super(new TwitchIdentityProviderFactory() {
+                @Override
+                public TwitchIdentityProvider create(KeycloakSession session, IdentityProviderModel model) {
+                    return new FetchingProvider(session, model);
+                }
+            });
+            setSessionFactory(stub(KeycloakSessionFactory.class, (name, args) -> {
+                throw new UnsupportedOperationException(name);
+            }));
+        }
+
+        @Override
+        void refresh(String realmId, String alias, String key) {
+            refreshes.add(realmId + ":" + alias + ":" + key);
+            refreshing.countDown();
+            try {
+                finishRefresh.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class FetchingProvider extends TwitchIdentityProvider {
+
+        private FetchingProvider(KeycloakSession session, IdentityProviderModel model) {
+            super(session, new TwitchConfigSnapshot(model, "test",
+                            resolved -> new TwitchResilience("test", "twitch", TwitchResilience.Settings.from(resolved))),
+                    null, null, null, null, null, null);
+        }
+
+        @Override
+        public TwitchTokenResponse fetchAppToken() {
+            fetches.incrementAndGet();
+            return new TwitchTokenResponse("fetched", null, null, null, null, 5000);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class TwitchAttributeRulesTest {
+
+    private static final String PROFILE = "{"
+            + "\"login\": \"SomeStreamer\","
+            + "\"scopes\": [\"user:read:email\", \"chat:read\"],"
+            + "\"tags\": [\"abc\", \"def\"],"
+            + "\"counts\": [\"1\", \"x\", \"0\", 2],"
+            + "\"affiliate\": \"1\","
+            + "\"partner\": \"true\","
+            + "\"description\": \"\","
+            + "\"empty\": []"
+            + "}";
+
+    @Test
+    void joinSeparatorKeepsSpacesAfterColon() {
+        Map<String, List<String>> attributes = apply(
+                "/scopes|join:,", "commaJoined",
+                "/scopes | join: / |lowercase", "slashJoined");
+
+        assertEquals(List.of("user:read:email,chat:read"), attributes.get("commaJoined"));
+        assertEquals(List.of("user:read:email / chat:read"), attributes.get("slashJoined"));
+    }
+
+    @Test
+    void arraysWithoutJoinAreMultiValued() {
+        assertEquals(List.of("user:read:email", "chat:read"), apply("scopes", "scopes").get("scopes"));
+    }
+
+    @Test
+    void truncateParsesLengthAndSkipsInvalidRules() {
+        Map<String, List<String>> attributes = apply(
+                "/login|truncate: 4", "short",
+                "/login|truncate:0", "none",
+                "/login|truncate:four", "invalid",
+                "/login|truncate:-5", "negative",
+                "/login|reverse", "unknown");
+
+        assertEquals(List.of("Some"), attributes.get("short"));
+        assertEquals(List.of(""), attributes.get("none"));
+        assertFalse(attributes.containsKey("invalid"));
+        assertFalse(attributes.containsKey("negative"));
+        assertFalse(attributes.containsKey("unknown"));
+    }
+
+    @Test
+    void coercesToIntBeforeBool() {
+        Map<String, List<String>> attributes = apply(
+                "/affiliate|bool|int", "affiliate",
+                "/partner|int|bool", "partner",
+                "/partner|bool", "partnerBool",
+                "/counts|int", "counts",
+                "/counts|bool|int", "countFlags");
+
+        assertEquals(List.of("true"), attributes.get("affiliate"));
+        // "true" is not an integer, so int drops it before bool could convert it
+        assertEquals(List.of(), attributes.get("partner"));
+        assertEquals(List.of("true"), attributes.get("partnerBool"));
+        assertEquals(List.of("1", "0", "2"), attributes.get("counts"));
+        assertEquals(List.of("true", "false"), attributes.get("countFlags"));
+    }
+
+    @Test
+    void laterRuleReplacesEarlierOneOnlyWithValue() {
+        Map<String, List<String>> attributes = apply(
+                "/login", "name",
+                "/missing", "name",
+                "/tags", "tag",
+                "/login|lowercase", "tag",
+                "/empty", "scope",
+                "/missing", "scope");
+
+        assertEquals(List.of("SomeStreamer"), attributes.get("name"));
+        assertEquals(List.of("somestreamer"), attributes.get("tag"));
+        assertEquals(List.of(), attributes.get("scope"));
+    }
+
+    @Test
+    void appliesTransformsInFixedOrder() {
+        Map<String, List<String>> attributes = apply(
+                "/tags|join:-|truncate:2", "tags",
+                "/login|truncate:4|uppercase|lowercase", "login",
+                "/description|truncate:1", "description");
+
+        // Each value is truncated before the array is joined, and uppercase wins over lowercase
+        assertEquals(List.of("ab-de"), attributes.get("tags"));
+        assertEquals(List.of("SOME"), attributes.get("login"));
+        assertEquals(List.of(""), attributes.get("description"));
+    }
+
+    @Test
+    void compilesEmptyAndInvalidSources() {
+        assertEquals(Map.of(), TwitchAttributeRules.compile(null).apply(profile()));
+        assertEquals(Map.of(), TwitchAttributeRules.compile("").apply(profile()));
+        assertEquals(Map.of(), TwitchAttributeRules.compile("not json").apply(profile()));
+        assertEquals(Map.of(), TwitchAttributeRules.compile("[{\"key\": \"/login\", \"value\": \" \"}]").apply(profile()));
+    }
+
+    private static Map<String, List<String>> apply(String... expressionsAndAttributes) {
+        ArrayNode source = JsonSerialization.mapper.createArrayNode();
+        for (int i = 0; i < expressionsAndAttributes.length; i += 2) {
+            ObjectNode rule = source.addObject();
+            rule.put("key", expressionsAndAttributes[i]);
+            rule.put("value", expressionsAndAttributes[i + 1]);
+        }
+        return TwitchAttributeRules.compile(source.toString()).apply(profile());
+    }
+
+    private static JsonNode profile() {
+        try {
+            return JsonSerialization.mapper.readTree(PROFILE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package io.krystof.keycloak.social.twitch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TwitchEnrichmentQueueTest {
+
+    private final Map<String, Map<String, String>> store = new HashMap<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+
+    @BeforeAll
+    static void recordMetrics() {
+        // The global registry has no registries of its own outside of Keycloak, so counters would not count
+        Metrics.addRegistry(new SimpleMeterRegistry());
+    }
+
+    @Test
+    void coalescesUserAlreadyQueued() {
+        TwitchEnrichmentQueue queue = queue(10);
+
+        queue.offer("realm-id", "queue-queued", "twitch", "user-1");
+        queue.offer("realm-id", "queue-queued", "twitch", "user-1");
+
+        assertEquals(1, queue.size());
+        assertEquals(1, count("queue-queued", TwitchMetrics.ENRICHMENT_QUEUED));
+        assertEquals(1, count("queue-queued", TwitchMetrics.ENRICHMENT_COALESCED));
+    }
+
+    @Test
+    void coalescesUserBeingProcessed() throws InterruptedException {
+        TwitchEnrichmentQueue queue = queue(10);
+        queue.offer("realm-id", "queue-processing", "twitch", "user-1");
+        queue.take();
+
+        queue.offer("realm-id", "queue-processing", "twitch", "user-1");
+
+        assertEquals(0, queue.size());
+        assertEquals(1, count("queue-processing", TwitchMetrics.ENRICHMENT_COALESCED));
+    }
+
+    @Test
+    void rejectsUsersBeyondCapacity() {
+        TwitchEnrichmentQueue queue = queue(2);
+
+        queue.offer("realm-id", "queue-full", "twitch", "user-1");
+        queue.offer("realm-id", "queue-full", "twitch", "user-2");
+        queue.offer("realm-id", "queue-full", "twitch", "user-3");
+
+        assertEquals(2, queue.size());
+        assertEquals(2, count("queue-full", TwitchMetrics.ENRICHMENT_QUEUED));
+        assertEquals(1, count("queue-full", TwitchMetrics.ENRICHMENT_REJECTED));
+    }
+
+    @Test
+    void takesUsersOfOneIdentityProviderAtATime() throws InterruptedException {
+        TwitchEnrichmentQueue queue = queue(10);
+        queue.offer("realm-a", "a", "twitch", "user-1");
+        queue.offer("realm-a", "a", "other", "user-2");
+        queue.offer("realm-b", "b", "twitch", "user-3");
+        queue.offer("realm-a", "a", "twitch", "user-4");
+
+        assertEquals(List.of("realm-a:twitch:user-1", "realm-a:twitch:user-4"), keys(queue.take()));
+        assertEquals(List.of("realm-a:other:user-2"), keys(queue.take()));
+        assertEquals(List.of("realm-b:twitch:user-3"), keys(queue.take()));
+    }
+
+    @Test
+    void takesAtMostOneHelixRequestOfUsers() throws InterruptedException {
+        TwitchEnrichmentQueue queue = queue(1000);
+        for (int i = 0; i <= TwitchIdentityProvider.HELIX_USERS_MAX_IDS; i++) {
+            queue.offer("realm-id", "queue-batch", "twitch", "user-" + i);
+        }
+
+        assertEquals(TwitchIdentityProvider.HELIX_USERS_MAX_IDS, queue.take().size());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void enqueueQueuesOnlyOnCommit() {
+        TwitchEnrichmentQueue queue = queue(10);
+
+        queue.enqueue(session(), realm("queue-commit"), user("user-1"), "twitch");
+
+        assertEquals(0, queue.size());
+        complete(true);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void enqueueLeavesRolledBackLoginUnqueued() {
+        TwitchEnrichmentQueue queue = queue(10);
+
+        queue.enqueue(session(), realm("queue-rollback"), user("user-1"), "twitch");
+        complete(false);
+
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void enqueueIndexesPendingUserOnce() {
+        TwitchEnrichmentQueue queue = queue(10);
+        KeycloakSession session = session();
+
+        queue.enqueue(session, realm("queue-index"), user("user-1"), "twitch");
+        queue.enqueue(session, realm("queue-index"), user("user-1"), "twitch");
+        queue.enqueue(session, realm("queue-index"), user("user-2"), "twitch");
+
+        assertEquals(List.of("user-1", "user-2"), indexedUsers());
+    }
+
+    @Test
+    void sweepQueuesIndexedUsersWithoutReadingUsers() {
+        KeycloakSession session = session();
+        // Recorded by logins on a node that went away before queuing them
+        queue(10).enqueue(session, realm("queue-sweep"), user("user-1"), "twitch");
+        queue(10).enqueue(session, realm("queue-sweep"), user("user-2"), "twitch");
+        queue(10).enqueue(session, realm("queue-sweep"), user("user-3"), "other");
+        TwitchEnrichmentQueue queue = queue(10);
+
+        queue.sweep(session, realm("queue-sweep"), "twitch");
+
+        assertEquals(2, queue.size());
+        assertEquals(2, count("queue-sweep", TwitchMetrics.ENRICHMENT_QUEUED));
+    }
+
+    private TwitchEnrichmentQueue queue(int capacity) {
+        return new TwitchEnrichmentQueue(new TwitchIdentityProviderFactory(), capacity, 1);
+    }
+
+    private List<String> indexedUsers() {
+        return store.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith("twitch.enrichment.index:") && !entry.getKey().endsWith(":claim"))
+                .map(entry -> entry.getValue().get("userId"))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private void complete(boolean commit) {
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.begin();
+            if (commit) {
+                transaction.commit();
+            } else {
+                transaction.rollback();
+            }
+        }
+    }
+
+    private static List<String> keys(List<TwitchEnrichmentQueue.Entry> batch) {
+        return batch.stream().map(TwitchEnrichmentQueue.Entry::key).collect(Collectors.toList());
+    }
+
+    private static double count(String realm, String result) {
+        Counter counter = Metrics.globalRegistry.find("keycloak.twitch.enrichment")
+                .tags("realm", realm, "result", result).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private KeycloakSession session() {
+        SingleUseObjectProvider singleUseObjects = stub(SingleUseObjectProvider.class, (name, args) -> {
+            switch (name) {
+                case "putIfAbsent":
+                    return store.putIfAbsent((String) args[0], Map.of()) == null;
+                case "put":
+                    store.put((String) args[0], (Map<String, String>) args[2]);
+                    return null;
+                case "get":
+                    return store.get((String) args[0]);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class, (name, args) -> {
+            if (name.equals("enlistAfterCompletion")) {
+                afterCompletion.add((KeycloakTransaction) args[0]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            switch (name) {
+                case "singleUseObjects":
+                    return singleUseObjects;
+                case "getTransactionManager":
+                    return transactionManager;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static RealmModel realm(String name) {
+        return stub(RealmModel.class, (method, args) -> {
+            switch (method) {
+                case "getId":
+                    return name + "-id";
+                case "getName":
+                    return name;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    private static UserModel user(String id) {
+        return stub(UserModel.class, (name, args) -> {
+            if (name.equals("getId")) {
+                return id;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+    }
+}
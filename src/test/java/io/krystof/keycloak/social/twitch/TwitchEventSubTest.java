@@ -0,0 +1,363 @@
+package io.krystof.keycloak.social.twitch;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitchEventSubTest {
+
+    private static final String SECRET = "eventsub-secret";
+    private static final byte[] CHALLENGE = ("{\"challenge\": \"pogchamp-kappa-360noscope-vohiyo\","
+            + "\"subscription\": {\"type\": \"user.update\"}}").getBytes(StandardCharsets.UTF_8);
+    // A subscription type the receiver does not handle, so that applying it needs no users
+    private static final byte[] NOTIFICATION = ("{\"subscription\": {\"type\": \"channel.follow\"},"
+            + "\"event\": {\"user_id\": \"12345\"}}").getBytes(StandardCharsets.UTF_8);
+    private static final String USER_UPDATE = "{\"subscription\": {\"type\": \"user.update\"},"
+            + "\"event\": {\"user_id\": \"12345\", \"user_login\": \"somestreamer\", \"user_name\": \"SomeStreamer\","
+            + "\"description\": \"streaming now\", \"email\": \"New@Example.com\", \"email_verified\": true}}";
+
+    private final Map<String, Long> singleUseObjects = new HashMap<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private final List<KeycloakTransaction> prepared = new ArrayList<>();
+    private final Map<String, Object> sessionAttributes = new HashMap<>();
+    private final TwitchIdentityProviderConfig config = EventSubProvider.config();
+    private final List<String> writes = new ArrayList<>();
+    private final Map<String, List<String>> attributes = new HashMap<>();
+    private final FederatedIdentityModel identity = new FederatedIdentityModel("twitch", "12345", "somestreamer", "{\"access_token\": \"a\"}");
+    private String email = "jane@example.com";
+    // The user who has the email the event changes to, if any
+    private String emailOwner;
+
+    @Test
+    void verifiesSignature() {
+        String timestamp = Instant.now().toString();
+        String signature = TwitchEventSub.sign(SECRET, "id", timestamp, NOTIFICATION);
+
+        assertTrue(signature.matches("sha256=[0-9a-f]{64}"));
+        assertTrue(TwitchEventSub.verify(SECRET, "id", timestamp, NOTIFICATION, signature));
+        assertFalse(TwitchEventSub.verify("other-secret", "id", timestamp, NOTIFICATION, signature));
+        assertFalse(TwitchEventSub.verify(SECRET, "other-id", timestamp, NOTIFICATION, signature));
+        assertFalse(TwitchEventSub.verify(SECRET, "id", timestamp, CHALLENGE, signature));
+        assertFalse(TwitchEventSub.verify(SECRET, "id", timestamp, NOTIFICATION, signature.toUpperCase()));
+        assertFalse(TwitchEventSub.verify(SECRET, "id", timestamp, NOTIFICATION, null));
+    }
+
+    @Test
+    void answersVerificationChallenge() {
+        Response response = receive(SECRET, "id", Instant.now().toString(), TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, null);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("pogchamp-kappa-360noscope-vohiyo", response.getEntity());
+    }
+
+    @Test
+    void rejectsBadSignatures() {
+        String timestamp = Instant.now().toString();
+        String signature = TwitchEventSub.sign("other-secret", "id", timestamp, CHALLENGE);
+
+        assertEquals(403, receive(SECRET, "id", timestamp, TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, signature).getStatus());
+        assertEquals(403, receive(SECRET, null, timestamp, TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, signature).getStatus());
+        assertEquals(404, receive(null, "id", timestamp, TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, null).getStatus());
+    }
+
+    @Test
+    void rejectsStaleTimestamps() {
+        Instant now = Instant.now();
+
+        assertEquals(200, receive(SECRET, "id", now.minus(Duration.ofMinutes(9)).toString(),
+                TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, null).getStatus());
+        assertEquals(403, receive(SECRET, "id", now.minus(Duration.ofMinutes(11)).toString(),
+                TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, null).getStatus());
+        assertEquals(403, receive(SECRET, "id", now.plus(Duration.ofMinutes(11)).toString(),
+                TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, null).getStatus());
+        assertEquals(403, receive(SECRET, "id", "yesterday", TwitchEventSub.TYPE_VERIFICATION, CHALLENGE, null).getStatus());
+    }
+
+    @Test
+    void rejectsSignedBodiesThatAreNotJson() {
+        byte[] body = "not json".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(400, receive(SECRET, "id", Instant.now().toString(), TwitchEventSub.TYPE_NOTIFICATION, body, null).getStatus());
+    }
+
+    @Test
+    void appliesDuplicateMessageOnce() {
+        String timestamp = Instant.now().toString();
+
+        assertEquals(204, receive(SECRET, "message", timestamp, TwitchEventSub.TYPE_NOTIFICATION, NOTIFICATION, null).getStatus());
+        assertEquals(List.of(1200L), List.copyOf(singleUseObjects.values()));
+        assertEquals(1, afterCompletion.size());
+
+        // Acknowledged again, but not applied
+        assertEquals(204, receive(SECRET, "message", timestamp, TwitchEventSub.TYPE_NOTIFICATION, NOTIFICATION, null).getStatus());
+        assertEquals(1, afterCompletion.size());
+
+        // A message whose updates rolled back is applied when Twitch delivers it again
+        afterCompletion.get(0).begin();
+        afterCompletion.get(0).rollback();
+        assertTrue(singleUseObjects.isEmpty());
+        assertEquals(204, receive(SECRET, "message", timestamp, TwitchEventSub.TYPE_NOTIFICATION, NOTIFICATION, null).getStatus());
+        assertEquals(2, afterCompletion.size());
+    }
+
+    @Test
+    void appliesUserUpdateThroughMappersAndForcedEmail() {
+        config.setSyncMode(IdentityProviderSyncMode.FORCE);
+        config.setTrustEmail(true);
+        attributes.put("twitchDescription", List.of("old"));
+
+        assertEquals(204, notify(USER_UPDATE).getStatus());
+        assertEquals(List.of("email=New@Example.com", "emailVerified=true"), writes);
+
+        // The mapped attributes are written when the transaction is about to commit
+        commit();
+        assertEquals(List.of("email=New@Example.com", "emailVerified=true", "twitchDescription=[streaming now]"), writes);
+    }
+
+    @Test
+    void keepsEmailWithoutForceSyncOrWhenAnotherUserHasIt() {
+        assertEquals(204, notify(USER_UPDATE).getStatus());
+        commit();
+        assertEquals(List.of("twitchDescription=[streaming now]"), writes);
+
+        writes.clear();
+        prepared.clear();
+        sessionAttributes.clear();
+        config.setSyncMode(IdentityProviderSyncMode.FORCE);
+        emailOwner = "other-id";
+        assertEquals(204, notify(USER_UPDATE).getStatus());
+        assertEquals(List.of(), writes);
+
+        // A change in case only is not a change
+        emailOwner = null;
+        email = "new@example.com";
+        assertEquals(204, notify(USER_UPDATE).getStatus());
+        assertEquals(List.of(), writes);
+    }
+
+    @Test
+    void clearsStoredTokenOnAuthorizationRevoke() {
+        assertEquals(204, notify("{\"subscription\": {\"type\": \"user.authorization.revoke\"},"
+                + "\"event\": {\"client_id\": \"other-client\", \"user_id\": \"12345\"}}").getStatus());
+        assertEquals(List.of(), writes);
+
+        assertEquals(204, notify("{\"subscription\": {\"type\": \"user.authorization.revoke\"},"
+                + "\"event\": {\"client_id\": \"client\", \"user_id\": \"12345\"}}").getStatus());
+        assertEquals(List.of("updateFederatedIdentity"), writes);
+        assertNull(identity.getToken());
+    }
+
+    @Test
+    void ignoresEventsOfUnlinkedTwitchUsers() {
+        assertEquals(204, notify(USER_UPDATE.replace("12345", "67890")).getStatus());
+        assertEquals(204, notify("{\"subscription\": {\"type\": \"user.authorization.revoke\"},"
+                + "\"event\": {\"client_id\": \"client\", \"user_id\": \"67890\"}}").getStatus());
+
+        assertEquals(List.of(), writes);
+        assertEquals(List.of(), prepared);
+    }
+
+    private Response notify(String message) {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        return receive(SECRET, "message-" + singleUseObjects.size(), Instant.now().toString(),
+                TwitchEventSub.TYPE_NOTIFICATION, body, null);
+    }
+
+    private void commit() {
+        for (KeycloakTransaction transaction : prepared) {
+            transaction.begin();
+            transaction.commit();
+        }
+    }
+
+    /**
+     * Receives a message, signed with {@link #SECRET} unless a signature is given.
+     */
+    private Response receive(String secret, String messageId, String timestamp, String type, byte[] body, String signature) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(TwitchEventSub.MESSAGE_ID, messageId);
+        headers.put(TwitchEventSub.MESSAGE_TIMESTAMP, timestamp);
+        headers.put(TwitchEventSub.MESSAGE_TYPE, type);
+        headers.put(TwitchEventSub.MESSAGE_SIGNATURE, signature != null ? signature
+                : TwitchEventSub.sign(SECRET, String.valueOf(messageId), timestamp, body));
+
+        KeycloakSession session = session();
+        TwitchEventSub eventSub = new TwitchEventSub(session, realm(), new EventSubProvider(session, secret, config));
+        return eventSub.receive(stub(HttpHeaders.class, (name, args) -> headers.get((String) args[0])), body);
+    }
+
+    private KeycloakSession session() {
+        SingleUseObjectProvider store = stub(SingleUseObjectProvider.class, (name, args) -> {
+            switch (name) {
+                case "putIfAbsent":
+                    return singleUseObjects.putIfAbsent((String) args[0], (Long) args[1]) == null;
+                case "remove":
+                    return singleUseObjects.remove((String) args[0]) != null ? Map.of() : null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class, (name, args) -> {
+            switch (name) {
+                case "enlistAfterCompletion":
+                    afterCompletion.add((KeycloakTransaction) args[0]);
+                    return null;
+                case "enlistPrepare":
+                    prepared.add((KeycloakTransaction) args[0]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        UserModel user = user();
+        UserProvider users = stub(UserProvider.class, (name, args) -> {
+            switch (name) {
+                case "getUserByFederatedIdentity":
+                    return identity.getUserId().equals(((FederatedIdentityModel) args[1]).getUserId()) ? user : null;
+                case "getUserByEmail":
+                    return emailOwner != null ? stub(UserModel.class, (method, none) -> emailOwner) : null;
+                case "getFederatedIdentity":
+                    return identity;
+                case "updateFederatedIdentity":
+                    writes.add(name);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        IdentityProviderMapperModel mapper = new IdentityProviderMapperModel();
+        mapper.setIdentityProviderAlias("twitch");
+        mapper.setIdentityProviderMapper(TwitchUserAttributeMapper.PROVIDER_ID);
+        mapper.setConfig(new HashMap<>(Map.of(TwitchUserAttributeMapper.ATTRIBUTE_NAME, "description",
+                TwitchUserAttributeMapper.USER_ATTRIBUTE, "twitchDescription")));
+        mapper.setSyncMode(IdentityProviderMapperSyncMode.INHERIT);
+        IdentityProviderStorageProvider identityProviders = stub(IdentityProviderStorageProvider.class, (name, args) -> {
+            if (name.equals("getMappersByAliasStream")) {
+                return Stream.of(mapper);
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        KeycloakSessionFactory sessionFactory = stub(KeycloakSessionFactory.class, (name, args) -> {
+            if (name.equals("getProviderFactory")) {
+                return args[1].equals(TwitchUserAttributeMapper.PROVIDER_ID)
+                        ? new TwitchUserAttributeMapper() : new TwitchMultiAttributeMapper();
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            switch (name) {
+                case "singleUseObjects":
+                    return store;
+                case "getTransactionManager":
+                    return transactionManager;
+                case "users":
+                    return users;
+                case "identityProviders":
+                    return identityProviders;
+                case "getKeycloakSessionFactory":
+                    return sessionFactory;
+                case "getAttribute":
+                    return sessionAttributes.get((String) args[0]);
+                case "setAttribute":
+                    sessionAttributes.put((String) args[0], args[1]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private UserModel user() {
+        return stub(UserModel.class, (name, args) -> {
+            switch (name) {
+                case "getId":
+                    return "jane-id";
+                case "getEmail":
+                    return email;
+                case "getAttributeStream":
+                    return attributes.getOrDefault((String) args[0], List.of()).stream();
+                case "setAttribute":
+                    writes.add(args[0] + "=" + args[1]);
+                    return null;
+                case "setEmail":
+                    writes.add("email=" + args[0]);
+                    return null;
+                case "setEmailVerified":
+                    writes.add("emailVerified=" + args[0]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static RealmModel realm() {
+        return stub(RealmModel.class, (name, args) -> {
+            switch (name) {
+                case "getId":
+                    return "realm-id";
+                case "getName":
+                    return "test";
+                case "isDuplicateEmailsAllowed":
+                    return false;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /**
+     * Provider with the EventSub secret given directly rather than read from the vault.
+     */
+    private static final class EventSubProvider extends TwitchIdentityProvider {
+
+        private final String secret;
+
+        private EventSubProvider(KeycloakSession session, String secret, TwitchIdentityProviderConfig config) {
+            super(session, new TwitchConfigSnapshot(config, "test",
+                            resolved -> new TwitchResilience("test", "twitch", TwitchResilience.Settings.from(resolved))),
+                    null, null, null, null, null, null);
+            this.secret = secret;
+        }
+
+        private static TwitchIdentityProviderConfig config() {
+            TwitchIdentityProviderConfig config = new TwitchIdentityProviderConfig();
+            config.setAlias("twitch");
+            config.setClientId("client");
+            return config;
+        }
+
+        @Override
+        public String getEventSubSecret() {
+            return secret;
+        }
+    }
+}
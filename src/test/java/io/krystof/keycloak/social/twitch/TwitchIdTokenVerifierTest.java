@@ -0,0 +1,190 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.common.util.Time;
+import org.keycloak.util.JsonSerialization;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TwitchIdTokenVerifierTest {
+
+    private static final String JWKS_URL = "https://id.twitch.test/oauth2/keys";
+    private static final String CLIENT_ID = "client";
+
+    private static final KeyPair FIRST_KEY = generateKey();
+    private static final KeyPair SECOND_KEY = generateKey();
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private volatile JsonNode jwks = jwks("first", FIRST_KEY);
+    private TwitchJwksCache jwksCache;
+    private TwitchIdTokenVerifier verifier;
+    private TwitchIdentityProviderConfig config;
+
+    @BeforeEach
+    void setUp() {
+        jwksCache = new TwitchJwksCache(url -> {
+            assertEquals(JWKS_URL, url);
+            fetches.incrementAndGet();
+            return jwks;
+        });
+        verifier = new TwitchIdTokenVerifier(jwksCache);
+        config = new TwitchIdentityProviderConfig();
+        config.setClientId(CLIENT_ID);
+        config.setJwksUrl(JWKS_URL);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jwksCache.close();
+        Time.setOffset(0);
+    }
+
+    @Test
+    void acceptsValidToken() {
+        ObjectNode claims = claims();
+        claims.putArray("aud").add("other").add(CLIENT_ID);
+
+        JsonNode verified = verifier.verify(token("RS256", "first", FIRST_KEY, claims), config);
+
+        assertEquals("12345", verified.path("sub").asText());
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    void rejectsWrongIssuerAndAudience() {
+        ObjectNode wrongIssuer = claims().put("iss", "https://id.example.com");
+        ObjectNode wrongAudience = claims().put("aud", "other");
+
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("RS256", "first", FIRST_KEY, wrongIssuer), config));
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("RS256", "first", FIRST_KEY, wrongAudience), config));
+    }
+
+    @Test
+    void allowsClockSkewOnlyUpToThirtySeconds() {
+        long now = Time.currentTime();
+
+        verifier.verify(token("RS256", "first", FIRST_KEY, claims().put("exp", now - 25)), config);
+        verifier.verify(token("RS256", "first", FIRST_KEY, claims().put("iat", now + 25)), config);
+
+        assertThrows(IdentityBrokerException.class,
+                () -> verifier.verify(token("RS256", "first", FIRST_KEY, claims().put("exp", now - 35)), config));
+        assertThrows(IdentityBrokerException.class,
+                () -> verifier.verify(token("RS256", "first", FIRST_KEY, claims().put("iat", now + 35)), config));
+    }
+
+    @Test
+    void rejectsOtherAlgorithmsAndBadSignatures() {
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("HS256", "first", FIRST_KEY, claims()), config));
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("none", "first", FIRST_KEY, claims()), config));
+        // Signed by a key that is not the one the kid names
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("RS256", "first", SECOND_KEY, claims()), config));
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify("not a token", config));
+    }
+
+    @Test
+    void unknownKeyIdRefreshesAtMostEveryTenSeconds() {
+        verifier.verify(token("RS256", "first", FIRST_KEY, claims()), config);
+        jwks = jwks("second", SECOND_KEY);
+
+        // Keys were just fetched, so the rotated key is not looked up yet
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("RS256", "second", SECOND_KEY, claims()), config));
+        assertEquals(1, fetches.get());
+
+        Time.setOffset(10);
+        verifier.verify(token("RS256", "second", SECOND_KEY, claims()), config);
+        assertEquals(2, fetches.get());
+
+        // A kid that is in no JWKS is not refetched again right away
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("RS256", "forged", SECOND_KEY, claims()), config));
+        assertThrows(IdentityBrokerException.class, () -> verifier.verify(token("RS256", "forged", SECOND_KEY, claims()), config));
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    void parsesOnlyRsaSigningKeys() throws Exception {
+        JsonNode jwks = jwks("rsa", FIRST_KEY);
+        ArrayNode keys = (ArrayNode) jwks.path("keys");
+        keys.addObject().put("kty", "EC").put("kid", "ec");
+        keys.addObject().put("kty", "RSA").put("kid", "enc").put("use", "enc");
+
+        assertEquals(Set.of("rsa"), TwitchJwksCache.parseKeys(jwks).keySet());
+    }
+
+    private static ObjectNode claims() {
+        long now = Time.currentTime();
+        return JsonSerialization.mapper.createObjectNode()
+                .put("iss", TwitchIdentityProviderConfig.DEFAULT_ISSUER)
+                .put("aud", CLIENT_ID)
+                .put("sub", "12345")
+                .put("iat", now)
+                .put("exp", now + 900);
+    }
+
+    private static String token(String algorithm, String kid, KeyPair key, JsonNode claims) {
+        ObjectNode header = JsonSerialization.mapper.createObjectNode()
+                .put("alg", algorithm)
+                .put("typ", "JWT")
+                .put("kid", kid);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String input = encoder.encodeToString(header.toString().getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(key.getPrivate());
+            signature.update(input.getBytes(StandardCharsets.US_ASCII));
+            return input + "." + encoder.encodeToString(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonNode jwks(String kid, KeyPair key) {
+        RSAPublicKey publicKey = (RSAPublicKey) key.getPublic();
+        ObjectNode jwks = JsonSerialization.mapper.createObjectNode();
+        jwks.putArray("keys").addObject()
+                .put("kty", "RSA")
+                .put("use", "sig")
+                .put("alg", "RS256")
+                .put("kid", kid)
+                .put("n", unsigned(publicKey.getModulus()))
+                .put("e", unsigned(publicKey.getPublicExponent()));
+        return jwks;
+    }
+
+    private static String unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static KeyPair generateKey() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
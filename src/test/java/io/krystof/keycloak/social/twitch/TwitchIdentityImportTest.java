@@ -0,0 +1,210 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.util.JsonSerialization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TwitchIdentityImportTest {
+
+    private static final String ALIAS = "twitch";
+
+    // Links committed before the batches under test started, by Twitch id
+    private final Map<String, String> committedLinks = new HashMap<>();
+    private final List<String> added = new ArrayList<>();
+
+    @Test
+    void parsesQuotedCsvColumns() {
+        assertEquals(List.of("a", "b"), TwitchIdentityImport.Record.columns(" a , b "));
+        assertEquals(List.of("Doe, Jane", "say \"hi\""), TwitchIdentityImport.Record.columns("\"Doe, Jane\", \"say \"\"hi\"\"\""));
+        assertEquals(List.of("a", "", ""), TwitchIdentityImport.Record.columns("a,,"));
+        // A quote inside an unquoted column is a character like any other
+        assertEquals(List.of("it\"s", "b"), TwitchIdentityImport.Record.columns("it\"s,b"));
+        assertNull(TwitchIdentityImport.Record.columns("\"a,b"));
+    }
+
+    @Test
+    void tellsIdsFromLogins() {
+        TwitchIdentityImport.Record id = TwitchIdentityImport.Record.parse("jane@example.com,12345", 1);
+        TwitchIdentityImport.Record login = TwitchIdentityImport.Record.parse("\"Doe, Jane\",SomeStreamer", 2);
+        TwitchIdentityImport.Record mixed = TwitchIdentityImport.Record.parse("jane,123abc", 3);
+
+        assertEquals("jane@example.com", id.user);
+        assertEquals("12345", id.twitchId);
+        assertNull(id.twitchLogin);
+        assertEquals("Doe, Jane", login.user);
+        assertNull(login.twitchId);
+        assertEquals("somestreamer", login.twitchLogin);
+        assertEquals("123abc", mixed.twitchLogin);
+        assertNull(mixed.error);
+    }
+
+    @Test
+    void parsesNdjson() {
+        TwitchIdentityImport.Record id = TwitchIdentityImport.Record.parse("{\"user\": \"jane\", \"twitchId\": \"12345\"}", 1);
+        TwitchIdentityImport.Record login = TwitchIdentityImport.Record.parse(" {\"user\": \"jane\", \"twitchLogin\": \"Some_Streamer\"}", 2);
+
+        assertEquals("12345", id.twitchId);
+        assertNull(id.twitchLogin);
+        assertEquals("some_streamer", login.twitchLogin);
+        assertNull(login.twitchId);
+    }
+
+    @Test
+    void skipsHeadersCommentsAndBlankLines() {
+        assertNull(TwitchIdentityImport.Record.parse("User, Twitch", 1));
+        assertNull(TwitchIdentityImport.Record.parse("# exported 2026-10-01", 2));
+        assertNull(TwitchIdentityImport.Record.parse("   ", 3));
+    }
+
+    @Test
+    void keepsInvalidLinesWithTheirError() {
+        assertEquals("invalid JSON", TwitchIdentityImport.Record.parse("{\"user\": ", 1).error);
+        assertEquals("unterminated quote", TwitchIdentityImport.Record.parse("\"jane,12345", 2).error);
+        assertEquals("expected 2 columns, found 3", TwitchIdentityImport.Record.parse("jane,12345,extra", 3).error);
+        assertEquals("no user", TwitchIdentityImport.Record.parse(",12345", 4).error);
+        assertEquals("no Twitch id or login", TwitchIdentityImport.Record.parse("{\"user\": \"jane\"}", 5).error);
+        assertEquals("invalid Twitch login", TwitchIdentityImport.Record.parse("jane,not a login", 6).error);
+        assertEquals(6, TwitchIdentityImport.Record.parse("jane,not a login", 6).line);
+    }
+
+    @Test
+    void checkpointAdvancesOverContiguousCommittedBatches() {
+        TwitchIdentityImport.Status status = new TwitchIdentityImport.Status(500);
+        assertEquals(500L, status.toMap().get("checkpoint"));
+
+        status.completed(1, 100, Map.of());
+        status.completed(2, 100, Map.of());
+        assertEquals(500L, status.toMap().get("checkpoint"));
+
+        status.completed(0, 100, Map.of());
+        assertEquals(800L, status.toMap().get("checkpoint"));
+
+        // A failed batch holds the checkpoint back, so that a resumed import links it again
+        status.failed(3, List.of(TwitchIdentityImport.Record.parse("jane,12345", 1)), new IllegalStateException("down"));
+        status.completed(4, 50, Map.of());
+        assertEquals(800L, status.toMap().get("checkpoint"));
+        assertEquals(351L, status.toMap().get("records"));
+        assertEquals(1L, status.toMap().get("failed"));
+    }
+
+    @Test
+    void countsResultsAndRecordsErrors() {
+        TwitchIdentityImport.Status status = new TwitchIdentityImport.Status(0);
+        TwitchIdentityImport.Record linked = TwitchIdentityImport.Record.parse("jane,12345", 1);
+        TwitchIdentityImport.Record missing = TwitchIdentityImport.Record.parse("john,67890", 2);
+        TwitchIdentityImport.Record invalid = TwitchIdentityImport.Record.parse("jane,12345,extra", 3);
+
+        status.completed(0, 3, Map.of(
+                TwitchIdentityImport.Result.LINKED, List.of(linked),
+                TwitchIdentityImport.Result.USER_NOT_FOUND, List.of(missing),
+                TwitchIdentityImport.Result.INVALID, List.of(invalid)));
+
+        Map<String, Object> map = status.toMap();
+        assertEquals(1L, map.get("linked"));
+        assertEquals(1L, map.get("userNotFound"));
+        assertEquals(1L, map.get("invalid"));
+        assertEquals(List.of("line 2: user not found", "line 3: expected 2 columns, found 3"),
+                ((List<?>) map.get("errors")).stream().map(String::valueOf).sorted().toList());
+    }
+
+    @Test
+    void claimsTwitchAccountForOneUserAcrossBatches() {
+        Map<String, UserModel> users = Map.of("jane", user("jane-id"), "john", user("john-id"));
+        KeycloakSession session = session(users);
+        Map<String, JsonNode> byId = Map.of("12345", helixUser("12345", "somestreamer"));
+        Map<String, JsonNode> byLogin = Map.of("somestreamer", byId.get("12345"));
+        Map<String, String> importClaims = new HashMap<>();
+        Map<String, String> firstBatch = new HashMap<>();
+        Map<String, String> secondBatch = new HashMap<>();
+
+        assertEquals(TwitchIdentityImport.Result.LINKED, link(session, "jane,12345", byId, byLogin, importClaims, firstBatch));
+        // The first batch has not committed, so only the claim stops the second from linking the account again
+        assertEquals(TwitchIdentityImport.Result.CONFLICT, link(session, "john,SomeStreamer", byId, byLogin, importClaims, secondBatch));
+        assertEquals(TwitchIdentityImport.Result.ALREADY_LINKED, link(session, "jane,12345", byId, byLogin, importClaims, secondBatch));
+
+        assertEquals(Map.of("12345", "jane-id"), firstBatch);
+        assertEquals(Map.of(), secondBatch);
+        assertEquals(List.of("jane-id:12345"), added);
+    }
+
+    @Test
+    void releasesClaimOfAccountLinkedBeforeTheImport() {
+        KeycloakSession session = session(Map.of("jane", user("jane-id")));
+        committedLinks.put("12345", "other-id");
+        Map<String, JsonNode> byId = Map.of("12345", helixUser("12345", "somestreamer"));
+        Map<String, String> importClaims = new HashMap<>();
+
+        assertEquals(TwitchIdentityImport.Result.CONFLICT, link(session, "jane,12345", byId, Map.of(), importClaims, new HashMap<>()));
+        assertEquals(Map.of(), importClaims);
+        assertEquals(TwitchIdentityImport.Result.TWITCH_NOT_FOUND, link(session, "jane,67890", byId, Map.of(), importClaims, new HashMap<>()));
+        assertEquals(TwitchIdentityImport.Result.USER_NOT_FOUND, link(session, "nobody,12345", byId, Map.of(), importClaims, new HashMap<>()));
+        assertEquals(List.of(), added);
+    }
+
+    private TwitchIdentityImport.Result link(KeycloakSession session, String line, Map<String, JsonNode> byId,
+                                             Map<String, JsonNode> byLogin, Map<String, String> importClaims,
+                                             Map<String, String> batchClaims) {
+        return TwitchIdentityImport.link(session, stub(RealmModel.class, (name, args) -> null), ALIAS,
+                TwitchIdentityImport.Record.parse(line, 1), byId, byLogin, importClaims, batchClaims);
+    }
+
+    /**
+     * A session whose user provider finds the given users by username or id and the committed links, and records
+     * the links added.
+     */
+    private KeycloakSession session(Map<String, UserModel> users) {
+        UserProvider userProvider = stub(UserProvider.class, (name, args) -> {
+            switch (name) {
+                case "getUserByUsername":
+                    return users.get((String) args[1]);
+                case "getUserByEmail":
+                    return null;
+                case "getUserById":
+                    return users.values().stream().filter(user -> user.getId().equals(args[1])).findFirst().orElse(null);
+                case "getFederatedIdentity":
+                    return null;
+                case "getUserByFederatedIdentity":
+                    String owner = committedLinks.get(((FederatedIdentityModel) args[1]).getUserId());
+                    return owner != null ? user(owner) : null;
+                case "addFederatedIdentity":
+                    added.add(((UserModel) args[1]).getId() + ":" + ((FederatedIdentityModel) args[2]).getUserId());
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            if (name.equals("users")) {
+                return userProvider;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+    }
+
+    private static UserModel user(String id) {
+        return stub(UserModel.class, (name, args) -> {
+            if (name.equals("getId")) {
+                return id;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+    }
+
+    private static JsonNode helixUser(String id, String login) {
+        return JsonSerialization.mapper.createObjectNode().put("id", id).put("login", login);
+    }
+}
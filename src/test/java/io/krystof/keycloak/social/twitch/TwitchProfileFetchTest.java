@@ -0,0 +1,221 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitchProfileFetchTest {
+
+    private static final JsonNode PROFILE = json("{\"sub\": \"12345\", \"preferred_username\": \"somestreamer\"}");
+
+    private final CountDownLatch helixStarted = new CountDownLatch(1);
+    private final CountDownLatch helixCancelled = new CountDownLatch(1);
+    private final CountDownLatch userInfoCancelled = new CountDownLatch(1);
+    private final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> helixSubjects = Collections.synchronizedList(new ArrayList<>());
+    private TwitchLoginExecutor loginExecutor = new TwitchLoginExecutor(4);
+
+    @AfterEach
+    void tearDown() {
+        loginExecutor.close();
+    }
+
+    @Test
+    void mergesHelixUserLookedUpAlongsideUserInfo() {
+        JsonNode profile = provider(1000, () -> PROFILE,
+                () -> json("{\"id\": \"12345\", \"login\": \"other\", \"description\": \"Streams things\"}")).fetchProfile("token");
+
+        assertEquals("Streams things", profile.path("description").asText());
+        assertEquals("somestreamer", profile.path("preferred_username").asText());
+        // Looked up by the access token, without waiting for the subject
+        assertEquals(Collections.singletonList(null), helixSubjects);
+        assertEquals(2, threads.size());
+        assertTrue(threads.stream().allMatch(thread -> thread.startsWith("twitch-login-")), threads.toString());
+    }
+
+    @Test
+    void userInfoFailureCancelsHelixLookup() throws InterruptedException {
+        TwitchIdentityProvider provider = provider(5000, () -> {
+            helixStarted.await(5, TimeUnit.SECONDS);
+            throw new IdentityBrokerException("Could not obtain user profile from Twitch, status 500");
+        }, () -> blockUntilCancelled(helixCancelled));
+
+        IdentityBrokerException e = assertThrows(IdentityBrokerException.class, () -> provider.fetchProfile("token"));
+
+        assertEquals("Could not obtain user profile from Twitch, status 500", e.getMessage());
+        assertTrue(helixCancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void deadlineCancelsBothCalls() throws InterruptedException {
+        TwitchIdentityProvider provider = provider(300, () -> blockUntilCancelled(userInfoCancelled),
+                () -> blockUntilCancelled(helixCancelled));
+
+        IdentityBrokerException e = assertThrows(IdentityBrokerException.class, () -> provider.fetchProfile("token"));
+
+        assertEquals("No user profile from Twitch within 300 ms", e.getMessage());
+        assertTrue(userInfoCancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(helixCancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void lateHelixLookupLeavesProfileUnenriched() throws InterruptedException {
+        JsonNode profile = provider(300, () -> PROFILE, () -> blockUntilCancelled(helixCancelled)).fetchProfile("token");
+
+        assertEquals(PROFILE, profile);
+        assertTrue(helixCancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failedHelixLookupLeavesProfileUnenriched() {
+        JsonNode profile = provider(1000, () -> PROFILE, () -> {
+            throw new IdentityBrokerException("Could not obtain users from Twitch Helix, status 503");
+        }).fetchProfile("token");
+
+        assertEquals(PROFILE, profile);
+    }
+
+    @Test
+    void ignoresHelixUserOfAnotherSubject() {
+        JsonNode profile = provider(1000, () -> PROFILE,
+                () -> json("{\"id\": \"67890\", \"description\": \"Someone else\"}")).fetchProfile("token");
+
+        assertEquals(PROFILE, profile);
+    }
+
+    @Test
+    void saturatedExecutorFetchesOneAfterTheOtherOnRequestThread() {
+        // One permit cannot be reserved for both calls
+        loginExecutor = new TwitchLoginExecutor(1);
+
+        JsonNode profile = provider(1000, () -> PROFILE,
+                () -> json("{\"id\": \"12345\", \"description\": \"Streams things\"}")).fetchProfile("token");
+
+        assertEquals("Streams things", profile.path("description").asText());
+        assertEquals(List.of("12345"), helixSubjects);
+        String requestThread = Thread.currentThread().getName();
+        assertEquals(List.of(requestThread, requestThread), threads);
+    }
+
+    @Test
+    void fetchesUserInfoOnlyWithoutHelixEnrichment() {
+        TwitchIdentityProvider provider = provider(1000, () -> PROFILE, () -> {
+            throw new AssertionError("Helix must not be called");
+        });
+        provider.getConfig().setHelixEnrichment(false);
+
+        assertEquals(PROFILE, provider.fetchProfile("token"));
+        assertEquals(List.of(Thread.currentThread().getName()), threads);
+    }
+
+    private JsonNode blockUntilCancelled(CountDownLatch cancelled) {
+        helixStarted.countDown();
+        try {
+            new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+            throw new AssertionError("Not cancelled");
+        } catch (InterruptedException e) {
+            cancelled.countDown();
+            throw new IdentityBrokerException("Interrupted", e);
+        }
+    }
+
+    private TwitchIdentityProvider provider(long deadlineMillis, Call userInfo, Call helixUser) {
+        IdentityProviderModel model = new IdentityProviderModel();
+        model.setAlias("twitch");
+        model.setProviderId(TwitchIdentityProviderFactory.PROVIDER_ID);
+        model.setEnabled(true);
+        model.getConfig().put(TwitchIdentityProviderConfig.HELIX_ENRICHMENT, "true");
+        model.getConfig().put(TwitchIdentityProviderConfig.LOGIN_FETCH_DEADLINE, String.valueOf(deadlineMillis));
+        return new FetchingProvider(session(), model, userInfo, helixUser);
+    }
+
+    private static KeycloakSession session() {
+        RealmModel realm = stub(RealmModel.class, (name, args) -> {
+            if (name.equals("getName")) {
+                return "test";
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        KeycloakContext context = stub(KeycloakContext.class, (name, args) -> {
+            if (name.equals("getRealm")) {
+                return realm;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            if (name.equals("getContext")) {
+                return context;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+    }
+
+    private static JsonNode json(String json) {
+        try {
+            return JsonSerialization.mapper.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        JsonNode call() throws InterruptedException;
+    }
+
+    /**
+     * A provider whose userinfo and Helix calls are answered by the test and record the thread they run on.
+     */
+    private final class FetchingProvider extends TwitchIdentityProvider {
+
+        private final Call userInfo;
+        private final Call helixUser;
+
+        private FetchingProvider(KeycloakSession session, IdentityProviderModel model, Call userInfo, Call helixUser) {
+            super(session, new TwitchConfigSnapshot(model, "test",
+                            resolved -> new TwitchResilience("test", "twitch", TwitchResilience.Settings.from(resolved))),
+                    null, null, null, null, null, loginExecutor);
+            this.userInfo = userInfo;
+            this.helixUser = helixUser;
+        }
+
+        @Override
+        protected JsonNode fetchUserInfo(String accessToken, String realm, String alias) {
+            return call(userInfo);
+        }
+
+        @Override
+        protected JsonNode fetchHelixUser(String subject, String accessToken, String realm, String alias) {
+            helixSubjects.add(subject);
+            return call(helixUser);
+        }
+
+        private JsonNode call(Call call) {
+            threads.add(Thread.currentThread().getName());
+            try {
+                return call.call();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IdentityBrokerException("Interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitchResilienceTest {
+
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private final Deque<Reply> replies = new ArrayDeque<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::reply);
+        server.start();
+        httpClient = HttpClients.createDefault();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void retriesServerErrorsOfIdempotentEndpoints() throws IOException {
+        TwitchResilience resilience = resilience(2, 5, 1000);
+        replies.add(new Reply(503));
+        replies.add(new Reply(500));
+        replies.add(new Reply(200));
+
+        assertEquals(200, call(resilience, TwitchEndpoint.USERINFO));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    void doesNotRetryOtherEndpoints() throws IOException {
+        TwitchResilience resilience = resilience(2, 5, 1000);
+        replies.add(new Reply(503));
+        replies.add(new Reply(200));
+
+        assertEquals(503, call(resilience, TwitchEndpoint.EVENTSUB_SUBSCRIPTIONS));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void handsLastResponseOverAndCountsOneFailurePerCall() throws IOException {
+        TwitchResilience resilience = resilience(2, 2, 1000);
+        for (int i = 0; i < 3; i++) {
+            replies.add(new Reply(502));
+        }
+
+        // Three failed attempts are one failure of the call, below the threshold of two
+        assertEquals(502, call(resilience, TwitchEndpoint.USERINFO));
+        assertEquals(3, requests.get());
+        replies.add(new Reply(200));
+        assertEquals(200, call(resilience, TwitchEndpoint.USERINFO));
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    void openBreakerRejectsCallsToTheHost() throws IOException {
+        TwitchResilience resilience = resilience(0, 1, 1000);
+        replies.add(new Reply(500));
+
+        assertEquals(500, call(resilience, TwitchEndpoint.USERINFO));
+        assertThrows(IdentityBrokerException.class, () -> call(resilience, TwitchEndpoint.VALIDATE));
+        assertThrows(IdentityBrokerException.class, () -> resilience.beforeTokenRequest(TwitchSimpleHttp.doPost(url(), httpClient)));
+        assertEquals(1, requests.get());
+
+        // The other host has a breaker of its own
+        replies.add(new Reply(200));
+        assertEquals(200, call(resilience, TwitchEndpoint.HELIX_USERS));
+    }
+
+    @Test
+    void retriesIoErrorsAndThrowsTheLast() throws IOException {
+        TwitchResilience resilience = resilience(2, 2, 1000);
+        String closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = "http://127.0.0.1:" + socket.getLocalPort() + "/";
+        }
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(IOException.class, () -> resilience.execute(TwitchEndpoint.USERINFO, () -> {
+            attempts.incrementAndGet();
+            return TwitchSimpleHttp.doGet(closedPort, httpClient);
+        }, response -> response.getStatus()));
+        assertEquals(3, attempts.get());
+
+        // Still one failure below the threshold
+        replies.add(new Reply(200));
+        assertEquals(200, call(resilience, TwitchEndpoint.USERINFO));
+    }
+
+    @Test
+    void retries429UntilTheWindowResets() throws IOException {
+        TwitchResilience resilience = resilience(2, 1, 1000);
+        long now = System.currentTimeMillis() / 1000;
+        replies.add(new Reply(429, "0", String.valueOf(now)));
+        replies.add(new Reply(200));
+
+        assertEquals(200, call(resilience, TwitchEndpoint.HELIX_USERS));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void gives429BackWhenTheResetIsTooFar() throws IOException {
+        TwitchResilience resilience = resilience(2, 1, 50);
+        long reset = System.currentTimeMillis() / 1000 + 60;
+        replies.add(new Reply(429, "0", String.valueOf(reset)));
+
+        assertEquals(429, call(resilience, TwitchEndpoint.HELIX_USERS));
+        assertEquals(1, requests.get());
+
+        // The budget is used up until the reset, so the next call is rejected after waiting, not sent. With a
+        // threshold of one, a 429 counted as a failure would have opened the breaker instead
+        IdentityBrokerException rejected = assertThrows(IdentityBrokerException.class,
+                () -> call(resilience, TwitchEndpoint.HELIX_USERS));
+        assertEquals(1, requests.get());
+        assertTrue(rejected.getMessage().contains("rate limit"));
+    }
+
+    @Test
+    void releasesPermitWhenRequestCannotBeBuilt() throws IOException {
+        TwitchIdentityProviderConfig config = config(2, 1, 50);
+        config.setMaxConcurrentRequests(1);
+        TwitchResilience resilience = new TwitchResilience("test", "twitch", TwitchResilience.Settings.from(config));
+        AtomicInteger attempts = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalArgumentException.class, () -> resilience.execute(TwitchEndpoint.USERINFO, () -> {
+                attempts.incrementAndGet();
+                throw new IllegalArgumentException("bad URI");
+            }, response -> response.getStatus()));
+        }
+        assertEquals(3, attempts.get());
+
+        // The single permit is back and, with a threshold of one, the breaker did not count the errors
+        replies.add(new Reply(200));
+        assertEquals(200, call(resilience, TwitchEndpoint.USERINFO));
+    }
+
+    @Test
+    void halfOpenBreakerLetsOneCodeExchangeThrough() throws IOException, InterruptedException {
+        TwitchIdentityProviderConfig config = config(0, 1, 1000);
+        config.getConfig().put(TwitchIdentityProviderConfig.BREAKER_OPEN_SECONDS, "1");
+        TwitchResilience resilience = new TwitchResilience("test", "twitch", TwitchResilience.Settings.from(config));
+        replies.add(new Reply(500));
+        assertEquals(500, call(resilience, TwitchEndpoint.USERINFO));
+        Thread.sleep(1100);
+
+        // The first exchange takes the trial permit, the others are rejected until its outcome is known
+        resilience.beforeTokenRequest(TwitchSimpleHttp.doPost(url(), httpClient));
+        assertThrows(IdentityBrokerException.class, () -> resilience.beforeTokenRequest(TwitchSimpleHttp.doPost(url(), httpClient)));
+        assertThrows(IdentityBrokerException.class, () -> call(resilience, TwitchEndpoint.VALIDATE));
+
+        // An exchange that was abandoned gives the trial back, one that failed opens the breaker again
+        resilience.onTokenRequestAbandoned();
+        replies.add(new Reply(503));
+        CloseableHttpClient guarded = (CloseableHttpClient) resilience.guardTokenRequests(httpClient);
+        assertEquals(503, resilience.beforeTokenRequest(TwitchSimpleHttp.doPost(url(), guarded).param("code", "code")).asStatus());
+        assertThrows(IdentityBrokerException.class, () -> resilience.beforeTokenRequest(TwitchSimpleHttp.doPost(url(), httpClient)));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void breakerLetsOneTrialThroughAfterOpening() throws InterruptedException {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker(2, 50);
+        breaker.onFailure();
+        assertEquals(TwitchCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure();
+        assertEquals(TwitchCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(TwitchCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        // A failed trial opens the breaker again at once, a successful one closes it
+        breaker.onFailure();
+        assertEquals(TwitchCircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(TwitchCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private int call(TwitchResilience resilience, TwitchEndpoint endpoint) throws IOException {
+        return resilience.execute(endpoint, () -> TwitchSimpleHttp.doGet(url(), httpClient), response -> response.getStatus());
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private static TwitchResilience resilience(int maxRetries, int breakerFailureThreshold, long rateLimitMaxWait) {
+        return new TwitchResilience("test", "twitch",
+                TwitchResilience.Settings.from(config(maxRetries, breakerFailureThreshold, rateLimitMaxWait)));
+    }
+
+    private static TwitchIdentityProviderConfig config(int maxRetries, int breakerFailureThreshold, long rateLimitMaxWait) {
+        TwitchIdentityProviderConfig config = new TwitchIdentityProviderConfig();
+        config.setAlias("twitch");
+        config.getConfig().put(TwitchIdentityProviderConfig.MAX_RETRIES, String.valueOf(maxRetries));
+        config.getConfig().put(TwitchIdentityProviderConfig.RETRY_BACKOFF, "1");
+        config.getConfig().put(TwitchIdentityProviderConfig.BREAKER_FAILURE_THRESHOLD, String.valueOf(breakerFailureThreshold));
+        config.getConfig().put(TwitchIdentityProviderConfig.RATE_LIMIT_MAX_WAIT, String.valueOf(rateLimitMaxWait));
+        return config;
+    }
+
+    private void reply(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Reply reply;
+        synchronized (replies) {
+            reply = replies.isEmpty() ? new Reply(500) : replies.poll();
+        }
+        if (reply.remaining != null) {
+            exchange.getResponseHeaders().add("Ratelimit-Remaining", reply.remaining);
+            exchange.getResponseHeaders().add("Ratelimit-Reset", reply.reset);
+        }
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(reply.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static final class Reply {
+
+        private final int status;
+        private final String remaining;
+        private final String reset;
+
+        private Reply(int status) {
+            this(status, null, null);
+        }
+
+        private Reply(int status, String remaining, String reset) {
+            this.status = status;
+            this.remaining = remaining;
+            this.reset = reset;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.krystof.keycloak.social.twitch;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Stubs of Keycloak interfaces for tests, answering every call by method name.
+ */
+final class TwitchStubs {
+
+    /**
+     * Answers a call to a stub; throws {@link UnsupportedOperationException} for methods a test does not expect.
+     */
+    @FunctionalInterface
+    interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    private TwitchStubs() {
+    }
+
+    static <T> T stub(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(TwitchStubs.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> handler.invoke(method.getName(), args)));
+    }
+}
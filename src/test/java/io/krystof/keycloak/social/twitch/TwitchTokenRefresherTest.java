@@ -0,0 +1,231 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitchTokenRefresherTest {
+
+    private final TwitchTokenRefresher refresher = new TwitchTokenRefresher(new TwitchIdentityProviderFactory());
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Object> sessionAttributes = new HashMap<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private final List<String> stored = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersShareOneRefresh() throws Exception {
+        CountDownLatch refreshing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger refreshes = new AtomicInteger();
+        Future<String> first = executor.submit(() -> refresher.singleFlight("idp:user", () -> {
+            refreshes.incrementAndGet();
+            refreshing.countDown();
+            await(finish);
+            return "token";
+        }));
+        assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+        Future<String> second = executor.submit(() -> refresher.singleFlight("idp:user", counting(refreshes, "other")));
+        awaitWaiting(second);
+
+        finish.countDown();
+
+        assertEquals("token", first.get(5, TimeUnit.SECONDS));
+        assertEquals("token", second.get(5, TimeUnit.SECONDS));
+        // Shortly after, the result is reused
+        assertEquals("token", refresher.singleFlight("idp:user", counting(refreshes, "later")));
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void commitSharesRefreshWithWaiters() throws Exception {
+        KeycloakSession session = session();
+        assertEquals("token", refresher.singleFlight(session, "idp:user", () -> "token"));
+        Future<String> waiter = executor.submit(() -> refresher.singleFlight("idp:user", failing()));
+        awaitWaiting(waiter);
+
+        complete(true);
+
+        assertEquals("token", waiter.get(5, TimeUnit.SECONDS));
+        assertEquals("token", refresher.singleFlight("idp:user", failing()));
+    }
+
+    @Test
+    void rollbackFailsWaitersAndLetsTheNextCallerRefresh() throws Exception {
+        KeycloakSession session = session();
+        assertEquals("token", refresher.singleFlight(session, "idp:user", () -> "token"));
+        Future<String> waiter = executor.submit(() -> refresher.singleFlight("idp:user", failing()));
+        awaitWaiting(waiter);
+
+        complete(false);
+
+        Exception e = assertThrows(Exception.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertEquals("Twitch token refresh was rolled back", e.getCause().getMessage());
+        // Neither in flight nor shared any more
+        assertEquals("second", refresher.singleFlight("idp:user", () -> "second"));
+    }
+
+    @Test
+    void laterRefreshInSameTransactionDoesNotWait() {
+        KeycloakSession session = session();
+
+        assertEquals("token", refresher.singleFlight(session, "idp:user", () -> "token"));
+        // Before commit the refresh is still in flight, but this session already has its result
+        assertEquals("token", refresher.singleFlight(session, "idp:user", failing()));
+        assertEquals(1, afterCompletion.size());
+    }
+
+    @Test
+    void storesRefreshedTokenOverTheOneItWasRefreshedFrom() {
+        KeycloakSession session = userSession("{\"access_token\": \"old\", \"refresh_token\": \"refresh-1\"}");
+
+        TwitchTokenRefresher.store(session, "realm-id", "twitch", "user-id", "refresh-1", "{\"access_token\": \"new\"}");
+
+        assertEquals(List.of("{\"access_token\": \"new\"}"), stored);
+    }
+
+    @Test
+    void skipsStoreWhenRefreshTokenChangedMeanwhile() {
+        // A login stored a new token while Twitch was being asked
+        KeycloakSession session = userSession("{\"access_token\": \"login\", \"refresh_token\": \"refresh-2\"}");
+
+        TwitchTokenRefresher.store(session, "realm-id", "twitch", "user-id", "refresh-1", "{\"access_token\": \"new\"}");
+
+        assertEquals(List.of(), stored);
+    }
+
+    private void complete(boolean commit) {
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.begin();
+            if (commit) {
+                transaction.commit();
+            } else {
+                transaction.rollback();
+            }
+        }
+    }
+
+    private static Supplier<String> counting(AtomicInteger refreshes, String token) {
+        return () -> {
+            refreshes.incrementAndGet();
+            return token;
+        };
+    }
+
+    private static Supplier<String> failing() {
+        return () -> {
+            throw new AssertionError("Must reuse the refresh in flight");
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the call has had time to join the refresh in flight; it would fail if it ran its own.
+     */
+    private static void awaitWaiting(Future<String> call) throws InterruptedException {
+        Thread.sleep(200);
+        assertFalse(call.isDone(), "Did not wait for the refresh in flight");
+    }
+
+    private KeycloakSession session() {
+        KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class, (name, args) -> {
+            switch (name) {
+                case "isActive":
+                    return true;
+                case "enlistAfterCompletion":
+                    afterCompletion.add((KeycloakTransaction) args[0]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            switch (name) {
+                case "getAttribute":
+                    return sessionAttributes.get((String) args[0]);
+                case "setAttribute":
+                    sessionAttributes.put((String) args[0], args[1]);
+                    return null;
+                case "getTransactionManager":
+                    return transactionManager;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private KeycloakSession userSession(String storedToken) {
+        RealmModel realm = stub(RealmModel.class, (name, args) -> {
+            throw new UnsupportedOperationException(name);
+        });
+        UserModel user = stub(UserModel.class, (name, args) -> {
+            throw new UnsupportedOperationException(name);
+        });
+        FederatedIdentityModel identity = new FederatedIdentityModel("twitch", "12345", "somestreamer", storedToken);
+        RealmProvider realms = stub(RealmProvider.class, (name, args) -> {
+            if (name.equals("getRealm")) {
+                return realm;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        UserProvider users = stub(UserProvider.class, (name, args) -> {
+            switch (name) {
+                case "getUserById":
+                    return user;
+                case "getFederatedIdentity":
+                    return identity;
+                case "updateFederatedIdentity":
+                    stored.add(((FederatedIdentityModel) args[2]).getToken());
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            switch (name) {
+                case "realms":
+                    return realms;
+                case "users":
+                    return users;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TwitchTokenResponseReaderTest {
+
+    @Test
+    void readsTwitchResponseWithScopeArray() throws IOException {
+        TwitchTokenResponse response = TwitchTokenResponseReader.read("{"
+                + "\"access_token\": \"access\","
+                + "\"refresh_token\": \"refresh\","
+                + "\"id_token\": \"id\","
+                + "\"token_type\": \"bearer\","
+                + "\"expires_in\": 14400,"
+                + "\"scope\": [\"openid\", null, {\"x\": 1}, \"user:read:email\"]"
+                + "}");
+
+        assertEquals("access", response.getAccessToken());
+        assertEquals("refresh", response.getRefreshToken());
+        assertEquals("id", response.getIdToken());
+        assertEquals("bearer", response.getTokenType());
+        assertEquals(14400, response.getExpiresIn());
+        assertEquals("openid user:read:email", response.getScope());
+    }
+
+    @Test
+    void readsScopeString() throws IOException {
+        assertEquals("openid user:read:email",
+                TwitchTokenResponseReader.read("{\"access_token\": \"a\", \"scope\": \"openid user:read:email\"}").getScope());
+        assertEquals("", TwitchTokenResponseReader.read("{\"scope\": []}").getScope());
+    }
+
+    @Test
+    void missingAccessTokenIsNull() throws IOException {
+        TwitchTokenResponse response = TwitchTokenResponseReader.read("{\"token_type\": \"bearer\"}");
+
+        assertNull(response.getAccessToken());
+        assertNull(response.getRefreshToken());
+        assertEquals(-1, response.getExpiresIn());
+    }
+
+    @Test
+    void skipsUnknownAndNestedFields() throws IOException {
+        TwitchTokenResponse response = TwitchTokenResponseReader.read("{"
+                + "\"unknown\": {\"access_token\": \"nested\", \"list\": [1, [2, {\"a\": 3}]]},"
+                + "\"access_token\": \"access\","
+                + "\"refresh_token\": {\"value\": \"object\"},"
+                + "\"other\": [\"access_token\"]"
+                + "}");
+
+        assertEquals("access", response.getAccessToken());
+        assertNull(response.getRefreshToken());
+    }
+
+    @Test
+    void readsExpiresInAsString() throws IOException {
+        assertEquals(3600, TwitchTokenResponseReader.read("{\"expires_in\": \" 3600 \"}").getExpiresIn());
+        assertEquals(-1, TwitchTokenResponseReader.read("{\"expires_in\": \"soon\"}").getExpiresIn());
+        assertEquals(-1, TwitchTokenResponseReader.read("{\"expires_in\": [3600]}").getExpiresIn());
+    }
+
+    @Test
+    void rejectsResponsesThatAreNotObjects() {
+        assertThrows(IOException.class, () -> TwitchTokenResponseReader.read("[]"));
+        assertThrows(IOException.class, () -> TwitchTokenResponseReader.read("access_token=abc&scope=openid"));
+        assertThrows(IOException.class, () -> TwitchTokenResponseReader.read("{\"access_token\": "));
+    }
+
+    @Test
+    void enforcesReadConstraints() throws IOException {
+        String deep = "{\"x\": " + "[".repeat(20) + "]".repeat(20) + "}";
+        assertThrows(IOException.class, () -> TwitchTokenResponseReader.read(deep));
+
+        String longToken = "{\"access_token\": \"" + "a".repeat(64 * 1024 + 1) + "\"}";
+        assertThrows(IOException.class, () -> TwitchTokenResponseReader.read(longToken));
+
+        String maxToken = "a".repeat(64 * 1024);
+        assertEquals(maxToken, TwitchTokenResponseReader.read("{\"access_token\": \"" + maxToken + "\"}").getAccessToken());
+    }
+}
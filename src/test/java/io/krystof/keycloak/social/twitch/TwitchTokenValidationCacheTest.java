@@ -0,0 +1,126 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitchTokenValidationCacheTest {
+
+    @Test
+    void parsesValidateResponse() throws IOException {
+        TwitchTokenValidation validation = TwitchTokenValidation.parse(JsonSerialization.mapper.readTree("{"
+                + "\"client_id\": \"client\","
+                + "\"login\": \"somestreamer\","
+                + "\"user_id\": \"12345\","
+                + "\"scopes\": [\"openid\", \"user:read:email\"],"
+                + "\"expires_in\": 3600"
+                + "}"));
+
+        assertEquals("client", validation.getClientId());
+        assertEquals("somestreamer", validation.getLogin());
+        assertEquals("12345", validation.getUserId());
+        assertEquals(List.of("openid", "user:read:email"), validation.getScopes());
+        assertTrue(Math.abs(validation.getExpiresAt() - System.currentTimeMillis() - 3_600_000) < 5_000);
+
+        TwitchTokenValidation appToken = TwitchTokenValidation.parse(JsonSerialization.mapper.readTree("{\"client_id\": \"client\"}"));
+        assertNull(appToken.getUserId());
+        assertEquals(0, appToken.getExpiresAt());
+    }
+
+    @Test
+    void cachesValidTokensUntilShortlyBeforeTheyExpire() {
+        TwitchTokenValidationCache cache = new TwitchTokenValidationCache("test", config());
+        TwitchTokenValidation valid = validation("12345", 3600);
+
+        assertNull(cache.get("hash"));
+        cache.put("hash", valid);
+        assertSame(valid, cache.get("hash"));
+
+        // Expiring within the margin of a minute, or at an unknown time
+        cache.put("expiring", validation("12345", 60));
+        cache.put("unknown", validation("12345", 0));
+        assertNull(cache.get("expiring"));
+        assertNull(cache.get("unknown"));
+    }
+
+    @Test
+    void invalidatesAllTokensOfUser() {
+        TwitchTokenValidationCache cache = new TwitchTokenValidationCache("test", config());
+        cache.put("first", validation("12345", 3600));
+        cache.put("second", validation("12345", 3600));
+        cache.put("other", validation("67890", 3600));
+
+        cache.invalidateUser("12345");
+
+        assertNull(cache.get("first"));
+        assertNull(cache.get("second"));
+        assertEquals("67890", cache.get("other").getUserId());
+    }
+
+    @Test
+    void remembersRejectedTokensInSingleUseStore() {
+        Map<String, Long> store = new HashMap<>();
+        KeycloakSession session = session(store);
+        TwitchTokenValidationCache cache = new TwitchTokenValidationCache("test", config());
+        TwitchTokenValidationCache otherIdp = new TwitchTokenValidationCache("test", config("other"));
+        cache.put("hash", validation("12345", 3600));
+
+        assertFalse(cache.isInvalid(session, "hash"));
+        cache.putInvalid(session, "hash");
+
+        assertTrue(cache.isInvalid(session, "hash"));
+        assertNull(cache.get("hash"));
+        assertEquals(List.of(600L), List.copyOf(store.values()));
+        assertFalse(otherIdp.isInvalid(session, "hash"));
+    }
+
+    private static TwitchTokenValidation validation(String userId, long expiresIn) {
+        return new TwitchTokenValidation("client", "login" + userId, userId, List.of(), expiresIn, System.currentTimeMillis());
+    }
+
+    private static TwitchIdentityProviderConfig config() {
+        return config("twitch");
+    }
+
+    private static TwitchIdentityProviderConfig config(String alias) {
+        TwitchIdentityProviderConfig config = new TwitchIdentityProviderConfig();
+        config.setAlias(alias);
+        return config;
+    }
+
+    /**
+     * A session whose single-use object store records the lifespans of its keys.
+     */
+    private static KeycloakSession session(Map<String, Long> store) {
+        SingleUseObjectProvider singleUseObjects = stub(SingleUseObjectProvider.class, (name, args) -> {
+            switch (name) {
+                case "put":
+                    store.put((String) args[0], (Long) args[1]);
+                    return null;
+                case "contains":
+                    return store.containsKey((String) args[0]);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            if (name.equals("singleUseObjects")) {
+                return singleUseObjects;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+    }
+}
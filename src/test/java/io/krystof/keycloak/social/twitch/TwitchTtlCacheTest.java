@@ -0,0 +1,99 @@
+package io.krystof.keycloak.social.twitch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TwitchTtlCacheTest {
+
+    private final List<Boolean> evictions = new ArrayList<>();
+
+    @Test
+    void expiresEntriesWhenRead() throws InterruptedException {
+        TwitchTtlCache<String> cache = new TwitchTtlCache<>(10, 50, evictions::add);
+        cache.put("a", null, "A");
+
+        assertEquals("A", cache.get("a"));
+        Thread.sleep(60);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(List.of(true), evictions);
+    }
+
+    @Test
+    void evictsOldestEntriesWhenFull() {
+        TwitchTtlCache<String> cache = new TwitchTtlCache<>(2, 60_000, evictions::add);
+        cache.put("a", null, "A");
+        cache.put("b", null, "B");
+        // Writing a key again moves it to the tail
+        cache.put("a", null, "A2");
+        cache.put("c", null, "C");
+
+        assertNull(cache.get("b"));
+        assertEquals("A2", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(List.of(false), evictions);
+    }
+
+    @Test
+    void purgesExpiredHeadOnWrite() throws InterruptedException {
+        TwitchTtlCache<String> cache = new TwitchTtlCache<>(10, 50, evictions::add);
+        cache.put("a", null, "A");
+        cache.put("b", null, "B");
+        Thread.sleep(60);
+        cache.put("c", null, "C");
+
+        assertEquals(1, cache.size());
+        assertEquals(List.of(true, true), evictions);
+    }
+
+    @Test
+    void capsEntryTtlAtDefault() throws InterruptedException {
+        TwitchTtlCache<String> cache = new TwitchTtlCache<>(10, 50, evictions::add);
+        cache.put("long", null, "L", 60_000);
+        cache.put("short", null, "S", 1);
+        Thread.sleep(60);
+
+        assertNull(cache.get("short"));
+        assertNull(cache.get("long"));
+    }
+
+    @Test
+    void keepsLaterEntriesWhenShorterTtlExpiresBehindHead() throws InterruptedException {
+        TwitchTtlCache<String> cache = new TwitchTtlCache<>(10, 60_000, evictions::add);
+        cache.put("a", null, "A");
+        cache.put("short", null, "S", 20);
+        Thread.sleep(30);
+        cache.put("b", null, "B");
+
+        // Not at the head, so only dropped when read
+        assertEquals(3, cache.size());
+        assertNull(cache.get("short"));
+        assertEquals(2, cache.size());
+        assertEquals(List.of(true), evictions);
+    }
+
+    @Test
+    void removesEntriesBySecondaryKey() {
+        TwitchTtlCache<String> cache = new TwitchTtlCache<>(10, 60_000, evictions::add);
+        cache.put("token1", "user1", "1");
+        cache.put("token2", "user1", "2");
+        cache.put("token3", "user2", "3");
+        // Refiled under another user
+        cache.put("token2", "user2", "2");
+
+        cache.removeByIndex("user1");
+        assertNull(cache.get("token1"));
+        assertEquals("2", cache.get("token2"));
+
+        cache.removeByIndex("user2");
+        cache.remove("missing");
+        assertEquals(0, cache.size());
+        // Explicit removals are not evictions
+        assertEquals(List.of(), evictions);
+    }
+}
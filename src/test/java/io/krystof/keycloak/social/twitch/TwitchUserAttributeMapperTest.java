@@ -0,0 +1,177 @@
+package io.krystof.keycloak.social.twitch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.krystof.keycloak.social.twitch.TwitchStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TwitchUserAttributeMapperTest {
+
+    private final TwitchUserAttributeMapper mapper = new TwitchUserAttributeMapper();
+    private final Map<String, List<String>> attributes = new HashMap<>();
+    private final Map<String, Object> sessionAttributes = new HashMap<>();
+    private final List<KeycloakTransaction> prepared = new ArrayList<>();
+    private final List<String> writes = new ArrayList<>();
+    private String email;
+
+    @BeforeAll
+    static void recordMetrics() {
+        // The global registry has no registries of its own outside of Keycloak, so counters would not count
+        Metrics.addRegistry(new SimpleMeterRegistry());
+    }
+
+    @Test
+    void unchangedProfileWritesNothing() throws IOException {
+        attributes.put("twitchLogin", List.of("somestreamer"));
+        attributes.put("scopes", List.of("user:read:email", "openid"));
+        email = "jane@example.com";
+        RealmModel realm = realm("mapper-unchanged");
+
+        update(realm, "{\"login\": \"somestreamer\", \"scopes\": [\"openid\", \"user:read:email\"],"
+                + "\"email\": \"Jane@Example.com\"}", "login:twitchLogin", "scopes:scopes", "email:email");
+        commit();
+
+        assertEquals(List.of(), writes);
+        assertEquals(3, count(realm, TwitchMetrics.ATTRIBUTE_UNCHANGED));
+        assertEquals(0, count(realm, TwitchMetrics.ATTRIBUTE_WRITTEN));
+    }
+
+    @Test
+    void flushesChangedAttributesOnceBeforeCommit() throws IOException {
+        attributes.put("twitchLogin", List.of("oldlogin"));
+        attributes.put("description", List.of("old"));
+        email = "jane@example.com";
+        RealmModel realm = realm("mapper-changed");
+
+        update(realm, "{\"login\": \"somestreamer\", \"broadcaster_type\": \"affiliate\", \"email\": \"john@example.com\"}",
+                "login:twitchLogin", "broadcaster_type:broadcasterType", "email:email", "description:description");
+
+        // Queued for the one transaction enlisted for the user, not written yet
+        assertEquals(List.of(), writes);
+        assertEquals(1, prepared.size());
+        commit();
+
+        assertEquals(List.of("twitchLogin=[somestreamer]", "broadcasterType=[affiliate]", "email=john@example.com",
+                "-description"), writes);
+        assertEquals(4, count(realm, TwitchMetrics.ATTRIBUTE_WRITTEN));
+    }
+
+    @Test
+    void laterMapperComparesAgainstQueuedValue() throws IOException {
+        attributes.put("twitchLogin", List.of("oldlogin"));
+        RealmModel realm = realm("mapper-queued");
+
+        update(realm, "{\"login\": \"somestreamer\"}", "login:twitchLogin", "login:twitchLogin");
+        commit();
+
+        assertEquals(List.of("twitchLogin=[somestreamer]"), writes);
+        assertEquals(1, count(realm, TwitchMetrics.ATTRIBUTE_WRITTEN));
+        assertEquals(1, count(realm, TwitchMetrics.ATTRIBUTE_UNCHANGED));
+    }
+
+    /**
+     * Runs mappers given as {@code jsonField:userAttribute} on the profile, in one transaction.
+     */
+    private void update(RealmModel realm, String profile, String... mappings) throws IOException {
+        KeycloakSession session = session();
+        UserModel user = user();
+        BrokeredIdentityContext context = new BrokeredIdentityContext("12345", new TwitchIdentityProviderConfig());
+        context.getContextData().put(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE, JsonSerialization.mapper.readTree(profile));
+        for (String mapping : mappings) {
+            IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+            mapperModel.setIdentityProviderAlias("twitch");
+            mapperModel.setIdentityProviderMapper(TwitchUserAttributeMapper.PROVIDER_ID);
+            mapperModel.setConfig(Map.of(TwitchUserAttributeMapper.ATTRIBUTE_NAME, mapping.split(":")[0],
+                    TwitchUserAttributeMapper.USER_ATTRIBUTE, mapping.split(":")[1]));
+            mapper.updateBrokeredUser(session, realm, user, mapperModel, context);
+        }
+    }
+
+    private void commit() {
+        for (KeycloakTransaction transaction : prepared) {
+            transaction.begin();
+            transaction.commit();
+        }
+    }
+
+    private static double count(RealmModel realm, String result) {
+        Counter counter = Metrics.globalRegistry.find("keycloak.twitch.attribute.writes")
+                .tags("realm", realm.getName(), "result", result).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private KeycloakSession session() {
+        KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class, (name, args) -> {
+            if (name.equals("enlistPrepare")) {
+                prepared.add((KeycloakTransaction) args[0]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        });
+        return stub(KeycloakSession.class, (name, args) -> {
+            switch (name) {
+                case "getAttribute":
+                    return sessionAttributes.get((String) args[0]);
+                case "setAttribute":
+                    sessionAttributes.put((String) args[0], args[1]);
+                    return null;
+                case "getTransactionManager":
+                    return transactionManager;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private UserModel user() {
+        return stub(UserModel.class, (name, args) -> {
+            switch (name) {
+                case "getId":
+                    return "user-id";
+                case "getEmail":
+                    return email;
+                case "getAttributeStream":
+                    return attributes.getOrDefault((String) args[0], List.of()).stream();
+                case "setAttribute":
+                    writes.add(args[0] + "=" + args[1]);
+                    return null;
+                case "removeAttribute":
+                    writes.add("-" + args[0]);
+                    return null;
+                case "setEmail":
+                    writes.add("email=" + args[0]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static RealmModel realm(String name) {
+        return stub(RealmModel.class, (method, args) -> {
+            if (method.equals("getName")) {
+                return name;
+            }
+            throw new UnsupportedOperationException(method);
+        });
+    }
+}
@@ -0,0 +1,100 @@
+package io.krystof.keycloak.social.twitch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TwitchUsernameTemplateTest {
+
+    private static final String PROFILE = "{"
+            + "\"preferred_username\": \"SomeStreamer\","
+            + "\"broadcaster\": {\"type\": \"Affiliate\"}"
+            + "}";
+
+    @Test
+    void rendersLiteralsAndIdentityFields() {
+        BrokeredIdentityContext context = context();
+        context.getContextData().put("origin", "Twitch");
+        context.getContextData().put("notText", 42);
+
+        assertEquals("twitch-12345-Streamer@Example.com-somestreamer/Twitch/",
+                render("twitch-${sub}-${email}-${username}/${origin}/${notText}", context));
+        assertEquals("plain", render("plain", context));
+        assertEquals("", render("", context));
+    }
+
+    @Test
+    void appliesTransformsWhileAppending() {
+        BrokeredIdentityContext context = context();
+
+        assertEquals("streamer", render("${email|email-local-part|lowercase}", context));
+        assertEquals("stre", render("${email | lowercase | truncate: 4}", context));
+        // Truncating and cutting at the '@' commute, and the shortest truncate wins
+        assertEquals("Str", render("${email|truncate:10|email-local-part|truncate:3}", context));
+        assertEquals("Streamer", render("${email|email-local-part|truncate:20}", context));
+        assertEquals("", render("${email|truncate:0}", context));
+    }
+
+    @Test
+    void ignoresInvalidTransforms() {
+        BrokeredIdentityContext context = context();
+
+        assertEquals("Streamer", render("${email|email-local-part|truncate:-1}", context));
+        assertEquals("Stre", render("${email|truncate:4|truncate:-1}", context));
+        assertEquals("Streamer", render("${email|email-local-part|truncate:four}", context));
+        assertEquals("streamer", render("${email|reverse|email-local-part|lowercase}", context));
+    }
+
+    @Test
+    void resolvesProfileFieldsAndDottedPaths() {
+        BrokeredIdentityContext context = context();
+        context.getContextData().put(AbstractJsonUserAttributeMapper.CONTEXT_JSON_NODE, profile());
+
+        assertEquals("SomeStreamer:affiliate:Affiliate",
+                render("${preferred_username}:${broadcaster.type|lowercase}:${profile.broadcaster.type}", context));
+    }
+
+    @Test
+    void readsCompactProfiles() {
+        BrokeredIdentityContext context = context();
+        TwitchProfiles.store(context, profile(), Set.of(), true, "twitch");
+
+        assertEquals("SomeStreamer", render("${preferred_username}", context));
+    }
+
+    @Test
+    void rendersUnresolvedPlaceholdersEmpty() {
+        BrokeredIdentityContext context = new BrokeredIdentityContext("12345", new TwitchIdentityProviderConfig());
+
+        assertEquals("user--12345", render("user-${email}-${missing.path}${sub}", context));
+        // An unclosed placeholder is a literal
+        assertEquals("user-${sub", render("user-${sub", context));
+    }
+
+    private static String render(String template, BrokeredIdentityContext context) {
+        return TwitchUsernameTemplate.compile(template).render(context);
+    }
+
+    private static BrokeredIdentityContext context() {
+        BrokeredIdentityContext context = new BrokeredIdentityContext("12345", new TwitchIdentityProviderConfig());
+        context.setEmail("Streamer@Example.com");
+        // Keycloak lowercases usernames
+        context.setUsername("SomeStreamer");
+        return context;
+    }
+
+    private static JsonNode profile() {
+        try {
+            return JsonSerialization.mapper.readTree(PROFILE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}